@@ -0,0 +1,157 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.hdfs.MiniDFSCluster;
+
+import de.fiz.akubra.hdfs.HDFSBlobStore;
+
+/**
+ * {@link HDFSBlobStore}s in a fresh directory of the Hadoop local filesystem
+ * or of an in-process {@link MiniDFSCluster}, so that the benchmarks need no
+ * external cluster.
+ *
+ */
+final class HDFSBenchmarkBackend {
+    /** the Hadoop local filesystem */
+    static final String LOCAL = "local";
+    /** a {@link MiniDFSCluster} with one datanode */
+    static final String MINIDFS = "minidfs";
+
+    private final File dir;
+    private final MiniDFSCluster cluster;
+    private final Configuration conf = new Configuration();
+    private final String root;
+    private final List<HDFSBlobStore> stores = new ArrayList<HDFSBlobStore>();
+    private final HDFSBlobStore store;
+
+    /**
+     * start a backend
+     *
+     * @param backend
+     *            {@link #LOCAL} or {@link #MINIDFS}
+     * @throws IOException
+     *             if the filesystem could not be set up
+     */
+    HDFSBenchmarkBackend(final String backend) throws IOException {
+        dir = new File(System.getProperty("java.io.tmpdir"), "akubra-hdfs-bench-" + UUID.randomUUID());
+        if (MINIDFS.equals(backend)) {
+            // MiniDFSCluster keeps the namenode and datanode directories here
+            System.setProperty("test.build.data", new File(dir, "dfs").getAbsolutePath());
+            cluster = new MiniDFSCluster(conf, 1, true, null);
+            root = "hdfs://localhost:" + cluster.getNameNodePort() + "/";
+        } else if (LOCAL.equals(backend)) {
+            cluster = null;
+            if (!dir.mkdirs()) {
+                throw new IOException("unable to create " + dir);
+            }
+            root = dir.toURI().toASCIIString();
+        } else {
+            throw new IllegalArgumentException("unknown backend " + backend);
+        }
+        store = openStore("bench");
+    }
+
+    /**
+     * get the store opened with the backend
+     *
+     * @return the {@link HDFSBlobStore}
+     */
+    HDFSBlobStore getStore() {
+        return store;
+    }
+
+    /**
+     * open another store in a directory of its own. It is closed together
+     * with the backend.
+     *
+     * @param name
+     *            the name of the store's directory
+     * @return the {@link HDFSBlobStore}
+     * @throws IOException
+     *             if the directory could not be created
+     */
+    HDFSBlobStore openStore(final String name) throws IOException {
+        if (cluster == null && !new File(dir, name).mkdirs()) {
+            throw new IOException("unable to create " + name);
+        }
+        HDFSBlobStore created = new HDFSBlobStore(URI.create(root + name + "/"));
+        created.setConfiguration(conf);
+        stores.add(created);
+        return created;
+    }
+
+    /**
+     * create random content
+     *
+     * @param size
+     *            the number of bytes
+     * @return the content
+     */
+    static byte[] content(final int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * write a new blob
+     *
+     * @param conn
+     *            the connection the blob is written with
+     * @param content
+     *            the blob's content
+     * @return the blob
+     * @throws IOException
+     *             if the blob could not be written
+     */
+    static Blob create(final BlobStoreConnection conn, final byte[] content) throws IOException {
+        return conn.getBlob(new ByteArrayInputStream(content), content.length, null);
+    }
+
+    /**
+     * close the stores, stop the cluster and remove the directory
+     *
+     * @throws IOException
+     *             if the store could not be closed
+     */
+    void close() throws IOException {
+        try {
+            for (HDFSBlobStore s : stores) {
+                s.close();
+            }
+        } finally {
+            if (cluster != null) {
+                cluster.shutdown();
+            }
+            FileUtils.deleteDirectory(dir);
+        }
+    }
+}
@@ -0,0 +1,163 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Creating, reading, checking and deleting blobs of several sizes. Every
+ * benchmark thread works with a connection of its own.
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HDFSBlobBenchmark {
+    /** the number of blobs read and checked round robin */
+    private static final int BLOBS = 64;
+
+    @Param({ HDFSBenchmarkBackend.LOCAL, HDFSBenchmarkBackend.MINIDFS })
+    public String backend;
+
+    @Param({ "1024", "65536", "1048576" })
+    public int blobSize;
+
+    private HDFSBenchmarkBackend store;
+    private byte[] content;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        store = new HDFSBenchmarkBackend(backend);
+        content = HDFSBenchmarkBackend.content(blobSize);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+    }
+
+    /**
+     * the connection of a benchmark thread with the blobs it reads
+     */
+    @State(Scope.Thread)
+    public static class Session {
+        BlobStoreConnection conn;
+        byte[] content;
+        final Blob[] blobs = new Blob[BLOBS];
+        final List<Blob> created = new ArrayList<Blob>();
+        final byte[] buffer = new byte[64 * 1024];
+        int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(final HDFSBlobBenchmark benchmark) throws IOException {
+            conn = benchmark.store.getStore().openConnection(null, null);
+            content = benchmark.content;
+            for (int i = 0; i < BLOBS; i++) {
+                blobs[i] = HDFSBenchmarkBackend.create(conn, content);
+            }
+        }
+
+        /*
+         * the blobs written by the create benchmark are removed so that the
+         * filesystem does not fill up
+         */
+        @TearDown(Level.Iteration)
+        public void deleteCreated() throws IOException {
+            for (Blob blob : created) {
+                blob.delete();
+            }
+            created.clear();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            conn.close();
+        }
+
+        Blob nextBlob() {
+            next = (next + 1) % BLOBS;
+            return blobs[next];
+        }
+    }
+
+    /**
+     * a blob written before each call of the delete benchmark
+     */
+    @State(Scope.Thread)
+    public static class Victim {
+        Blob blob;
+
+        @Setup(Level.Invocation)
+        public void setUp(final Session session) throws IOException {
+            blob = HDFSBenchmarkBackend.create(session.conn, session.content);
+        }
+    }
+
+    @Benchmark
+    public Blob create(final Session session) throws IOException {
+        Blob blob = HDFSBenchmarkBackend.create(session.conn, session.content);
+        session.created.add(blob);
+        return blob;
+    }
+
+    @Benchmark
+    public void read(final Session session, final Blackhole bh) throws IOException {
+        InputStream in = session.nextBlob().openInputStream();
+        try {
+            int n;
+            while ((n = in.read(session.buffer)) > -1) {
+                bh.consume(n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public boolean exists(final Session session) throws IOException {
+        return session.nextBlob().exists();
+    }
+
+    @Benchmark
+    public void delete(final Victim victim) throws IOException {
+        victim.blob.delete();
+    }
+}
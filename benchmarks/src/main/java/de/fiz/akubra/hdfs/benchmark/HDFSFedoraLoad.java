@@ -0,0 +1,469 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStore;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.map.IdMappingBlobStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fiz.akubra.hdfs.HDFSBlobStore;
+import de.fiz.akubra.hdfs.HDFSIdMapper;
+import de.fiz.akubra.hdfs.HDFSMetrics;
+
+/**
+ * Replays Fedora's use of the store: objects are ingested with their
+ * datastreams, modified by the safe overwrite of Fedora's low level storage,
+ * which writes <code>&lt;id&gt;/new</code>, moves the object to
+ * <code>&lt;id&gt;/old</code>, moves the new content into place and deletes
+ * the old one, and read, with an occasional prefix listing. The objects and
+ * datastreams go through an {@link IdMappingBlobStore} with a
+ * {@link HDFSIdMapper} each, as configured in <code>akubra-llstore.xml</code>.
+ * <p>
+ * The arguments are <code>key=value</code> pairs:
+ * <ul>
+ * <li><code>threads</code> the number of concurrent clients, default 8</li>
+ * <li><code>duration</code> the seconds the mix is run, default 60</li>
+ * <li><code>objects</code> the objects ingested before, default 1000</li>
+ * <li><code>datastreams</code> the datastreams per object, default 3</li>
+ * <li><code>mix</code> the weights of the operations, default
+ * <code>ingest:10,modify:20,read:65,list:5</code></li>
+ * <li><code>objectSize</code> and <code>datastreamSize</code> a
+ * {@link HDFSSizeDistribution}, default
+ * <code>loguniform:2048:32768</code> and
+ * <code>loguniform:1024:1048576</code></li>
+ * <li><code>uri</code> the directory of an existing Hadoop filesystem to run
+ * against instead of an in-process MiniDFSCluster</li>
+ * </ul>
+ * Reported are the throughput, the 50th, 99th and 99.9th percentile of the
+ * latency and the Hadoop filesystem calls per logical operation. Each of
+ * those calls is a round trip to the namenode; the block traffic of the
+ * streams is not included.
+ *
+ */
+public final class HDFSFedoraLoad {
+    private static final Logger log = LoggerFactory.getLogger(HDFSFedoraLoad.class);
+    private static final String PID_PREFIX = "info:fedora/load:";
+
+    enum Operation {
+        INGEST, MODIFY, READ, LIST
+    }
+
+    private final int threads;
+    private final long duration;
+    private final int preload;
+    private final int datastreams;
+    private final Operation[] operations;
+    private final int[] weights;
+    private final HDFSSizeDistribution objectSizes;
+    private final HDFSSizeDistribution datastreamSizes;
+    private final BlobStore objectStore;
+    private final BlobStore datastreamStore;
+    private final CallCounter calls;
+    private final byte[] content;
+
+    private final AtomicInteger nextPid = new AtomicInteger();
+    private final ConcurrentMap<Integer, int[]> objects = new ConcurrentHashMap<Integer, int[]>();
+    private int[] pids = new int[1024];
+    private int pidCount = 0;
+    private final ReadWriteLock[] locks = new ReadWriteLock[256];
+
+    HDFSFedoraLoad(final Map<String, String> options, final HDFSBlobStore objectBlobs, final HDFSBlobStore datastreamBlobs) {
+        this.threads = Integer.parseInt(option(options, "threads", "8"));
+        this.duration = Long.parseLong(option(options, "duration", "60")) * 1000;
+        this.preload = Integer.parseInt(option(options, "objects", "1000"));
+        this.datastreams = Integer.parseInt(option(options, "datastreams", "3"));
+        this.objectSizes = HDFSSizeDistribution.parse(option(options, "objectSize", "loguniform:2048:32768"));
+        this.datastreamSizes = HDFSSizeDistribution.parse(option(options, "datastreamSize", "loguniform:1024:1048576"));
+        String[] mix = option(options, "mix", "ingest:10,modify:20,read:65,list:5").split(",");
+        this.operations = new Operation[mix.length];
+        this.weights = new int[mix.length];
+        int total = 0;
+        for (int i = 0; i < mix.length; i++) {
+            String[] entry = mix[i].split(":");
+            operations[i] = Operation.valueOf(entry[0].trim().toUpperCase());
+            total += Integer.parseInt(entry[1].trim());
+            weights[i] = total;
+        }
+        this.calls = new CallCounter();
+        objectBlobs.setMetricsRegistry(calls);
+        datastreamBlobs.setMetricsRegistry(calls);
+        this.objectStore = new IdMappingBlobStore(URI.create("urn:example.org:objectStore"), objectBlobs, new HDFSIdMapper(objectBlobs));
+        this.datastreamStore = new IdMappingBlobStore(URI.create("urn:fedora:datastreamStore"), datastreamBlobs, new HDFSIdMapper(
+                datastreamBlobs));
+        this.content = HDFSBenchmarkBackend.content(Math.max(1, Math.max(objectSizes.max(), datastreamSizes.max())));
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new ReentrantReadWriteLock();
+        }
+    }
+
+    private static String option(final Map<String, String> options, final String key, final String defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : value;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 1) {
+                throw new IllegalArgumentException("arguments are key=value pairs: " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        String uri = options.get("uri");
+        HDFSBenchmarkBackend backend = null;
+        HDFSBlobStore objects;
+        HDFSBlobStore datastreams;
+        if (uri == null) {
+            backend = new HDFSBenchmarkBackend(HDFSBenchmarkBackend.MINIDFS);
+            objects = backend.openStore("objects");
+            datastreams = backend.openStore("datastreams");
+        } else {
+            String root = uri.endsWith("/") ? uri : uri + "/";
+            objects = new HDFSBlobStore(URI.create(root + "objects/"));
+            datastreams = new HDFSBlobStore(URI.create(root + "datastreams/"));
+        }
+        try {
+            new HDFSFedoraLoad(options, objects, datastreams).run(System.out);
+        } finally {
+            if (backend != null) {
+                backend.close();
+            } else {
+                objects.close();
+                datastreams.close();
+            }
+        }
+    }
+
+    /**
+     * ingest the initial objects, then run the mix and print the results
+     *
+     * @param out
+     *            the stream the report is printed to
+     * @throws InterruptedException
+     *             if interrupted while waiting for the clients
+     */
+    void run(final PrintStream out) throws InterruptedException {
+        out.println("ingesting " + preload + " objects with " + datastreams + " datastreams of " + datastreamSizes);
+        final AtomicInteger remaining = new AtomicInteger(preload);
+        runClients(new Client() {
+            public Operation next(final Random random) {
+                return remaining.getAndDecrement() > 0 ? Operation.INGEST : null;
+            }
+        });
+        calls.reset();
+        out.println("running " + Arrays.toString(operations) + " with " + threads + " threads for " + duration / 1000 + "s");
+        final long end = System.currentTimeMillis() + duration;
+        long start = System.nanoTime();
+        Map<Operation, Stats> stats = runClients(new Client() {
+            public Operation next(final Random random) {
+                return System.currentTimeMillis() < end ? pick(random) : null;
+            }
+        });
+        report(out, stats, (System.nanoTime() - start) / 1e9);
+    }
+
+    private Operation pick(final Random random) {
+        int r = random.nextInt(weights[weights.length - 1]);
+        for (int i = 0; i < weights.length; i++) {
+            if (r < weights[i]) {
+                return operations[i];
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    private Map<Operation, Stats> runClients(final Client client) throws InterruptedException {
+        final Map<Operation, Stats> total = new EnumMap<Operation, Stats>(Operation.class);
+        final CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            final long seed = t;
+            Thread thread = new Thread("fedora-load-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        Map<Operation, Stats> own = runClient(client, new Random(seed));
+                        synchronized (total) {
+                            for (Map.Entry<Operation, Stats> e : own.entrySet()) {
+                                Stats s = total.get(e.getKey());
+                                if (s == null) {
+                                    total.put(e.getKey(), e.getValue());
+                                } else {
+                                    s.add(e.getValue());
+                                }
+                            }
+                        }
+                    } catch (IOException e) {
+                        log.error("client failed", e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            thread.start();
+        }
+        done.await();
+        return total;
+    }
+
+    private Map<Operation, Stats> runClient(final Client client, final Random random) throws IOException {
+        Map<Operation, Stats> stats = new EnumMap<Operation, Stats>(Operation.class);
+        byte[] buffer = new byte[64 * 1024];
+        BlobStoreConnection oconn = objectStore.openConnection(null, null);
+        BlobStoreConnection dconn = datastreamStore.openConnection(null, null);
+        try {
+            Operation op;
+            while ((op = client.next(random)) != null) {
+                if (op != Operation.INGEST && objectCount() == 0) {
+                    op = Operation.INGEST;
+                }
+                Stats s = stats.get(op);
+                if (s == null) {
+                    s = new Stats();
+                    stats.put(op, s);
+                }
+                long callsBefore = calls.getThreadCalls();
+                long start = System.nanoTime();
+                try {
+                    switch (op) {
+                    case INGEST:
+                        ingest(oconn, dconn, random);
+                        break;
+                    case MODIFY:
+                        modify(oconn, dconn, random);
+                        break;
+                    case READ:
+                        read(oconn, dconn, random, buffer);
+                        break;
+                    default:
+                        list(oconn, random);
+                    }
+                    s.record(System.nanoTime() - start, calls.getThreadCalls() - callsBefore);
+                } catch (IOException e) {
+                    if (s.errors++ == 0) {
+                        log.warn(op + " failed", e);
+                    }
+                }
+            }
+        } finally {
+            oconn.close();
+            dconn.close();
+        }
+        return stats;
+    }
+
+    private void ingest(final BlobStoreConnection oconn, final BlobStoreConnection dconn, final Random random) throws IOException {
+        int pid = nextPid.incrementAndGet();
+        write(oconn.getBlob(objectId(pid), null), objectSizes.next(random), false);
+        for (int i = 0; i < datastreams; i++) {
+            write(dconn.getBlob(datastreamId(pid, i, 0), null), datastreamSizes.next(random), false);
+        }
+        objects.put(pid, new int[datastreams]);
+        addObject(pid);
+    }
+
+    private void modify(final BlobStoreConnection oconn, final BlobStoreConnection dconn, final Random random) throws IOException {
+        int pid = randomObject(random);
+        Lock lock = locks[pid % locks.length].writeLock();
+        lock.lock();
+        try {
+            // the safe overwrite of Fedora's AkubraLowlevelStorage
+            URI id = objectId(pid);
+            Blob newBlob = oconn.getBlob(URI.create(id + "/new"), null);
+            write(newBlob, objectSizes.next(random), true);
+            Blob oldBlob = oconn.getBlob(id, null).moveTo(URI.create(id + "/old"), null);
+            newBlob.moveTo(id, null);
+            oldBlob.delete();
+            if (datastreams > 0) {
+                // a new version of a datastream
+                int ds = random.nextInt(datastreams);
+                int version = ++objects.get(pid)[ds];
+                write(dconn.getBlob(datastreamId(pid, ds, version), null), datastreamSizes.next(random), false);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void read(final BlobStoreConnection oconn, final BlobStoreConnection dconn, final Random random, final byte[] buffer)
+            throws IOException {
+        int pid = randomObject(random);
+        Lock lock = locks[pid % locks.length].readLock();
+        lock.lock();
+        try {
+            readFully(oconn.getBlob(objectId(pid), null), buffer);
+            if (datastreams > 0) {
+                int ds = random.nextInt(datastreams);
+                readFully(dconn.getBlob(datastreamId(pid, ds, objects.get(pid)[ds]), null), buffer);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void list(final BlobStoreConnection oconn, final Random random) throws IOException {
+        Iterator<URI> ids = oconn.listBlobIds(PID_PREFIX + (1 + random.nextInt(9)));
+        while (ids.hasNext()) {
+            ids.next();
+        }
+    }
+
+    private void write(final Blob blob, final int size, final boolean overwrite) throws IOException {
+        OutputStream out = blob.openOutputStream(size, overwrite);
+        try {
+            out.write(content, 0, size);
+        } finally {
+            out.close();
+        }
+    }
+
+    private static void readFully(final Blob blob, final byte[] buffer) throws IOException {
+        InputStream in = blob.openInputStream();
+        try {
+            while (in.read(buffer) > -1) {
+                // discard
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private static URI objectId(final int pid) {
+        return URI.create(PID_PREFIX + pid);
+    }
+
+    private static URI datastreamId(final int pid, final int ds, final int version) {
+        return URI.create(PID_PREFIX + pid + "/DS" + ds + "/DS" + ds + "." + version);
+    }
+
+    private synchronized void addObject(final int pid) {
+        if (pidCount == pids.length) {
+            pids = Arrays.copyOf(pids, pidCount * 2);
+        }
+        pids[pidCount++] = pid;
+    }
+
+    private synchronized int objectCount() {
+        return pidCount;
+    }
+
+    private synchronized int randomObject(final Random random) {
+        return pids[random.nextInt(pidCount)];
+    }
+
+    private void report(final PrintStream out, final Map<Operation, Stats> stats, final double seconds) {
+        out.println(String.format("%-8s %9s %9s %10s %10s %10s %9s %7s", "op", "count", "ops/s", "p50 ms", "p99 ms", "p999 ms",
+                "calls/op", "errors"));
+        for (Map.Entry<Operation, Stats> e : stats.entrySet()) {
+            Stats s = e.getValue();
+            out.println(String.format("%-8s %9d %9.1f %10.2f %10.2f %10.2f %9.1f %7d", e.getKey().name().toLowerCase(), s.count,
+                    s.count / seconds, s.percentile(0.5) / 1e6, s.percentile(0.99) / 1e6, s.percentile(0.999) / 1e6,
+                    s.count == 0 ? 0.0 : (double) s.calls / s.count, s.errors));
+        }
+        out.println();
+        out.println("store operations: " + calls.getCounts());
+        out.println("filesystem calls: " + calls.getFileSystemCalls());
+        out.println("bytes read " + calls.getBytesRead() + ", written " + calls.getBytesWritten());
+    }
+
+    private interface Client {
+        /**
+         * @return the next operation or null to stop
+         */
+        Operation next(Random random);
+    }
+
+    /**
+     * the latencies and filesystem calls of one operation of a client
+     */
+    private static class Stats {
+        private long[] latencies = new long[1024];
+        private int count = 0;
+        private long calls = 0;
+        private int errors = 0;
+
+        void record(final long nanos, final long fileSystemCalls) {
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = nanos;
+            calls += fileSystemCalls;
+        }
+
+        void add(final Stats other) {
+            for (int i = 0; i < other.count; i++) {
+                record(other.latencies[i], 0);
+            }
+            calls += other.calls;
+            errors += other.errors;
+        }
+
+        long percentile(final double quantile) {
+            if (count == 0) {
+                return 0;
+            }
+            long[] sorted = Arrays.copyOf(latencies, count);
+            Arrays.sort(sorted);
+            return sorted[Math.min(count - 1, (int) Math.ceil(quantile * count) - 1)];
+        }
+    }
+
+    /**
+     * sums the filesystem calls of the store operations per thread, so that
+     * they can be charged to the logical operation running on the thread
+     */
+    private static class CallCounter extends HDFSMetrics {
+        private final ThreadLocal<long[]> threadCalls = new ThreadLocal<long[]>() {
+            @Override
+            protected long[] initialValue() {
+                return new long[1];
+            }
+        };
+
+        @Override
+        public void operation(final String operation, final long nanos, final int fileSystemCalls) {
+            threadCalls.get()[0] += fileSystemCalls;
+            super.operation(operation, nanos, fileSystemCalls);
+        }
+
+        long getThreadCalls() {
+            return threadCalls.get()[0];
+        }
+    }
+}
@@ -0,0 +1,162 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmark;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.fiz.akubra.hdfs.HDFSBlobStore;
+import de.fiz.akubra.hdfs.HDFSIdMapper;
+
+/**
+ * {@link HDFSIdMapper} against the URLEncoder based mapping it used before,
+ * on an unsharded store. Compare <code>gc.alloc.rate.norm</code>, the bytes
+ * allocated per mapping, next to the throughput.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HDFSIdCodecBenchmark {
+    private static final Logger log = LoggerFactory.getLogger(HDFSIdCodecBenchmark.class);
+    private static final String STORE_ID = "hdfs://localhost:9000/fedora/objects/";
+    private static final String[] EXTERNAL_IDS = { "info:fedora/demo:1", "info:fedora/demo:1/DC/DC.0",
+            "info:fedora/demo:1/RELS-EXT/RELS-EXT.12", "info:fedora/o:a%20b/c:d%20e/DS%201.3" };
+
+    private HDFSIdMapper mapper;
+    private URI[] externalIds;
+    private URI[] internalIds;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mapper = new HDFSIdMapper(new HDFSBlobStore(URI.create(STORE_ID)));
+        externalIds = new URI[EXTERNAL_IDS.length];
+        internalIds = new URI[EXTERNAL_IDS.length];
+        for (int i = 0; i < EXTERNAL_IDS.length; i++) {
+            externalIds[i] = URI.create(EXTERNAL_IDS[i]);
+            internalIds[i] = mapper.getInternalId(externalIds[i]);
+            if (!internalIds[i].equals(legacyInternalId(externalIds[i]))
+                    || !mapper.getExternalId(internalIds[i]).equals(legacyExternalId(internalIds[i]))) {
+                throw new IllegalStateException("the mappings differ for " + externalIds[i]);
+            }
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) % EXTERNAL_IDS.length;
+        return next;
+    }
+
+    @Benchmark
+    public URI toInternal() {
+        return mapper.getInternalId(externalIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public URI toInternalLegacy() {
+        return legacyInternalId(externalIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public URI toExternal() {
+        return mapper.getExternalId(internalIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public URI toExternalLegacy() {
+        return legacyExternalId(internalIds[nextIndex()]);
+    }
+
+    private static URI legacyExternalId(final URI internalId) {
+        String path = internalId.toASCIIString();
+        if (path.startsWith(STORE_ID)) {
+            path = path.substring(STORE_ID.length());
+        }
+        int slash = path.lastIndexOf('/');
+        if (slash != -1) {
+            path = path.substring(0, slash) + legacyDecode(path.substring(slash));
+        } else {
+            path = legacyDecode(path);
+        }
+        URI externalId = URI.create("hdfs:" + path);
+        log.debug("mapping internal id " + internalId + " to " + externalId);
+        return externalId;
+    }
+
+    private static URI legacyInternalId(final URI externalId) {
+        String path = externalId.toASCIIString();
+        log.debug("external path " + path);
+        int colon = path.indexOf(':');
+        int slash = Math.max(path.lastIndexOf('/'), colon);
+        String fileName = path.substring(slash + 1);
+        path = path.substring(colon + 1, slash + 1).replaceAll(":", "_");
+        String suffix = null;
+        if ("new".equals(fileName)) {
+            suffix = "_NEW_";
+        } else if ("old".equals(fileName)) {
+            suffix = "_OLD_";
+        }
+        if (suffix != null && path.length() > 0) {
+            String dir = path.substring(0, path.length() - 1);
+            int parent = dir.lastIndexOf('/') + 1;
+            fileName = dir.substring(parent) + suffix;
+            path = dir.substring(0, parent);
+        } else {
+            fileName = legacyEncode(fileName);
+        }
+        URI internalUri = URI.create(STORE_ID + path + fileName);
+        log.debug("mapping external id " + externalId + " to " + internalUri.toASCIIString());
+        return internalUri;
+    }
+
+    private static String legacyDecode(final String s) {
+        try {
+            return URLDecoder.decode(s.replaceAll(":", "_"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String legacyEncode(final String s) {
+        try {
+            return URLEncoder.encode(s.replaceAll(":", "_"), "UTF-8").replaceAll("\\+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmark;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import de.fiz.akubra.hdfs.HDFSBlobStore;
+import de.fiz.akubra.hdfs.HDFSIdMapper;
+
+/**
+ * Mapping Fedora's ids to the store's ids and back. The mapping touches no
+ * filesystem, so no backend is started.
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HDFSIdMapperBenchmark {
+    /** object, datastream and the ids Fedora renames through while replacing */
+    private static final String[] EXTERNAL_IDS = { "info:fedora/demo:1", "info:fedora/demo:1/DC/DC.0",
+            "info:fedora/demo:1/new", "info:fedora/demo:1/old", "info:fedora/o:a%20b/c:d e/RELS-EXT.3" };
+
+    @Param({ "0", "2" })
+    public int shardLevels;
+
+    private HDFSIdMapper mapper;
+    private URI[] externalIds;
+    private URI[] internalIds;
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        HDFSBlobStore store = new HDFSBlobStore(URI.create("hdfs://localhost:9000/fedora/objects/"));
+        store.setShardLevels(shardLevels);
+        mapper = new HDFSIdMapper(store);
+        externalIds = new URI[EXTERNAL_IDS.length];
+        internalIds = new URI[EXTERNAL_IDS.length];
+        for (int i = 0; i < EXTERNAL_IDS.length; i++) {
+            externalIds[i] = URI.create(EXTERNAL_IDS[i].replace(" ", "%20"));
+            internalIds[i] = mapper.getInternalId(externalIds[i]);
+        }
+    }
+
+    private int nextIndex() {
+        next = (next + 1) % EXTERNAL_IDS.length;
+        return next;
+    }
+
+    @Benchmark
+    public URI toInternal() {
+        return mapper.getInternalId(externalIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public URI toExternal() {
+        return mapper.getExternalId(internalIds[nextIndex()]);
+    }
+
+    @Benchmark
+    public String toInternalPrefix() {
+        return mapper.getInternalPrefix("info:fedora/demo:");
+    }
+}
@@ -0,0 +1,95 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmark;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.akubraproject.BlobStoreConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Listing all ids of stores of several sizes, with and without sharded
+ * directories.
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HDFSListingBenchmark {
+
+    @Param({ HDFSBenchmarkBackend.LOCAL, HDFSBenchmarkBackend.MINIDFS })
+    public String backend;
+
+    @Param({ "100", "1000", "10000" })
+    public int storeSize;
+
+    @Param({ "0", "1" })
+    public int shardLevels;
+
+    private HDFSBenchmarkBackend store;
+    private BlobStoreConnection conn;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        store = new HDFSBenchmarkBackend(backend);
+        store.getStore().setShardLevels(shardLevels);
+        conn = store.getStore().openConnection(null, null);
+        byte[] content = HDFSBenchmarkBackend.content(16);
+        for (int i = 0; i < storeSize; i++) {
+            HDFSBenchmarkBackend.create(conn, content);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        conn.close();
+        store.close();
+    }
+
+    @Benchmark
+    public int list(final Blackhole bh) throws IOException {
+        int count = 0;
+        Iterator<URI> ids = conn.listBlobIds(null);
+        while (ids.hasNext()) {
+            bh.consume(ids.next());
+            count++;
+        }
+        if (count != storeSize) {
+            throw new IllegalStateException("listed " + count + " of " + storeSize + " blobs");
+        }
+        return count;
+    }
+}
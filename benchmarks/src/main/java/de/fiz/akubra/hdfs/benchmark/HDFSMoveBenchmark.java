@@ -0,0 +1,96 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmark;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Moving blobs of several sizes. A blob can only be moved to an
+ * <code>hdfs:</code> id, so this benchmark runs against the
+ * {@link org.apache.hadoop.hdfs.MiniDFSCluster} only.
+ *
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HDFSMoveBenchmark {
+
+    @Param({ "1024", "65536", "1048576" })
+    public int blobSize;
+
+    private HDFSBenchmarkBackend store;
+    private BlobStoreConnection conn;
+    private byte[] content;
+    private Blob blob;
+    private final List<Blob> moved = new ArrayList<Blob>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        store = new HDFSBenchmarkBackend(HDFSBenchmarkBackend.MINIDFS);
+        conn = store.getStore().openConnection(null, null);
+        content = HDFSBenchmarkBackend.content(blobSize);
+    }
+
+    @Setup(Level.Invocation)
+    public void createBlob() throws IOException {
+        blob = HDFSBenchmarkBackend.create(conn, content);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteMoved() throws IOException {
+        for (Blob b : moved) {
+            b.delete();
+        }
+        moved.clear();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        conn.close();
+        store.close();
+    }
+
+    @Benchmark
+    public Blob move() throws IOException {
+        // the store picks a new id
+        Blob target = blob.moveTo(null, null);
+        moved.add(target);
+        return target;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs.benchmark;
+
+import java.util.Random;
+
+/**
+ * The sizes of generated blobs, given as
+ * <ul>
+ * <li><code>fixed:size</code></li>
+ * <li><code>uniform:min:max</code></li>
+ * <li><code>loguniform:min:max</code>, which makes small blobs as frequent as
+ * large ones per order of magnitude, the way Fedora's metadata and content
+ * datastreams mix</li>
+ * </ul>
+ *
+ */
+final class HDFSSizeDistribution {
+    private final String spec;
+    private final boolean logarithmic;
+    private final int min;
+    private final int max;
+
+    private HDFSSizeDistribution(final String spec, final boolean logarithmic, final int min, final int max) {
+        this.spec = spec;
+        this.logarithmic = logarithmic;
+        this.min = min;
+        this.max = max;
+    }
+
+    /**
+     * parse a distribution
+     *
+     * @param spec
+     *            the distribution, e.g. <code>loguniform:1024:1048576</code>
+     * @return the {@link HDFSSizeDistribution}
+     */
+    static HDFSSizeDistribution parse(final String spec) {
+        String[] parts = spec.split(":");
+        try {
+            if (parts.length == 2 && "fixed".equals(parts[0])) {
+                int size = Integer.parseInt(parts[1]);
+                return new HDFSSizeDistribution(spec, false, size, size);
+            }
+            if (parts.length == 3 && ("uniform".equals(parts[0]) || "loguniform".equals(parts[0]))) {
+                int min = Integer.parseInt(parts[1]);
+                int max = Integer.parseInt(parts[2]);
+                if (min < 1 || max < min) {
+                    throw new IllegalArgumentException("invalid bounds in size distribution " + spec);
+                }
+                return new HDFSSizeDistribution(spec, "loguniform".equals(parts[0]), min, max);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid size in size distribution " + spec);
+        }
+        throw new IllegalArgumentException("unknown size distribution " + spec);
+    }
+
+    /**
+     * draw a size
+     *
+     * @param random
+     *            the source of randomness
+     * @return the number of bytes
+     */
+    int next(final Random random) {
+        if (min == max) {
+            return min;
+        }
+        if (logarithmic) {
+            double exp = Math.log(min) + random.nextDouble() * (Math.log(max) - Math.log(min));
+            return (int) Math.min(max, Math.round(Math.exp(exp)));
+        }
+        return min + random.nextInt(max - min + 1);
+    }
+
+    /**
+     * get the largest size drawn
+     *
+     * @return the number of bytes
+     */
+    int max() {
+        return max;
+    }
+
+    @Override
+    public String toString() {
+        return spec;
+    }
+}
@@ -0,0 +1,436 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An asynchronous facade over a {@link HDFSBlobStore}. Every operation runs on
+ * an executor with a connection of its own and returns a {@link Future}; an
+ * optional {@link HDFSCallback} is notified when it has finished, so a caller
+ * does not have to park a thread per request.
+ * <p>
+ * At most <code>maxPending</code> operations are submitted or running at any
+ * time. A caller submitting more is blocked until an operation has finished,
+ * so a fast producer cannot flood the namenode. A cancelled operation frees
+ * its place at once, and its callback is notified with a
+ * {@link CancellationException}. Exceptions thrown by a callback are logged
+ * and do not change the result of the operation.
+ *
+ */
+public class HDFSAsyncBlobStore {
+    private static final Logger log = LoggerFactory.getLogger(HDFSAsyncBlobStore.class);
+
+    private final HDFSBlobStore store;
+    private ExecutorService executor;
+    private boolean ownExecutor = false;
+    private int threads = 16;
+    private int maxPending = 64;
+    private Semaphore pending;
+
+    /**
+     * create a new {@link HDFSAsyncBlobStore}
+     *
+     * @param store
+     *            the {@link HDFSBlobStore} the operations are run against
+     */
+    public HDFSAsyncBlobStore(final HDFSBlobStore store) {
+        this.store = store;
+    }
+
+    /**
+     * set the executor running the operations. It is not shut down by
+     * {@link #close()}. The operations returned by its
+     * <code>shutdownNow()</code> have to be cancelled to free their places.
+     *
+     * @param executor
+     *            the {@link ExecutorService}, defaults to virtual threads
+     *            where the JVM provides them and to a pool of
+     *            <code>threads</code> threads otherwise
+     */
+    public synchronized void setExecutor(final ExecutorService executor) {
+        this.executor = executor;
+        this.ownExecutor = false;
+    }
+
+    /**
+     * set the size of the default thread pool if the JVM has no virtual
+     * threads
+     *
+     * @param threads
+     *            the number of threads, defaults to 16
+     */
+    public synchronized void setThreads(final int threads) {
+        this.threads = threads;
+    }
+
+    /**
+     * set the number of operations which may be submitted or running at once
+     *
+     * @param maxPending
+     *            the number of operations, defaults to 64
+     */
+    public synchronized void setMaxPending(final int maxPending) {
+        this.maxPending = maxPending;
+        this.pending = null;
+    }
+
+    /**
+     * get the number of operations which are submitted or running
+     *
+     * @return the number of pending operations
+     */
+    public synchronized int getPending() {
+        return pending == null ? 0 : maxPending - pending.availablePermits();
+    }
+
+    /**
+     * check if a blob exists
+     *
+     * @param id
+     *            the blob's id
+     * @param callback
+     *            notified with the result, may be null
+     * @return the {@link Future} result
+     * @throws InterruptedException
+     *             if the caller was interrupted while waiting for a pending
+     *             operation to finish
+     */
+    public Future<Boolean> exists(final URI id, final HDFSCallback<Boolean> callback) throws InterruptedException {
+        return submit(new Operation<Boolean>() {
+            public Boolean run(final BlobStoreConnection conn) throws Exception {
+                return conn.getBlob(id, null).exists();
+            }
+        }, callback);
+    }
+
+    /**
+     * get the size of a blob
+     *
+     * @param id
+     *            the blob's id
+     * @param callback
+     *            notified with the result, may be null
+     * @return the {@link Future} size, failing with a
+     *         {@link org.akubraproject.MissingBlobException} if the blob does
+     *         not exist
+     * @throws InterruptedException
+     *             if the caller was interrupted while waiting for a pending
+     *             operation to finish
+     */
+    public Future<Long> getSize(final URI id, final HDFSCallback<Long> callback) throws InterruptedException {
+        return submit(new Operation<Long>() {
+            public Long run(final BlobStoreConnection conn) throws Exception {
+                return conn.getBlob(id, null).getSize();
+            }
+        }, callback);
+    }
+
+    /**
+     * write a blob, replacing existing content. The content stream is read
+     * by the executor and closed when it has been written.
+     *
+     * @param id
+     *            the blob's id or null to let the store create one
+     * @param content
+     *            the content
+     * @param estimatedSize
+     *            the estimated size of the content or -1
+     * @param hints
+     *            the hints choosing the {@link HDFSCreatePolicy}, may be null
+     * @param callback
+     *            notified with the blob's id, may be null
+     * @return the {@link Future} id of the blob
+     * @throws InterruptedException
+     *             if the caller was interrupted while waiting for a pending
+     *             operation to finish
+     */
+    public Future<URI> put(final URI id, final InputStream content, final long estimatedSize, final Map<String, String> hints,
+            final HDFSCallback<URI> callback) throws InterruptedException {
+        return submit(new Operation<URI>() {
+            public URI run(final BlobStoreConnection conn) throws Exception {
+                try {
+                    if (id == null) {
+                        return conn.getBlob(content, estimatedSize, hints).getId();
+                    }
+                    Blob blob = conn.getBlob(id, hints);
+                    OutputStream out = blob.openOutputStream(estimatedSize, true);
+                    try {
+                        IOUtils.copy(content, out);
+                    } finally {
+                        out.close();
+                    }
+                    return blob.getId();
+                } finally {
+                    IOUtils.closeQuietly(content);
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * read the content of a blob into memory
+     *
+     * @param id
+     *            the blob's id
+     * @param callback
+     *            notified with the content, may be null
+     * @return the {@link Future} content, failing with a
+     *         {@link org.akubraproject.MissingBlobException} if the blob does
+     *         not exist
+     * @throws InterruptedException
+     *             if the caller was interrupted while waiting for a pending
+     *             operation to finish
+     */
+    public Future<byte[]> get(final URI id, final HDFSCallback<byte[]> callback) throws InterruptedException {
+        return submit(new Operation<byte[]>() {
+            public byte[] run(final BlobStoreConnection conn) throws Exception {
+                InputStream in = conn.getBlob(id, null).openInputStream();
+                try {
+                    return IOUtils.toByteArray(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }, callback);
+    }
+
+    /**
+     * delete a blob
+     *
+     * @param id
+     *            the blob's id
+     * @param callback
+     *            notified with null, may be null
+     * @return the {@link Future} completion
+     * @throws InterruptedException
+     *             if the caller was interrupted while waiting for a pending
+     *             operation to finish
+     */
+    public Future<Void> delete(final URI id, final HDFSCallback<Void> callback) throws InterruptedException {
+        return submit(new Operation<Void>() {
+            public Void run(final BlobStoreConnection conn) throws Exception {
+                conn.getBlob(id, null).delete();
+                return null;
+            }
+        }, callback);
+    }
+
+    /**
+     * move a blob
+     *
+     * @param id
+     *            the blob's id
+     * @param target
+     *            the new id or null to let the store create one
+     * @param callback
+     *            notified with the new id, may be null
+     * @return the {@link Future} new id of the blob
+     * @throws InterruptedException
+     *             if the caller was interrupted while waiting for a pending
+     *             operation to finish
+     */
+    public Future<URI> move(final URI id, final URI target, final HDFSCallback<URI> callback) throws InterruptedException {
+        return submit(new Operation<URI>() {
+            public URI run(final BlobStoreConnection conn) throws Exception {
+                return conn.getBlob(id, null).moveTo(target, null).getId();
+            }
+        }, callback);
+    }
+
+    /**
+     * list the ids of the blobs starting with a prefix
+     *
+     * @param prefix
+     *            the prefix or null to list all blobs
+     * @param callback
+     *            notified with the ids, may be null
+     * @return the {@link Future} ids
+     * @throws InterruptedException
+     *             if the caller was interrupted while waiting for a pending
+     *             operation to finish
+     */
+    public Future<List<URI>> list(final String prefix, final HDFSCallback<List<URI>> callback) throws InterruptedException {
+        return submit(new Operation<List<URI>>() {
+            public List<URI> run(final BlobStoreConnection conn) throws Exception {
+                List<URI> ids = new ArrayList<URI>();
+                Iterator<URI> it = conn.listBlobIds(prefix);
+                while (it.hasNext()) {
+                    ids.add(it.next());
+                }
+                return ids;
+            }
+        }, callback);
+    }
+
+    /**
+     * shut down the default executor after the pending operations have
+     * finished
+     */
+    public synchronized void close() {
+        if (ownExecutor && executor != null) {
+            executor.shutdown();
+            executor = null;
+        }
+    }
+
+    private <T> Future<T> submit(final Operation<T> op, final HDFSCallback<T> callback) throws InterruptedException {
+        final Semaphore permits = permits();
+        permits.acquire();
+        final AtomicBoolean released = new AtomicBoolean();
+        FutureTask<T> task = new FutureTask<T>(new Callable<T>() {
+            public T call() throws Exception {
+                T result;
+                try {
+                    BlobStoreConnection conn = store.openConnection(null, null);
+                    try {
+                        result = op.run(conn);
+                    } finally {
+                        conn.close();
+                    }
+                } catch (Exception e) {
+                    release(permits, released);
+                    failed(callback, e);
+                    throw e;
+                }
+                release(permits, released);
+                completed(callback, result);
+                return result;
+            }
+        }) {
+            /*
+             * called once the operation has finished or has been cancelled,
+             * whether it has run or not
+             */
+            @Override
+            protected void done() {
+                release(permits, released);
+                if (isCancelled()) {
+                    failed(callback, new CancellationException());
+                }
+            }
+        };
+        try {
+            executor().execute(task);
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+        return task;
+    }
+
+    /*
+     * an operation releases its permit before its result is set, so that it
+     * is no longer pending once its Future is done, or when it is cancelled
+     */
+    private static void release(final Semaphore permits, final AtomicBoolean released) {
+        if (released.compareAndSet(false, true)) {
+            permits.release();
+        }
+    }
+
+    /*
+     * a failing callback must not turn a successful operation into a failed
+     * one
+     */
+    private static <T> void completed(final HDFSCallback<T> callback, final T result) {
+        if (callback != null) {
+            try {
+                callback.completed(result);
+            } catch (RuntimeException e) {
+                log.error("callback failed on a completed operation", e);
+            }
+        }
+    }
+
+    private static void failed(final HDFSCallback<?> callback, final Exception cause) {
+        if (callback != null) {
+            try {
+                callback.failed(cause);
+            } catch (RuntimeException e) {
+                log.error("callback failed on a failed operation", e);
+            }
+        }
+    }
+
+    private synchronized Semaphore permits() {
+        if (pending == null) {
+            pending = new Semaphore(maxPending);
+        }
+        return pending;
+    }
+
+    private synchronized ExecutorService executor() {
+        if (executor == null) {
+            executor = createVirtualThreadExecutor();
+            if (executor == null) {
+                executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "akubra-hdfs-async");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            ownExecutor = true;
+        }
+        return executor;
+    }
+
+    /*
+     * a thread per operation is cheap with virtual threads, the number of
+     * operations is bounded by the pending limit anyway
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) m.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            log.warn("unable to use virtual threads: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private interface Operation<T> {
+        T run(BlobStoreConnection conn) throws Exception;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Renames a file onto an existing one with a single call, replacing it
+ * atomically. Hadoop 1.0 has no such call; the clients of later versions offer
+ * <code>rename(Path, Path, Options.Rename...)</code>, which is looked up by
+ * reflection so that the store runs on both. The wrappers counting the calls
+ * of a {@link FileSystem} are looked through.
+ *
+ */
+final class HDFSAtomicReplace {
+    private static final Logger log = LoggerFactory.getLogger(HDFSAtomicReplace.class);
+
+    /** the overwriting rename of every {@link FileSystem} class looked up */
+    private static final ConcurrentMap<Class<?>, Rename> renames = new ConcurrentHashMap<Class<?>, Rename>();
+    private static final Rename UNSUPPORTED = new Rename(null, null);
+
+    private HDFSAtomicReplace() {
+    }
+
+    /**
+     * check if a {@link FileSystem} can replace a file with a single rename
+     *
+     * @param fs
+     *            the {@link FileSystem}
+     * @return true if {@link #rename(FileSystem, Path, Path)} is supported
+     */
+    static boolean isSupported(final FileSystem fs) {
+        return lookup(unwrap(fs)) != UNSUPPORTED;
+    }
+
+    /**
+     * rename a file, replacing the file at the destination if there is one
+     *
+     * @param fs
+     *            the {@link FileSystem}
+     * @param src
+     *            the file to rename
+     * @param dst
+     *            the new name
+     * @return true if the file has been renamed, false if the
+     *         {@link FileSystem} has no overwriting rename
+     * @throws IOException
+     *             if the rename failed, e.g. with a
+     *             {@link java.io.FileNotFoundException} if the source or the
+     *             destination's directory do not exist
+     */
+    static boolean rename(final FileSystem fs, final Path src, final Path dst) throws IOException {
+        FileSystem target = unwrap(fs);
+        Rename rename = lookup(target);
+        if (rename == UNSUPPORTED) {
+            return false;
+        }
+        FileSystem wrapper = fs;
+        while (wrapper instanceof HDFSCountingFileSystem) {
+            ((HDFSCountingFileSystem) wrapper).count("rename");
+            wrapper = ((HDFSCountingFileSystem) wrapper).getWrapped();
+        }
+        try {
+            rename.method.invoke(target, src, dst, rename.options);
+            return true;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("Unable to rename " + src + " to " + dst + ": " + cause);
+        } catch (IllegalAccessException e) {
+            throw new IOException("Unable to rename " + src + " to " + dst + ": " + e.getMessage());
+        }
+    }
+
+    private static FileSystem unwrap(final FileSystem fs) {
+        FileSystem unwrapped = fs;
+        while (unwrapped instanceof HDFSCountingFileSystem) {
+            unwrapped = ((HDFSCountingFileSystem) unwrapped).getWrapped();
+        }
+        return unwrapped;
+    }
+
+    private static Rename lookup(final FileSystem fs) {
+        Class<?> type = fs.getClass();
+        Rename rename = renames.get(type);
+        if (rename == null) {
+            rename = find(type);
+            renames.putIfAbsent(type, rename);
+            log.debug(type.getName() + (rename == UNSUPPORTED ? " has no" : " has an") + " overwriting rename");
+        }
+        return rename;
+    }
+
+    /*
+     * find a public rename(Path, Path, E...) whose enum E has an OVERWRITE
+     * option
+     */
+    private static Rename find(final Class<?> type) {
+        for (Method m : type.getMethods()) {
+            Class<?>[] params = m.getParameterTypes();
+            if (!"rename".equals(m.getName()) || params.length != 3 || params[0] != Path.class || params[1] != Path.class
+                    || !params[2].isArray() || !params[2].getComponentType().isEnum()) {
+                continue;
+            }
+            Class<?> option = params[2].getComponentType();
+            for (Object constant : option.getEnumConstants()) {
+                if ("OVERWRITE".equals(((Enum<?>) constant).name())) {
+                    Object options = Array.newInstance(option, 1);
+                    Array.set(options, 0, constant);
+                    try {
+                        m.setAccessible(true);
+                    } catch (SecurityException e) {
+                        log.debug("unable to make " + m + " accessible");
+                    }
+                    return new Rename(m, options);
+                }
+            }
+        }
+        return UNSUPPORTED;
+    }
+
+    /*
+     * an overwriting rename and the options it is called with
+     */
+    private static class Rename {
+        private final Method method;
+        private final Object options;
+
+        private Rename(final Method method, final Object options) {
+            this.method = method;
+            this.options = options;
+        }
+    }
+}
@@ -16,11 +16,17 @@
  */
 package de.fiz.akubra.hdfs;
 
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
 import java.io.FileNotFoundException;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
@@ -29,6 +35,10 @@ import org.akubraproject.BlobStoreConnection;
 import org.akubraproject.DuplicateBlobException;
 import org.akubraproject.MissingBlobException;
 import org.akubraproject.UnsupportedIdException;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -39,9 +49,10 @@ import org.slf4j.LoggerFactory;
  * @author frank asseg
  * 
  */
-class HDFSBlob implements Blob {
+class HDFSBlob implements HDFSDigestingBlob, HDFSRandomAccessBlob, HDFSReplaceableBlob {
     private final HDFSBlobStoreConnection conn;
-    private final URI storeId;
+    private final HDFSBlobStore store;
+    private final Map<String, String> hints;
     private Path path;
     private URI uri;
     private static final Logger log = LoggerFactory.getLogger(HDFSBlob.class);
@@ -58,8 +69,25 @@ class HDFSBlob implements Blob {
      * @throws UnsupportedIdException
      */
     public HDFSBlob(final URI uri, final HDFSBlobStoreConnection conn) {
+        this(uri, conn, null);
+    }
+
+    /**
+     * creates a new {@link HDFSBlob} whose content is written according to the
+     * given hints
+     * 
+     * @param uri
+     *            the identifier of the {@link HDFSBlob}
+     * @param conn
+     *            the {@link HDFSBlobStoreConnection} that should be used to
+     *            manipulate this {@link HDFSBlob}
+     * @param hints
+     *            the hints choosing the {@link HDFSCreatePolicy}, may be null
+     */
+    public HDFSBlob(final URI uri, final HDFSBlobStoreConnection conn, final Map<String, String> hints) {
         this.conn = conn;
-        this.storeId = this.conn.getBlobStore().getId();
+        this.hints = hints;
+        this.store = (HDFSBlobStore) this.conn.getBlobStore();
         this.uri = uri;
         this.path = new Path(this.uri.toASCIIString());
         log.debug("opening blob " + uri.toASCIIString() + " at " + this.path.toString());
@@ -72,10 +100,38 @@ class HDFSBlob implements Blob {
      *             if the operation did not succeed
      */
     public void delete() throws IOException {
-        if (this.conn.isClosed()) {
-            throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.DELETE);
+        try {
+            if (this.conn.isClosed()) {
+                throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+            }
+            if (conn.isDeferringBackups() && conn.takeReplacedBackup(uri)) {
+                // the backup's content has been replaced together with its
+                // blob, so there is no file to delete
+                HDFSStatusCache statusCache = store.getStatusCache();
+                if (statusCache != null) {
+                    statusCache.put(uri, HDFSStatusCache.MISSING);
+                }
+                return;
+            }
+            settle();
+            HDFSContentStore content = store.getContentStore();
+            HDFSPackStore packs = store.getPackStore();
+            if ((content == null || !content.delete(uri)) && (packs == null || !packs.delete(uri))) {
+                this.conn.getFileSystem().delete(path, false);
+            }
+            HDFSStatusCache statusCache = store.getStatusCache();
+            if (statusCache != null) {
+                statusCache.put(uri, HDFSStatusCache.MISSING);
+            }
+            invalidateContent(uri);
+            HDFSMetadataStore metadata = store.getMetadataStore();
+            if (metadata != null) {
+                metadata.delete(uri);
+            }
+        } finally {
+            HDFSOperationTimer.stop(timer);
         }
-        this.conn.getFileSystem().delete(path, false);
     }
 
     /**
@@ -85,12 +141,228 @@ class HDFSBlob implements Blob {
      *             if the operation did not succeed
      */
     public boolean exists() throws IOException {
-        if (this.conn.isClosed()) {
-            throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.EXISTS);
+        try {
+            if (this.conn.isClosed()) {
+                throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+            }
+            settle();
+            HDFSContentStore content = store.getContentStore();
+            if (content != null && content.contains(uri)) {
+                return true;
+            }
+            HDFSPackStore packs = store.getPackStore();
+            if (packs != null && packs.contains(uri)) {
+                return true;
+            }
+            return fileExists();
+        } finally {
+            HDFSOperationTimer.stop(timer);
+        }
+    }
+
+    private boolean fileExists() throws IOException {
+        HDFSStatusCache statusCache = store.getStatusCache();
+        if (statusCache != null) {
+            return getFileStatus(statusCache) != HDFSStatusCache.MISSING;
         }
         return this.conn.getFileSystem().exists(path);
     }
 
+    /*
+     * fetch the FileStatus of this blob through the store's status cache
+     */
+    private FileStatus getFileStatus(final HDFSStatusCache statusCache) throws IOException {
+        FileStatus status = statusCache.get(uri);
+        if (status == null) {
+            long generation = statusCache.getGeneration(uri);
+            try {
+                status = this.conn.getFileSystem().getFileStatus(path);
+            } catch (FileNotFoundException e) {
+                status = HDFSStatusCache.MISSING;
+            }
+            statusCache.fill(uri, status, generation);
+        }
+        return status;
+    }
+
+    /*
+     * create the file of this blob if it does not exist yet, with a single
+     * call in the common case
+     */
+    private OutputStream createNew(final FileSystem hdfs, final HDFSCreatePolicy policy) throws IOException {
+        try {
+            return create(hdfs, false, policy);
+        } catch (FileAlreadyExistsException e) {
+            throw new DuplicateBlobException(uri);
+        } catch (IOException e) {
+            // not every FileSystem reports an existing file as such
+            if (hdfs.exists(path)) {
+                throw new DuplicateBlobException(uri);
+            }
+            throw e;
+        }
+    }
+
+    private OutputStream create(final FileSystem hdfs, final boolean overwrite, final HDFSCreatePolicy policy) throws IOException {
+        if (policy == null) {
+            return hdfs.create(path, overwrite);
+        }
+        return policy.create(hdfs, path, overwrite);
+    }
+
+    private MessageDigest createDigest() throws IOException {
+        return createDigest(store.getMetadataStore() == null ? null : store.getDigestAlgorithm());
+    }
+
+    private static MessageDigest createDigest(final String algorithm) throws IOException {
+        if (algorithm == null) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            IOException ioe = new IOException("unable to compute digest: " + e.getMessage());
+            ioe.initCause(e);
+            throw ioe;
+        }
+    }
+
+    /**
+     * called by the {@link HDFSBlobOutputStream} of this {@link HDFSBlob}
+     * when the new content has been written, to describe it in the store's
+     * metadata records if there are any
+     * 
+     * @param size
+     *            the number of bytes written
+     * @param digest
+     *            the hex encoded digest of the content or null if the store
+     *            computes no digests
+     * @param compression
+     *            the codec the content has been stored with or null if the
+     *            store does not compress
+     * @param stored
+     *            the number of bytes stored for compressed content
+     * @throws IOException
+     *             if the properties could not be stored
+     */
+    void described(final long size, final String digest, final HDFSCompression compression, final long stored) throws IOException {
+        HDFSMetadataStore metadata = store.getMetadataStore();
+        if (metadata == null) {
+            return;
+        }
+        boolean compressed = compression != null && compression != HDFSCompression.NONE;
+        if (digest == null && !compressed) {
+            // the record of the previous content must not outlive it
+            metadata.delete(uri);
+            return;
+        }
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(HDFSMetadataStore.SIZE, Long.toString(size));
+        if (digest != null) {
+            properties.put(HDFSMetadataStore.DIGEST_ALGORITHM, store.getDigestAlgorithm());
+            properties.put(HDFSMetadataStore.DIGEST, digest);
+        }
+        if (compressed) {
+            properties.put(HDFSMetadataStore.COMPRESSION, compression.name());
+            properties.put(HDFSMetadataStore.STORED_SIZE, Long.toString(stored));
+            store.compressed();
+        }
+        metadata.put(uri, properties);
+    }
+
+    /**
+     * get the algorithm of the digest computed when the content was written
+     * 
+     * @return the algorithm or null if no digest is known
+     * @throws IOException
+     *             if the digest could not be read
+     */
+    public String getDigestAlgorithm() throws IOException {
+        HDFSContentStore.Reference ref = getReference();
+        if (ref != null) {
+            return ref.algorithm;
+        }
+        return getMetadata(HDFSMetadataStore.DIGEST_ALGORITHM);
+    }
+
+    /**
+     * get the digest computed when the content was written
+     * 
+     * @return the hex encoded digest or null if no digest is known
+     * @throws IOException
+     *             if the digest could not be read
+     */
+    public String getDigest() throws IOException {
+        HDFSContentStore.Reference ref = getReference();
+        if (ref != null) {
+            return ref.digest;
+        }
+        return getMetadata(HDFSMetadataStore.DIGEST);
+    }
+
+    private HDFSContentStore.Reference getReference() throws IOException {
+        HDFSContentStore content = store.getContentStore();
+        return content == null ? null : content.get(uri);
+    }
+
+    private String getMetadata(final String key) throws IOException {
+        HDFSMetadataStore metadata = store.getMetadataStore();
+        Map<String, String> properties = metadata == null ? null : metadata.get(uri);
+        return properties == null ? null : properties.get(key);
+    }
+
+    /*
+     * get the properties of this blob if its content is compressed, null if
+     * it is stored as written
+     */
+    private Map<String, String> getCompressed() throws IOException {
+        HDFSMetadataStore metadata = store.getMetadataStore();
+        return metadata == null ? null : metadata.getCompressed(uri);
+    }
+
+    /**
+     * called by the {@link HDFSBlobOutputStream} of this {@link HDFSBlob}
+     * when the new content has been written completely
+     */
+    void written() throws IOException {
+        HDFSStatusCache statusCache = store.getStatusCache();
+        if (statusCache != null) {
+            statusCache.invalidate(uri);
+        }
+        invalidateContent(uri);
+    }
+
+    /**
+     * called by the {@link HDFSDedupOutputStream} of this {@link HDFSBlob}
+     * after its new reference has been stored, to delete the packed record
+     * or file the blob had been written to before deduplication was enabled
+     *
+     * @throws IOException
+     *             if the old copy could not be deleted
+     */
+    void deleteShadowed() throws IOException {
+        HDFSPackStore packs = store.getPackStore();
+        if (packs == null || !packs.delete(uri)) {
+            this.conn.getFileSystem().delete(path, false);
+        }
+        written();
+    }
+
+    /*
+     * drop the copies of a blob's content held by the store's caches
+     */
+    private void invalidateContent(final URI id) throws IOException {
+        HDFSMemoryCache memoryCache = store.getMemoryCache();
+        if (memoryCache != null) {
+            memoryCache.invalidate(id);
+        }
+        HDFSReadCache readCache = store.getReadCache();
+        if (readCache != null) {
+            readCache.invalidate(id);
+        }
+    }
+
     /**
      * get the canonical id
      * 
@@ -129,8 +401,37 @@ class HDFSBlob implements Blob {
      *             if this {@link HDFSBlob} does not exist
      */
     public long getSize() throws IOException, MissingBlobException {
-        if (this.conn.isClosed()) {
-            throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.GET_SIZE);
+        try {
+            if (this.conn.isClosed()) {
+                throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+            }
+            settle();
+            HDFSContentStore.Reference ref = getReference();
+            if (ref != null) {
+                return ref.size;
+            }
+            return uncompressedSize(getStoredSize());
+        } finally {
+            HDFSOperationTimer.stop(timer);
+        }
+    }
+
+    private long getStoredSize() throws IOException, MissingBlobException {
+        HDFSPackStore packs = store.getPackStore();
+        if (packs != null) {
+            long size = packs.getSize(uri);
+            if (size > -1) {
+                return size;
+            }
+        }
+        HDFSStatusCache statusCache = store.getStatusCache();
+        if (statusCache != null) {
+            FileStatus status = getFileStatus(statusCache);
+            if (status == HDFSStatusCache.MISSING) {
+                throw new MissingBlobException(uri);
+            }
+            return status.getLen();
         }
         try {
             return this.conn.getFileSystem().getFileStatus(path).getLen();
@@ -139,6 +440,61 @@ class HDFSBlob implements Blob {
         }
     }
 
+    /**
+     * get the size of the content as it was written, given the size stored.
+     * The record of a compressed blob holds both; a record describing
+     * content of another size, which has been overwritten since or whose
+     * writer failed, is bypassed by reading the header and trailer of the
+     * content itself.
+     * 
+     * @param stored
+     *            the number of bytes stored
+     * @return the uncompressed size
+     * @throws IOException
+     *             if the content could not be read
+     */
+    long uncompressedSize(final long stored) throws IOException {
+        Map<String, String> compressed = getCompressed();
+        if (compressed == null) {
+            return stored;
+        }
+        if (Long.toString(stored).equals(compressed.get(HDFSMetadataStore.STORED_SIZE))) {
+            return Long.parseLong(compressed.get(HDFSMetadataStore.SIZE));
+        }
+        if (stored < HDFSCompression.HEADER_LENGTH + HDFSCompression.TRAILER_LENGTH
+                || HDFSCompression.fromHeader(readStored(0, HDFSCompression.HEADER_LENGTH)) == null) {
+            return stored;
+        }
+        long size = HDFSCompression.fromTrailer(readStored(stored - HDFSCompression.TRAILER_LENGTH, HDFSCompression.TRAILER_LENGTH));
+        return size < 0 ? stored : size;
+    }
+
+    /*
+     * read stored bytes of the packed record or file
+     */
+    private byte[] readStored(final long position, final int length) throws IOException {
+        byte[] b = new byte[length];
+        HDFSPackStore packs = store.getPackStore();
+        InputStream in = packs == null ? null : packs.open(uri, position, length);
+        if (in == null) {
+            FSDataInputStream data = openFile();
+            try {
+                data.readFully(position, b);
+            } finally {
+                data.close();
+            }
+            return b;
+        }
+        try {
+            if (HDFSRangeInputStream.readFully(in, b, 0, length) < length) {
+                throw new EOFException("Unexpected end of " + uri);
+            }
+        } finally {
+            in.close();
+        }
+        return b;
+    }
+
     /**
      * move a {@link HDFSBlob} to another location on the Hadoop filesystem
      * 
@@ -155,47 +511,212 @@ class HDFSBlob implements Blob {
      *             if this {@link HDFSBlob} does not exist
      */
     public Blob moveTo(URI toUri, final Map<String, String> hints) throws DuplicateBlobException, IOException, MissingBlobException {
-        if (toUri == null) {
-            log.debug("creating new random URI " + toUri);
-            toUri = URI.create(this.getConnection().getBlobStore().getId() + UUID.randomUUID().toString());
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.MOVE_TO);
+        try {
+            if (toUri == null) {
+                log.debug("creating new random URI " + toUri);
+                toUri = conn.createBlobId();
+            }
+            if (!toUri.toASCIIString().startsWith("hdfs://")) {
+                log.error("invalid scheme: " + toUri.getRawSchemeSpecificPart());
+                throw new UnsupportedIdException(toUri);
+            }
+            log.debug("moving " + this.getId() + " to " + toUri);
+            if (this.conn.isClosed()) {
+                throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+            }
+            if (conn.isDeferringBackups()) {
+                Blob replaced = replaceFast(toUri);
+                if (replaced != null) {
+                    return replaced;
+                }
+                settle();
+                new HDFSBlob(toUri, conn).settle();
+            }
+            return move(toUri);
+        } finally {
+            HDFSOperationTimer.stop(timer);
         }
-        if (!toUri.toASCIIString().startsWith("hdfs://")) {
-            log.error("invalid scheme: " + toUri.getRawSchemeSpecificPart());
-            throw new UnsupportedIdException(toUri);
+    }
+
+    private Blob move(final URI toUri) throws IOException {
+        HDFSContentStore content = store.getContentStore();
+        HDFSPackStore packs = store.getPackStore();
+        FileSystem hdfs = this.conn.getFileSystem();
+        Path target = new Path(toUri);
+        if (content != null) {
+            if (content.contains(toUri) || (packs != null && packs.contains(toUri))) {
+                throw new DuplicateBlobException(toUri);
+            }
+            if (content.contains(uri)) {
+                if (hdfs.exists(target)) {
+                    throw new DuplicateBlobException(toUri);
+                }
+                if (content.move(uri, toUri)) {
+                    log.debug("reference has been moved succesfully to " + toUri);
+                    moved(toUri);
+                    return this.conn.getBlob(toUri, null);
+                }
+            }
         }
-        log.debug("moving " + this.getId() + " to " + toUri);
-        if (this.conn.isClosed()) {
-            throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+        if (packs != null) {
+            if (packs.contains(toUri)) {
+                throw new DuplicateBlobException(toUri);
+            }
+            if (packs.contains(uri)) {
+                if (hdfs.exists(target)) {
+                    throw new DuplicateBlobException(toUri);
+                }
+                if (packs.move(uri, toUri)) {
+                    log.debug("packed blob has been moved succesfully to " + toUri);
+                    moved(toUri);
+                    return this.conn.getBlob(toUri, null);
+                }
+            }
         }
-        if (this.conn.getFileSystem().exists(new Path(toUri))) {
+        // renaming onto an existing directory moves the file into it on HDFS,
+        // and the local filesystem silently replaces an existing file
+        if (hdfs.exists(target)) {
             throw new DuplicateBlobException(toUri);
         }
-        if (!this.exists()) {
-            throw new MissingBlobException(this.uri);
-        }
-        String path = toUri.toASCIIString();
-        if (path.startsWith(storeId.toASCIIString())) {
-            path = path.substring(storeId.toASCIIString().length());
-        } else if (path.startsWith("hdfs://")) {
-            path = path.substring(7);
+        Path parent = target.getParent();
+        HDFSDirectoryCache dirs = store.getDirectoryCache();
+        boolean cached = dirs != null && dirs.contains(parent);
+        if (!cached) {
+            createDirectory(hdfs, parent, dirs);
         }
-        String[] directories = path.split("/");
-        log.debug("" + directories.length);
-        path = "";
-        for (int i = 1; i < directories.length - 1; i++) {
-            path += directories[i] + "/";
-            log.debug("checking path " + path);
-            if (!this.conn.getFileSystem().exists(new Path(storeId + path))) {
-                log.debug("creating " + path);
-                this.conn.getFileSystem().mkdirs(new Path(storeId + path));
+        // the reason of a failed rename is only looked up when it happens
+        if (!hdfs.rename(path, target)) {
+            if (hdfs.exists(target)) {
+                throw new DuplicateBlobException(toUri);
+            }
+            if (!hdfs.exists(path)) {
+                throw new MissingBlobException(this.uri);
+            }
+            if (!cached) {
+                throw new IOException("Unable to rename " + uri + " to " + toUri + ": FileSystem.rename() returned false");
+            }
+            // the directory may have been removed by someone else
+            log.debug("retrying move to " + toUri + " after creating " + parent);
+            dirs.invalidate(parent);
+            createDirectory(hdfs, parent, dirs);
+            if (!hdfs.rename(path, target)) {
+                throw new IOException("Unable to rename " + uri + " to " + toUri + ": FileSystem.rename() returned false");
             }
         }
+        log.debug("file has been moved succesfully to " + toUri);
+        moved(toUri);
+        return this.conn.getBlob(toUri, null);
+    }
 
-        if (this.conn.getFileSystem().rename(new Path(uri), new Path(toUri))) {
-            log.debug("file has been moved succesfully to " + toUri);
+    /*
+     * recognize Fedora's safe overwrite, see
+     * HDFSBlobStore#setAtomicReplace(boolean). Returns null if the move has
+     * to be carried out
+     */
+    private Blob replaceFast(final URI toUri) throws IOException {
+        if (store.getContentStore() != null || store.getPackStore() != null) {
+            return null;
+        }
+        FileSystem hdfs = this.conn.getFileSystem();
+        if (isBackup(toUri, uri)) {
+            // the blob is moved to its backup: the move is deferred until the
+            // new content replaces the blob
+            if (conn.getDeferredBackup(uri) != null) {
+                return null;
+            }
+            if (!fileExists()) {
+                throw new MissingBlobException(uri);
+            }
+            log.debug("deferring move of " + uri + " to its backup " + toUri);
+            conn.deferBackup(uri, toUri);
             return this.conn.getBlob(toUri, null);
-        } else {
-            throw new IOException("Unable to rename " + uri + " to " + toUri + ": FileSystem.rename() returned false");
+        }
+        if (isBackup(uri, toUri)) {
+            // the backup is moved back before the blob has been replaced
+            URI[] deferred = conn.takeDeferredBackup(uri);
+            if (deferred == null) {
+                return null;
+            }
+            if (!deferred[0].equals(toUri)) {
+                // not the blob the backup has been taken of
+                conn.deferBackup(deferred[0], deferred[1]);
+                return null;
+            }
+            log.debug("cancelled deferred move of " + toUri + " to " + uri);
+            return this.conn.getBlob(toUri, null);
+        }
+        URI backup = conn.getDeferredBackup(toUri);
+        if (backup == null || backup.equals(uri) || uri.equals(toUri)) {
+            return null;
+        }
+        try {
+            if (!HDFSAtomicReplace.rename(hdfs, path, new Path(toUri))) {
+                return null;
+            }
+        } catch (FileNotFoundException e) {
+            throw new MissingBlobException(uri, e.getLocalizedMessage());
+        }
+        log.debug(uri + " has replaced " + toUri);
+        conn.backupReplaced(backup);
+        moved(toUri);
+        return this.conn.getBlob(toUri, null);
+    }
+
+    /*
+     * check if an id names the backup Fedora keeps of a blob while
+     * overwriting it, see HDFSIdMapper
+     */
+    private boolean isBackup(final URI backup, final URI blob) {
+        String name = backup.toASCIIString();
+        String blobName = blob.toASCIIString();
+        if (!name.endsWith(HDFSIdMapper.OLD_SUFFIX)) {
+            return false;
+        }
+        HDFSShardLayout layout = store.getShardLayout();
+        return layout.removeShards(name).equals(layout.removeShards(blobName) + HDFSIdMapper.OLD_SUFFIX);
+    }
+
+    /**
+     * carry out a deferred move of this blob to its backup or of the blob
+     * this blob is the backup of, see
+     * {@link HDFSBlobStore#setAtomicReplace(boolean)}
+     * 
+     * @throws IOException
+     *             if the blob could not be moved
+     */
+    void settle() throws IOException {
+        if (!conn.isDeferringBackups()) {
+            return;
+        }
+        URI[] deferred = conn.takeDeferredBackup(uri);
+        if (deferred != null) {
+            log.debug("moving " + deferred[0] + " to its backup " + deferred[1]);
+            new HDFSBlob(deferred[0], conn).move(deferred[1]);
+        }
+    }
+
+    private void createDirectory(final FileSystem hdfs, final Path dir, final HDFSDirectoryCache dirs) throws IOException {
+        log.debug("creating " + dir);
+        if (!hdfs.mkdirs(dir)) {
+            throw new IOException("Unable to create directory " + dir);
+        }
+        if (dirs != null) {
+            dirs.add(dir);
+        }
+    }
+
+    private void moved(final URI toUri) throws IOException {
+        HDFSStatusCache statusCache = store.getStatusCache();
+        if (statusCache != null) {
+            statusCache.put(uri, HDFSStatusCache.MISSING);
+            statusCache.invalidate(toUri);
+        }
+        invalidateContent(uri);
+        invalidateContent(toUri);
+        HDFSMetadataStore metadata = store.getMetadataStore();
+        if (metadata != null) {
+            metadata.move(uri, toUri);
         }
     }
 
@@ -208,14 +729,304 @@ class HDFSBlob implements Blob {
      *             if this {@link HDFSBlob} does not exist.
      */
     public InputStream openInputStream() throws IOException, MissingBlobException {
-        if (this.conn.isClosed()) {
-            throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.OPEN_INPUT_STREAM);
+        try {
+            if (this.conn.isClosed()) {
+                throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+            }
+            settle();
+            return metered(openContentStream());
+        } finally {
+            HDFSOperationTimer.stop(timer);
+        }
+    }
+
+    private InputStream openContentStream() throws IOException, MissingBlobException {
+        HDFSMemoryCache memoryCache = store.getMemoryCache();
+        if (memoryCache != null) {
+            InputStream in = memoryCache.open(uri);
+            if (in != null) {
+                return in;
+            }
+            return memoryCache.populate(uri, openCachedInputStream());
+        }
+        return openCachedInputStream();
+    }
+
+    private InputStream openCachedInputStream() throws IOException, MissingBlobException {
+        HDFSReadCache readCache = store.getReadCache();
+        if (readCache != null) {
+            InputStream in = readCache.open(uri);
+            if (in != null) {
+                return in;
+            }
+            return readCache.populate(uri, openStoredInputStream());
         }
+        return openStoredInputStream();
+    }
+
+    private InputStream openStoredInputStream() throws IOException, MissingBlobException {
+        HDFSContentStore content = store.getContentStore();
+        if (content != null) {
+            InputStream in = content.open(uri);
+            if (in != null) {
+                return in;
+            }
+        }
+        InputStream in = openPackedOrFile();
+        // compressed content is told apart by its header, not by its record
+        return store.getMetadataStore() == null ? in : HDFSCompression.open(in);
+    }
+
+    private InputStream openPackedOrFile() throws IOException, MissingBlobException {
+        HDFSPackStore packs = store.getPackStore();
+        if (packs != null) {
+            InputStream in = packs.open(uri);
+            if (in != null) {
+                return in;
+            }
+        }
+        return openFile();
+    }
+
+    /*
+     * open the content of a compressed blob positioned at the offset, which
+     * is reached by decompressing the content before it. Returns null if the
+     * blob has no record of being compressed; content whose record is stale
+     * is read as its header tells
+     */
+    private InputStream openCompressedRange(final long offset) throws IOException {
+        if (getCompressed() == null) {
+            return null;
+        }
+        InputStream in = HDFSCompression.open(openPackedOrFile());
         try {
-            return this.conn.getFileSystem().open(path);
+            long remaining = offset;
+            while (remaining > 0) {
+                long n = in.skip(remaining);
+                if (n <= 0) {
+                    if (in.read() < 0) {
+                        break;
+                    }
+                    n = 1;
+                }
+                remaining -= n;
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return in;
+    }
+
+    /*
+     * count the content read through a stream if metrics are enabled
+     */
+    private InputStream metered(final InputStream in) {
+        HDFSMetricsRegistry metrics = store.getMetricsRegistry();
+        return metrics == null ? in : new HDFSMeteredInputStream(in, metrics);
+    }
+
+    private FSDataInputStream openFile() throws IOException, MissingBlobException {
+        FSDataInputStream in;
+        try {
+            in = this.conn.getFileSystem().open(path);
         } catch (FileNotFoundException e) {
             throw new MissingBlobException(uri, e.getLocalizedMessage());
         }
+        HDFSTiering tiering = store.getTiering();
+        if (tiering != null) {
+            tiering.recordRead(path);
+        }
+        return in;
+    }
+
+    /*
+     * open a cached copy positioned at the offset. Throws an EOFException if
+     * the offset is beyond the end of the content
+     */
+    private InputStream openCachedRange(final long offset) throws IOException {
+        HDFSMemoryCache memoryCache = store.getMemoryCache();
+        if (memoryCache != null) {
+            InputStream in = memoryCache.open(uri);
+            if (in != null) {
+                try {
+                    HDFSRangeInputStream.skipFully(in, offset);
+                } catch (IOException e) {
+                    in.close();
+                    throw e;
+                }
+                return in;
+            }
+        }
+        HDFSReadCache readCache = store.getReadCache();
+        return readCache == null ? null : readCache.open(uri, offset);
+    }
+
+    private FSDataInputStream openContent() throws IOException {
+        HDFSContentStore content = store.getContentStore();
+        return content == null ? null : content.open(uri);
+    }
+
+    private boolean beyondEnd(final long position) throws IOException {
+        return position >= getSize();
+    }
+
+    /**
+     * open a new {@link InputStream} on a range of this {@link HDFSBlob}'s
+     * content. A file is positioned by a seek, so the content before the range
+     * is never transferred unless the blob is compressed. Ranges are not
+     * copied to the caches.
+     * 
+     * @param offset
+     *            the position of the first byte read
+     * @param length
+     *            the maximum number of bytes read or -1 to read to the end
+     * @throws IOException
+     *             if the operation did not succeed
+     * @throws MissingBlobException
+     *             if this {@link HDFSBlob} does not exist.
+     */
+    public InputStream openInputStream(final long offset, final long length) throws IOException, MissingBlobException {
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.OPEN_INPUT_STREAM);
+        try {
+            if (this.conn.isClosed()) {
+                throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+            }
+            if (offset < 0) {
+                throw new IllegalArgumentException("Negative offset " + offset);
+            }
+            settle();
+            return metered(openRange(offset, length));
+        } finally {
+            HDFSOperationTimer.stop(timer);
+        }
+    }
+
+    private InputStream openRange(final long offset, final long length) throws IOException, MissingBlobException {
+        InputStream in;
+        try {
+            in = openCachedRange(offset);
+        } catch (EOFException e) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        if (in == null) {
+            FSDataInputStream data = openContent();
+            if (data == null) {
+                in = openCompressedRange(offset);
+                if (in != null) {
+                    return new HDFSRangeInputStream(in, length);
+                }
+                HDFSPackStore packs = store.getPackStore();
+                in = packs == null ? null : packs.open(uri, offset, length);
+                if (in != null) {
+                    return in;
+                }
+                data = openFile();
+            }
+            try {
+                data.seek(offset);
+            } catch (IOException e) {
+                data.close();
+                if (!beyondEnd(offset)) {
+                    throw e;
+                }
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            in = data;
+        }
+        return new HDFSRangeInputStream(in, length);
+    }
+
+    /**
+     * read content at a position with a positional read of the Hadoop
+     * filesystem, which leaves no stream open
+     * 
+     * @param position
+     *            the position of the first byte read
+     * @param buffer
+     *            the buffer the content is read into
+     * @param offset
+     *            the position in the buffer the first byte is stored at
+     * @param length
+     *            the maximum number of bytes read
+     * @return the number of bytes read or -1 if the position is beyond the
+     *         end of the content
+     * @throws IOException
+     *             if the operation did not succeed
+     * @throws MissingBlobException
+     *             if this {@link HDFSBlob} does not exist.
+     */
+    public int read(final long position, final byte[] buffer, final int offset, final int length) throws IOException,
+            MissingBlobException {
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.READ);
+        try {
+            if (this.conn.isClosed()) {
+                throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+            }
+            if (position < 0) {
+                throw new IllegalArgumentException("Negative position " + position);
+            }
+            settle();
+            int count = readRange(position, buffer, offset, length);
+            HDFSMetricsRegistry metrics = store.getMetricsRegistry();
+            if (metrics != null && count > 0) {
+                metrics.bytesRead(count);
+            }
+            return count;
+        } finally {
+            HDFSOperationTimer.stop(timer);
+        }
+    }
+
+    private int readRange(final long position, final byte[] buffer, final int offset, final int length) throws IOException,
+            MissingBlobException {
+        InputStream in;
+        try {
+            in = openCachedRange(position);
+        } catch (EOFException e) {
+            return -1;
+        }
+        if (in == null) {
+            FSDataInputStream data = openContent();
+            if (data == null) {
+                in = openCompressedRange(position);
+            }
+            if (data == null && in == null) {
+                HDFSPackStore packs = store.getPackStore();
+                in = packs == null ? null : packs.open(uri, position, length);
+            }
+            if (in == null) {
+                if (data == null) {
+                    data = openFile();
+                }
+                try {
+                    int count = 0;
+                    while (count < length) {
+                        int n = data.read(position + count, buffer, offset + count, length - count);
+                        if (n < 0) {
+                            break;
+                        }
+                        count += n;
+                    }
+                    return count == 0 && length > 0 ? -1 : count;
+                } catch (IOException e) {
+                    // Hadoop does not tell a read beyond the end from other
+                    // failures
+                    if (!beyondEnd(position)) {
+                        throw e;
+                    }
+                    return -1;
+                } finally {
+                    data.close();
+                }
+            }
+        }
+        try {
+            return HDFSRangeInputStream.readFully(in, buffer, offset, length);
+        } finally {
+            in.close();
+        }
     }
 
     /**
@@ -223,7 +1034,9 @@ class HDFSBlob implements Blob {
      * filesystem
      * 
      * @param estimatedSize
-     *            currently unused
+     *            chooses the {@link HDFSCreatePolicy} of the file. If packing
+     *            is enabled and the estimated size exceeds the pack threshold
+     *            the blob is written to a file of its own right away
      * @param overWrite
      *            if true existing {@link HDFSBlob}s will be overwritten
      * @throws IOException
@@ -232,20 +1045,161 @@ class HDFSBlob implements Blob {
      *             if overwrite == false and the {@link HDFSBlob} already exist
      */
     public OutputStream openOutputStream(final long estimatedSize, final boolean overWrite) throws IOException, DuplicateBlobException {
-        if (this.conn.isClosed()) {
-            throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
-        }
-        if (this.exists()) {
-            if (overWrite) {
+        return openOutputStream(estimatedSize, overWrite, false);
+    }
+
+    /**
+     * open a new {@link OutputStream} for writing on the underlying Hadoop
+     * filesystem
+     * 
+     * @param estimatedSize
+     *            chooses the {@link HDFSCreatePolicy} of the file
+     * @param overWrite
+     *            if true existing {@link HDFSBlob}s will be overwritten
+     * @param fresh
+     *            true if the id has just been generated, so that no blob can
+     *            exist and the existence checks are skipped
+     * @throws IOException
+     *             if the operation did not succeed
+     * @throws DuplicateBlobException
+     *             if overwrite == false and the {@link HDFSBlob} already exist
+     */
+    OutputStream openOutputStream(final long estimatedSize, final boolean overWrite, final boolean fresh) throws IOException,
+            DuplicateBlobException {
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.OPEN_OUTPUT_STREAM);
+        try {
+            if (this.conn.isClosed()) {
+                throw new IllegalStateException("Unable to open Inputstream, because connection is closed");
+            }
+            if (!fresh) {
+                settle();
+            }
+            HDFSContentStore content = store.getContentStore();
+            HDFSPackStore packs = store.getPackStore();
+            FileSystem hdfs = this.conn.getFileSystem();
+            HDFSCreatePolicy policy = store.getCreatePolicy(estimatedSize, hints);
+            OutputStream out;
+            if (content != null) {
+                if (!fresh && !overWrite && (content.contains(uri) || (packs != null && packs.contains(uri)) || fileExists())) {
+                    throw new DuplicateBlobException(uri);
+                }
+                // a blob written before deduplication was enabled is shadowed
+                // by the new reference and goes once that has been stored
+                out = new HDFSDedupOutputStream(content, uri, createDigest(content.getAlgorithm()), store.getSpoolDirectory(), policy,
+                        overWrite && !fresh ? this : null);
+                written();
+                return conn.track(new HDFSBlobOutputStream(out, this, null, store.getMetricsRegistry()));
+            }
+            if (packs != null) {
+                boolean packed = packs.contains(uri);
+                if (!overWrite && !fresh && (packed || fileExists())) {
+                    throw new DuplicateBlobException(uri);
+                }
+                // small blobs are collected in memory and appended to a pack
+                // container on close, replacing a file which may exist
+                out = new HDFSPackingOutputStream(packs, hdfs, uri, store.getPackThreshold(), estimatedSize, overWrite && !packed, policy);
+            } else if (overWrite) {
                 // return a stream that will
                 // overwrite this blobs content
-                return this.conn.getFileSystem().create(path, true);
+                out = create(hdfs, true, policy);
             } else {
-                throw new DuplicateBlobException(uri);
+                out = createNew(hdfs, policy);
+            }
+            if (store.getCompression() != null) {
+                out = new HDFSCompressingOutputStream(out, store.getCompression(policy), estimatedSize);
+            }
+            written();
+            return conn.track(new HDFSBlobOutputStream(out, this, createDigest(), store.getMetricsRegistry()));
+        } finally {
+            HDFSOperationTimer.stop(timer);
+        }
+    }
+
+    /**
+     * open a new {@link OutputStream} whose content replaces the content of
+     * this {@link HDFSBlob} when the stream is closed. The content is written
+     * to the store's staging directory and put in place with a single
+     * overwriting rename if the Hadoop client supports one. Otherwise the
+     * replaced file is moved aside until the new one is in place. Deduplicated
+     * and packed blobs are overwritten the usual way.
+     * 
+     * @param estimatedSize
+     *            chooses the {@link HDFSCreatePolicy} of the file
+     * @throws IOException
+     *             if the operation did not succeed
+     */
+    public OutputStream openReplacingOutputStream(final long estimatedSize) throws IOException {
+        if (this.conn.isClosed()) {
+            throw new IllegalStateException("Unable to open Outputstream, because connection is closed");
+        }
+        if (store.getContentStore() != null || store.getPackStore() != null) {
+            return openOutputStream(estimatedSize, true, false);
+        }
+        settle();
+        final HDFSBlob staged = new HDFSBlob(stagingId(), conn, hints);
+        return new FilterOutputStream(staged.openOutputStream(estimatedSize, false, true)) {
+            private boolean closed = false;
+
+            @Override
+            public void write(final byte[] b, final int off, final int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                out.close();
+                replaceWith(staged);
+            }
+        };
+    }
+
+    private URI stagingId() {
+        return URI.create(store.getId().toASCIIString() + HDFSBlobStore.STAGING_DIRECTORY + "/" + UUID.randomUUID());
+    }
+
+    /*
+     * put the file of a staged blob in place of this blob's file
+     */
+    private void replaceWith(final HDFSBlob staged) throws IOException {
+        FileSystem hdfs = this.conn.getFileSystem();
+        HDFSDirectoryCache dirs = store.getDirectoryCache();
+        Path parent = path.getParent();
+        boolean replaced;
+        try {
+            replaced = HDFSAtomicReplace.rename(hdfs, staged.path, path);
+        } catch (FileNotFoundException e) {
+            if (!hdfs.exists(staged.path)) {
+                throw e;
+            }
+            createDirectory(hdfs, parent, dirs);
+            replaced = HDFSAtomicReplace.rename(hdfs, staged.path, path);
+        }
+        if (!replaced) {
+            // the replaced file is kept until the new one is in place
+            Path backup = new Path(stagingId());
+            if (dirs == null || !dirs.contains(backup.getParent())) {
+                createDirectory(hdfs, backup.getParent(), dirs);
+            }
+            boolean backedUp = hdfs.rename(path, backup);
+            if (!hdfs.rename(staged.path, path)) {
+                if (backedUp) {
+                    hdfs.rename(backup, path);
+                    throw new IOException("Unable to replace " + uri + ": FileSystem.rename() returned false");
+                }
+                createDirectory(hdfs, parent, dirs);
+                if (!hdfs.rename(staged.path, path)) {
+                    throw new IOException("Unable to replace " + uri + ": FileSystem.rename() returned false");
+                }
+            }
+            if (backedUp) {
+                hdfs.delete(backup, false);
             }
         }
-        // create a new file for this blob's
-        // data on the hdfs
-        return this.conn.getFileSystem().create(path);
+        log.debug("content of " + uri + " has been replaced");
+        staged.moved(uri);
     }
 }
@@ -0,0 +1,176 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+
+/**
+ * The {@link OutputStream} handed out by {@link HDFSBlob#openOutputStream(long, boolean)}.
+ * It notifies the {@link HDFSBlob} when the content has been written
+ * completely, so that store-wide state about the blob can be updated. If the
+ * store computes digests, the content is digested and counted on its way to
+ * the Hadoop stream. With metrics enabled the bytes written are reported
+ * when the stream is closed. The size of compressed content is counted before
+ * it is compressed, and it is described before the stream is closed.
+ *
+ */
+class HDFSBlobOutputStream extends FilterOutputStream {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final HDFSBlob blob;
+    private final MessageDigest digest;
+    private final HDFSMetricsRegistry metrics;
+    private long count = 0;
+    private boolean closed = false;
+
+    /**
+     * create a new {@link HDFSBlobOutputStream}
+     *
+     * @param out
+     *            the stream the content is written to
+     * @param blob
+     *            the {@link HDFSBlob} the content belongs to
+     * @param digest
+     *            the {@link MessageDigest} computing the content's digest or
+     *            null
+     * @param metrics
+     *            the {@link HDFSMetricsRegistry} of the store or null
+     */
+    HDFSBlobOutputStream(final OutputStream out, final HDFSBlob blob, final MessageDigest digest, final HDFSMetricsRegistry metrics) {
+        super(out);
+        this.blob = blob;
+        this.digest = digest;
+        this.metrics = metrics;
+        if (metrics != null) {
+            metrics.streamOpened();
+        }
+    }
+
+    @Override
+    public synchronized void write(final int b) throws IOException {
+        out.write(b);
+        if (digest != null) {
+            digest.update((byte) b);
+        }
+        count++;
+    }
+
+    @Override
+    public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+        out.write(b, off, len);
+        if (digest != null) {
+            digest.update(b, off, len);
+        }
+        count += len;
+    }
+
+    /**
+     * make the content written so far durable. Content which is buffered
+     * until the stream is closed, like a blob to be packed or deduplicated,
+     * is not affected, nor is content held by a compression codec.
+     *
+     * @param durability
+     *            how far the content is pushed
+     * @throws IOException
+     *             if the content could not be synced
+     */
+    synchronized void sync(final HDFSDurability durability) throws IOException {
+        if (closed) {
+            return;
+        }
+        out.flush();
+        OutputStream target = out;
+        if (target instanceof HDFSCompressingOutputStream) {
+            target = ((HDFSCompressingOutputStream) target).getTarget();
+        }
+        FSDataOutputStream file = null;
+        if (target instanceof FSDataOutputStream) {
+            file = (FSDataOutputStream) target;
+        } else if (target instanceof HDFSPackingOutputStream) {
+            file = ((HDFSPackingOutputStream) target).getFile();
+        }
+        if (file != null) {
+            durability.apply(file);
+        }
+    }
+
+    /**
+     * check if the stream has been closed
+     *
+     * @return true if the stream is closed
+     */
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        boolean described = false;
+        try {
+            if (out instanceof HDFSCompressingOutputStream) {
+                // the record goes before the content is complete, so that it
+                // does not lag behind content decoded with its size
+                HDFSCompressingOutputStream compressing = (HDFSCompressingOutputStream) out;
+                compressing.finish();
+                describe(compressing.getCompression(), compressing.getStoredSize());
+                described = true;
+            }
+        } finally {
+            try {
+                out.close();
+            } finally {
+                if (metrics != null) {
+                    metrics.bytesWritten(count);
+                    metrics.streamClosed();
+                }
+                blob.written();
+            }
+        }
+        if (!described) {
+            describe(null, -1);
+        }
+    }
+
+    private void describe(final HDFSCompression compression, final long stored) throws IOException {
+        blob.described(count, digest == null ? null : toHex(digest.digest()), compression, stored);
+    }
+
+    /**
+     * encode a digest the way it is stored
+     *
+     * @param bytes
+     *            the digest
+     * @return the lower case hex digits of the digest
+     */
+    static String toHex(final byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -16,21 +16,37 @@
  */
 package de.fiz.akubra.hdfs;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.transaction.Transaction;
 
 import org.akubraproject.BlobStore;
 import org.akubraproject.BlobStoreConnection;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * {@link BlobStore} implementation for the Hadoop filesystem.
@@ -39,10 +55,114 @@ import org.apache.hadoop.fs.FileSystem;
  * 
  */
 public class HDFSBlobStore implements BlobStore {
-    private  FileSystem hdfs;
+    /**
+     * the directory below the store's root holding the containers of packed
+     * blobs
+     */
+    static final String PACK_DIRECTORY = ".packs";
+    /**
+     * the directory below the store's root holding the metadata records of
+     * the blobs
+     */
+    static final String METADATA_DIRECTORY = ".meta";
+    /**
+     * the directory below the store's root holding the content files of a
+     * deduplicating store
+     */
+    static final String CONTENT_DIRECTORY = ".content";
+    /**
+     * the directory below the store's root holding the references of the
+     * blobs of a deduplicating store to their content
+     */
+    static final String REFERENCE_DIRECTORY = ".refs";
+    /**
+     * the directory below the store's root holding the content written in
+     * uncommitted transactions
+     */
+    static final String STAGING_DIRECTORY = ".staging";
+    /**
+     * the directory below the store's root holding the replication of the
+     * files lowered by the tiering service
+     */
+    static final String TIERING_DIRECTORY = ".tiering";
+    /**
+     * the file below the {@link #METADATA_DIRECTORY} marking that blobs have
+     * been compressed
+     */
+    static final String COMPRESSED_MARKER = "compressed";
+    /**
+     * the algorithm naming the content of a deduplicating store if no
+     * digest algorithm is set
+     */
+    static final String DEFAULT_CONTENT_ALGORITHM = "SHA-256";
+
+    private static final Logger log = LoggerFactory.getLogger(HDFSBlobStore.class);
+
+    private volatile FileSystem hdfs;
 
     private final URI id;
 
+    private volatile long packThreshold = 0;
+    private long packContainerSize = 64 * 1024 * 1024;
+    private long packCompactionInterval = 3600;
+    private float packCompactionRatio = 0.5f;
+    private volatile HDFSPackStore packs;
+    private ScheduledExecutorService compactor;
+    private int statusCacheSize = 0;
+    private long statusCacheTtl = 5000;
+    private volatile HDFSStatusCache statusCache;
+    private volatile HDFSDirectoryCache directoryCache = new HDFSDirectoryCache(10000);
+    private volatile List<HDFSCreatePolicy> createPolicies = new ArrayList<HDFSCreatePolicy>();
+    private int listingThreads = 0;
+    private int listingQueueSize = 1000;
+    private int shardLevels = 0;
+    private int shardWidth = 2;
+    private volatile HDFSShardLayout shardLayout = new HDFSShardLayout(0, 2);
+    private volatile String digestAlgorithm;
+    private volatile HDFSMetadataStore metadata;
+    /** whether compressed blobs exist, null until it has been looked up */
+    private volatile Boolean compressed;
+    private volatile HDFSBufferPool bufferPool = new HDFSBufferPool(256 * 1024, 16);
+    private int ingestBufferSize = 256 * 1024;
+    private int ingestBufferPoolSize = 16;
+    private volatile boolean deduplicate = false;
+    private File spoolDirectory = new File(System.getProperty("java.io.tmpdir"));
+    private volatile HDFSContentStore content;
+    private File readCacheDirectory = new File(System.getProperty("java.io.tmpdir"));
+    private volatile long readCacheSize = 0;
+    private long readCacheMaxBlobSize = 1024 * 1024;
+    private volatile HDFSReadCache readCache;
+    private volatile long memoryCacheSize = 0;
+    private int memoryCacheMaxBlobSize = 4096;
+    private volatile HDFSMemoryCache memoryCache;
+    private volatile HDFSGroupCommitter groupCommitter;
+    /** the ids of the blobs changed by open transactions */
+    private final ConcurrentMap<URI, HDFSTransaction> claims = new ConcurrentHashMap<URI, HDFSTransaction>();
+    private final Object recoveryLock = new Object();
+    private boolean recovered = false;
+    private volatile HDFSDurability syncDurability = HDFSDurability.FLUSH;
+    private int syncThreads = 8;
+    private ExecutorService syncExecutor;
+    private int bulkThreads = 16;
+    private int bulkListThreshold = 16;
+    private volatile boolean atomicReplace = false;
+    private volatile HDFSCompression compression;
+    private volatile long tieringInterval = 0;
+    private int tieringHotReads = 100;
+    private short tieringHotReplication = 5;
+    private short tieringColdReplication = 0;
+    private long tieringColdAge = 30L * 24 * 3600;
+    private double tieringRate = 10;
+    private volatile HDFSTiering tiering;
+    private volatile HDFSPackStore tieringRecords;
+    private ExecutorService bulkExecutor;
+    private Configuration configuration = new Configuration();
+    private int fileSystemPoolSize = 1;
+    private HDFSPoolStrategy fileSystemPoolStrategy = HDFSPoolStrategy.ROUND_ROBIN;
+    private HDFSFileSystemPool fileSystemPool;
+    private volatile HDFSMetricsRegistry metricsRegistry;
+    private ObjectName metricsName;
+
     /**
      * create a new {@link HDFSBlobStore} at a specific URI in {@link String}
      * format
@@ -69,27 +189,1267 @@ public class HDFSBlobStore implements BlobStore {
      * open a new {@link HDFSBlobStoreConnection} to a HDFS namenode
      * 
      * @param tx
-     *            since transactions are not supported. this must be set to null
+     *            the {@link Transaction} the connection's changes belong to or
+     *            null. A transactional connection stages its changes and
+     *            applies them together when the transaction commits
      * @param hints
      *            not used
      * @return a new {@link HDFSBlobStoreConnection} th this
      *         {@link HDFSBlobStore}'s id
-     * @throws UnsupportedOperationException
-     *             if the transaction parameter was not null
      * @throws IOException
      *             if the operation did not succeed
      */
-    public BlobStoreConnection openConnection(final Transaction tx, final Map<String, String> hints) throws UnsupportedOperationException, IOException {
+    public BlobStoreConnection openConnection(final Transaction tx, final Map<String, String> hints) throws IOException {
         if (tx != null) {
-            throw new UnsupportedOperationException("Transactions are not supported");
+            return new HDFSBlobStoreConnection(this, tx);
         }
         return new HDFSBlobStoreConnection(this);
     }
 
-    synchronized FileSystem getFilesystem() throws IOException {
-        if (hdfs==null){
-            hdfs=FileSystem.get(this.id, new Configuration());
+    /**
+     * get how far {@link HDFSBlobStoreConnection#sync()} pushes the content
+     * of the open output streams
+     * 
+     * @return the {@link HDFSDurability}
+     */
+    public HDFSDurability getSyncDurability() {
+        return syncDurability;
+    }
+
+    /**
+     * set how far {@link HDFSBlobStoreConnection#sync()} pushes the content
+     * of the open output streams
+     * 
+     * @param syncDurability
+     *            the {@link HDFSDurability}, defaults to
+     *            {@link HDFSDurability#FLUSH}
+     */
+    public void setSyncDurability(final HDFSDurability syncDurability) {
+        this.syncDurability = syncDurability;
+    }
+
+    /**
+     * set the number of streams synced at once by
+     * {@link HDFSBlobStoreConnection#sync()}
+     * 
+     * @param syncThreads
+     *            the number of threads, defaults to 8
+     */
+    public synchronized void setSyncThreads(final int syncThreads) {
+        this.syncThreads = syncThreads;
+    }
+
+    /**
+     * get the threads syncing the streams of the connections
+     * 
+     * @return the {@link ExecutorService} running the syncs
+     */
+    synchronized ExecutorService getSyncExecutor() {
+        if (syncExecutor == null) {
+            syncExecutor = Executors.newFixedThreadPool(syncThreads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "akubra-hdfs-sync");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return syncExecutor;
+    }
+
+    /**
+     * set the number of lookups and deletes of a bulk operation run at once
+     * 
+     * @param bulkThreads
+     *            the number of threads, defaults to 16
+     */
+    public synchronized void setBulkThreads(final int bulkThreads) {
+        this.bulkThreads = bulkThreads;
+    }
+
+    /**
+     * get the threads running the lookups and deletes of bulk operations
+     * 
+     * @return the {@link ExecutorService} running the bulk operations
+     */
+    synchronized ExecutorService getBulkExecutor() {
+        if (bulkExecutor == null) {
+            bulkExecutor = Executors.newFixedThreadPool(bulkThreads, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "akubra-hdfs-bulk");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return bulkExecutor;
+    }
+
+    /**
+     * get the number of blobs of a bulk lookup in the same directory from
+     * which on the directory is listed instead of looking up every blob
+     * 
+     * @return the number of blobs
+     */
+    public int getBulkListThreshold() {
+        return bulkListThreshold;
+    }
+
+    /**
+     * set the number of blobs of a bulk lookup in the same directory from
+     * which on the directory is listed instead of looking up every blob. A
+     * listing costs one call per 1000 entries of the directory, so it pays
+     * off if a fair share of the directory is looked up.
+     * 
+     * @param bulkListThreshold
+     *            the number of blobs, defaults to 16
+     */
+    public void setBulkListThreshold(final int bulkListThreshold) {
+        this.bulkListThreshold = bulkListThreshold;
+    }
+
+    /**
+     * check if Fedora's safe overwrite is carried out with a single rename
+     * 
+     * @return true if the fast path is enabled
+     */
+    public boolean isAtomicReplace() {
+        return atomicReplace;
+    }
+
+    /**
+     * carry out the safe overwrite of Fedora's
+     * <code>AkubraLowlevelStorage</code> with a single rename. Fedora writes
+     * <code>&lt;id&gt;/new</code>, moves the blob to
+     * <code>&lt;id&gt;/old</code>, moves the new content into place and
+     * deletes the old one. With the fast path the move to the backup is
+     * deferred and the new content replaces the blob with one overwriting
+     * rename, so that the backup never has to be written nor deleted. Any
+     * other use of the blob or its backup carries out the deferred move
+     * first, as does closing the connection. Once the new content is in
+     * place the backup's content is gone, so it is missing until it is
+     * deleted. The fast path needs a Hadoop client with an overwriting rename,
+     * which Hadoop 1.0 lacks; without one, and for deduplicated or packed
+     * blobs, the blobs are moved one by one.
+     * 
+     * @param atomicReplace
+     *            true to enable the fast path, disabled by default
+     */
+    public void setAtomicReplace(final boolean atomicReplace) {
+        this.atomicReplace = atomicReplace;
+    }
+
+    /**
+     * get the codec the content of new blobs is compressed with unless their
+     * {@link HDFSCreatePolicy} names another one
+     * 
+     * @return the {@link HDFSCompression} or null if compression is disabled
+     */
+    public HDFSCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * enable transparent compression of the content of new blobs stored as
+     * Hadoop files or packed records. The codec is the one of the blob's
+     * {@link HDFSCreatePolicy} or this one, so that the policies choose it by
+     * estimated size or by the {@link HDFSCreatePolicy#STORAGE_CLASS_HINT}.
+     * Content whose first 64 KB do not compress well is stored as written.
+     * The codec and the uncompressed size are stored in the metadata records
+     * below <code>.meta</code>, so {@link HDFSBlob#getSize()} reads no
+     * content. Ranges of compressed blobs are read by decompressing from the
+     * start. Deduplicated content is not compressed. Blobs stay compressed
+     * when compression is switched off; the first compressed blob leaves a
+     * marker below <code>.meta</code>, which keeps the metadata records open
+     * so that they are still read.
+     * 
+     * @param compression
+     *            the default {@link HDFSCompression} or null to disable
+     *            compression, which is the default
+     */
+    public synchronized void setCompression(final HDFSCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * get the service adapting the replication of the blob files to how
+     * often they are read, starting it on first use
+     * 
+     * @return the {@link HDFSTiering} or null if tiering is disabled
+     */
+    HDFSTiering getTiering() {
+        if (tieringInterval <= 0) {
+            return null;
+        }
+        HDFSTiering t = tiering;
+        if (t == null) {
+            synchronized (this) {
+                if (tiering == null) {
+                    HDFSTiering started = new HDFSTiering(this, tieringHotReads, tieringHotReplication, tieringColdReplication,
+                            tieringColdAge * 1000, tieringRate);
+                    started.start(tieringInterval);
+                    tiering = started;
+                }
+                t = tiering;
+            }
+        }
+        return t;
+    }
+
+    /**
+     * set the time between two passes of the tiering service, which raises
+     * the replication of blob files read often and, with
+     * {@link #setTieringColdReplication(short)}, lowers it for files not read
+     * for a long time. Only blobs stored as Hadoop files of their own are
+     * tiered, and only reads which reach the Hadoop filesystem are counted.
+     * 
+     * @param tieringInterval
+     *            the time in seconds, defaults to 0, which disables tiering
+     */
+    public synchronized void setTieringInterval(final long tieringInterval) {
+        this.tieringInterval = tieringInterval;
+    }
+
+    /**
+     * set the number of reads within one tiering interval which make a blob
+     * hot. A hot blob gets its former replication back after an interval
+     * with less than half as many reads.
+     * 
+     * @param tieringHotReads
+     *            the number of reads, defaults to 100
+     */
+    public synchronized void setTieringHotReads(final int tieringHotReads) {
+        this.tieringHotReads = tieringHotReads;
+    }
+
+    /**
+     * set the replication of hot blobs, which spreads their reads over more
+     * datanodes
+     * 
+     * @param tieringHotReplication
+     *            the number of replicas, defaults to 5
+     */
+    public synchronized void setTieringHotReplication(final short tieringHotReplication) {
+        this.tieringHotReplication = tieringHotReplication;
+    }
+
+    /**
+     * set the replication of cold blobs, which have not been accessed for
+     * the cold age. Each tiering pass lists the store to find them and
+     * restores the default replication of those accessed again. This relies
+     * on the access times of the namenode, see
+     * <code>dfs.access.time.precision</code>; without them a blob is cold
+     * once it has not been modified for the cold age.
+     * 
+     * @param tieringColdReplication
+     *            the number of replicas, defaults to 0, which leaves cold
+     *            blobs alone
+     */
+    public synchronized void setTieringColdReplication(final short tieringColdReplication) {
+        this.tieringColdReplication = tieringColdReplication;
+    }
+
+    /**
+     * set the time after its last access a blob is cold
+     * 
+     * @param tieringColdAge
+     *            the time in seconds, defaults to 30 days
+     */
+    public synchronized void setTieringColdAge(final long tieringColdAge) {
+        this.tieringColdAge = tieringColdAge;
+    }
+
+    /**
+     * set the maximum number of namenode calls per second made by the
+     * tiering service, counting replication changes and listings. It also
+     * bounds the copying and deleting of replicas the changes cause on the
+     * datanodes.
+     * 
+     * @param tieringRate
+     *            the number of calls per second, defaults to 10
+     */
+    public synchronized void setTieringRate(final double tieringRate) {
+        if (tieringRate <= 0) {
+            throw new IllegalArgumentException("tiering rate has to be positive");
+        }
+        this.tieringRate = tieringRate;
+    }
+
+    /**
+     * get the number of replication changes made by the tiering service
+     * 
+     * @return the number of changes
+     */
+    public long getTieringChanges() {
+        HDFSTiering t = tiering;
+        return t == null ? 0 : t.getChanges();
+    }
+
+    /**
+     * get the codec the content of a new blob is compressed with
+     * 
+     * @param policy
+     *            the {@link HDFSCreatePolicy} the blob is created with or
+     *            null
+     * @return the {@link HDFSCompression} or null if compression is disabled
+     */
+    HDFSCompression getCompression(final HDFSCreatePolicy policy) {
+        HDFSCompression c = compression;
+        if (c == null || policy == null || policy.getCompression() == null) {
+            return c;
+        }
+        return policy.getCompression();
+    }
+
+    /**
+     * get the {@link HDFSGroupCommitter} merging the commits of concurrent
+     * transactions
+     * 
+     * @return the {@link HDFSGroupCommitter} of this store
+     */
+    HDFSGroupCommitter getGroupCommitter() {
+        HDFSGroupCommitter g = groupCommitter;
+        if (g == null) {
+            synchronized (this) {
+                if (groupCommitter == null) {
+                    groupCommitter = new HDFSGroupCommitter(this);
+                }
+                g = groupCommitter;
+            }
+        }
+        return g;
+    }
+
+    /**
+     * claim a blob for the transaction changing it
+     * 
+     * @param uri
+     *            the blob's id
+     * @param tx
+     *            the {@link HDFSTransaction}
+     * @throws IOException
+     *             if the blob is changed by another open transaction
+     */
+    void claim(final URI uri, final HDFSTransaction tx) throws IOException {
+        HDFSTransaction owner = claims.putIfAbsent(uri, tx);
+        if (owner != null && owner != tx) {
+            throw new IOException("blob " + uri + " is changed by another transaction");
+        }
+    }
+
+    /**
+     * release a blob claimed by a completed transaction
+     * 
+     * @param uri
+     *            the blob's id
+     * @param tx
+     *            the {@link HDFSTransaction}
+     */
+    void release(final URI uri, final HDFSTransaction tx) {
+        claims.remove(uri, tx);
+    }
+
+    /**
+     * resolve the journals of the transactions interrupted by a crash, once,
+     * before the first transactional connection is opened
+     * 
+     * @throws IOException
+     *             if a journal could not be resolved
+     */
+    void recoverTransactions() throws IOException {
+        synchronized (recoveryLock) {
+            if (!recovered) {
+                HDFSTransaction.recover(this);
+                recovered = true;
+            }
+        }
+    }
+
+    FileSystem getFilesystem() throws IOException {
+        FileSystem fs = hdfs;
+        if (fs == null) {
+            synchronized (this) {
+                if (hdfs == null) {
+                    hdfs = FileSystem.get(this.id, configuration);
+                }
+                fs = hdfs;
+            }
+        }
+        return fs;
+    }
+
+    /**
+     * get the {@link FileSystem} a new connection works with. With a pool
+     * configured it is one of the pooled filesystems, otherwise the store's
+     * shared one.
+     * 
+     * @return the {@link FileSystem}, which has to be given back by
+     *         {@link #releaseFilesystem(FileSystem)}
+     * @throws IOException
+     *             if the filesystem could not be opened
+     */
+    FileSystem acquireFilesystem() throws IOException {
+        HDFSFileSystemPool pool;
+        synchronized (this) {
+            if (fileSystemPool == null && fileSystemPoolSize > 1) {
+                fileSystemPool = new HDFSFileSystemPool(id, configuration, fileSystemPoolSize, fileSystemPoolStrategy);
+            }
+            pool = fileSystemPool;
+        }
+        if (pool == null) {
+            return meter(getFilesystem());
+        }
+        return meter(pool.acquire());
+    }
+
+    /*
+     * charge the calls of a filesystem to the running operations if metrics
+     * are enabled
+     */
+    private FileSystem meter(final FileSystem fs) {
+        return metricsRegistry == null ? fs : new HDFSMeteredFileSystem(fs);
+    }
+
+    /**
+     * give back the {@link FileSystem} of a closed connection
+     * 
+     * @param fs
+     *            the {@link FileSystem} returned by
+     *            {@link #acquireFilesystem()}
+     */
+    synchronized void releaseFilesystem(final FileSystem fs) {
+        if (fileSystemPool != null) {
+            fileSystemPool.release(fs instanceof HDFSMeteredFileSystem ? ((HDFSMeteredFileSystem) fs).getWrapped() : fs);
+        }
+    }
+
+    /**
+     * get the Hadoop {@link Configuration} the filesystems are opened with
+     * 
+     * @return the {@link Configuration}
+     */
+    public Configuration getConfiguration() {
+        return configuration;
+    }
+
+    /**
+     * set the Hadoop {@link Configuration} the filesystems are opened with,
+     * e.g. to tune the IPC client
+     * 
+     * @param configuration
+     *            the {@link Configuration}, defaults to the one found on the
+     *            classpath
+     */
+    public synchronized void setConfiguration(final Configuration configuration) {
+        this.configuration = configuration;
+    }
+
+    /**
+     * set the number of independent filesystems the connections are spread
+     * over. Each of them has its own IPC connection to the namenode.
+     * 
+     * @param fileSystemPoolSize
+     *            the number of filesystems, defaults to 1, which shares one
+     *            filesystem between all connections
+     */
+    public synchronized void setFileSystemPoolSize(final int fileSystemPoolSize) {
+        this.fileSystemPoolSize = fileSystemPoolSize;
+    }
+
+    /**
+     * set how a new connection is assigned one of the pooled filesystems
+     * 
+     * @param fileSystemPoolStrategy
+     *            the {@link HDFSPoolStrategy}, defaults to
+     *            {@link HDFSPoolStrategy#ROUND_ROBIN}
+     */
+    public synchronized void setFileSystemPoolStrategy(final HDFSPoolStrategy fileSystemPoolStrategy) {
+        this.fileSystemPoolStrategy = fileSystemPoolStrategy;
+    }
+
+    /**
+     * get the {@link HDFSPackStore} holding the small blobs of this store
+     * 
+     * @return the {@link HDFSPackStore} or null if packing is disabled
+     * @throws IOException
+     *             if the pack store could not be opened
+     */
+    HDFSPackStore getPackStore() throws IOException {
+        if (packThreshold <= 0) {
+            return null;
+        }
+        HDFSPackStore p = packs;
+        if (p == null) {
+            synchronized (this) {
+                if (packs == null) {
+                    packs = openPackStore(PACK_DIRECTORY);
+                }
+                p = packs;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * get the {@link HDFSPackStore} recording the replication of the files
+     * whose replication has been lowered by the tiering service
+     * 
+     * @return the {@link HDFSPackStore}
+     * @throws IOException
+     *             if the pack store could not be opened
+     */
+    HDFSPackStore getTieringRecords() throws IOException {
+        HDFSPackStore p = tieringRecords;
+        if (p == null) {
+            synchronized (this) {
+                if (tieringRecords == null) {
+                    tieringRecords = openPackStore(TIERING_DIRECTORY);
+                }
+                p = tieringRecords;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * get the {@link HDFSMetadataStore} holding the digests and the codecs
+     * of the blobs
+     * 
+     * @return the {@link HDFSMetadataStore} or null if neither digests are
+     *         computed nor blobs compressed
+     * @throws IOException
+     *             if the metadata store could not be opened
+     */
+    HDFSMetadataStore getMetadataStore() throws IOException {
+        if (digestAlgorithm == null && compression == null && !hasCompressedBlobs()) {
+            return null;
+        }
+        HDFSMetadataStore m = metadata;
+        if (m == null) {
+            synchronized (this) {
+                if (metadata == null) {
+                    metadata = new HDFSMetadataStore(openPackStore(METADATA_DIRECTORY));
+                }
+                m = metadata;
+            }
+        }
+        return m;
+    }
+
+    /*
+     * check for the marker left by the first compressed blob, once. The
+     * namenode is asked without holding the store's lock.
+     */
+    private boolean hasCompressedBlobs() throws IOException {
+        Boolean c = compressed;
+        if (c == null) {
+            boolean found = getFilesystem().exists(compressedMarker());
+            synchronized (this) {
+                if (compressed == null) {
+                    compressed = found;
+                }
+                c = compressed;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * called before the first record of a compressed blob is written, to
+     * leave the marker keeping the metadata records open once compression
+     * has been switched off
+     * 
+     * @throws IOException
+     *             if the marker could not be written
+     */
+    void compressed() throws IOException {
+        if (Boolean.TRUE.equals(compressed)) {
+            return;
+        }
+        synchronized (this) {
+            if (!Boolean.TRUE.equals(compressed)) {
+                FileSystem fs = getFilesystem();
+                if (!fs.exists(compressedMarker())) {
+                    fs.create(compressedMarker(), true).close();
+                }
+                compressed = true;
+            }
+        }
+    }
+
+    private Path compressedMarker() {
+        return new Path(id.toASCIIString() + METADATA_DIRECTORY + "/" + COMPRESSED_MARKER);
+    }
+
+    /**
+     * get the {@link HDFSContentStore} holding the content of the blobs of a
+     * deduplicating store
+     * 
+     * @return the {@link HDFSContentStore} or null if the store does not
+     *         deduplicate
+     * @throws IOException
+     *             if the content store could not be opened
+     */
+    HDFSContentStore getContentStore() throws IOException {
+        if (!deduplicate) {
+            return null;
+        }
+        HDFSContentStore c = content;
+        if (c == null) {
+            synchronized (this) {
+                if (content == null) {
+                    String algorithm = digestAlgorithm == null ? DEFAULT_CONTENT_ALGORITHM : digestAlgorithm;
+                    content = new HDFSContentStore(meter(getFilesystem()), new Path(id.toASCIIString() + CONTENT_DIRECTORY),
+                            openPackStore(REFERENCE_DIRECTORY), algorithm, bufferPool);
+                }
+                c = content;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * check if new blobs are stored content-addressed
+     * 
+     * @return true if identical content is stored only once
+     */
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    /**
+     * store new blobs content-addressed: content is written once under its
+     * digest and a blob is a small reference to it, so ingesting a duplicate
+     * costs a digest pass and a reference record instead of a new Hadoop
+     * file. The digest algorithm defaults to <code>SHA-256</code> if none is
+     * set. Blobs written before are still read, but not deduplicated.
+     * Disabled by default.
+     * 
+     * @param deduplicate
+     *            true to deduplicate new blobs
+     */
+    public synchronized void setDeduplicate(final boolean deduplicate) {
+        this.deduplicate = deduplicate;
+    }
+
+    /**
+     * get the local directory new content is spooled to while it is
+     * digested
+     * 
+     * @return the spool directory
+     */
+    File getSpoolDirectory() {
+        return spoolDirectory;
+    }
+
+    /**
+     * set the local directory content larger than
+     * {@link HDFSDedupOutputStream#MEMORY_THRESHOLD} is spooled to while it is
+     * digested
+     * 
+     * @param spoolDirectory
+     *            the path of the directory, defaults to
+     *            <code>java.io.tmpdir</code>
+     */
+    public void setSpoolDirectory(final String spoolDirectory) {
+        this.spoolDirectory = new File(spoolDirectory);
+    }
+
+    /*
+     * open the pack store in the given directory below the root and schedule
+     * its compaction
+     */
+    private HDFSPackStore openPackStore(final String directory) throws IOException {
+        final HDFSPackStore p = new HDFSPackStore(meter(getFilesystem()), new Path(id.toASCIIString() + directory), packContainerSize);
+        p.open();
+        if (packCompactionInterval > 0) {
+            if (compactor == null) {
+                compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "akubra-hdfs-compactor");
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            }
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        p.compact(packCompactionRatio);
+                    } catch (IOException e) {
+                        log.error("unable to compact pack containers", e);
+                    }
+                }
+            }, packCompactionInterval, packCompactionInterval, TimeUnit.SECONDS);
+        }
+        return p;
+    }
+
+    /**
+     * get the algorithm of the digests computed while blobs are written
+     * 
+     * @return the name of the {@link MessageDigest} algorithm or null if no
+     *         digests are computed
+     */
+    public String getDigestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    /**
+     * set the algorithm of the digests computed while blobs are written, e.g.
+     * <code>MD5</code> or <code>SHA-256</code>. The digest and the number of
+     * bytes written are stored with the blob and are available through
+     * {@link HDFSDigestingBlob}. No digests are computed by default.
+     * 
+     * @param digestAlgorithm
+     *            the name of the {@link MessageDigest} algorithm or null
+     * @throws IllegalArgumentException
+     *             if the algorithm is not available
+     */
+    public synchronized void setDigestAlgorithm(final String digestAlgorithm) {
+        if (digestAlgorithm != null) {
+            try {
+                MessageDigest.getInstance(digestAlgorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException("unknown digest algorithm " + digestAlgorithm, e);
+            }
+        }
+        this.digestAlgorithm = digestAlgorithm;
+    }
+
+    /**
+     * get the pool of buffers used to copy the content of new blobs
+     * 
+     * @return the {@link HDFSBufferPool}
+     */
+    HDFSBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * set the size of the buffers used to copy the content of new blobs
+     * 
+     * @param ingestBufferSize
+     *            the size in bytes, defaults to 256 KB
+     */
+    public synchronized void setIngestBufferSize(final int ingestBufferSize) {
+        this.ingestBufferSize = ingestBufferSize;
+        this.bufferPool = new HDFSBufferPool(ingestBufferSize, ingestBufferPoolSize);
+    }
+
+    /**
+     * set the number of copy buffers kept for reuse
+     * 
+     * @param ingestBufferPoolSize
+     *            the number of buffers, defaults to 16
+     */
+    public synchronized void setIngestBufferPoolSize(final int ingestBufferPoolSize) {
+        this.ingestBufferPoolSize = ingestBufferPoolSize;
+        this.bufferPool = new HDFSBufferPool(ingestBufferSize, ingestBufferPoolSize);
+    }
+
+    /**
+     * get the {@link HDFSStatusCache} shared by the connections of this store
+     * 
+     * @return the {@link HDFSStatusCache} or null if status caching is
+     *         disabled
+     */
+    HDFSStatusCache getStatusCache() {
+        return statusCache;
+    }
+
+    /**
+     * set the maximum number of {@link org.apache.hadoop.fs.FileStatus}
+     * entries cached for {@link HDFSBlob#exists()} and
+     * {@link HDFSBlob#getSize()}. Caching is disabled by default.
+     * 
+     * @param statusCacheSize
+     *            the number of entries, 0 disables the cache
+     */
+    public synchronized void setStatusCacheSize(final int statusCacheSize) {
+        this.statusCacheSize = statusCacheSize;
+        this.statusCache = statusCacheSize > 0 ? new HDFSStatusCache(statusCacheSize, statusCacheTtl) : null;
+    }
+
+    /**
+     * set the time after which a cached status expires. Changes made by
+     * other processes may be invisible for this long.
+     * 
+     * @param statusCacheTtl
+     *            the time to live in milliseconds, defaults to 5 seconds
+     */
+    public synchronized void setStatusCacheTtl(final long statusCacheTtl) {
+        this.statusCacheTtl = statusCacheTtl;
+        setStatusCacheSize(statusCacheSize);
+    }
+
+    /**
+     * get the number of status lookups answered from the cache
+     * 
+     * @return the number of cache hits
+     */
+    public long getStatusCacheHits() {
+        HDFSStatusCache c = statusCache;
+        return c == null ? 0 : c.getHits();
+    }
+
+    /**
+     * get the number of status lookups which had to ask the namenode
+     * 
+     * @return the number of cache misses
+     */
+    public long getStatusCacheMisses() {
+        HDFSStatusCache c = statusCache;
+        return c == null ? 0 : c.getMisses();
+    }
+
+    /**
+     * get the local disk cache of blob content shared by the connections of
+     * this store
+     * 
+     * @return the {@link HDFSReadCache} or null if read caching is disabled
+     * @throws IOException
+     *             if the cache directory could not be created
+     */
+    HDFSReadCache getReadCache() throws IOException {
+        if (readCacheSize <= 0) {
+            return null;
+        }
+        HDFSReadCache c = readCache;
+        if (c == null) {
+            synchronized (this) {
+                if (readCache == null) {
+                    readCache = new HDFSReadCache(readCacheDirectory, readCacheSize, readCacheMaxBlobSize);
+                }
+                c = readCache;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * set the local directory, ideally on a fast disk, the read cache keeps
+     * its copies in. The cache creates a directory of its own there which is
+     * removed when the store is closed.
+     * 
+     * @param readCacheDirectory
+     *            the path of the directory, defaults to
+     *            <code>java.io.tmpdir</code>
+     */
+    public synchronized void setReadCacheDirectory(final String readCacheDirectory) {
+        this.readCacheDirectory = new File(readCacheDirectory);
+    }
+
+    /**
+     * set the number of bytes of blob content kept in the local read cache.
+     * The least recently read blobs are evicted first.
+     * 
+     * @param readCacheSize
+     *            the size in bytes, defaults to 0, which disables the cache
+     */
+    public synchronized void setReadCacheSize(final long readCacheSize) {
+        this.readCacheSize = readCacheSize;
+    }
+
+    /**
+     * set the size of the largest blob copied to the read cache
+     * 
+     * @param readCacheMaxBlobSize
+     *            the size in bytes, defaults to 1 MB
+     */
+    public synchronized void setReadCacheMaxBlobSize(final long readCacheMaxBlobSize) {
+        this.readCacheMaxBlobSize = readCacheMaxBlobSize;
+    }
+
+    /**
+     * get the number of blob reads served from the local read cache
+     * 
+     * @return the number of cache hits
+     */
+    public long getReadCacheHits() {
+        HDFSReadCache c = readCache;
+        return c == null ? 0 : c.getHits();
+    }
+
+    /**
+     * get the number of blob reads which had to go to the Hadoop filesystem
+     * 
+     * @return the number of cache misses
+     */
+    public long getReadCacheMisses() {
+        HDFSReadCache c = readCache;
+        return c == null ? 0 : c.getMisses();
+    }
+
+    /**
+     * get the off-heap cache of tiny blobs shared by the connections of this
+     * store
+     * 
+     * @return the {@link HDFSMemoryCache} or null if memory caching is
+     *         disabled
+     */
+    HDFSMemoryCache getMemoryCache() {
+        if (memoryCacheSize <= 0) {
+            return null;
+        }
+        HDFSMemoryCache c = memoryCache;
+        if (c == null) {
+            synchronized (this) {
+                if (memoryCache == null) {
+                    memoryCache = new HDFSMemoryCache(memoryCacheSize, memoryCacheMaxBlobSize);
+                }
+                c = memoryCache;
+            }
+        }
+        return c;
+    }
+
+    /**
+     * set the number of bytes of memory outside the Java heap used to cache
+     * tiny blobs. The memory is allocated when the cache is first used and
+     * the least recently read blobs are evicted first. The JVM's
+     * <code>-XX:MaxDirectMemorySize</code> has to allow for it.
+     * 
+     * @param memoryCacheSize
+     *            the size in bytes, defaults to 0, which disables the cache
+     */
+    public synchronized void setMemoryCacheSize(final long memoryCacheSize) {
+        this.memoryCacheSize = memoryCacheSize;
+    }
+
+    /**
+     * set the size of the largest blob kept in the memory cache
+     * 
+     * @param memoryCacheMaxBlobSize
+     *            the size in bytes, defaults to 4096
+     */
+    public synchronized void setMemoryCacheMaxBlobSize(final int memoryCacheMaxBlobSize) {
+        this.memoryCacheMaxBlobSize = memoryCacheMaxBlobSize;
+    }
+
+    /**
+     * get the number of blob reads served from the memory cache
+     * 
+     * @return the number of cache hits
+     */
+    public long getMemoryCacheHits() {
+        HDFSMemoryCache c = memoryCache;
+        return c == null ? 0 : c.getHits();
+    }
+
+    /**
+     * get the number of blob reads which could not be served from the memory
+     * cache
+     * 
+     * @return the number of cache misses
+     */
+    public long getMemoryCacheMisses() {
+        HDFSMemoryCache c = memoryCache;
+        return c == null ? 0 : c.getMisses();
+    }
+
+    /**
+     * get the policy a new blob's file is created with
+     * 
+     * @param estimatedSize
+     *            the estimated size of the blob, negative if unknown
+     * @param hints
+     *            the hints the blob has been fetched with, may be null
+     * @return the first {@link HDFSCreatePolicy} which applies to the blob or
+     *         null if the filesystem's defaults should be used
+     */
+    HDFSCreatePolicy getCreatePolicy(final long estimatedSize, final Map<String, String> hints) {
+        for (HDFSCreatePolicy policy : createPolicies) {
+            if (policy.appliesTo(estimatedSize, hints)) {
+                return policy;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * set the policies which choose buffer size, block size and replication
+     * of new files by the blob's estimated size or its
+     * {@link HDFSCreatePolicy#STORAGE_CLASS_HINT}. By default all files are
+     * created with the filesystem's defaults.
+     * 
+     * @param createPolicies
+     *            the policies in the order they are tried
+     */
+    public void setCreatePolicies(final List<HDFSCreatePolicy> createPolicies) {
+        this.createPolicies = new ArrayList<HDFSCreatePolicy>(createPolicies);
+    }
+
+    /**
+     * get the {@link HDFSDirectoryCache} shared by the connections of this
+     * store
+     * 
+     * @return the {@link HDFSDirectoryCache} or null if directories are not
+     *         cached
+     */
+    HDFSDirectoryCache getDirectoryCache() {
+        return directoryCache;
+    }
+
+    /**
+     * set the number of directories remembered as existing, so that moving a
+     * blob into them needs no directory RPCs
+     * 
+     * @param directoryCacheSize
+     *            the maximum number of cached directories, defaults to 10000.
+     *            0 disables the cache
+     */
+    public void setDirectoryCacheSize(final int directoryCacheSize) {
+        this.directoryCache = directoryCacheSize > 0 ? new HDFSDirectoryCache(directoryCacheSize) : null;
+    }
+
+    /**
+     * get the number of directories listed at once by
+     * {@link HDFSBlobStoreConnection#listBlobIds(String)}
+     * 
+     * @return the number of listing threads, 0 if directories are listed
+     *         sequentially on the calling thread
+     */
+    public int getListingThreads() {
+        return listingThreads;
+    }
+
+    /**
+     * set the number of directories listed at once by
+     * {@link HDFSBlobStoreConnection#listBlobIds(String)}. By default the
+     * directories are listed one after another on the consumer's thread.
+     * 
+     * @param listingThreads
+     *            the number of listing threads, 0 for sequential listing
+     */
+    public void setListingThreads(final int listingThreads) {
+        this.listingThreads = listingThreads;
+    }
+
+    /**
+     * get the number of ids a parallel listing may run ahead of its consumer
+     * 
+     * @return the capacity of the hand-off queue
+     */
+    public int getListingQueueSize() {
+        return listingQueueSize;
+    }
+
+    /**
+     * set the number of ids a parallel listing may run ahead of its consumer
+     * 
+     * @param listingQueueSize
+     *            the capacity of the hand-off queue, defaults to 1000
+     */
+    public void setListingQueueSize(final int listingQueueSize) {
+        this.listingQueueSize = listingQueueSize;
+    }
+
+    /**
+     * get the layout of the directories new blobs are created in
+     * 
+     * @return the {@link HDFSShardLayout} of this store
+     */
+    HDFSShardLayout getShardLayout() {
+        return shardLayout;
+    }
+
+    /**
+     * set the number of levels of hash directories each blob is put in. By
+     * default blobs are stored directly in the directory of their id. An
+     * existing store has to be converted with {@link HDFSShardMigration}
+     * when the layout is changed.
+     * 
+     * @param shardLevels
+     *            the number of directory levels, 0 for a flat layout
+     */
+    public synchronized void setShardLevels(final int shardLevels) {
+        this.shardLayout = new HDFSShardLayout(shardLevels, shardWidth);
+        this.shardLevels = shardLevels;
+    }
+
+    /**
+     * set the number of hex digits in the name of a hash directory
+     * 
+     * @param shardWidth
+     *            the number of hex digits, defaults to 2
+     */
+    public synchronized void setShardWidth(final int shardWidth) {
+        this.shardLayout = new HDFSShardLayout(shardLevels, shardWidth);
+        this.shardWidth = shardWidth;
+    }
+
+    /**
+     * check if a file or directory name below the store's root is used
+     * internally and does not denote a blob
+     * 
+     * @param name
+     *            the name of the file or directory
+     * @return true if the name is reserved
+     */
+    static boolean isReservedName(final String name) {
+        return PACK_DIRECTORY.equals(name) || METADATA_DIRECTORY.equals(name) || CONTENT_DIRECTORY.equals(name)
+                || REFERENCE_DIRECTORY.equals(name) || STAGING_DIRECTORY.equals(name) || TIERING_DIRECTORY.equals(name);
+    }
+
+    /**
+     * get the size up to which blobs are packed into container files
+     * 
+     * @return the threshold in bytes, 0 if packing is disabled
+     */
+    public long getPackThreshold() {
+        return packThreshold;
+    }
+
+    /**
+     * set the size up to which blobs are packed into container files instead
+     * of being stored in a Hadoop file of their own. Packing is disabled by
+     * default.
+     * 
+     * @param packThreshold
+     *            the threshold in bytes, 0 disables packing
+     */
+    public void setPackThreshold(final long packThreshold) {
+        this.packThreshold = packThreshold;
+    }
+
+    /**
+     * set the size after which a new container file is started
+     * 
+     * @param packContainerSize
+     *            the size in bytes, defaults to 64 MB
+     */
+    public void setPackContainerSize(final long packContainerSize) {
+        this.packContainerSize = packContainerSize;
+    }
+
+    /**
+     * set the interval of the background compaction of the container files
+     * 
+     * @param packCompactionInterval
+     *            the interval in seconds, 0 disables the compaction. Defaults
+     *            to one hour
+     */
+    public void setPackCompactionInterval(final long packCompactionInterval) {
+        this.packCompactionInterval = packCompactionInterval;
+    }
+
+    /**
+     * set the share of live data below which a container file is compacted
+     * 
+     * @param packCompactionRatio
+     *            the ratio between 0 and 1, defaults to 0.5
+     */
+    public void setPackCompactionRatio(final float packCompactionRatio) {
+        this.packCompactionRatio = packCompactionRatio;
+    }
+
+    /**
+     * get the {@link HDFSMetricsRegistry} the operations are measured for
+     * 
+     * @return the {@link HDFSMetricsRegistry} or null if metrics are disabled
+     */
+    public HDFSMetricsRegistry getMetricsRegistry() {
+        return metricsRegistry;
+    }
+
+    /**
+     * set the {@link HDFSMetricsRegistry} the operations are measured for. A
+     * registry implementing {@link HDFSMetricsMXBean} is published via JMX as
+     * <code>de.fiz.akubra.hdfs:type=HDFSBlobStore,name="&lt;id&gt;"</code>
+     * until the store is closed. The filesystem calls of the pack and content
+     * stores are only counted if the registry is set before the store is
+     * used.
+     * 
+     * @param metricsRegistry
+     *            the {@link HDFSMetricsRegistry}, defaults to null which
+     *            disables metrics
+     */
+    public synchronized void setMetricsRegistry(final HDFSMetricsRegistry metricsRegistry) {
+        unregisterMetrics();
+        this.metricsRegistry = metricsRegistry;
+        if (metricsRegistry instanceof HDFSMetricsMXBean) {
+            try {
+                ObjectName name = new ObjectName("de.fiz.akubra.hdfs:type=HDFSBlobStore,name=" + ObjectName.quote(id.toString()));
+                ManagementFactory.getPlatformMBeanServer().registerMBean(metricsRegistry, name);
+                metricsName = name;
+            } catch (JMException e) {
+                log.warn("unable to publish the metrics of " + id + " via JMX: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * enable or disable the default {@link HDFSMetrics}
+     * 
+     * @param metricsEnabled
+     *            true to measure the operations, defaults to false
+     */
+    public void setMetricsEnabled(final boolean metricsEnabled) {
+        setMetricsRegistry(metricsEnabled ? new HDFSMetrics() : null);
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+            } catch (JMException e) {
+                log.warn("unable to unpublish the metrics of " + id + ": " + e.getMessage());
+            }
+            metricsName = null;
+        }
+    }
+
+    /**
+     * release the resources held by this store. Connections opened
+     * afterwards will reinitialize them.
+     * 
+     * @throws IOException
+     *             if the pack store could not be closed
+     */
+    public synchronized void close() throws IOException {
+        if (compactor != null) {
+            compactor.shutdownNow();
+            compactor = null;
+        }
+        if (tiering != null) {
+            tiering.close();
+            tiering = null;
+        }
+        if (syncExecutor != null) {
+            syncExecutor.shutdown();
+            syncExecutor = null;
+        }
+        if (bulkExecutor != null) {
+            bulkExecutor.shutdown();
+            bulkExecutor = null;
+        }
+        if (packs != null) {
+            packs.close();
+            packs = null;
+        }
+        if (metadata != null) {
+            metadata.close();
+            metadata = null;
+        }
+        if (tieringRecords != null) {
+            tieringRecords.close();
+            tieringRecords = null;
+        }
+        if (content != null) {
+            content.close();
+            content = null;
+        }
+        if (readCache != null) {
+            readCache.close();
+            readCache = null;
+        }
+        // the memory is freed once the last stream reading it is collected
+        memoryCache = null;
+        if (fileSystemPool != null) {
+            fileSystemPool.close();
+            fileSystemPool = null;
         }
-        return hdfs;
+        unregisterMetrics();
     }
 }
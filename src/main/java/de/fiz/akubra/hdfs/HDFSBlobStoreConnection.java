@@ -16,20 +16,40 @@
  */
 package de.fiz.akubra.hdfs;
 
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.transaction.RollbackException;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
 
 import org.akubraproject.Blob;
 import org.akubraproject.BlobStore;
 import org.akubraproject.BlobStoreConnection;
 import org.akubraproject.UnsupportedIdException;
 import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -40,11 +60,23 @@ import org.slf4j.LoggerFactory;
  * @author frank asseg
  * 
  */
-class HDFSBlobStoreConnection implements BlobStoreConnection {
+class HDFSBlobStoreConnection implements HDFSBulkConnection {
 
     private final HDFSBlobStore store;
+    private final HDFSTransaction transaction;
     private FileSystem hdfs;
     private boolean closed=false;
+    private final boolean atomicReplaceSupported;
+    private final Set<HDFSParallelIdIterator> listings = Collections.synchronizedSet(Collections
+            .newSetFromMap(new WeakHashMap<HDFSParallelIdIterator, Boolean>()));
+    private final Set<HDFSBlobOutputStream> streams = Collections.synchronizedSet(Collections
+            .newSetFromMap(new WeakHashMap<HDFSBlobOutputStream, Boolean>()));
+    /** the backups whose move is deferred mapped to their blobs */
+    private final Map<URI, URI> deferredBackups = new HashMap<URI, URI>();
+    /** the blobs whose move is deferred mapped to their backups */
+    private final Map<URI, URI> deferredBlobs = new HashMap<URI, URI>();
+    /** the deferred backups whose blob has been replaced */
+    private final Set<URI> replacedBackups = new HashSet<URI>();
     private static final Logger log = LoggerFactory.getLogger(HDFSBlobStoreConnection.class);
 
     /**
@@ -58,16 +90,59 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
      */
     public HDFSBlobStoreConnection(final HDFSBlobStore store) throws IOException {
         this.store = store;
+        this.transaction = null;
         hdfs=this.getFileSystem();
+        this.atomicReplaceSupported = HDFSAtomicReplace.isSupported(hdfs);
     }
 
+    /**
+     * create a new {@link HDFSBlobStoreConnection} whose changes are staged
+     * until the given {@link Transaction} commits
+     * 
+     * @param store
+     *            the {@link HDFSBlobStore} this {@link HDFSBlobStoreConnection}
+     *            will try to connect to
+     * @param tx
+     *            the {@link Transaction} the changes belong to
+     * @throws IOException
+     *             if the connection did not succeed or the transaction is
+     *             not active
+     */
+    HDFSBlobStoreConnection(final HDFSBlobStore store, final Transaction tx) throws IOException {
+        this.store = store;
+        store.recoverTransactions();
+        this.transaction = new HDFSTransaction(store, tx);
+        try {
+            tx.registerSynchronization(transaction);
+        } catch (RollbackException e) {
+            throw new IOException("transaction is marked for rollback");
+        } catch (SystemException e) {
+            throw new IOException("unable to join transaction: " + e.getMessage());
+        }
+        hdfs=this.getFileSystem();
+        this.atomicReplaceSupported = HDFSAtomicReplace.isSupported(hdfs);
+    }
     /**
      * close this connection
      */
     @Override
     public void close() {
+        try {
+            settleDeferredBackups();
+        } catch (IOException e) {
+            log.error("unable to move deferred backups", e);
+        }
         closed=true;
-        hdfs=null;
+        if (hdfs != null) {
+            store.releaseFilesystem(hdfs);
+            hdfs=null;
+        }
+        synchronized (listings) {
+            for (HDFSParallelIdIterator it : listings) {
+                it.abort();
+            }
+            listings.clear();
+        }
     }
 
     /**
@@ -77,30 +152,43 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
      *            the {@link InputStream} pointing to the new {@link HDFSBlob}'s
      *            data
      * @param estimatedSize
-     *            not used
+     *            the expected size, which chooses the {@link HDFSCreatePolicy}
      * @param hints
-     *            not used
+     *            the hints choosing the {@link HDFSCreatePolicy}, may be null
      * @throws IOException
      *             if the operation did not succeed
      */
     public Blob getBlob(final InputStream in, final long estimatedSize, final Map<String, String> hints) throws IOException {
-        if (isClosed()){
-            throw new IllegalStateException("Connection to hdfs is closed");
-        }
-        if (in == null) {
-            throw new NullPointerException("inputstream can not be null");
-        }
-        HDFSBlob blob;
-        OutputStream out = null;
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.CREATE_BLOB);
         try {
-            blob = new HDFSBlob(URI.create(store.getId().toASCIIString() + UUID.randomUUID().toString()), this);
-            log.debug("creating file with uri " + blob.getId().toASCIIString());
-            out = blob.openOutputStream(estimatedSize, false);
-            IOUtils.copy(in, out);
-            return blob;
+            if (isClosed()){
+                throw new IllegalStateException("Connection to hdfs is closed");
+            }
+            if (in == null) {
+                throw new NullPointerException("inputstream can not be null");
+            }
+            URI id = createBlobId();
+            OutputStream out = null;
+            try {
+                log.debug("creating file with uri " + id.toASCIIString());
+                Blob blob;
+                if (transaction != null) {
+                    HDFSTransactionalBlob staged = new HDFSTransactionalBlob(id, this, transaction, hints);
+                    out = staged.openOutputStream(estimatedSize, false, true);
+                    blob = staged;
+                } else {
+                    HDFSBlob created = new HDFSBlob(id, this, hints);
+                    out = created.openOutputStream(estimatedSize, false, true);
+                    blob = created;
+                }
+                store.getBufferPool().copy(in, out);
+                return blob;
+            } finally {
+                IOUtils.closeQuietly(in);
+                IOUtils.closeQuietly(out);
+            }
         } finally {
-            IOUtils.closeQuietly(in);
-            IOUtils.closeQuietly(out);
+            HDFSOperationTimer.stop(timer);
         }
     }
 
@@ -111,29 +199,52 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
      * @param uri
      *            the {@link URI} of the {@link HDFSBlob}
      * @param hints
-     *            not used
+     *            the hints choosing the {@link HDFSCreatePolicy} when the
+     *            blob is written, may be null
      * @throws UnsupportedIdException
      *             if the supplied {@link URI} was not valid
      */
     public Blob getBlob(final URI uri, final Map<String, String> hints) throws UnsupportedIdException, IOException {
-        if (isClosed()){
-            throw new IllegalStateException("Connection to hdfs is closed");
-        }
-        if (uri == null) {
-            URI tmp = URI.create(store.getId() + UUID.randomUUID().toString());
-            log.debug("creating new Blob uri " + tmp.toASCIIString());
-            // return getBlob(new ByteArrayInputStream(new byte[0]),0, null);
-            return new HDFSBlob(tmp, this);
-        }
-        log.debug("fetching blob " + uri);
-        if (uri.getRawSchemeSpecificPart().startsWith("info:")) {
-            log.debug("special object " + uri);
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.GET_BLOB);
+        try {
+            if (isClosed()){
+                throw new IllegalStateException("Connection to hdfs is closed");
+            }
+            if (uri == null) {
+                URI tmp = createBlobId();
+                log.debug("creating new Blob uri " + tmp.toASCIIString());
+                // return getBlob(new ByteArrayInputStream(new byte[0]),0, null);
+                return newBlob(tmp, hints);
+            }
+            log.debug("fetching blob " + uri);
+            if (uri.getRawSchemeSpecificPart().startsWith("info:")) {
+                log.debug("special object " + uri);
+            }
+            if (!uri.toASCIIString().startsWith("hdfs:")) {
+                throw new UnsupportedIdException(uri, "HDFS URIs have to start with 'hdfs:'");
+            }
+            return newBlob(uri, hints);
+        } finally {
+            HDFSOperationTimer.stop(timer);
         }
-        if (!uri.toASCIIString().startsWith("hdfs:")) {
-            throw new UnsupportedIdException(uri, "HDFS URIs have to start with 'hdfs:'");
+    }
+
+    private Blob newBlob(final URI uri, final Map<String, String> hints) {
+        if (transaction != null) {
+            return new HDFSTransactionalBlob(uri, this, transaction, hints);
         }
-        HDFSBlob blob = new HDFSBlob(uri, this);
-        return blob;
+        return new HDFSBlob(uri, this, hints);
+    }
+
+    /**
+     * create a random id for a new {@link HDFSBlob}, placed according to the
+     * store's {@link HDFSShardLayout}
+     * 
+     * @return the new id
+     */
+    URI createBlobId() {
+        String name = UUID.randomUUID().toString();
+        return URI.create(store.getId().toASCIIString() + store.getShardLayout().getShardPath(name) + name);
     }
 
     /**
@@ -148,7 +259,7 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
     FileSystem getFileSystem() throws IOException {
         // lazy init for testability
         if (hdfs == null) {
-            hdfs = store.getFilesystem();
+            hdfs = store.acquireFilesystem();
             log.debug("opened new hdfs connection to " + store.getId());
         }
         return hdfs;
@@ -165,27 +276,478 @@ class HDFSBlobStoreConnection implements BlobStoreConnection {
 
     /**
      * create a new {@link HDFSIdIterator} over all the {@link HDFSBlob}s in the
-     * {@link HDFSBlobStore}
+     * {@link HDFSBlobStore}. If the store is configured with listing threads
+     * a {@link HDFSParallelIdIterator} is returned instead, which is closed
+     * together with this connection.
      * 
+     * @param filterPrefix
+     *            the prefix of the ids to list, as produced by
+     *            {@link HDFSIdMapper#getInternalPrefix(String)}. Only the
+     *            directories which may contain matching ids are listed
      * @return an {@link Iterator} for the collection of filesystem entries
      * @throws IOException
      *             if the operation did not succeed
      */
     public Iterator<URI> listBlobIds(final String filterPrefix) throws IOException {
-        if (isClosed()){
+        HDFSOperationTimer timer = HDFSOperationTimer.start(store.getMetricsRegistry(), HDFSMetricsRegistry.LIST_BLOB_IDS);
+        try {
+            if (isClosed()){
+                throw new IllegalStateException("Connection to hdfs is closed");
+            }
+            settleDeferredBackups();
+            HDFSPackStore packs = store.getPackStore();
+            HDFSContentStore content = store.getContentStore();
+            Iterator<URI> packed = packs == null ? null : packs.ids();
+            if (content != null) {
+                packed = packed == null ? content.ids() : concat(packed, content.ids());
+            }
+            // list the store's own directory, not the whole filesystem
+            Path root = new Path(store.getId());
+            HDFSShardLayout layout = store.getShardLayout();
+            Iterator<URI> ids;
+            if (store.getListingThreads() > 0) {
+                HDFSParallelIdIterator it = new HDFSParallelIdIterator(this.getFileSystem(), root, filterPrefix, layout, packed,
+                        store.getListingThreads(), store.getListingQueueSize());
+                listings.add(it);
+                ids = it;
+            } else {
+                ids = new HDFSIdIterator(this.getFileSystem(), root, filterPrefix, layout, packed);
+            }
+            if (transaction != null) {
+                return transaction.ids(ids, new HDFSIdPrefixFilter(root, filterPrefix, layout));
+            }
+            return ids;
+        } finally {
+            HDFSOperationTimer.stop(timer);
+        }
+    }
+
+    private static Iterator<URI> concat(final Iterator<URI> first, final Iterator<URI> second) {
+        return new Iterator<URI>() {
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            public URI next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("remove is not implemented");
+            }
+        };
+    }
+
+    /**
+     * check if moves of blobs to their backups are deferred, which needs the
+     * overwriting rename looked up once when this connection was created. If
+     * the filesystem has none, blobs are moved to their backups right away.
+     * 
+     * @return true if moves to backups are deferred, see
+     *         {@link HDFSBlobStore#setAtomicReplace(boolean)}
+     */
+    boolean isDeferringBackups() {
+        return atomicReplaceSupported && store.isAtomicReplace();
+    }
+
+    /**
+     * defer the move of a blob to its backup, see
+     * {@link HDFSBlobStore#setAtomicReplace(boolean)}
+     * 
+     * @param blob
+     *            the id of the blob
+     * @param backup
+     *            the id of the backup
+     */
+    void deferBackup(final URI blob, final URI backup) {
+        synchronized (deferredBackups) {
+            URI previous = deferredBackups.put(backup, blob);
+            if (previous != null) {
+                deferredBlobs.remove(previous);
+            }
+            deferredBlobs.put(blob, backup);
+            replacedBackups.remove(backup);
+        }
+    }
+
+    /**
+     * get the backup of a blob whose move is deferred
+     * 
+     * @param blob
+     *            the id of the blob
+     * @return the id of the backup or null if no move of the blob is deferred
+     */
+    URI getDeferredBackup(final URI blob) {
+        synchronized (deferredBackups) {
+            return deferredBlobs.get(blob);
+        }
+    }
+
+    /**
+     * take the deferred move of a blob or of its backup, which the caller
+     * has to carry out
+     * 
+     * @param id
+     *            the id of the blob or of the backup
+     * @return the ids of the blob and the backup or null if no move is
+     *         deferred
+     */
+    URI[] takeDeferredBackup(final URI id) {
+        synchronized (deferredBackups) {
+            if (deferredBackups.isEmpty()) {
+                return null;
+            }
+            URI backup = deferredBackups.containsKey(id) ? id : deferredBlobs.get(id);
+            if (backup == null) {
+                return null;
+            }
+            URI blob = deferredBackups.remove(backup);
+            deferredBlobs.remove(blob);
+            return new URI[] { blob, backup };
+        }
+    }
+
+    /**
+     * record that a blob with a deferred backup has been replaced, which
+     * leaves nothing to move
+     * 
+     * @param backup
+     *            the id of the backup
+     */
+    void backupReplaced(final URI backup) {
+        synchronized (deferredBackups) {
+            URI blob = deferredBackups.remove(backup);
+            if (blob != null) {
+                deferredBlobs.remove(blob);
+            }
+            replacedBackups.add(backup);
+        }
+    }
+
+    /**
+     * forget a backup whose blob has been replaced
+     * 
+     * @param backup
+     *            the id of the backup
+     * @return true if the blob of the backup has been replaced
+     */
+    boolean takeReplacedBackup(final URI backup) {
+        synchronized (deferredBackups) {
+            return !replacedBackups.isEmpty() && replacedBackups.remove(backup);
+        }
+    }
+
+    /*
+     * carry out all deferred moves, e.g. before a listing which would
+     * otherwise see the blobs under their old ids
+     */
+    private void settleDeferredBackups() throws IOException {
+        List<URI> blobs;
+        synchronized (deferredBackups) {
+            replacedBackups.clear();
+            if (deferredBackups.isEmpty()) {
+                return;
+            }
+            blobs = new ArrayList<URI>(deferredBackups.values());
+        }
+        for (URI blob : blobs) {
+            new HDFSBlob(blob, this).settle();
+        }
+    }
+
+    /**
+     * remember an output stream opened through this connection, so that it
+     * is covered by {@link #sync()}
+     * 
+     * @param out
+     *            the stream of a blob
+     * @return the stream
+     */
+    HDFSBlobOutputStream track(final HDFSBlobOutputStream out) {
+        streams.add(out);
+        return out;
+    }
+
+    /**
+     * make the content written to all open output streams of this
+     * connection durable, as configured by
+     * {@link HDFSBlobStore#setSyncDurability(HDFSDurability)}. The streams
+     * are synced in parallel, so a batch of blobs pays for the round trip to
+     * the datanodes about once.
+     * 
+     * @throws IOException
+     *             if a stream could not be synced
+     */
+    public void sync() throws IOException {
+        if (isClosed()) {
             throw new IllegalStateException("Connection to hdfs is closed");
         }
-        return new HDFSIdIterator(this.getFileSystem(), filterPrefix);
+        List<HDFSBlobOutputStream> open = new ArrayList<HDFSBlobOutputStream>();
+        synchronized (streams) {
+            for (Iterator<HDFSBlobOutputStream> it = streams.iterator(); it.hasNext();) {
+                HDFSBlobOutputStream out = it.next();
+                if (out.isClosed()) {
+                    it.remove();
+                } else {
+                    open.add(out);
+                }
+            }
+        }
+        final HDFSDurability durability = store.getSyncDurability();
+        if (open.size() == 1) {
+            open.get(0).sync(durability);
+            return;
+        }
+        List<Future<Void>> syncs = new ArrayList<Future<Void>>(open.size());
+        ExecutorService executor = store.getSyncExecutor();
+        for (final HDFSBlobOutputStream out : open) {
+            syncs.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    out.sync(durability);
+                    return null;
+                }
+            }));
+        }
+        awaitAll(syncs, "sync");
+        log.debug("synced " + open.size() + " streams");
     }
 
     /**
-     * This is not implemented. Throws an exception when used!
+     * check which blobs exist, see {@link #getSizes(Collection)}
      * 
-     * @throws UnsupportedOperationException
-     *             always!
+     * @param ids
+     *            the ids of the blobs
+     * @return every id mapped to true if the blob exists
+     * @throws IOException
+     *             if a lookup failed
      */
-    public void sync() throws UnsupportedOperationException {
-        throw new UnsupportedOperationException("not yet implemented");
+    public Map<URI, Boolean> exists(final Collection<URI> ids) throws IOException {
+        Map<URI, Long> sizes = getSizes(ids);
+        Map<URI, Boolean> result = new LinkedHashMap<URI, Boolean>();
+        for (URI id : ids) {
+            result.put(id, sizes.containsKey(id));
+        }
+        return result;
     }
 
+    /**
+     * get the sizes of blobs. Packed, deduplicated and cached blobs are
+     * answered without asking the namenode. The files of the other blobs are
+     * grouped by directory: a directory holding at least
+     * {@link HDFSBlobStore#getBulkListThreshold()} of them is listed once, the
+     * remaining files are looked up one by one. All lookups run in parallel
+     * and their results are added to the status cache.
+     * 
+     * @param ids
+     *            the ids of the blobs
+     * @return the ids of the existing blobs mapped to their sizes
+     * @throws IOException
+     *             if a lookup failed
+     */
+    public Map<URI, Long> getSizes(final Collection<URI> ids) throws IOException {
+        if (isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+        settleDeferredBackups();
+        Map<URI, Long> sizes = new LinkedHashMap<URI, Long>();
+        if (transaction != null) {
+            // the transaction's view is resolved blob by blob
+            for (URI id : ids) {
+                Blob blob = getBlob(id, null);
+                if (blob.exists()) {
+                    sizes.put(id, blob.getSize());
+                }
+            }
+            return sizes;
+        }
+        HDFSContentStore content = store.getContentStore();
+        HDFSPackStore packs = store.getPackStore();
+        HDFSStatusCache statusCache = store.getStatusCache();
+        HDFSMetadataStore metadata = store.getMetadataStore();
+        Map<Path, List<URI>> dirs = new HashMap<Path, List<URI>>();
+        Map<URI, Long> generations = new HashMap<URI, Long>();
+        List<URI> compressed = new ArrayList<URI>();
+        for (URI id : ids) {
+            checkId(id);
+            HDFSContentStore.Reference ref = content == null ? null : content.get(id);
+            if (ref != null) {
+                sizes.put(id, ref.size);
+                continue;
+            }
+            if (metadata != null && metadata.getCompressed(id) != null) {
+                compressed.add(id);
+            }
+            long packed = packs == null ? -1 : packs.getSize(id);
+            if (packed > -1) {
+                sizes.put(id, packed);
+                continue;
+            }
+            FileStatus status = statusCache == null ? null : statusCache.get(id);
+            if (status != null) {
+                if (status != HDFSStatusCache.MISSING) {
+                    sizes.put(id, status.getLen());
+                }
+                continue;
+            }
+            if (statusCache != null) {
+                generations.put(id, statusCache.getGeneration(id));
+            }
+            Path parent = new Path(id.toASCIIString()).getParent();
+            List<URI> group = dirs.get(parent);
+            if (group == null) {
+                group = new ArrayList<URI>();
+                dirs.put(parent, group);
+            }
+            group.add(id);
+        }
+        ExecutorService executor = store.getBulkExecutor();
+        int threshold = store.getBulkListThreshold();
+        List<Future<Map<URI, FileStatus>>> lookups = new ArrayList<Future<Map<URI, FileStatus>>>();
+        for (Map.Entry<Path, List<URI>> group : dirs.entrySet()) {
+            if (group.getValue().size() >= threshold) {
+                lookups.add(executor.submit(new DirectoryLookup(group.getKey(), group.getValue())));
+            } else {
+                for (URI id : group.getValue()) {
+                    lookups.add(executor.submit(new FileLookup(id)));
+                }
+            }
+        }
+        for (Map<URI, FileStatus> found : awaitAll(lookups, "look up")) {
+            for (Map.Entry<URI, FileStatus> e : found.entrySet()) {
+                if (statusCache != null) {
+                    statusCache.fill(e.getKey(), e.getValue(), generations.get(e.getKey()));
+                }
+                if (e.getValue() != HDFSStatusCache.MISSING) {
+                    sizes.put(e.getKey(), e.getValue().getLen());
+                }
+            }
+        }
+        for (URI id : compressed) {
+            Long stored = sizes.get(id);
+            if (stored != null) {
+                sizes.put(id, new HDFSBlob(id, this).uncompressedSize(stored));
+            }
+        }
+        log.debug("looked up " + ids.size() + " blobs with " + lookups.size() + " requests");
+        return sizes;
+    }
+
+    /**
+     * delete blobs in parallel
+     * 
+     * @param ids
+     *            the ids of the blobs
+     * @throws IOException
+     *             if a blob could not be deleted. The other blobs are deleted
+     *             nevertheless
+     */
+    public void delete(final Collection<URI> ids) throws IOException {
+        if (isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+        List<Future<Void>> deletes = new ArrayList<Future<Void>>(ids.size());
+        ExecutorService executor = store.getBulkExecutor();
+        for (URI id : ids) {
+            checkId(id);
+            final Blob blob = newBlob(id, null);
+            if (transaction != null) {
+                // only recorded until the transaction commits
+                blob.delete();
+                continue;
+            }
+            deletes.add(executor.submit(new Callable<Void>() {
+                public Void call() throws IOException {
+                    blob.delete();
+                    return null;
+                }
+            }));
+        }
+        awaitAll(deletes, "delete");
+    }
+
+    private static void checkId(final URI id) throws UnsupportedIdException {
+        if (!id.toASCIIString().startsWith("hdfs:")) {
+            throw new UnsupportedIdException(id, "HDFS URIs have to start with 'hdfs:'");
+        }
+    }
+
+    /*
+     * wait for all tasks and throw the first failure once all have finished
+     */
+    private static <T> List<T> awaitAll(final List<Future<T>> tasks, final String action) throws IOException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        IOException failure = null;
+        for (Future<T> task : tasks) {
+            try {
+                results.add(task.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting to " + action);
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException("unable to " + action
+                            + ": " + e.getCause());
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return results;
+    }
+
+    /*
+     * looks up the files of a single blob
+     */
+    private class FileLookup implements Callable<Map<URI, FileStatus>> {
+        private final URI id;
+
+        private FileLookup(final URI id) {
+            this.id = id;
+        }
+
+        public Map<URI, FileStatus> call() throws IOException {
+            FileStatus status;
+            try {
+                status = getFileSystem().getFileStatus(new Path(id.toASCIIString()));
+            } catch (FileNotFoundException e) {
+                status = HDFSStatusCache.MISSING;
+            }
+            return Collections.singletonMap(id, status);
+        }
+    }
+
+    /*
+     * looks up the files of many blobs in the same directory with one listing
+     */
+    private class DirectoryLookup implements Callable<Map<URI, FileStatus>> {
+        private final Path dir;
+        private final List<URI> ids;
+
+        private DirectoryLookup(final Path dir, final List<URI> ids) {
+            this.dir = dir;
+            this.ids = ids;
+        }
+
+        public Map<URI, FileStatus> call() throws IOException {
+            Map<String, FileStatus> listed = new HashMap<String, FileStatus>();
+            FileStatus[] children;
+            try {
+                children = getFileSystem().listStatus(dir);
+            } catch (FileNotFoundException e) {
+                children = null;
+            }
+            if (children != null) {
+                for (FileStatus child : children) {
+                    listed.put(child.getPath().getName(), child);
+                }
+            }
+            Map<URI, FileStatus> found = new HashMap<URI, FileStatus>();
+            for (URI id : ids) {
+                FileStatus status = listed.get(new Path(id.toASCIIString()).getName());
+                found.put(id, status == null ? HDFSStatusCache.MISSING : status);
+            }
+            return found;
+        }
+    }
 }
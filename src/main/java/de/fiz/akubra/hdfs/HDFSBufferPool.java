@@ -0,0 +1,94 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A bounded pool of large copy buffers shared by the connections of a
+ * {@link HDFSBlobStore}, so that ingesting a blob writes to the Hadoop stream
+ * in large chunks without allocating a new buffer every time. When all pooled
+ * buffers are in use a temporary one is allocated.
+ *
+ */
+class HDFSBufferPool {
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+
+    /**
+     * create a new {@link HDFSBufferPool}
+     *
+     * @param bufferSize
+     *            the size of a buffer in bytes
+     * @param maxBuffers
+     *            the maximum number of buffers kept in the pool
+     */
+    HDFSBufferPool(final int bufferSize, final int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.buffers = new ArrayBlockingQueue<byte[]>(Math.max(1, maxBuffers));
+    }
+
+    /**
+     * take a buffer from the pool
+     *
+     * @return a pooled buffer or a new one if the pool is empty
+     */
+    byte[] acquire() {
+        byte[] buf = buffers.poll();
+        return buf == null ? new byte[bufferSize] : buf;
+    }
+
+    /**
+     * return a buffer to the pool. It is dropped if the pool is full.
+     *
+     * @param buf
+     *            the buffer taken by {@link #acquire()}
+     */
+    void release(final byte[] buf) {
+        buffers.offer(buf);
+    }
+
+    /**
+     * copy a stream using a pooled buffer
+     *
+     * @param in
+     *            the stream to read
+     * @param out
+     *            the stream to write
+     * @return the number of bytes copied
+     * @throws IOException
+     *             if a stream could not be read or written
+     */
+    long copy(final InputStream in, final OutputStream out) throws IOException {
+        byte[] buf = acquire();
+        try {
+            long count = 0;
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+                count += n;
+            }
+            return count;
+        } finally {
+            release(buf);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Collection;
+import java.util.Map;
+
+import org.akubraproject.BlobStoreConnection;
+
+/**
+ * A {@link BlobStoreConnection} which looks up or deletes many blobs with one
+ * call. Blobs sharing a directory are looked up with a single listing of the
+ * directory, the others are looked up in parallel.
+ *
+ */
+public interface HDFSBulkConnection extends BlobStoreConnection {
+
+    /**
+     * check which blobs exist
+     *
+     * @param ids
+     *            the ids of the blobs
+     * @return every id mapped to true if the blob exists
+     * @throws IOException
+     *             if a lookup failed
+     */
+    Map<URI, Boolean> exists(Collection<URI> ids) throws IOException;
+
+    /**
+     * get the sizes of blobs
+     *
+     * @param ids
+     *            the ids of the blobs
+     * @return the ids of the existing blobs mapped to their sizes; missing
+     *         blobs are left out
+     * @throws IOException
+     *             if a lookup failed
+     */
+    Map<URI, Long> getSizes(Collection<URI> ids) throws IOException;
+
+    /**
+     * delete blobs. Missing blobs are ignored.
+     *
+     * @param ids
+     *            the ids of the blobs
+     * @throws IOException
+     *             if a blob could not be deleted. The other blobs are deleted
+     *             nevertheless
+     */
+    void delete(Collection<URI> ids) throws IOException;
+}
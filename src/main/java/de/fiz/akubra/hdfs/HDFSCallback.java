@@ -0,0 +1,44 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+/**
+ * Notified when an operation of the {@link HDFSAsyncBlobStore} has finished.
+ * The methods are called by the thread which ran the operation, so they
+ * should not block.
+ *
+ * @param <T>
+ *            the type of the operation's result
+ */
+public interface HDFSCallback<T> {
+
+    /**
+     * called when the operation has succeeded
+     *
+     * @param result
+     *            the result of the operation
+     */
+    void completed(T result);
+
+    /**
+     * called when the operation has failed
+     *
+     * @param cause
+     *            the exception thrown by the operation
+     */
+    void failed(Exception cause);
+}
@@ -0,0 +1,268 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * An {@link OutputStream} which compresses a blob's content with the codec of
+ * its {@link HDFSCreatePolicy}. The first {@link #SAMPLE_SIZE} bytes are kept
+ * in memory and deflated at the fastest level as a probe. Content which
+ * does not shrink below {@link #MAX_RATIO} of its size, like images or
+ * archives, is stored as written, so that neither writing nor reading it pays
+ * for the codec. Compressed content is framed by the header and trailer of
+ * {@link HDFSCompression}.
+ *
+ */
+class HDFSCompressingOutputStream extends OutputStream {
+    /**
+     * the number of bytes the compressibility of the content is probed with
+     */
+    static final int SAMPLE_SIZE = 64 * 1024;
+    /**
+     * the largest ratio of compressed to original size of the sample at
+     * which the content is compressed
+     */
+    static final double MAX_RATIO = 0.9;
+
+    private final OutputStream target;
+    private HDFSCompression compression;
+    private byte[] sample;
+    private int sampled = 0;
+    private OutputStream out;
+    private long size = 0;
+    private long stored = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+
+    /**
+     * create a new {@link HDFSCompressingOutputStream}
+     *
+     * @param target
+     *            the stream the stored content is written to
+     * @param compression
+     *            the codec the content should be compressed with
+     * @param estimatedSize
+     *            the expected size of the content, which sizes the sample
+     *            buffer of small blobs
+     */
+    HDFSCompressingOutputStream(final OutputStream target, final HDFSCompression compression, final long estimatedSize) {
+        this.target = target;
+        this.compression = compression;
+        if (compression == HDFSCompression.NONE) {
+            out = target;
+        } else {
+            sample = new byte[(int) Math.max(1024, Math.min(SAMPLE_SIZE, estimatedSize))];
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        if (finished) {
+            throw new IOException("stream is closed");
+        }
+        size++;
+        if (out == null) {
+            if (sampled < SAMPLE_SIZE) {
+                ensureCapacity(1);
+                sample[sampled++] = (byte) b;
+                return;
+            }
+            decide();
+        }
+        out.write(b);
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        if (finished) {
+            throw new IOException("stream is closed");
+        }
+        size += len;
+        int pos = off;
+        int remaining = len;
+        if (out == null) {
+            int n = Math.min(remaining, SAMPLE_SIZE - sampled);
+            ensureCapacity(n);
+            System.arraycopy(b, pos, sample, sampled, n);
+            sampled += n;
+            pos += n;
+            remaining -= n;
+            if (sampled < SAMPLE_SIZE) {
+                return;
+            }
+            decide();
+        }
+        if (remaining > 0) {
+            out.write(b, pos, remaining);
+        }
+    }
+
+    /**
+     * flush the content written so far unless it is still probed
+     */
+    @Override
+    public void flush() throws IOException {
+        if (out != null) {
+            out.flush();
+        }
+    }
+
+    /**
+     * write the rest of the content and the trailer of compressed content,
+     * leaving the underlying stream open
+     *
+     * @throws IOException
+     *             if the content could not be written
+     */
+    void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (out == null) {
+            decide();
+        }
+        if (compression != HDFSCompression.NONE) {
+            // the codec closes the counting stream only
+            out.close();
+            HDFSCompression.writeTrailer(target, size);
+            stored += HDFSCompression.TRAILER_LENGTH;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            finish();
+        } finally {
+            closed = true;
+            target.close();
+        }
+    }
+
+    /**
+     * get the codec the content has been stored with, which is
+     * {@link HDFSCompression#NONE} for incompressible content. It is known
+     * once the probe has been taken, at the latest when the stream is closed.
+     *
+     * @return the {@link HDFSCompression} of the stored content
+     */
+    HDFSCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * get the number of bytes stored for compressed content, including its
+     * header and trailer. It is known once the stream has been finished.
+     *
+     * @return the stored size
+     */
+    long getStoredSize() {
+        return stored;
+    }
+
+    /**
+     * get the stream the stored content is written to
+     *
+     * @return the underlying stream
+     */
+    OutputStream getTarget() {
+        return target;
+    }
+
+    /*
+     * grow the sample buffer of content exceeding its estimated size
+     */
+    private void ensureCapacity(final int len) {
+        if (sampled + len > sample.length) {
+            byte[] grown = new byte[Math.min(SAMPLE_SIZE, Math.max(sampled + len, sample.length * 2))];
+            System.arraycopy(sample, 0, grown, 0, sampled);
+            sample = grown;
+        }
+    }
+
+    /*
+     * probe the sample and write it through the chosen codec
+     */
+    private void decide() throws IOException {
+        if (!compressible(sample, sampled)) {
+            compression = HDFSCompression.NONE;
+            out = target;
+        } else {
+            compression.writeHeader(target);
+            stored = HDFSCompression.HEADER_LENGTH;
+            out = compression.compress(new FilterOutputStream(target) {
+                @Override
+                public void write(final byte[] b, final int off, final int len) throws IOException {
+                    out.write(b, off, len);
+                    stored += len;
+                }
+
+                @Override
+                public void write(final int b) throws IOException {
+                    out.write(b);
+                    stored++;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush();
+                }
+            });
+        }
+        out.write(sample, 0, sampled);
+        sample = null;
+    }
+
+    /**
+     * check if content shrinks enough when it is compressed
+     *
+     * @param data
+     *            the content
+     * @param length
+     *            the number of bytes of the content
+     * @return true if the content should be compressed
+     */
+    static boolean compressible(final byte[] data, final int length) {
+        if (length == 0) {
+            return false;
+        }
+        long limit = (long) (length * MAX_RATIO);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] buf = new byte[4096];
+            while (!deflater.finished()) {
+                deflater.deflate(buf);
+                if (deflater.getTotalOut() > limit) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            deflater.end();
+        }
+    }
+}
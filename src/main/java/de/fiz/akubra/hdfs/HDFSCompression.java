@@ -0,0 +1,259 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.io.compress.BZip2Codec;
+
+/**
+ * The codec the content of a blob is compressed with, chosen by the
+ * {@link HDFSCreatePolicy} of the blob. All codecs are implemented in Java, so
+ * they need no native Hadoop libraries.
+ * <p>
+ * Compressed content describes itself: it starts with a header holding
+ * {@link #MAGIC} and the ordinal of its codec, and ends with a trailer holding
+ * its uncompressed size followed by {@link #MAGIC} again. Content stored as
+ * written has neither, so it can be read without its metadata record. New
+ * codecs are added last, since their ordinal is stored.
+ *
+ */
+public enum HDFSCompression {
+    /**
+     * the content is stored as written
+     */
+    NONE,
+    /**
+     * deflate at its fastest level, for hot content which is read and written
+     * often
+     */
+    DEFLATE_FAST,
+    /**
+     * deflate at its default level
+     */
+    DEFLATE,
+    /**
+     * bzip2, which compresses text considerably better than deflate at a
+     * fraction of its speed, for cold content
+     */
+    BZIP2;
+
+    /**
+     * the magic number framing compressed content
+     */
+    static final int MAGIC = 0x414b5a43;
+    /**
+     * the number of bytes preceding the compressed content
+     */
+    static final int HEADER_LENGTH = 5;
+    /**
+     * the number of bytes following the compressed content
+     */
+    static final int TRAILER_LENGTH = 12;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * write the header of content compressed with this codec
+     *
+     * @param out
+     *            the stream the content is written to
+     * @throws IOException
+     *             if the header could not be written
+     */
+    void writeHeader(final OutputStream out) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeInt(MAGIC);
+        data.writeByte(ordinal());
+        data.flush();
+    }
+
+    /**
+     * write the trailer of compressed content
+     *
+     * @param out
+     *            the stream the content is written to
+     * @param size
+     *            the uncompressed size of the content
+     * @throws IOException
+     *             if the trailer could not be written
+     */
+    static void writeTrailer(final OutputStream out, final long size) throws IOException {
+        DataOutputStream data = new DataOutputStream(out);
+        data.writeLong(size);
+        data.writeInt(MAGIC);
+        data.flush();
+    }
+
+    /**
+     * get the codec named by a header
+     *
+     * @param header
+     *            the first {@link #HEADER_LENGTH} bytes of the content
+     * @return the {@link HDFSCompression} or null if the content is stored as
+     *         written
+     */
+    static HDFSCompression fromHeader(final byte[] header) {
+        if (header.length < HEADER_LENGTH || readInt(header, 0) != MAGIC) {
+            return null;
+        }
+        int codec = header[4];
+        HDFSCompression[] codecs = values();
+        return codec > 0 && codec < codecs.length ? codecs[codec] : null;
+    }
+
+    /**
+     * get the uncompressed size held by a trailer
+     *
+     * @param trailer
+     *            the last {@link #TRAILER_LENGTH} bytes of the content
+     * @return the uncompressed size or -1 if the bytes are no trailer
+     */
+    static long fromTrailer(final byte[] trailer) {
+        if (trailer.length < TRAILER_LENGTH || readInt(trailer, 8) != MAGIC) {
+            return -1;
+        }
+        return ((long) readInt(trailer, 0) << 32) | (readInt(trailer, 4) & 0xffffffffL);
+    }
+
+    /**
+     * open a stream on stored content, decompressing it if it starts with a
+     * header. Closing it closes the underlying stream.
+     *
+     * @param in
+     *            the stream the stored content is read from
+     * @return the content as it was written
+     * @throws IOException
+     *             if the header could not be read
+     */
+    static InputStream open(final InputStream in) throws IOException {
+        PushbackInputStream pushback = new PushbackInputStream(in, HEADER_LENGTH);
+        try {
+            byte[] header = new byte[HEADER_LENGTH];
+            int count = 0;
+            while (count < header.length) {
+                int n = pushback.read(header, count, header.length - count);
+                if (n < 0) {
+                    break;
+                }
+                count += n;
+            }
+            HDFSCompression codec = count == header.length ? fromHeader(header) : null;
+            if (codec == null) {
+                pushback.unread(header, 0, count);
+                return pushback;
+            }
+            // the codec stops at the end of its stream, before the trailer
+            return codec.decompress(pushback);
+        } catch (IOException e) {
+            pushback.close();
+            throw e;
+        }
+    }
+
+    /**
+     * open a stream compressing the content written to it. Closing it closes
+     * the underlying stream.
+     *
+     * @param out
+     *            the stream the compressed content is written to
+     * @return the compressing stream
+     * @throws IOException
+     *             if the stream could not be opened
+     */
+    OutputStream compress(final OutputStream out) throws IOException {
+        switch (this) {
+        case DEFLATE_FAST:
+            return deflate(out, Deflater.BEST_SPEED);
+        case DEFLATE:
+            return deflate(out, Deflater.DEFAULT_COMPRESSION);
+        case BZIP2:
+            return new BZip2Codec().createOutputStream(out);
+        default:
+            return out;
+        }
+    }
+
+    /**
+     * open a stream decompressing the content read from it. Closing it closes
+     * the underlying stream.
+     *
+     * @param in
+     *            the stream the compressed content is read from
+     * @return the decompressing stream
+     * @throws IOException
+     *             if the stream could not be opened
+     */
+    InputStream decompress(final InputStream in) throws IOException {
+        switch (this) {
+        case DEFLATE_FAST:
+        case DEFLATE:
+            return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+                private boolean closed = false;
+
+                @Override
+                public void close() throws IOException {
+                    if (!closed) {
+                        closed = true;
+                        inf.end();
+                        super.close();
+                    }
+                }
+            };
+        case BZIP2:
+            return new BZip2Codec().createInputStream(in);
+        default:
+            return in;
+        }
+    }
+
+    private static int readInt(final byte[] b, final int off) {
+        return ((b[off] & 0xff) << 24) | ((b[off + 1] & 0xff) << 16) | ((b[off + 2] & 0xff) << 8) | (b[off + 3] & 0xff);
+    }
+
+    /*
+     * the native memory of the Deflater is freed when the stream is finished,
+     * rather than when the Deflater is garbage collected
+     */
+    private static OutputStream deflate(final OutputStream out, final int level) {
+        return new DeflaterOutputStream(out, new Deflater(level), BUFFER_SIZE) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    finish();
+                } finally {
+                    def.end();
+                    out.close();
+                }
+            }
+        };
+    }
+}
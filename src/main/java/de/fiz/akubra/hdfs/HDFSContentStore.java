@@ -0,0 +1,398 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.UUID;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores every distinct content only once, as a Hadoop file named by its
+ * digest. A blob is a small reference record in a {@link HDFSPackStore}
+ * pointing to its content, and a reference count per content, kept in the
+ * same pack store, decides when the content file is deleted.
+ * <p>
+ * The count is raised before a reference is written and lowered after it has
+ * been removed, so an interrupted operation may leave an unreferenced content
+ * file behind but never a reference to a missing one. New content is uploaded
+ * to a temporary file beside its final path and renamed into place, so that
+ * an upload does not block other writers while it runs.
+ *
+ */
+class HDFSContentStore {
+    private static final Logger log = LoggerFactory.getLogger(HDFSContentStore.class);
+    private static final String COUNT_PREFIX = "content:";
+    private static final int LOCK_STRIPES = 64;
+    private static final String UPLOAD_SUFFIX = ".upload";
+
+    private final FileSystem hdfs;
+    private final Path root;
+    private final HDFSPackStore refs;
+    private final String algorithm;
+    private final HDFSBufferPool bufferPool;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+    private final Object[] referenceLocks = new Object[LOCK_STRIPES];
+
+    /**
+     * The content a blob refers to
+     */
+    static class Reference {
+        final String algorithm;
+        final String digest;
+        final long size;
+
+        Reference(final String algorithm, final String digest, final long size) {
+            this.algorithm = algorithm;
+            this.digest = digest;
+            this.size = size;
+        }
+    }
+
+    /**
+     * create a new {@link HDFSContentStore}
+     *
+     * @param hdfs
+     *            the {@link FileSystem} holding the content files
+     * @param root
+     *            the directory of the content files
+     * @param refs
+     *            the opened {@link HDFSPackStore} holding references and
+     *            counts
+     * @param algorithm
+     *            the {@link java.security.MessageDigest} algorithm naming new
+     *            content
+     * @param bufferPool
+     *            the {@link HDFSBufferPool} used to upload new content
+     */
+    HDFSContentStore(final FileSystem hdfs, final Path root, final HDFSPackStore refs, final String algorithm, final HDFSBufferPool bufferPool) {
+        this.hdfs = hdfs;
+        this.root = root;
+        this.refs = refs;
+        this.algorithm = algorithm;
+        this.bufferPool = bufferPool;
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new Object();
+            referenceLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * get the algorithm of the digests naming new content
+     *
+     * @return the name of the {@link java.security.MessageDigest} algorithm
+     */
+    String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * check if a blob refers to stored content
+     *
+     * @param uri
+     *            the blob's id
+     * @return true if the blob is stored in this content store
+     */
+    boolean contains(final URI uri) {
+        return refs.contains(uri);
+    }
+
+    /**
+     * get the content a blob refers to
+     *
+     * @param uri
+     *            the blob's id
+     * @return the {@link Reference} or null if the blob is not stored here
+     * @throws IOException
+     *             if the reference could not be read
+     */
+    Reference get(final URI uri) throws IOException {
+        InputStream in = refs.open(uri);
+        if (in == null) {
+            return null;
+        }
+        DataInputStream data = new DataInputStream(in);
+        try {
+            return new Reference(data.readUTF(), data.readUTF(), data.readLong());
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * open the content a blob refers to
+     *
+     * @param uri
+     *            the blob's id
+     * @return an {@link InputStream} or null if the blob is not stored here
+     * @throws IOException
+     *             if the content could not be opened
+     */
+    FSDataInputStream open(final URI uri) throws IOException {
+        Reference ref = get(uri);
+        return ref == null ? null : hdfs.open(contentPath(ref.algorithm, ref.digest));
+    }
+
+    /**
+     * let a blob refer to content, uploading the content only if it is not
+     * stored yet. The blob's previous content is released; reading and
+     * replacing the previous reference is atomic, so that concurrent writers
+     * of the same blob each release exactly the content they replaced.
+     *
+     * @param uri
+     *            the blob's id
+     * @param digest
+     *            the hex encoded digest of the content
+     * @param size
+     *            the size of the content in bytes
+     * @param content
+     *            the content, which is only read if it is new
+     * @param policy
+     *            the {@link HDFSCreatePolicy} of a new content file or null
+     * @throws IOException
+     *             if the content or the reference could not be written
+     */
+    void add(final URI uri, final String digest, final long size, final InputStream content, final HDFSCreatePolicy policy)
+            throws IOException {
+        boolean stored;
+        synchronized (lock(locks, digest)) {
+            long count = getCount(algorithm, digest);
+            stored = count > 0;
+            if (stored) {
+                putCount(algorithm, digest, count + 1);
+            }
+        }
+        if (!stored) {
+            store(digest, content, policy);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeUTF(algorithm);
+        data.writeUTF(digest);
+        data.writeLong(size);
+        data.close();
+        Reference old;
+        synchronized (lock(referenceLocks, uri.toASCIIString())) {
+            old = get(uri);
+            refs.put(uri, bytes.toByteArray());
+        }
+        if (old != null) {
+            release(old);
+        }
+    }
+
+    /**
+     * remove a blob's reference and delete its content if it was the last
+     * reference
+     *
+     * @param uri
+     *            the blob's id
+     * @return true if the blob was stored here and has been deleted
+     * @throws IOException
+     *             if the reference could not be removed
+     */
+    boolean delete(final URI uri) throws IOException {
+        Reference ref;
+        synchronized (lock(referenceLocks, uri.toASCIIString())) {
+            ref = get(uri);
+            if (ref == null || !refs.delete(uri)) {
+                return false;
+            }
+        }
+        release(ref);
+        return true;
+    }
+
+    /**
+     * move a blob's reference to a new id without touching the content
+     *
+     * @param from
+     *            the current id
+     * @param to
+     *            the new id
+     * @return true if the blob was stored here and has been moved
+     * @throws IOException
+     *             if the reference could not be moved
+     */
+    boolean move(final URI from, final URI to) throws IOException {
+        return refs.move(from, to);
+    }
+
+    /**
+     * get an {@link Iterator} over the ids of all blobs stored here
+     *
+     * @return the ids of the blobs
+     */
+    Iterator<URI> ids() {
+        final Iterator<URI> keys = refs.ids();
+        return new Iterator<URI>() {
+            private URI next;
+
+            public boolean hasNext() {
+                while (next == null && keys.hasNext()) {
+                    URI key = keys.next();
+                    if (!key.toASCIIString().startsWith(COUNT_PREFIX)) {
+                        next = key;
+                    }
+                }
+                return next != null;
+            }
+
+            public URI next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                URI result = next;
+                next = null;
+                return result;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("remove is not implemented");
+            }
+        };
+    }
+
+    /**
+     * get the number of blobs referring to a content
+     *
+     * @param algorithm
+     *            the algorithm of the digest
+     * @param digest
+     *            the hex encoded digest of the content
+     * @return the number of references
+     * @throws IOException
+     *             if the count could not be read
+     */
+    long getCount(final String algorithm, final String digest) throws IOException {
+        InputStream in = refs.open(countKey(algorithm, digest));
+        if (in == null) {
+            return 0;
+        }
+        DataInputStream data = new DataInputStream(in);
+        try {
+            return data.readLong();
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * get the {@link HDFSPackStore} holding references and counts
+     *
+     * @return the records
+     */
+    HDFSPackStore getRecords() {
+        return refs;
+    }
+
+    /**
+     * close the underlying {@link HDFSPackStore}
+     *
+     * @throws IOException
+     *             if the references could not be closed
+     */
+    void close() throws IOException {
+        refs.close();
+    }
+
+    private void release(final Reference ref) throws IOException {
+        synchronized (lock(locks, ref.digest)) {
+            long count = getCount(ref.algorithm, ref.digest) - 1;
+            if (count > 0) {
+                putCount(ref.algorithm, ref.digest, count);
+                return;
+            }
+            refs.delete(countKey(ref.algorithm, ref.digest));
+            Path path = contentPath(ref.algorithm, ref.digest);
+            hdfs.delete(path, false);
+            log.debug("deleted unreferenced content " + path);
+        }
+    }
+
+    /*
+     * upload new content next to its final path without holding the lock of
+     * its digest, which is only taken to count the reference and to rename
+     * the upload into place
+     */
+    private void store(final String digest, final InputStream content, final HDFSCreatePolicy policy) throws IOException {
+        Path path = contentPath(algorithm, digest);
+        Path upload = new Path(path.getParent(), digest + "." + UUID.randomUUID() + UPLOAD_SUFFIX);
+        try {
+            OutputStream out = policy == null ? hdfs.create(upload, false) : policy.create(hdfs, upload, false);
+            try {
+                bufferPool.copy(content, out);
+            } finally {
+                out.close();
+            }
+            synchronized (lock(locks, digest)) {
+                long count = getCount(algorithm, digest);
+                if (count == 0) {
+                    // a file left behind by an interrupted upload is replaced
+                    hdfs.delete(path, false);
+                    if (!hdfs.rename(upload, path)) {
+                        throw new IOException("unable to rename " + upload + " to " + path);
+                    }
+                    upload = null;
+                    log.debug("stored new content " + path);
+                }
+                putCount(algorithm, digest, count + 1);
+            }
+        } finally {
+            if (upload != null) {
+                // the same content has been stored concurrently
+                hdfs.delete(upload, false);
+            }
+        }
+    }
+
+    private void putCount(final String algorithm, final String digest, final long count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeLong(count);
+        data.close();
+        refs.put(countKey(algorithm, digest), bytes.toByteArray());
+    }
+
+    private static Object lock(final Object[] stripes, final String key) {
+        return stripes[(key.hashCode() & Integer.MAX_VALUE) % LOCK_STRIPES];
+    }
+
+    private static URI countKey(final String algorithm, final String digest) {
+        return URI.create(COUNT_PREFIX + algorithm + "/" + digest);
+    }
+
+    /*
+     * the content files are spread over two levels of directories named by
+     * the leading digits of the digest
+     */
+    private Path contentPath(final String algorithm, final String digest) {
+        return new Path(root, algorithm + "/" + digest.substring(0, 2) + "/" + digest.substring(2, 4) + "/" + digest);
+    }
+}
@@ -0,0 +1,219 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.BlockLocation;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileChecksum;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+
+/**
+ * A {@link FileSystem} which counts the calls reaching the wrapped
+ * {@link FileSystem} that cost a namenode RPC. The convenience methods of
+ * {@link FileSystem} like {@link FileSystem#exists(Path)} are counted as the
+ * calls they are implemented with, e.g. <code>getFileStatus</code>.
+ * <p>
+ * This is the base of the {@link HDFSMeteredFileSystem} a store with metrics
+ * wraps its filesystem in, and {@link HDFSAtomicReplace} charges its
+ * reflective rename to it, so it belongs to the main code although the tests
+ * use it directly to check the calls made per operation.
+ *
+ */
+class HDFSCountingFileSystem extends FilterFileSystem {
+    private final ConcurrentMap<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong total = new AtomicLong();
+
+    /**
+     * create a new {@link HDFSCountingFileSystem}
+     *
+     * @param fs
+     *            the {@link FileSystem} to wrap
+     */
+    HDFSCountingFileSystem(final FileSystem fs) {
+        super(fs);
+    }
+
+    /**
+     * count a call reaching the wrapped {@link FileSystem}
+     *
+     * @param operation
+     *            the name of the {@link FileSystem} method
+     */
+    void count(final String operation) {
+        AtomicLong count = counts.get(operation);
+        if (count == null) {
+            AtomicLong created = new AtomicLong();
+            count = counts.putIfAbsent(operation, created);
+            if (count == null) {
+                count = created;
+            }
+        }
+        count.incrementAndGet();
+        total.incrementAndGet();
+    }
+
+    /**
+     * get the wrapped {@link FileSystem}
+     *
+     * @return the {@link FileSystem} the calls are passed to
+     */
+    FileSystem getWrapped() {
+        return fs;
+    }
+
+    /**
+     * get the number of calls of an operation
+     *
+     * @param operation
+     *            the name of the {@link FileSystem} method, e.g.
+     *            <code>rename</code>
+     * @return the number of calls since the last {@link #reset()}
+     */
+    long getCount(final String operation) {
+        AtomicLong count = counts.get(operation);
+        return count == null ? 0 : count.get();
+    }
+
+    /**
+     * get the number of calls of all operations
+     *
+     * @return the number of calls since the last {@link #reset()}
+     */
+    long getTotal() {
+        return total.get();
+    }
+
+    /**
+     * get the number of calls per operation
+     *
+     * @return a sorted map of operation names to the number of calls
+     */
+    Map<String, Long> getCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, AtomicLong> e : counts.entrySet()) {
+            result.put(e.getKey(), e.getValue().get());
+        }
+        return result;
+    }
+
+    /**
+     * set all counters to zero
+     */
+    void reset() {
+        counts.clear();
+        total.set(0);
+    }
+
+    @Override
+    public FSDataInputStream open(final Path f, final int bufferSize) throws IOException {
+        count("open");
+        return super.open(f, bufferSize);
+    }
+
+    @Override
+    public FSDataOutputStream append(final Path f, final int bufferSize, final Progressable progress) throws IOException {
+        count("append");
+        return super.append(f, bufferSize, progress);
+    }
+
+    @Override
+    public FSDataOutputStream create(final Path f, final FsPermission permission, final boolean overwrite, final int bufferSize,
+            final short replication, final long blockSize, final Progressable progress) throws IOException {
+        count("create");
+        return super.create(f, permission, overwrite, bufferSize, replication, blockSize, progress);
+    }
+
+    @Override
+    public boolean setReplication(final Path src, final short replication) throws IOException {
+        count("setReplication");
+        return super.setReplication(src, replication);
+    }
+
+    @Override
+    public boolean rename(final Path src, final Path dst) throws IOException {
+        count("rename");
+        return super.rename(src, dst);
+    }
+
+    @Override
+    @Deprecated
+    public boolean delete(final Path f) throws IOException {
+        count("delete");
+        return super.delete(f);
+    }
+
+    @Override
+    public boolean delete(final Path f, final boolean recursive) throws IOException {
+        count("delete");
+        return super.delete(f, recursive);
+    }
+
+    @Override
+    public FileStatus[] listStatus(final Path f) throws IOException {
+        count("listStatus");
+        return super.listStatus(f);
+    }
+
+    @Override
+    public boolean mkdirs(final Path f, final FsPermission permission) throws IOException {
+        count("mkdirs");
+        return super.mkdirs(f, permission);
+    }
+
+    @Override
+    public FileStatus getFileStatus(final Path f) throws IOException {
+        count("getFileStatus");
+        return super.getFileStatus(f);
+    }
+
+    @Override
+    public FileChecksum getFileChecksum(final Path f) throws IOException {
+        count("getFileChecksum");
+        return super.getFileChecksum(f);
+    }
+
+    @Override
+    public BlockLocation[] getFileBlockLocations(final FileStatus file, final long start, final long len) throws IOException {
+        count("getFileBlockLocations");
+        return super.getFileBlockLocations(file, start, len);
+    }
+
+    @Override
+    public void setOwner(final Path p, final String username, final String groupname) throws IOException {
+        count("setOwner");
+        super.setOwner(p, username, groupname);
+    }
+
+    @Override
+    public void setPermission(final Path p, final FsPermission permission) throws IOException {
+        count("setPermission");
+        super.setPermission(p, permission);
+    }
+}
@@ -0,0 +1,199 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The parameters a class of blobs is created with on the Hadoop filesystem,
+ * e.g. large blocks and write buffers for video datastreams or small buffers
+ * and a higher replication for object XML. Parameters left at 0 are taken
+ * from the cluster's defaults.
+ * <p>
+ * A policy applies to a blob if it is named by the
+ * {@link #STORAGE_CLASS_HINT} of the blob or, without such a hint, if the
+ * blob's estimated size lies within the policy's size range. The policies are
+ * configured on the {@link HDFSBlobStore}, which picks the first one that
+ * applies.
+ *
+ */
+public class HDFSCreatePolicy {
+    /**
+     * the hint naming the policy a blob is created with
+     */
+    public static final String STORAGE_CLASS_HINT = "de.fiz.akubra.hdfs.storageClass";
+
+    private String name;
+    private long minSize = 0;
+    private long maxSize = Long.MAX_VALUE;
+    private int bufferSize = 0;
+    private long blockSize = 0;
+    private short replication = 0;
+    private HDFSCompression compression;
+
+    /**
+     * get the name, which may be given as {@link #STORAGE_CLASS_HINT}
+     *
+     * @return the name of this policy
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * set the name, which may be given as {@link #STORAGE_CLASS_HINT}
+     *
+     * @param name
+     *            the name of this policy
+     */
+    public void setName(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * set the smallest estimated size this policy applies to. Blobs of
+     * unknown size are only covered by policies starting at 0.
+     *
+     * @param minSize
+     *            the size in bytes, defaults to 0
+     */
+    public void setMinSize(final long minSize) {
+        this.minSize = minSize;
+    }
+
+    /**
+     * set the largest estimated size this policy applies to
+     *
+     * @param maxSize
+     *            the size in bytes, unlimited by default
+     */
+    public void setMaxSize(final long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * set the size of the client's write buffer
+     *
+     * @param bufferSize
+     *            the size in bytes, 0 for <code>io.file.buffer.size</code>
+     */
+    public void setBufferSize(final int bufferSize) {
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * set the block size of the created files. It has to be a multiple of
+     * <code>io.bytes.per.checksum</code>.
+     *
+     * @param blockSize
+     *            the size in bytes, 0 for the filesystem's default
+     */
+    public void setBlockSize(final long blockSize) {
+        if (blockSize < 0) {
+            throw new IllegalArgumentException("block size has to be positive or 0");
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * set the replication factor of the created files
+     *
+     * @param replication
+     *            the number of replicas, 0 for the filesystem's default
+     */
+    public void setReplication(final short replication) {
+        this.replication = replication;
+    }
+
+    /**
+     * get the codec the content of the blobs is compressed with
+     *
+     * @return the {@link HDFSCompression} or null for the store's default
+     */
+    public HDFSCompression getCompression() {
+        return compression;
+    }
+
+    /**
+     * set the codec the content of the blobs is compressed with, e.g.
+     * {@link HDFSCompression#DEFLATE_FAST} for hot object XML and
+     * {@link HDFSCompression#BZIP2} for archived text. Compression only takes
+     * effect if it is enabled on the {@link HDFSBlobStore}.
+     *
+     * @param compression
+     *            the {@link HDFSCompression}, defaults to the store's
+     */
+    public void setCompression(final HDFSCompression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * check if this policy applies to a blob
+     *
+     * @param estimatedSize
+     *            the estimated size of the blob, negative if unknown
+     * @param hints
+     *            the hints the blob has been fetched with, may be null
+     * @return true if the blob should be created with this policy
+     */
+    boolean appliesTo(final long estimatedSize, final Map<String, String> hints) {
+        String storageClass = hints == null ? null : hints.get(STORAGE_CLASS_HINT);
+        if (storageClass != null) {
+            return storageClass.equals(name);
+        }
+        if (estimatedSize < 0) {
+            return minSize <= 0;
+        }
+        return estimatedSize >= minSize && estimatedSize <= maxSize;
+    }
+
+    /**
+     * create a file with the parameters of this policy
+     *
+     * @param hdfs
+     *            the {@link FileSystem} to create the file on
+     * @param path
+     *            the file's {@link Path}
+     * @param overwrite
+     *            true if an existing file should be replaced
+     * @return the {@link FSDataOutputStream} of the new file
+     * @throws IOException
+     *             if the file could not be created or the block size is not
+     *             a multiple of <code>io.bytes.per.checksum</code>
+     */
+    FSDataOutputStream create(final FileSystem hdfs, final Path path, final boolean overwrite) throws IOException {
+        int buffer = bufferSize > 0 ? bufferSize : hdfs.getConf().getInt("io.file.buffer.size", 4096);
+        short replicas = replication > 0 ? replication : hdfs.getDefaultReplication();
+        long block = blockSize;
+        if (block > 0) {
+            // the namenode would reject the file with a less helpful message
+            int bytesPerChecksum = hdfs.getConf().getInt("io.bytes.per.checksum", 512);
+            if (block % bytesPerChecksum != 0) {
+                throw new IOException("block size " + block + " of create policy " + name
+                        + " is not a multiple of io.bytes.per.checksum " + bytesPerChecksum);
+            }
+        } else {
+            block = hdfs.getDefaultBlockSize();
+        }
+        return hdfs.create(path, overwrite, buffer, replicas, block);
+    }
+}
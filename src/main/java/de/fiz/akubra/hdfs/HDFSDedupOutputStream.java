@@ -0,0 +1,149 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.MessageDigest;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * An {@link OutputStream} which digests a blob's content while keeping it
+ * locally, in memory or in a local spool file for larger content. On close
+ * the content is handed to the {@link HDFSContentStore}, which only writes it
+ * to the Hadoop filesystem if no other blob has the same content yet.
+ *
+ */
+class HDFSDedupOutputStream extends OutputStream {
+    /**
+     * the size in bytes up to which content is kept in memory
+     */
+    static final int MEMORY_THRESHOLD = 1024 * 1024;
+
+    private final HDFSContentStore content;
+    private final URI uri;
+    private final MessageDigest digest;
+    private final File spoolDirectory;
+    private final HDFSCreatePolicy policy;
+    private final HDFSBlob shadowed;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private File spoolFile;
+    private OutputStream spool;
+    private long count = 0;
+    private boolean closed = false;
+
+    /**
+     * create a new {@link HDFSDedupOutputStream}
+     *
+     * @param content
+     *            the {@link HDFSContentStore} the blob is stored in
+     * @param uri
+     *            the blob's id
+     * @param digest
+     *            a {@link MessageDigest} of the content store's algorithm
+     * @param spoolDirectory
+     *            the local directory of the spool files
+     * @param policy
+     *            the {@link HDFSCreatePolicy} of a new content file or null
+     *            for the filesystem's defaults
+     * @param shadowed
+     *            the blob whose copy written before deduplication was
+     *            enabled is deleted once the reference has been stored, or
+     *            null
+     */
+    HDFSDedupOutputStream(final HDFSContentStore content, final URI uri, final MessageDigest digest, final File spoolDirectory,
+            final HDFSCreatePolicy policy, final HDFSBlob shadowed) {
+        this.content = content;
+        this.uri = uri;
+        this.digest = digest;
+        this.spoolDirectory = spoolDirectory;
+        this.policy = policy;
+        this.shadowed = shadowed;
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        ensureCapacity(1);
+        if (spool != null) {
+            spool.write(b);
+        } else {
+            buffer.write(b);
+        }
+        digest.update((byte) b);
+        count++;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        ensureCapacity(len);
+        if (spool != null) {
+            spool.write(b, off, len);
+        } else {
+            buffer.write(b, off, len);
+        }
+        digest.update(b, off, len);
+        count += len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        InputStream in = null;
+        try {
+            if (spool != null) {
+                spool.close();
+                in = new FileInputStream(spoolFile);
+            } else {
+                in = new ByteArrayInputStream(buffer.toByteArray());
+                buffer = null;
+            }
+            content.add(uri, HDFSBlobOutputStream.toHex(digest.digest()), count, in, policy);
+            if (shadowed != null) {
+                shadowed.deleteShadowed();
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+            if (spoolFile != null) {
+                spoolFile.delete();
+            }
+        }
+    }
+
+    private void ensureCapacity(final int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        if (spool == null && buffer.size() + len > MEMORY_THRESHOLD) {
+            spoolFile = File.createTempFile("akubra-hdfs-", ".spool", spoolDirectory);
+            spool = new BufferedOutputStream(new FileOutputStream(spoolFile), 64 * 1024);
+            buffer.writeTo(spool);
+            buffer = null;
+        }
+    }
+}
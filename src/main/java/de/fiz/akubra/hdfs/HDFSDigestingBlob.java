@@ -0,0 +1,50 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+
+import org.akubraproject.Blob;
+
+/**
+ * A {@link Blob} whose content digest has been computed while it was
+ * written, so that it does not have to be read back for a checksum. The
+ * digest is only available if the {@link HDFSBlobStore} has been configured
+ * with a digest algorithm when the content was written.
+ *
+ */
+public interface HDFSDigestingBlob extends Blob {
+
+    /**
+     * get the algorithm of the digest
+     *
+     * @return the name of the {@link java.security.MessageDigest} algorithm
+     *         or null if no digest is known
+     * @throws IOException
+     *             if the digest could not be read
+     */
+    String getDigestAlgorithm() throws IOException;
+
+    /**
+     * get the digest of the content
+     *
+     * @return the hex encoded digest or null if no digest is known
+     * @throws IOException
+     *             if the digest could not be read
+     */
+    String getDigest() throws IOException;
+}
@@ -0,0 +1,83 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * The directories of a {@link HDFSBlobStore} known to exist, shared by all
+ * connections, so that moving a blob into a directory seen before needs no
+ * directory RPCs. Directories deleted by other processes are not noticed;
+ * callers have to {@link #invalidate(Path)} a directory when an operation
+ * in it fails. The cache is simply cleared when it gets full.
+ *
+ */
+class HDFSDirectoryCache {
+    private final int maxEntries;
+    private final Map<Path, Boolean> dirs = new ConcurrentHashMap<Path, Boolean>();
+
+    /**
+     * create a new {@link HDFSDirectoryCache}
+     *
+     * @param maxEntries
+     *            the maximum number of directories
+     */
+    HDFSDirectoryCache(final int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * check if a directory is known to exist
+     *
+     * @param dir
+     *            the directory
+     * @return true if the directory has been seen before
+     */
+    boolean contains(final Path dir) {
+        return dirs.containsKey(dir);
+    }
+
+    /**
+     * remember that a directory and all its parents exist
+     *
+     * @param dir
+     *            the directory
+     */
+    void add(final Path dir) {
+        if (dirs.size() >= maxEntries) {
+            dirs.clear();
+        }
+        // add the parents up to the first one already known
+        Path p = dir;
+        while (p != null && dirs.put(p, Boolean.TRUE) == null) {
+            p = p.getParent();
+        }
+    }
+
+    /**
+     * forget a directory which turned out not to exist
+     *
+     * @param dir
+     *            the directory
+     */
+    void invalidate(final Path dir) {
+        dirs.remove(dir);
+    }
+}
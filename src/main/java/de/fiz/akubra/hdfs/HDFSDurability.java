@@ -0,0 +1,81 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * How far {@link HDFSBlobStoreConnection#sync()} pushes the content of the
+ * open output streams.
+ *
+ */
+public enum HDFSDurability {
+    /**
+     * the content has reached all datanodes of the write pipeline and is
+     * visible to new readers, so it survives a crash of the client
+     */
+    FLUSH,
+    /**
+     * the content has also been written to disk by the datanodes, so it
+     * survives a power failure of the cluster. Hadoop versions without
+     * <code>hsync</code> only support {@link #FLUSH}.
+     */
+    SYNC;
+
+    private static final Logger log = LoggerFactory.getLogger(HDFSDurability.class);
+    private static final Method HSYNC = findHsync();
+
+    private static Method findHsync() {
+        try {
+            return FSDataOutputStream.class.getMethod("hsync");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    /**
+     * make the content written to a stream durable
+     *
+     * @param out
+     *            the stream of a Hadoop file
+     * @throws IOException
+     *             if the content could not be synced
+     */
+    void apply(final FSDataOutputStream out) throws IOException {
+        if (this == SYNC && HSYNC != null) {
+            try {
+                HSYNC.invoke(out);
+                return;
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                throw new IOException("unable to sync: " + e.getCause());
+            } catch (IllegalAccessException e) {
+                log.warn("hsync is not accessible, flushing instead");
+            }
+        }
+        // the sync of Hadoop 1.x flushes to the datanodes
+        out.sync();
+    }
+}
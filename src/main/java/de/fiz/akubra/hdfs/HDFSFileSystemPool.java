@@ -0,0 +1,166 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A fixed number of independent Hadoop {@link FileSystem}s, each talking to
+ * the namenode over a socket of its own, so that the RPCs of many threads do
+ * not queue up behind each other on one IPC connection.
+ * <p>
+ * The members bypass the {@link FileSystem} cache. Since the IPC client
+ * still shares a socket between clients with identical connection
+ * parameters, every member is given a slightly different
+ * <code>ipc.client.connection.maxidletime</code>.
+ *
+ */
+class HDFSFileSystemPool {
+    private static final Logger log = LoggerFactory.getLogger(HDFSFileSystemPool.class);
+
+    private final URI uri;
+    private final Configuration conf;
+    private final HDFSPoolStrategy strategy;
+    private final FileSystem[] members;
+    private final AtomicInteger[] users;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * create a new {@link HDFSFileSystemPool}. The filesystems are opened on
+     * first use.
+     *
+     * @param uri
+     *            the {@link URI} of the filesystem
+     * @param conf
+     *            the {@link Configuration} the members are derived from
+     * @param size
+     *            the number of filesystems
+     * @param strategy
+     *            the {@link HDFSPoolStrategy} assigning the filesystems
+     */
+    HDFSFileSystemPool(final URI uri, final Configuration conf, final int size, final HDFSPoolStrategy strategy) {
+        this.uri = uri;
+        this.conf = conf;
+        this.strategy = strategy;
+        this.members = new FileSystem[size];
+        this.users = new AtomicInteger[size];
+        for (int i = 0; i < size; i++) {
+            users[i] = new AtomicInteger();
+        }
+    }
+
+    /**
+     * assign a filesystem to a new connection
+     *
+     * @return the {@link FileSystem}, which has to be given back by
+     *         {@link #release(FileSystem)}
+     * @throws IOException
+     *             if the filesystem could not be opened
+     */
+    FileSystem acquire() throws IOException {
+        int index;
+        switch (strategy) {
+        case THREAD:
+            index = (int) (Thread.currentThread().getId() % members.length);
+            break;
+        case LEAST_USED:
+            index = 0;
+            for (int i = 1; i < members.length; i++) {
+                if (users[i].get() < users[index].get()) {
+                    index = i;
+                }
+            }
+            break;
+        default:
+            index = (next.getAndIncrement() & Integer.MAX_VALUE) % members.length;
+        }
+        users[index].incrementAndGet();
+        return member(index);
+    }
+
+    /**
+     * give back a filesystem of a closed connection
+     *
+     * @param fs
+     *            the {@link FileSystem} returned by {@link #acquire()}
+     */
+    void release(final FileSystem fs) {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] == fs) {
+                users[i].decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * get the number of connections a filesystem is assigned to
+     *
+     * @param index
+     *            the position of the filesystem in the pool
+     * @return the number of connections
+     */
+    int getUsers(final int index) {
+        return users[index].get();
+    }
+
+    /**
+     * close all filesystems of the pool
+     *
+     * @throws IOException
+     *             if a filesystem could not be closed
+     */
+    synchronized void close() throws IOException {
+        for (int i = 0; i < members.length; i++) {
+            if (members[i] != null) {
+                members[i].close();
+                members[i] = null;
+            }
+        }
+    }
+
+    private synchronized FileSystem member(final int index) throws IOException {
+        if (members[index] == null) {
+            members[index] = open(index);
+            log.debug("opened pooled filesystem " + index + " for " + uri);
+        }
+        return members[index];
+    }
+
+    /**
+     * open an uncached filesystem with a connection of its own
+     *
+     * @param index
+     *            the position of the filesystem in the pool
+     * @return the {@link FileSystem}
+     * @throws IOException
+     *             if the filesystem could not be opened
+     */
+    FileSystem open(final int index) throws IOException {
+        Configuration c = new Configuration(conf);
+        c.setBoolean("fs." + uri.getScheme() + ".impl.disable.cache", true);
+        c.setInt("ipc.client.connection.maxidletime", c.getInt("ipc.client.connection.maxidletime", 10000) + index);
+        return FileSystem.get(uri, c);
+    }
+}
@@ -0,0 +1,196 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the commits of concurrent transactions of a {@link HDFSBlobStore}
+ * into rounds. The first committing thread applies every commit queued up to
+ * then, while the records it writes to the store's {@link HDFSPackStore}s are
+ * synced once at the end of the round instead of once per record. Records
+ * written by other threads during a round are synced as usual. Commits
+ * arriving during a round are applied together in the next one.
+ *
+ */
+class HDFSGroupCommitter {
+    private static final Logger log = LoggerFactory.getLogger(HDFSGroupCommitter.class);
+
+    /**
+     * The changes of one transaction
+     */
+    interface Commit {
+        /**
+         * apply the changes to the store
+         *
+         * @throws IOException
+         *             if a change could not be applied
+         */
+        void apply() throws IOException;
+    }
+
+    private final HDFSBlobStore store;
+    private final List<Request> pending = new ArrayList<Request>();
+    private boolean committing = false;
+    private long rounds = 0;
+    private long commits = 0;
+
+    private static class Request {
+        private final Commit commit;
+        private boolean done = false;
+        private IOException failure;
+
+        private Request(final Commit commit) {
+            this.commit = commit;
+        }
+    }
+
+    /**
+     * create a new {@link HDFSGroupCommitter}
+     *
+     * @param store
+     *            the {@link HDFSBlobStore} whose pack stores are synced per
+     *            round
+     */
+    HDFSGroupCommitter(final HDFSBlobStore store) {
+        this.store = store;
+    }
+
+    /**
+     * apply a commit together with the commits of other threads. Returns
+     * when the commit has been applied.
+     *
+     * @param commit
+     *            the {@link Commit} to apply
+     * @throws IOException
+     *             if the commit could not be applied
+     */
+    void commit(final Commit commit) throws IOException {
+        Request request = new Request(commit);
+        List<Request> round;
+        synchronized (this) {
+            pending.add(request);
+            while (committing && !request.done) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for the commit");
+                }
+            }
+            if (request.done) {
+                if (request.failure != null) {
+                    throw request.failure;
+                }
+                return;
+            }
+            // lead the next round with everything queued so far
+            committing = true;
+            round = new ArrayList<Request>(pending);
+            pending.clear();
+        }
+        try {
+            apply(round);
+        } finally {
+            synchronized (this) {
+                committing = false;
+                rounds++;
+                commits += round.size();
+                for (Request r : round) {
+                    r.done = true;
+                }
+                notifyAll();
+            }
+        }
+        if (request.failure != null) {
+            throw request.failure;
+        }
+    }
+
+    private void apply(final List<Request> round) {
+        List<HDFSPackStore> batched = new ArrayList<HDFSPackStore>();
+        try {
+            for (HDFSPackStore p : recordStores()) {
+                p.startBatch();
+                batched.add(p);
+            }
+            for (Request r : round) {
+                try {
+                    r.commit.apply();
+                } catch (IOException e) {
+                    r.failure = e;
+                }
+            }
+        } catch (IOException e) {
+            fail(round, e);
+        } finally {
+            for (HDFSPackStore p : batched) {
+                try {
+                    p.finishBatch();
+                } catch (IOException e) {
+                    fail(round, e);
+                }
+            }
+        }
+        log.debug("committed " + round.size() + " transactions in one round");
+    }
+
+    private static void fail(final List<Request> round, final IOException e) {
+        for (Request r : round) {
+            if (r.failure == null) {
+                r.failure = e;
+            }
+        }
+    }
+
+    private List<HDFSPackStore> recordStores() throws IOException {
+        List<HDFSPackStore> stores = new ArrayList<HDFSPackStore>(3);
+        if (store.getPackStore() != null) {
+            stores.add(store.getPackStore());
+        }
+        if (store.getMetadataStore() != null) {
+            stores.add(store.getMetadataStore().getRecords());
+        }
+        if (store.getContentStore() != null) {
+            stores.add(store.getContentStore().getRecords());
+        }
+        return stores;
+    }
+
+    /**
+     * get the number of rounds applied so far
+     *
+     * @return the number of rounds
+     */
+    synchronized long getRounds() {
+        return rounds;
+    }
+
+    /**
+     * get the number of commits applied so far
+     *
+     * @return the number of commits
+     */
+    synchronized long getCommits() {
+        return commits;
+    }
+}
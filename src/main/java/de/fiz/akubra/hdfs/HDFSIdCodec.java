@@ -0,0 +1,199 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+
+/**
+ * Encodes the file names of {@link HDFSIdMapper} in a single pass. The output
+ * is the same as replacing the colons by underscores and URL encoding the
+ * result as UTF-8 with spaces written as <code>%20</code>; decoding is the
+ * same as replacing the colons and URL decoding. Names which need no change
+ * are returned as they are, without allocating.
+ *
+ */
+final class HDFSIdCodec {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    /** the ASCII characters which are copied as they are, see URLEncoder */
+    private static final boolean[] UNRESERVED = new boolean[128];
+    /** the encoded form of every ASCII character */
+    private static final char[][] ENCODED = new char[128][];
+    /** the value of the ASCII hex digits, -1 for other characters */
+    private static final int[] HEX_VALUE = new int[128];
+
+    static {
+        for (char c = 'a'; c <= 'z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = 'A'; c <= 'Z'; c++) {
+            UNRESERVED[c] = true;
+        }
+        for (char c = '0'; c <= '9'; c++) {
+            UNRESERVED[c] = true;
+        }
+        UNRESERVED['.'] = true;
+        UNRESERVED['-'] = true;
+        UNRESERVED['*'] = true;
+        UNRESERVED['_'] = true;
+        for (int c = 0; c < 128; c++) {
+            if (UNRESERVED[c]) {
+                ENCODED[c] = new char[] { (char) c };
+            } else {
+                ENCODED[c] = new char[] { '%', HEX[c >> 4], HEX[c & 0xf] };
+            }
+            HEX_VALUE[c] = Character.digit(c, 16);
+        }
+        ENCODED[':'] = new char[] { '_' };
+    }
+
+    private HDFSIdCodec() {
+    }
+
+    /**
+     * encode a file name
+     *
+     * @param s
+     *            the name
+     * @return the encoded name
+     */
+    static String encode(final String s) {
+        int n = s.length();
+        int i = 0;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c >= 128 || !UNRESERVED[c]) {
+                break;
+            }
+            i++;
+        }
+        if (i == n) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(n + 16);
+        sb.append(s, 0, i);
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c < 128) {
+                sb.append(ENCODED[c]);
+                i++;
+            } else {
+                // a run of non ASCII characters is encoded at once, which
+                // keeps surrogate pairs together
+                int start = i;
+                while (i < n && s.charAt(i) >= 128) {
+                    i++;
+                }
+                for (byte b : s.substring(start, i).getBytes(UTF8)) {
+                    sb.append('%').append(HEX[(b >> 4) & 0xf]).append(HEX[b & 0xf]);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * decode a file name
+     *
+     * @param s
+     *            the encoded name
+     * @param from
+     *            the position the name starts at
+     * @return the decoded name from the position on
+     * @throws IllegalArgumentException
+     *             if an escape sequence is malformed
+     */
+    static String decode(final String s, final int from) {
+        int n = s.length();
+        int i = from;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == '%' || c == '+' || c == ':') {
+                break;
+            }
+            i++;
+        }
+        if (i == n) {
+            return from == 0 ? s : s.substring(from);
+        }
+        StringBuilder sb = new StringBuilder(n - from);
+        sb.append(s, from, i);
+        byte[] bytes = null;
+        while (i < n) {
+            char c = s.charAt(i);
+            if (c == ':') {
+                sb.append('_');
+                i++;
+            } else if (c == '+') {
+                sb.append(' ');
+                i++;
+            } else if (c != '%') {
+                sb.append(c);
+                i++;
+            } else {
+                if (bytes == null) {
+                    bytes = new byte[(n - i) / 3];
+                }
+                int pos = 0;
+                boolean ascii = true;
+                while (c == '%') {
+                    int v = i + 2 < n ? hexValue(s.charAt(i + 1), s.charAt(i + 2)) : -1;
+                    if (v < 0) {
+                        // a malformed or unusual escape is left to the JDK,
+                        // which also reports the error
+                        return slowDecode(s, from);
+                    }
+                    bytes[pos++] = (byte) v;
+                    ascii &= v < 128;
+                    i += 3;
+                    if (i >= n) {
+                        break;
+                    }
+                    c = s.charAt(i);
+                }
+                if (ascii) {
+                    for (int b = 0; b < pos; b++) {
+                        sb.append((char) bytes[b]);
+                    }
+                } else {
+                    sb.append(new String(bytes, 0, pos, UTF8));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static int hexValue(final char high, final char low) {
+        if (high >= 128 || low >= 128) {
+            return -1;
+        }
+        int h = HEX_VALUE[high];
+        int l = HEX_VALUE[low];
+        return h < 0 || l < 0 ? -1 : h << 4 | l;
+    }
+
+    private static String slowDecode(final String s, final int from) {
+        try {
+            return URLDecoder.decode(s.substring(from).replace(':', '_'), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -39,19 +39,38 @@ public class HDFSIdIterator implements Iterator<URI> {
 
     private static final Logger log = LoggerFactory.getLogger(HDFSIdIterator.class);
     private final FileSystem hdfs;
-    private final String prefix;
+    private final HDFSIdPrefixFilter filter;
 
     private final Queue<Path> dirQueue = new LinkedList<Path>();
-    private final Queue<Path> fileQueue = new LinkedList<Path>();
+    private final Queue<URI> fileQueue = new LinkedList<URI>();
+    private final Iterator<URI> packed;
 
     public HDFSIdIterator(final FileSystem hdfs, final String prefix) {
+        this(hdfs, new Path("/"), prefix, new HDFSShardLayout(0, 2), null);
+    }
+
+    /**
+     * create a new {@link HDFSIdIterator} over the blobs below a directory,
+     * which returns the ids of packed blobs after the files of the tree have
+     * been listed
+     * 
+     * @param hdfs
+     *            the {@link FileSystem} to list
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            the prefix of the ids to list, see
+     *            {@link HDFSIdPrefixFilter}
+     * @param layout
+     *            the {@link HDFSShardLayout} of the store
+     * @param packed
+     *            the ids of the blobs in the {@link HDFSPackStore} or null
+     */
+    HDFSIdIterator(final FileSystem hdfs, final Path root, final String prefix, final HDFSShardLayout layout, final Iterator<URI> packed) {
         this.hdfs = hdfs;
-        if (prefix == null) {
-            this.prefix = "";
-        } else {
-            this.prefix = prefix;
-        }
-        dirQueue.add(new Path("/"));
+        this.packed = packed;
+        this.filter = new HDFSIdPrefixFilter(root, prefix, layout);
+        dirQueue.add(filter.getStart());
     }
 
     @Override
@@ -71,7 +90,7 @@ public class HDFSIdIterator implements Iterator<URI> {
                 return null;
             }
         }
-        return fileQueue.poll().toUri();
+        return fileQueue.poll();
     }
 
     @Override
@@ -82,15 +101,22 @@ public class HDFSIdIterator implements Iterator<URI> {
     private boolean updateQueues() {
         if (fileQueue.isEmpty()) {
             if (dirQueue.isEmpty()) {
-                return false; // all queues are empty
+                return updatePackedQueue();
             }
             Path dir = dirQueue.poll();
             try {
-                for (FileStatus stat : hdfs.listStatus(dir)) {
+                FileStatus[] stats = hdfs.listStatus(dir);
+                if (stats == null) {
+                    // the directory does not exist (anymore)
+                    return true;
+                }
+                for (FileStatus stat : stats) {
                     if (stat.isDir()) {
-                        dirQueue.add(stat.getPath());
-                    } else if (stat.getPath().getName().startsWith(prefix)) {
-                        fileQueue.add(stat.getPath());
+                        if (filter.acceptDirectory(dir, stat.getPath())) {
+                            dirQueue.add(stat.getPath());
+                        }
+                    } else if (filter.acceptFile(dir, stat.getPath())) {
+                        fileQueue.add(stat.getPath().toUri());
                     }
                 }
             } catch (IOException e) {
@@ -101,4 +127,15 @@ public class HDFSIdIterator implements Iterator<URI> {
         return true;
     }
 
+    private boolean updatePackedQueue() {
+        while (packed != null && packed.hasNext()) {
+            URI id = packed.next();
+            if (filter.acceptId(id)) {
+                fileQueue.add(id);
+                return true;
+            }
+        }
+        return false; // all queues are empty
+    }
+
 }
@@ -1,9 +1,6 @@
 package de.fiz.akubra.hdfs;
 
-import java.io.UnsupportedEncodingException;
 import java.net.URI;
-import java.net.URLDecoder;
-import java.net.URLEncoder;
 
 import org.akubraproject.BlobStore;
 import org.akubraproject.map.IdMapper;
@@ -12,29 +9,18 @@ import org.slf4j.LoggerFactory;
 
 public class HDFSIdMapper implements IdMapper {
     private static final Logger log = LoggerFactory.getLogger(HDFSIdMapper.class);
+    private static final String SCHEME = "hdfs:";
+    /** appended to the name of a blob whose new content Fedora writes first */
+    static final String NEW_SUFFIX = "_NEW_";
+    /** appended to the name of a blob Fedora keeps while overwriting it */
+    static final String OLD_SUFFIX = "_OLD_";
     private final String storeId;
+    private final HDFSShardLayout layout;
 
     public HDFSIdMapper(final BlobStore store) {
         this.storeId = store.getId().toASCIIString();
-    }
-
-    private String decode(String s) {
-        try {
-            String tmp = URLDecoder.decode(s.replaceAll(":", "_"), "UTF-8");
-            return tmp;
-        } catch (UnsupportedEncodingException e) {
-            log.error("unable to encode " + s, e);
-            throw new RuntimeException(e);
-        }
-    }
-
-    private String encode(final String s) {
-        try {
-            return URLEncoder.encode(s.replaceAll(":", "_"), "UTF-8").replaceAll("\\+", "%20");
-        } catch (UnsupportedEncodingException e) {
-            log.error("unable to encode " + s, e);
-            throw new RuntimeException(e);
-        }
+        // files are put in the hash directories of the store's layout
+        this.layout = store instanceof HDFSBlobStore ? ((HDFSBlobStore) store).getShardLayout() : new HDFSShardLayout(0, 1);
     }
 
     @Override
@@ -43,43 +29,86 @@ public class HDFSIdMapper implements IdMapper {
         if (path.startsWith(storeId)) {
             path = path.substring(storeId.length());
         }
+        path = layout.removeShards(path);
         int slash = path.lastIndexOf('/');
+        String name = HDFSIdCodec.decode(path, Math.max(slash, 0));
+        StringBuilder external = new StringBuilder(SCHEME.length() + path.length());
+        external.append(SCHEME);
         if (slash != -1) {
-            path = path.substring(0, slash) + decode(path.substring(slash));
-        } else {
-            path = decode(path);
+            external.append(path, 0, slash);
+        }
+        URI externalId = URI.create(external.append(name).toString());
+        if (log.isDebugEnabled()) {
+            log.debug("mapping internal id " + internalId + " to " + externalId);
         }
-        URI externalId = URI.create("hdfs:" + path);
-        log.debug("mapping internal id " + internalId + " to " + externalId);
         return externalId;
     }
 
     @Override
     public URI getInternalId(URI externalId) throws NullPointerException {
         String path = externalId.toASCIIString();
-        log.debug("external path " + path);
         int colon = path.indexOf(':');
-        int slash = path.lastIndexOf('/');
+        int slash = Math.max(path.lastIndexOf('/'), colon);
         String fileName = path.substring(slash + 1);
-        path = path.substring(colon + 1, slash + 1).replaceAll(":", "_");
-        URI internalUri;
+        path = path.substring(colon + 1, slash + 1).replace(':', '_');
+        String suffix = null;
         if ("new".equals(fileName)) {
-            internalUri = URI.create(storeId + path.substring(0, path.length() - 1) + "_NEW_");
+            suffix = NEW_SUFFIX;
         } else if ("old".equals(fileName)) {
-            internalUri = URI.create(storeId + path.substring(0, path.length() - 1) + "_OLD_");
+            suffix = OLD_SUFFIX;
+        }
+        if (suffix != null && path.length() > 0) {
+            // the last directory becomes the file name
+            String dir = path.substring(0, path.length() - 1);
+            int parent = dir.lastIndexOf('/') + 1;
+            fileName = dir.substring(parent) + suffix;
+            path = dir.substring(0, parent);
         } else {
-            internalUri = URI.create(storeId + path + encode(fileName));
+            fileName = HDFSIdCodec.encode(fileName);
+        }
+        String shards = layout.getShardPath(fileName);
+        StringBuilder internal = new StringBuilder(storeId.length() + path.length() + shards.length() + fileName.length());
+        URI internalUri = URI.create(internal.append(storeId).append(path).append(shards).append(fileName).toString());
+        if (log.isDebugEnabled()) {
+            log.debug("mapping external id " + externalId + " to " + internalUri.toASCIIString());
         }
-        log.debug("mapping external id " + externalId + " to " + internalUri.toASCIIString());
         return internalUri;
     }
 
+    /**
+     * map an external prefix the same way {@link #getInternalId(URI)} maps
+     * ids, so that the store can restrict a listing to the directories below
+     * the prefix
+     * 
+     * @return the internal prefix or null if the prefix ends within the
+     *         scheme, its last component contains characters which are
+     *         escaped in file names or it may be continued to a new or old
+     *         id, which is mapped to a file next to its directory. The ids
+     *         have to be filtered after mapping then
+     */
     @Override
     public String getInternalPrefix(String externalPrefix) throws NullPointerException {
         if (externalPrefix == null) {
             throw new NullPointerException();
         }
-        return storeId + externalPrefix;
+        int colon = externalPrefix.indexOf(':');
+        if (colon == -1) {
+            return null;
+        }
+        String path = externalPrefix.substring(colon + 1);
+        int slash = path.lastIndexOf('/');
+        String name = path.substring(slash + 1).replace(':', '_');
+        if (slash != -1 && ("new".startsWith(name) || "old".startsWith(name))) {
+            // info:fedora/demo:1/n may become info:fedora/demo:1/new, which
+            // is mapped to fedora/demo_1_NEW_ instead of below fedora/demo_1/
+            return null;
+        }
+        if (!HDFSIdCodec.encode(name).equals(name)) {
+            // the last component may be the start of a directory or a file
+            // name, which are mapped differently
+            return null;
+        }
+        return storeId + path.substring(0, slash + 1).replace(':', '_') + name;
     }
 
 }
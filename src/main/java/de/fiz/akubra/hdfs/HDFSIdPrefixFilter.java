@@ -0,0 +1,165 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.net.URI;
+
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Decides which parts of a store's directory tree a listing has to visit for
+ * a given prefix.
+ * <p>
+ * A prefix starting with the store's root, as produced by
+ * {@link HDFSIdMapper#getInternalPrefix(String)}, is split at its last slash
+ * into a directory, where the listing starts, and a name prefix. Only the
+ * entries of the start directory are matched against the name prefix:
+ * matching files are listed and matching directories are descended into,
+ * since every id below them starts with the prefix. The shard directories of
+ * a {@link HDFSShardLayout} below the start directory are descended into as
+ * well, and their files are matched against the name prefix, too.
+ * <p>
+ * Any other prefix is matched against the names of all files of the tree.
+ *
+ */
+class HDFSIdPrefixFilter {
+    private final Path start;
+    private final String name;
+    private final String idPrefix;
+    private final HDFSShardLayout layout;
+    private final String stagingPrefix;
+
+    /**
+     * create a new {@link HDFSIdPrefixFilter}
+     *
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            the prefix of the ids to list, may be null
+     * @param layout
+     *            the {@link HDFSShardLayout} of the store, null for a flat
+     *            layout
+     */
+    HDFSIdPrefixFilter(final Path root, final String prefix, final HDFSShardLayout layout) {
+        this.layout = layout == null ? new HDFSShardLayout(0, 1) : layout;
+        String rootId = root.toUri().toASCIIString();
+        if (!rootId.endsWith("/")) {
+            rootId += "/";
+        }
+        this.stagingPrefix = rootId + HDFSBlobStore.STAGING_DIRECTORY + "/";
+        if (prefix != null && prefix.startsWith(rootId)) {
+            String relative = prefix.substring(rootId.length());
+            int slash = relative.lastIndexOf('/');
+            this.start = slash == -1 ? root : new Path(rootId + relative.substring(0, slash + 1));
+            this.name = relative.substring(slash + 1);
+            this.idPrefix = prefix;
+        } else {
+            this.start = root;
+            this.name = prefix == null ? "" : prefix;
+            this.idPrefix = null;
+        }
+    }
+
+    /**
+     * get the directory the listing starts at
+     *
+     * @return the start directory
+     */
+    Path getStart() {
+        return start;
+    }
+
+    /**
+     * check if a directory has to be listed
+     *
+     * @param parent
+     *            the directory containing the directory
+     * @param dir
+     *            the directory
+     * @return true if the directory may contain matching ids
+     */
+    boolean acceptDirectory(final Path parent, final Path dir) {
+        if (HDFSBlobStore.isReservedName(dir.getName())) {
+            return false;
+        }
+        if (!isFiltered(parent)) {
+            return true;
+        }
+        if (idPrefix != null && shardDepth(parent) < layout.getLevels() && layout.isShardName(dir.getName())) {
+            return true;
+        }
+        return idPrefix == null || dir.getName().startsWith(name);
+    }
+
+    /**
+     * check if a file is part of the listing
+     *
+     * @param parent
+     *            the directory containing the file
+     * @param file
+     *            the file
+     * @return true if the file's id matches the prefix
+     */
+    boolean acceptFile(final Path parent, final Path file) {
+        return !isFiltered(parent) || file.getName().startsWith(name);
+    }
+
+    /**
+     * check if the id of a packed blob is part of the listing
+     *
+     * @param id
+     *            the id of the blob
+     * @return true if the id matches the prefix
+     */
+    boolean acceptId(final URI id) {
+        // staged content of open transactions may be packed or deduplicated
+        if (id.toASCIIString().startsWith(stagingPrefix)) {
+            return false;
+        }
+        if (idPrefix != null) {
+            return layout.removeShards(id.toASCIIString()).startsWith(idPrefix);
+        }
+        String path = id.getPath();
+        return path != null && path.substring(path.lastIndexOf('/') + 1).startsWith(name);
+    }
+
+    private boolean isFiltered(final Path parent) {
+        return idPrefix == null || shardDepth(parent) >= 0;
+    }
+
+    /*
+     * the number of shard directories between the start directory and the
+     * given directory, or -1 if the directory is not the start directory or
+     * one of its shards
+     */
+    private int shardDepth(final Path dir) {
+        Path current = dir;
+        for (int depth = 0; depth <= layout.getLevels(); depth++) {
+            if (current == null) {
+                return -1;
+            }
+            if (current.equals(start)) {
+                return depth;
+            }
+            if (!layout.isShardName(current.getName())) {
+                return -1;
+            }
+            current = current.getParent();
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The latencies of one operation, counted in buckets of powers of two
+ * microseconds. Recording is lock free; a percentile is reported as the upper
+ * bound of its bucket, so it is off by less than a factor of two.
+ *
+ */
+class HDFSLatencyHistogram {
+    /** bucket i holds the latencies below 2^i microseconds */
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLong fileSystemCalls = new AtomicLong();
+
+    /**
+     * record a call of the operation
+     *
+     * @param nanos
+     *            the time the call took in nanoseconds
+     * @param calls
+     *            the number of Hadoop filesystem calls made
+     */
+    void record(final long nanos, final int calls) {
+        long micros = nanos / 1000;
+        int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+        buckets.incrementAndGet(bucket);
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        if (calls > 0) {
+            fileSystemCalls.addAndGet(calls);
+        }
+        long max = maxNanos.get();
+        while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+    long getCount() {
+        return count.get();
+    }
+
+    long getFileSystemCalls() {
+        return fileSystemCalls.get();
+    }
+
+    long getMeanMicros() {
+        long n = count.get();
+        return n == 0 ? 0 : totalNanos.get() / n / 1000;
+    }
+
+    long getMaxMicros() {
+        return maxNanos.get() / 1000;
+    }
+
+    /**
+     * get a percentile of the latencies
+     *
+     * @param quantile
+     *            the fraction of calls, e.g. 0.99
+     * @return the upper bound in microseconds of the bucket holding the
+     *         percentile, or 0 if nothing has been recorded
+     */
+    long getPercentileMicros(final double quantile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(quantile * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank && snapshot[i] > 0) {
+                return Math.min((1L << i) - 1, getMaxMicros());
+            }
+        }
+        return getMaxMicros();
+    }
+}
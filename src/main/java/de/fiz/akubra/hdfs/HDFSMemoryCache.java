@@ -0,0 +1,377 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A size bounded LRU cache of the content of tiny blobs in memory outside the
+ * Java heap, shared by all connections of a {@link HDFSBlobStore}. The content
+ * is kept in fixed size blocks of a single direct buffer allocated up front,
+ * so the cache adds neither garbage nor heap to collect. Like the
+ * {@link HDFSReadCache} a blob is cached once it has been read completely and
+ * changes made through this store remove it, discarding the copies being
+ * populated of the blobs sharing its stripe of ids.
+ * <p>
+ * A cached blob is counted as in use by every stream reading it, so its
+ * blocks are only reused after the last reader has been closed.
+ *
+ */
+class HDFSMemoryCache {
+    /**
+     * the size of the blocks the memory is divided into
+     */
+    static final int BLOCK_SIZE = 512;
+
+    private static final int[] NO_BLOCKS = new int[0];
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final ByteBuffer arena;
+    private final int maxBlobSize;
+    private final int[] free;
+    private int freeCount;
+    private final Map<URI, Entry> entries = new LinkedHashMap<URI, Entry>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    /**
+     * create a new {@link HDFSMemoryCache} and allocate its memory
+     *
+     * @param maxSize
+     *            the number of bytes of memory, rounded down to whole blocks
+     * @param maxBlobSize
+     *            the size of the largest blob cached
+     */
+    HDFSMemoryCache(final long maxSize, final int maxBlobSize) {
+        int blocks = (int) Math.min(maxSize / BLOCK_SIZE, Integer.MAX_VALUE / BLOCK_SIZE);
+        this.arena = ByteBuffer.allocateDirect(blocks * BLOCK_SIZE);
+        this.maxBlobSize = (int) Math.min(maxBlobSize, (long) blocks * BLOCK_SIZE);
+        this.free = new int[blocks];
+        for (int i = 0; i < blocks; i++) {
+            free[i] = blocks - 1 - i;
+        }
+        this.freeCount = blocks;
+    }
+
+    /**
+     * open a cached blob
+     *
+     * @param uri
+     *            the blob's id
+     * @return an {@link InputStream} reading the content from memory or null
+     *         if the blob is not cached
+     */
+    InputStream open(final URI uri) {
+        Entry e;
+        synchronized (this) {
+            e = entries.get(uri);
+            if (e != null) {
+                e.refs++;
+            }
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new EntryInputStream(e);
+    }
+
+    /**
+     * wrap the stream of a blob read from a slower tier, so that its content
+     * is cached as it is read if it is small enough
+     *
+     * @param uri
+     *            the blob's id
+     * @param in
+     *            the {@link InputStream} reading the blob
+     * @return the {@link InputStream} to be handed out
+     */
+    InputStream populate(final URI uri, final InputStream in) {
+        long gen;
+        synchronized (this) {
+            gen = generations[stripe(uri)];
+        }
+        return new PopulatingInputStream(in, uri, gen);
+    }
+
+    /**
+     * remove a blob which has been changed through this store
+     *
+     * @param uri
+     *            the blob's id
+     */
+    synchronized void invalidate(final URI uri) {
+        generations[stripe(uri)]++;
+        Entry e = entries.remove(uri);
+        if (e != null) {
+            release(e);
+        }
+    }
+
+    /*
+     * copy a completely read blob into free blocks, evicting the least
+     * recently read blobs as needed
+     */
+    private synchronized void put(final URI uri, final byte[] data, final int length, final long gen) {
+        int needed = (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+        if (gen != generations[stripe(uri)] || entries.containsKey(uri) || needed > free.length) {
+            return;
+        }
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (freeCount < needed && eldest.hasNext()) {
+            Entry e = eldest.next();
+            eldest.remove();
+            release(e);
+        }
+        if (freeCount < needed) {
+            // the remaining memory is held by open streams
+            return;
+        }
+        int[] blocks = needed == 0 ? NO_BLOCKS : new int[needed];
+        ByteBuffer view = arena.duplicate();
+        for (int i = 0; i < needed; i++) {
+            blocks[i] = free[--freeCount];
+            view.position(blocks[i] * BLOCK_SIZE);
+            view.put(data, i * BLOCK_SIZE, Math.min(BLOCK_SIZE, length - i * BLOCK_SIZE));
+        }
+        entries.put(uri, new Entry(blocks, length));
+    }
+
+    private synchronized void release(final Entry e) {
+        if (--e.refs == 0) {
+            for (int block : e.blocks) {
+                free[freeCount++] = block;
+            }
+        }
+    }
+
+    /**
+     * get the number of bytes of memory held by cached blobs and open streams
+     *
+     * @return the size of the used blocks
+     */
+    synchronized long getSize() {
+        return (long) (free.length - freeCount) * BLOCK_SIZE;
+    }
+
+    /**
+     * get the size of the largest blob cached
+     *
+     * @return the size in bytes
+     */
+    int getMaxBlobSize() {
+        return maxBlobSize;
+    }
+
+    /**
+     * get the number of reads served from memory
+     *
+     * @return the number of hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * get the number of reads which had to go to a slower tier
+     *
+     * @return the number of misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    private static int stripe(final URI uri) {
+        return (uri.toASCIIString().hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private static class Entry {
+        private final int[] blocks;
+        private final int length;
+        // the cache's own reference and one per open stream
+        private int refs = 1;
+
+        private Entry(final int[] blocks, final int length) {
+            this.blocks = blocks;
+            this.length = length;
+        }
+    }
+
+    /*
+     * reads the blocks of an entry, which are not reused before it is closed
+     */
+    private class EntryInputStream extends InputStream {
+        private final ByteBuffer view = arena.duplicate();
+        private Entry entry;
+        private int pos = 0;
+
+        private EntryInputStream(final Entry entry) {
+            this.entry = entry;
+        }
+
+        private Entry entry() throws IOException {
+            if (entry == null) {
+                throw new IOException("Stream is closed");
+            }
+            return entry;
+        }
+
+        @Override
+        public int read() throws IOException {
+            Entry e = entry();
+            if (pos >= e.length) {
+                return -1;
+            }
+            int b = view.get(e.blocks[pos / BLOCK_SIZE] * BLOCK_SIZE + pos % BLOCK_SIZE) & 0xff;
+            pos++;
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            Entry e = entry();
+            if (len == 0) {
+                return 0;
+            }
+            if (pos >= e.length) {
+                return -1;
+            }
+            int n = Math.min(len, e.length - pos);
+            int done = 0;
+            while (done < n) {
+                int offset = pos % BLOCK_SIZE;
+                int chunk = Math.min(n - done, BLOCK_SIZE - offset);
+                view.position(e.blocks[pos / BLOCK_SIZE] * BLOCK_SIZE + offset);
+                view.get(b, off + done, chunk);
+                done += chunk;
+                pos += chunk;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            Entry e = entry();
+            int skipped = (int) Math.max(0, Math.min(n, e.length - pos));
+            pos += skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return entry().length - pos;
+        }
+
+        @Override
+        public void close() {
+            if (entry != null) {
+                release(entry);
+                entry = null;
+            }
+        }
+    }
+
+    /*
+     * collects the content of a tiny blob on the heap while it is read and
+     * copies it into the cache when the end of the blob is reached
+     */
+    private class PopulatingInputStream extends FilterInputStream {
+        private final URI uri;
+        private final long gen;
+        private byte[] copy = new byte[Math.min(maxBlobSize, BLOCK_SIZE)];
+        private int count = 0;
+        private boolean complete = false;
+
+        private PopulatingInputStream(final InputStream in, final URI uri, final long gen) {
+            super(in);
+            this.uri = uri;
+            this.gen = gen;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                complete = true;
+            } else {
+                copy(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1) {
+                complete = true;
+            } else {
+                copy(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            copy = null;
+            return in.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void copy(final byte[] b, final int off, final int len) {
+            if (copy == null) {
+                return;
+            }
+            if (count + len > maxBlobSize) {
+                copy = null;
+                return;
+            }
+            if (count + len > copy.length) {
+                byte[] grown = new byte[Math.min(maxBlobSize, Math.max(count + len, copy.length * 2))];
+                System.arraycopy(copy, 0, grown, 0, count);
+                copy = grown;
+            }
+            System.arraycopy(b, off, copy, count, len);
+            count += len;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                if (copy != null && complete) {
+                    put(uri, copy, count, gen);
+                }
+                copy = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps a small map of properties per blob, like the digest of its content or
+ * the codec it is compressed with.
+ * The properties are stored as records of a {@link HDFSPackStore}, so writing
+ * them costs no extra Hadoop file per blob. They follow the blob when it is
+ * moved and are removed with it.
+ * <p>
+ * The records of compressed blobs are tagged in the pack index, so the blobs
+ * stored as written are told apart without reading their records. The decoded
+ * records of recently used compressed blobs are kept in a bounded LRU cache.
+ * A record is only cached after being read if no record has been changed
+ * since the read started, so a read overtaken by a change cannot cache a
+ * stale record.
+ *
+ */
+class HDFSMetadataStore {
+    /**
+     * the number of bytes written to the blob
+     */
+    static final String SIZE = "size";
+    /**
+     * the name of the {@link java.security.MessageDigest} algorithm
+     */
+    static final String DIGEST_ALGORITHM = "digest.algorithm";
+    /**
+     * the hex encoded digest of the blob's content
+     */
+    static final String DIGEST = "digest";
+    /**
+     * the name of the {@link HDFSCompression} the blob's content is stored
+     * with, absent if it is stored as written
+     */
+    static final String COMPRESSION = "compression";
+    /**
+     * the number of bytes stored for compressed content, which tells if the
+     * record describes the content it is found with
+     */
+    static final String STORED_SIZE = "size.stored";
+
+    private static final int DEFAULT_CACHE_SIZE = 4096;
+
+    private final HDFSPackStore records;
+    private final Map<URI, Map<String, String>> compressed;
+    private long generation;
+
+    /**
+     * create a new {@link HDFSMetadataStore}
+     *
+     * @param records
+     *            the opened {@link HDFSPackStore} holding the records
+     */
+    HDFSMetadataStore(final HDFSPackStore records) {
+        this(records, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * create a new {@link HDFSMetadataStore}
+     *
+     * @param records
+     *            the opened {@link HDFSPackStore} holding the records
+     * @param cacheSize
+     *            the maximum number of records of compressed blobs kept in
+     *            memory
+     */
+    HDFSMetadataStore(final HDFSPackStore records, final int cacheSize) {
+        this.records = records;
+        this.compressed = new LinkedHashMap<URI, Map<String, String>>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<URI, Map<String, String>> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * get the properties of a blob whose content is compressed. Blobs
+     * whose content is stored as written are told apart without reading from
+     * the Hadoop filesystem.
+     *
+     * @param uri
+     *            the blob's id
+     * @return the unmodifiable properties, holding the {@link #COMPRESSION},
+     *         the uncompressed {@link #SIZE} and the {@link #STORED_SIZE}, or
+     *         null if the content is stored as written
+     * @throws IOException
+     *             if the record could not be read
+     */
+    Map<String, String> getCompressed(final URI uri) throws IOException {
+        if (!records.isTagged(uri)) {
+            return null;
+        }
+        long read;
+        synchronized (compressed) {
+            Map<String, String> properties = compressed.get(uri);
+            if (properties != null) {
+                return properties;
+            }
+            read = generation;
+        }
+        Map<String, String> properties = get(uri);
+        if (properties == null || !properties.containsKey(COMPRESSION)) {
+            return null;
+        }
+        properties = Collections.unmodifiableMap(properties);
+        synchronized (compressed) {
+            if (generation == read) {
+                compressed.put(uri, properties);
+            }
+        }
+        return properties;
+    }
+
+    /**
+     * get the properties of a blob
+     *
+     * @param uri
+     *            the blob's id
+     * @return the properties or null if none are stored
+     * @throws IOException
+     *             if the record could not be read
+     */
+    Map<String, String> get(final URI uri) throws IOException {
+        InputStream in = records.open(uri);
+        if (in == null) {
+            return null;
+        }
+        DataInputStream data = new DataInputStream(in);
+        try {
+            int count = data.readInt();
+            Map<String, String> properties = new HashMap<String, String>(count * 2);
+            for (int i = 0; i < count; i++) {
+                properties.put(data.readUTF(), data.readUTF());
+            }
+            return properties;
+        } finally {
+            data.close();
+        }
+    }
+
+    /**
+     * replace the properties of a blob
+     *
+     * @param uri
+     *            the blob's id
+     * @param properties
+     *            the new properties
+     * @throws IOException
+     *             if the record could not be written
+     */
+    void put(final URI uri, final Map<String, String> properties) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(bytes);
+        data.writeInt(properties.size());
+        for (Map.Entry<String, String> e : properties.entrySet()) {
+            data.writeUTF(e.getKey());
+            data.writeUTF(e.getValue());
+        }
+        data.close();
+        try {
+            records.put(uri, bytes.toByteArray(), properties.containsKey(COMPRESSION));
+        } finally {
+            changed(uri);
+        }
+    }
+
+    /**
+     * remove the properties of a deleted blob
+     *
+     * @param uri
+     *            the blob's id
+     * @throws IOException
+     *             if the record could not be written
+     */
+    void delete(final URI uri) throws IOException {
+        try {
+            records.delete(uri);
+        } finally {
+            changed(uri);
+        }
+    }
+
+    /**
+     * let the properties follow a moved blob
+     *
+     * @param from
+     *            the old id
+     * @param to
+     *            the new id
+     * @throws IOException
+     *             if the record could not be written
+     */
+    void move(final URI from, final URI to) throws IOException {
+        try {
+            if (!records.move(from, to)) {
+                records.delete(to);
+            }
+        } finally {
+            changed(from);
+            changed(to);
+        }
+    }
+
+    /*
+     * drop the cached record of a blob whose record has changed, and keep
+     * reads which started before from caching the record they read
+     */
+    private void changed(final URI uri) {
+        synchronized (compressed) {
+            generation++;
+            compressed.remove(uri);
+        }
+    }
+
+    /**
+     * close the underlying {@link HDFSPackStore}
+     *
+     * @throws IOException
+     *             if the records could not be closed
+     */
+    void close() throws IOException {
+        records.close();
+    }
+
+    /**
+     * get the {@link HDFSPackStore} holding the records
+     *
+     * @return the records
+     */
+    HDFSPackStore getRecords() {
+        return records;
+    }
+}
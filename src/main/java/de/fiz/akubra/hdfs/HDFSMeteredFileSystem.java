@@ -0,0 +1,43 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import org.apache.hadoop.fs.FileSystem;
+
+/**
+ * The {@link FileSystem} of a store with metrics enabled. The calls reaching
+ * the wrapped {@link FileSystem} are charged to the operation running on the
+ * calling thread, see {@link HDFSOperationTimer}.
+ *
+ */
+class HDFSMeteredFileSystem extends HDFSCountingFileSystem {
+
+    /**
+     * create a new {@link HDFSMeteredFileSystem}
+     *
+     * @param fs
+     *            the {@link FileSystem} to wrap
+     */
+    HDFSMeteredFileSystem(final FileSystem fs) {
+        super(fs);
+    }
+
+    @Override
+    void count(final String operation) {
+        HDFSOperationTimer.countCall();
+    }
+}
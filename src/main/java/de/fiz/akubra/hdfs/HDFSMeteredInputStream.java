@@ -0,0 +1,76 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The {@link InputStream} of a blob of a store with metrics enabled. It
+ * reports the bytes read and counts as an open stream until it is closed.
+ *
+ */
+class HDFSMeteredInputStream extends FilterInputStream {
+    private final HDFSMetricsRegistry metrics;
+    private boolean closed = false;
+
+    /**
+     * create a new {@link HDFSMeteredInputStream}
+     *
+     * @param in
+     *            the stream of the blob's content
+     * @param metrics
+     *            the {@link HDFSMetricsRegistry} to report to
+     */
+    HDFSMeteredInputStream(final InputStream in, final HDFSMetricsRegistry metrics) {
+        super(in);
+        this.metrics = metrics;
+        metrics.streamOpened();
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            metrics.bytesRead(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            metrics.bytesRead(n);
+        }
+        return n;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            in.close();
+        } finally {
+            metrics.streamClosed();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The default {@link HDFSMetricsRegistry}, which keeps a latency histogram per
+ * operation in memory. A {@link HDFSBlobStore} publishes it via JMX as
+ * {@link HDFSMetricsMXBean}.
+ *
+ */
+public class HDFSMetrics implements HDFSMetricsRegistry, HDFSMetricsMXBean {
+    private final ConcurrentMap<String, HDFSLatencyHistogram> operations = new ConcurrentHashMap<String, HDFSLatencyHistogram>();
+    private final AtomicLong bytesRead = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong openStreams = new AtomicLong();
+
+    public void operation(final String operation, final long nanos, final int fileSystemCalls) {
+        HDFSLatencyHistogram histogram = operations.get(operation);
+        if (histogram == null) {
+            HDFSLatencyHistogram created = new HDFSLatencyHistogram();
+            histogram = operations.putIfAbsent(operation, created);
+            if (histogram == null) {
+                histogram = created;
+            }
+        }
+        histogram.record(nanos, fileSystemCalls);
+    }
+
+    public void bytesRead(final long bytes) {
+        bytesRead.addAndGet(bytes);
+    }
+
+    public void bytesWritten(final long bytes) {
+        bytesWritten.addAndGet(bytes);
+    }
+
+    public void streamOpened() {
+        openStreams.incrementAndGet();
+    }
+
+    public void streamClosed() {
+        openStreams.decrementAndGet();
+    }
+
+    /**
+     * get the number of calls of an operation
+     *
+     * @param operation
+     *            the name of the operation
+     * @return the number of calls since the last {@link #reset()}
+     */
+    public long getCount(final String operation) {
+        HDFSLatencyHistogram histogram = operations.get(operation);
+        return histogram == null ? 0 : histogram.getCount();
+    }
+
+    /**
+     * get the number of Hadoop filesystem calls made by an operation
+     *
+     * @param operation
+     *            the name of the operation
+     * @return the number of filesystem calls since the last {@link #reset()}
+     */
+    public long getFileSystemCalls(final String operation) {
+        HDFSLatencyHistogram histogram = operations.get(operation);
+        return histogram == null ? 0 : histogram.getFileSystemCalls();
+    }
+
+    /**
+     * get a percentile of the latency of an operation
+     *
+     * @param operation
+     *            the name of the operation
+     * @param quantile
+     *            the fraction of the calls, e.g. 0.99
+     * @return the latency in microseconds the fraction of the calls stayed
+     *         below, accurate to a factor of two
+     */
+    public long getPercentileLatency(final String operation, final double quantile) {
+        HDFSLatencyHistogram histogram = operations.get(operation);
+        return histogram == null ? 0 : histogram.getPercentileMicros(quantile);
+    }
+
+    public Map<String, Long> getCounts() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, HDFSLatencyHistogram> e : operations.entrySet()) {
+            result.put(e.getKey(), e.getValue().getCount());
+        }
+        return result;
+    }
+
+    public Map<String, Long> getMeanLatencies() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, HDFSLatencyHistogram> e : operations.entrySet()) {
+            result.put(e.getKey(), e.getValue().getMeanMicros());
+        }
+        return result;
+    }
+
+    public Map<String, Long> getMedianLatencies() {
+        return getPercentileLatencies(0.5);
+    }
+
+    public Map<String, Long> get99thPercentileLatencies() {
+        return getPercentileLatencies(0.99);
+    }
+
+    private Map<String, Long> getPercentileLatencies(final double quantile) {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, HDFSLatencyHistogram> e : operations.entrySet()) {
+            result.put(e.getKey(), e.getValue().getPercentileMicros(quantile));
+        }
+        return result;
+    }
+
+    public Map<String, Long> getMaxLatencies() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, HDFSLatencyHistogram> e : operations.entrySet()) {
+            result.put(e.getKey(), e.getValue().getMaxMicros());
+        }
+        return result;
+    }
+
+    public Map<String, Long> getFileSystemCalls() {
+        Map<String, Long> result = new TreeMap<String, Long>();
+        for (Map.Entry<String, HDFSLatencyHistogram> e : operations.entrySet()) {
+            result.put(e.getKey(), e.getValue().getFileSystemCalls());
+        }
+        return result;
+    }
+
+    public long getBytesRead() {
+        return bytesRead.get();
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten.get();
+    }
+
+    public long getOpenStreams() {
+        return openStreams.get();
+    }
+
+    public void reset() {
+        operations.clear();
+        bytesRead.set(0);
+        bytesWritten.set(0);
+    }
+}
@@ -0,0 +1,99 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.util.Map;
+
+/**
+ * The management interface a {@link HDFSBlobStore} publishes its metrics
+ * with. The maps are keyed by the operation names of
+ * {@link HDFSMetricsRegistry}; latencies are given in microseconds.
+ *
+ */
+public interface HDFSMetricsMXBean {
+
+    /**
+     * get the number of calls per operation
+     *
+     * @return the operations mapped to their number of calls
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * get the mean latency per operation
+     *
+     * @return the operations mapped to their mean latency
+     */
+    Map<String, Long> getMeanLatencies();
+
+    /**
+     * get the median latency per operation
+     *
+     * @return the operations mapped to their median latency
+     */
+    Map<String, Long> getMedianLatencies();
+
+    /**
+     * get the 99th percentile of the latency per operation
+     *
+     * @return the operations mapped to the latency 99% of the calls stayed
+     *         below
+     */
+    Map<String, Long> get99thPercentileLatencies();
+
+    /**
+     * get the maximum latency per operation
+     *
+     * @return the operations mapped to their maximum latency
+     */
+    Map<String, Long> getMaxLatencies();
+
+    /**
+     * get the number of Hadoop filesystem calls per operation
+     *
+     * @return the operations mapped to the number of filesystem calls made by
+     *         all their calls
+     */
+    Map<String, Long> getFileSystemCalls();
+
+    /**
+     * get the number of bytes read from blobs
+     *
+     * @return the number of bytes
+     */
+    long getBytesRead();
+
+    /**
+     * get the number of bytes written to blobs
+     *
+     * @return the number of bytes
+     */
+    long getBytesWritten();
+
+    /**
+     * get the number of open input and output streams of blobs
+     *
+     * @return the number of streams
+     */
+    long getOpenStreams();
+
+    /**
+     * set the counters of the operations and the byte counters to zero. The
+     * number of open streams is kept.
+     */
+    void reset();
+}
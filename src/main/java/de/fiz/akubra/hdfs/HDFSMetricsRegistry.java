@@ -0,0 +1,99 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+/**
+ * Receives the measurements of a {@link HDFSBlobStore}, see
+ * {@link HDFSBlobStore#setMetricsRegistry(HDFSMetricsRegistry)}. The methods
+ * are called on the threads running the operations, so they have to be
+ * thread safe and should not block. {@link HDFSMetrics} is the default
+ * implementation; an adapter to another metrics library implements this
+ * interface.
+ *
+ */
+public interface HDFSMetricsRegistry {
+    /** {@link org.akubraproject.BlobStoreConnection#getBlob(java.net.URI, java.util.Map)} */
+    String GET_BLOB = "getBlob";
+    /**
+     * {@link org.akubraproject.BlobStoreConnection#getBlob(java.io.InputStream, long, java.util.Map)},
+     * including the transfer of the content
+     */
+    String CREATE_BLOB = "createBlob";
+    /** {@link org.akubraproject.Blob#exists()} */
+    String EXISTS = "exists";
+    /** {@link org.akubraproject.Blob#getSize()} */
+    String GET_SIZE = "getSize";
+    /**
+     * {@link org.akubraproject.Blob#openInputStream()} and
+     * {@link HDFSRandomAccessBlob#openInputStream(long, long)}
+     */
+    String OPEN_INPUT_STREAM = "openInputStream";
+    /** {@link HDFSRandomAccessBlob#read(long, byte[], int, int)} */
+    String READ = "read";
+    /** {@link org.akubraproject.Blob#openOutputStream(long, boolean)} */
+    String OPEN_OUTPUT_STREAM = "openOutputStream";
+    /** {@link org.akubraproject.Blob#moveTo(java.net.URI, java.util.Map)} */
+    String MOVE_TO = "moveTo";
+    /** {@link org.akubraproject.Blob#delete()} */
+    String DELETE = "delete";
+    /**
+     * {@link org.akubraproject.BlobStoreConnection#listBlobIds(String)}. Only
+     * setting up the listing is measured, the directories are listed while
+     * the ids are iterated.
+     */
+    String LIST_BLOB_IDS = "listBlobIds";
+
+    /**
+     * record a finished operation
+     *
+     * @param operation
+     *            the name of the operation, one of the constants of this
+     *            interface
+     * @param nanos
+     *            the time the operation took in nanoseconds
+     * @param fileSystemCalls
+     *            the number of calls of the Hadoop filesystem the operation
+     *            made on its own thread
+     */
+    void operation(String operation, long nanos, int fileSystemCalls);
+
+    /**
+     * record content read from a blob
+     *
+     * @param bytes
+     *            the number of bytes
+     */
+    void bytesRead(long bytes);
+
+    /**
+     * record content written to a blob, reported when the stream is closed
+     *
+     * @param bytes
+     *            the number of bytes
+     */
+    void bytesWritten(long bytes);
+
+    /**
+     * record that a blob's input or output stream has been opened
+     */
+    void streamOpened();
+
+    /**
+     * record that a blob's input or output stream has been closed
+     */
+    void streamClosed();
+}
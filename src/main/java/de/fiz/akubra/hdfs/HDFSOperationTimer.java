@@ -0,0 +1,99 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import org.apache.hadoop.fs.FileSystem;
+
+/**
+ * Measures one call of an Akubra operation for a {@link HDFSMetricsRegistry}.
+ * The calls of the Hadoop filesystem are counted per thread by
+ * {@link HDFSMeteredFileSystem}, so an operation is charged with the calls made
+ * on its own thread between {@link #start(HDFSMetricsRegistry, String)} and
+ * {@link #stop(HDFSOperationTimer)}. An operation started while another one
+ * is running on the same thread, like opening the output stream of a new
+ * blob, is part of the outer one and is not recorded, so that no call is
+ * charged twice. Without a registry no timer is created and stopping it is a
+ * null check.
+ *
+ */
+final class HDFSOperationTimer {
+    private static final int CALLS = 0;
+    private static final int DEPTH = 1;
+    /** the calls made and the number of running operations per thread */
+    private static final ThreadLocal<int[]> calls = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[2];
+        }
+    };
+
+    private final HDFSMetricsRegistry registry;
+    private final String operation;
+    private final int[] counter;
+    private final int startCalls;
+    private final long startTime;
+    private final boolean outermost;
+
+    private HDFSOperationTimer(final HDFSMetricsRegistry registry, final String operation) {
+        this.registry = registry;
+        this.operation = operation;
+        this.counter = calls.get();
+        this.outermost = counter[DEPTH]++ == 0;
+        this.startCalls = counter[CALLS];
+        this.startTime = System.nanoTime();
+    }
+
+    /**
+     * start measuring an operation
+     *
+     * @param registry
+     *            the {@link HDFSMetricsRegistry} the measurement is recorded
+     *            in, may be null
+     * @param operation
+     *            the name of the operation
+     * @return the running timer or null if there is no registry
+     */
+    static HDFSOperationTimer start(final HDFSMetricsRegistry registry, final String operation) {
+        return registry == null ? null : new HDFSOperationTimer(registry, operation);
+    }
+
+    /**
+     * stop measuring an operation and record it unless it is part of an
+     * outer operation
+     *
+     * @param timer
+     *            the timer returned by
+     *            {@link #start(HDFSMetricsRegistry, String)}, may be null
+     */
+    static void stop(final HDFSOperationTimer timer) {
+        if (timer != null) {
+            timer.counter[DEPTH]--;
+            if (timer.outermost) {
+                timer.registry.operation(timer.operation, System.nanoTime() - timer.startTime, timer.counter[CALLS]
+                        - timer.startCalls);
+            }
+        }
+    }
+
+    /**
+     * count a call of the Hadoop {@link FileSystem} made by the current
+     * thread
+     */
+    static void countCall() {
+        calls.get()[CALLS]++;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The index of a {@link HDFSPackStore}, mapping the keys of the packed blobs
+ * to the location of their records.
+ * <p>
+ * A store holds millions of small blobs, so the index avoids an object per
+ * entry: it is an open addressing hash table of parallel arrays, keeping each
+ * key as its UTF-8 bytes, the container and offset of its record packed into
+ * one long and the record's length in an int, whose sign bit holds the tag of
+ * the record. The keys are kept rather than only their hashes since the
+ * packed blobs are listed and compacted by key.
+ *
+ */
+class HDFSPackIndex {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int OFFSET_BITS = 40;
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int TAGGED = Integer.MIN_VALUE;
+
+    private byte[][] keys;
+    private long[] locations;
+    private int[] lengths;
+    private int size;
+
+    /**
+     * the location of a record
+     */
+    static class Entry {
+        final int container;
+        final long offset;
+        final int length;
+        final boolean tagged;
+
+        Entry(final int container, final long offset, final int length) {
+            this(container, offset, length, false);
+        }
+
+        Entry(final int container, final long offset, final int length, final boolean tagged) {
+            if (offset > OFFSET_MASK) {
+                throw new IllegalArgumentException("offset " + offset + " exceeds the maximum container size");
+            }
+            this.container = container;
+            this.offset = offset;
+            this.length = length;
+            this.tagged = tagged;
+        }
+    }
+
+    /**
+     * create a new empty {@link HDFSPackIndex}
+     */
+    HDFSPackIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * get the number of keys
+     *
+     * @return the number of keys
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    /**
+     * remove all keys
+     */
+    synchronized void clear() {
+        keys = null;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * get the location of a key's record
+     *
+     * @param key
+     *            the key
+     * @return the {@link Entry} or null if the key is not indexed
+     */
+    synchronized Entry get(final String key) {
+        int slot = find(encode(key));
+        return slot < 0 ? null : entry(slot);
+    }
+
+    /**
+     * set the location of a key's record
+     *
+     * @param key
+     *            the key
+     * @param e
+     *            the new location
+     * @return the previous location or null
+     */
+    synchronized Entry put(final String key, final Entry e) {
+        if ((size + 1) * 4 > keys.length * 3) {
+            allocate(keys.length * 2);
+        }
+        byte[] k = encode(key);
+        int slot = find(k);
+        Entry old = null;
+        if (slot >= 0) {
+            old = entry(slot);
+        } else {
+            slot = -slot - 1;
+            keys[slot] = k;
+            size++;
+        }
+        locations[slot] = ((long) e.container << OFFSET_BITS) | e.offset;
+        lengths[slot] = e.tagged ? e.length | TAGGED : e.length;
+        return old;
+    }
+
+    /**
+     * remove a key
+     *
+     * @param key
+     *            the key
+     * @return the location of its record or null if it was not indexed
+     */
+    synchronized Entry remove(final String key) {
+        int slot = find(encode(key));
+        if (slot < 0) {
+            return null;
+        }
+        Entry old = entry(slot);
+        int mask = keys.length - 1;
+        // shift the following entries of the probe sequence into the gap
+        int gap = slot;
+        for (int i = (gap + 1) & mask; keys[i] != null; i = (i + 1) & mask) {
+            int home = hash(keys[i]) & mask;
+            if (((i - home) & mask) >= ((i - gap) & mask)) {
+                keys[gap] = keys[i];
+                locations[gap] = locations[i];
+                lengths[gap] = lengths[i];
+                gap = i;
+            }
+        }
+        keys[gap] = null;
+        size--;
+        return old;
+    }
+
+    /**
+     * get the keys of the records in a container
+     *
+     * @param container
+     *            the container's id
+     * @return the keys
+     */
+    synchronized List<String> keys(final int container) {
+        List<String> found = new ArrayList<String>();
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null && (int) (locations[i] >>> OFFSET_BITS) == container) {
+                found.add(new String(keys[i], UTF8));
+            }
+        }
+        return found;
+    }
+
+    /**
+     * get an {@link Iterator} over the keys. Only the references to the keys
+     * are copied, so it does not see later changes.
+     *
+     * @return the keys
+     */
+    Iterator<String> keys() {
+        final byte[][] snapshot;
+        synchronized (this) {
+            snapshot = keys.clone();
+        }
+        return new Iterator<String>() {
+            private int next = advance(0);
+
+            private int advance(final int from) {
+                int i = from;
+                while (i < snapshot.length && snapshot[i] == null) {
+                    i++;
+                }
+                return i;
+            }
+
+            public boolean hasNext() {
+                return next < snapshot.length;
+            }
+
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                String key = new String(snapshot[next], UTF8);
+                next = advance(next + 1);
+                return key;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("remove is not implemented");
+            }
+        };
+    }
+
+    /**
+     * write all entries
+     *
+     * @param out
+     *            the {@link DataOutput} to write to
+     * @throws IOException
+     *             if the entries could not be written
+     */
+    synchronized void write(final DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != null) {
+                out.writeInt(keys[i].length);
+                out.write(keys[i]);
+                out.writeLong(locations[i]);
+                out.writeInt(lengths[i]);
+            }
+        }
+    }
+
+    /**
+     * read entries written by {@link #write(DataOutput)}, replacing the
+     * current ones
+     *
+     * @param in
+     *            the {@link DataInput} to read from
+     * @throws IOException
+     *             if the entries could not be read
+     */
+    synchronized void read(final DataInput in) throws IOException {
+        int count = in.readInt();
+        int capacity = INITIAL_CAPACITY;
+        while (count * 4 > capacity * 3) {
+            capacity *= 2;
+        }
+        keys = null;
+        allocate(capacity);
+        for (int n = 0; n < count; n++) {
+            byte[] k = new byte[in.readInt()];
+            in.readFully(k);
+            int slot = -find(k) - 1;
+            keys[slot] = k;
+            locations[slot] = in.readLong();
+            lengths[slot] = in.readInt();
+            size++;
+        }
+    }
+
+    /*
+     * the slot holding the key, or -(free slot + 1) if it is not indexed
+     */
+    private int find(final byte[] k) {
+        int mask = keys.length - 1;
+        for (int i = hash(k) & mask;; i = (i + 1) & mask) {
+            if (keys[i] == null) {
+                return -i - 1;
+            }
+            if (Arrays.equals(keys[i], k)) {
+                return i;
+            }
+        }
+    }
+
+    private Entry entry(final int slot) {
+        return new Entry((int) (locations[slot] >>> OFFSET_BITS), locations[slot] & OFFSET_MASK, lengths[slot] & ~TAGGED,
+                (lengths[slot] & TAGGED) != 0);
+    }
+
+    /*
+     * rehash into tables of the given capacity, a power of two
+     */
+    private void allocate(final int capacity) {
+        byte[][] oldKeys = keys;
+        long[] oldLocations = locations;
+        int[] oldLengths = lengths;
+        keys = new byte[capacity][];
+        locations = new long[capacity];
+        lengths = new int[capacity];
+        size = 0;
+        if (oldKeys == null) {
+            return;
+        }
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = -find(oldKeys[i]) - 1;
+                keys[slot] = oldKeys[i];
+                locations[slot] = oldLocations[i];
+                lengths[slot] = oldLengths[i];
+                size++;
+            }
+        }
+    }
+
+    private static byte[] encode(final String key) {
+        return key.getBytes(UTF8);
+    }
+
+    private static int hash(final byte[] k) {
+        int h = Arrays.hashCode(k);
+        // spread the bits, the table uses the low ones
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+}
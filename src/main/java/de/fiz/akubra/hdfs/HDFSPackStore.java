@@ -0,0 +1,801 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import de.fiz.akubra.hdfs.HDFSPackIndex.Entry;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Stores small blobs as records in append-only container files instead of
+ * creating one Hadoop file per blob, which keeps the number of namenode
+ * objects low.
+ * <p>
+ * Every container is a log of PUT, DELETE and MOVE records. The location of
+ * each live blob is held in a compact in-memory {@link HDFSPackIndex}, along
+ * with a tag the writer of a PUT record may set. When
+ * the {@link HDFSPackStore} is closed, the index is written to a checkpoint
+ * file, so opening it only replays the records appended after the
+ * checkpoint. Without a usable checkpoint, the index is rebuilt by replaying
+ * all containers in ascending order.
+ * Only one container is open for writing at any time. The content of the
+ * records in that container is kept in memory as well, so reads never depend
+ * on the visibility of unclosed Hadoop files. Space occupied by deleted or
+ * overwritten records is reclaimed by {@link #compact(float)}.
+ * The index and the container ids are only known to this instance, so a
+ * directory must not be used by more than one {@link HDFSPackStore} at a time.
+ * <p>
+ * A record is synced before its write returns. The sync runs outside the
+ * container's lock, and writers appending while it runs share the next sync,
+ * so concurrent writers pay for one sync per round instead of one each.
+ *
+ */
+class HDFSPackStore {
+    static final String CONTAINER_PREFIX = "pack-";
+    static final String CHECKPOINT = "checkpoint";
+
+    private static final int CHECKPOINT_MAGIC = 0x414b5043;
+    private static final int RECORD_MAGIC = 0x414b5042;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final byte RECORD_MOVE = 3;
+    private static final byte RECORD_TAGGED_PUT = 4;
+    private static final Logger log = LoggerFactory.getLogger(HDFSPackStore.class);
+
+    private final FileSystem hdfs;
+    private final Path dir;
+    private final long containerSize;
+    private final HDFSPackIndex index = new HDFSPackIndex();
+    private final Map<Long, byte[]> activeData = new ConcurrentHashMap<Long, byte[]>();
+    private final SortedMap<Integer, Container> containers = new TreeMap<Integer, Container>();
+    private Container active;
+    /** the highest container id ever used, ids are never reused */
+    private int lastId = -1;
+    private volatile FSDataOutputStream activeOut;
+    /** the position of the active container after the last record */
+    private volatile long appended;
+    private final Object syncLock = new Object();
+    private FSDataOutputStream syncedOut;
+    private long syncedPos;
+    private final ThreadLocal<Integer> batches = new ThreadLocal<Integer>() {
+        @Override
+        protected Integer initialValue() {
+            return 0;
+        }
+    };
+
+    /**
+     * create a new {@link HDFSPackStore} in a directory of the Hadoop
+     * filesystem
+     *
+     * @param hdfs
+     *            the {@link FileSystem} holding the containers
+     * @param dir
+     *            the directory the containers are stored in
+     * @param containerSize
+     *            the size in bytes after which a new container is started
+     */
+    HDFSPackStore(final FileSystem hdfs, final Path dir, final long containerSize) {
+        this.hdfs = hdfs;
+        this.dir = dir;
+        this.containerSize = containerSize;
+    }
+
+    /**
+     * rebuild the index from the checkpoint and the records appended after
+     * it, or by replaying all existing containers
+     *
+     * @throws IOException
+     *             if the containers could not be read
+     */
+    synchronized void open() throws IOException {
+        if (!hdfs.exists(dir)) {
+            hdfs.mkdirs(dir);
+        }
+        SortedMap<Integer, Long> lengths = new TreeMap<Integer, Long>();
+        for (FileStatus stat : hdfs.listStatus(dir)) {
+            String name = stat.getPath().getName();
+            if (!stat.isDir() && name.startsWith(CONTAINER_PREFIX)) {
+                lengths.put(Integer.parseInt(name.substring(CONTAINER_PREFIX.length())), stat.getLen());
+            }
+        }
+        Map<Integer, Container> checkpointed = readCheckpoint(lengths);
+        if (checkpointed == null) {
+            index.clear();
+            checkpointed = Collections.emptyMap();
+        }
+        for (Map.Entry<Integer, Long> file : lengths.entrySet()) {
+            int id = file.getKey();
+            Container c = checkpointed.get(id);
+            lastId = Math.max(lastId, id);
+            if (c == null) {
+                // the listed length of an unclosed container may lag behind
+                c = new Container(id);
+                containers.put(id, c);
+                replay(c);
+            } else {
+                containers.put(id, c);
+                if (c.length < file.getValue()) {
+                    replay(c);
+                }
+            }
+        }
+        log.debug("opened pack store at " + dir + " with " + index.size() + " blobs in " + containers.size() + " containers, "
+                + checkpointed.size() + " of them checkpointed");
+    }
+
+    /*
+     * load the index from the checkpoint, returning the containers it covers
+     * or null if there is no usable checkpoint. Entries of containers removed
+     * by a compaction since are dropped, their live records have been copied
+     * to containers which are replayed.
+     */
+    private Map<Integer, Container> readCheckpoint(final Map<Integer, Long> lengths) throws IOException {
+        Path path = new Path(dir, CHECKPOINT);
+        if (!hdfs.exists(path)) {
+            return null;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(hdfs.open(path)));
+        try {
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                log.warn("corrupt checkpoint " + path + ", replaying all containers");
+                return null;
+            }
+            lastId = in.readInt();
+            Map<Integer, Container> checkpointed = new HashMap<Integer, Container>();
+            List<Integer> removed = new ArrayList<Integer>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Container c = new Container(in.readInt());
+                c.length = in.readLong();
+                c.live = in.readLong();
+                c.oldestReference = in.readInt();
+                Long length = lengths.get(c.id);
+                if (length != null) {
+                    if (length < c.length) {
+                        log.warn("container " + containerPath(c.id) + " is shorter than checkpointed, replaying all containers");
+                        return null;
+                    }
+                    checkpointed.put(c.id, c);
+                } else {
+                    removed.add(c.id);
+                }
+            }
+            for (Integer id : lengths.keySet()) {
+                if (id <= lastId && !checkpointed.containsKey(id)) {
+                    log.warn("container " + containerPath(id) + " is missing from the checkpoint, replaying all containers");
+                    return null;
+                }
+            }
+            index.read(in);
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                log.warn("corrupt checkpoint " + path + ", replaying all containers");
+                return null;
+            }
+            for (Integer id : removed) {
+                for (String key : index.keys(id)) {
+                    index.remove(key);
+                }
+            }
+            return checkpointed;
+        } catch (EOFException e) {
+            log.warn("truncated checkpoint " + path + ", replaying all containers");
+            return null;
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /*
+     * write the index and the state of the containers to the checkpoint. The
+     * old checkpoint is removed first, so a crash in between leaves none.
+     */
+    private void writeCheckpoint() throws IOException {
+        Path path = new Path(dir, CHECKPOINT);
+        Path tmp = new Path(dir, CHECKPOINT + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(hdfs.create(tmp, true)));
+        try {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(lastId);
+            out.writeInt(containers.size());
+            for (Container c : containers.values()) {
+                out.writeInt(c.id);
+                out.writeLong(c.length);
+                out.writeLong(c.live);
+                out.writeInt(c.oldestReference);
+            }
+            index.write(out);
+            out.writeInt(CHECKPOINT_MAGIC);
+        } finally {
+            out.close();
+        }
+        hdfs.delete(path, false);
+        if (!hdfs.rename(tmp, path)) {
+            throw new IOException("unable to rename " + tmp + " to " + path);
+        }
+    }
+
+    private void replay(final Container c) throws IOException {
+        FSDataInputStream in = hdfs.open(containerPath(c.id));
+        try {
+            in.seek(c.length);
+            while (true) {
+                if (in.readInt() != RECORD_MAGIC) {
+                    log.warn("corrupt record in " + containerPath(c.id) + " at " + (in.getPos() - 4) + ", ignoring the rest");
+                    break;
+                }
+                byte type = in.readByte();
+                String key = in.readUTF();
+                if (type == RECORD_PUT || type == RECORD_TAGGED_PUT) {
+                    int length = in.readInt();
+                    long offset = in.getPos();
+                    in.seek(offset + length);
+                    add(key, new Entry(c.id, offset, length, type == RECORD_TAGGED_PUT));
+                } else if (type == RECORD_DELETE) {
+                    reference(c, index.get(key));
+                    remove(key);
+                } else if (type == RECORD_MOVE) {
+                    String target = in.readUTF();
+                    Entry e = index.get(key);
+                    if (e != null) {
+                        reference(c, e);
+                        remove(target);
+                        index.put(target, index.remove(key));
+                    }
+                }
+                c.length = in.getPos();
+            }
+        } catch (EOFException e) {
+            // a truncated record at the end of a container is the remainder
+            // of an interrupted write and is not part of the store
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * check if a blob is stored in a container
+     *
+     * @param uri
+     *            the blob's id
+     * @return true if the blob is packed
+     */
+    boolean contains(final URI uri) {
+        return index.get(uri.toASCIIString()) != null;
+    }
+
+    /**
+     * check if a blob is stored in a record which has been tagged when it was
+     * put
+     *
+     * @param uri
+     *            the blob's id
+     * @return true if the blob is packed in a tagged record
+     */
+    boolean isTagged(final URI uri) {
+        Entry e = index.get(uri.toASCIIString());
+        return e != null && e.tagged;
+    }
+
+    /**
+     * get the size of a packed blob
+     *
+     * @param uri
+     *            the blob's id
+     * @return the size of the blob or -1 if the blob is not packed
+     */
+    long getSize(final URI uri) {
+        Entry e = index.get(uri.toASCIIString());
+        return e == null ? -1 : e.length;
+    }
+
+    /**
+     * open an {@link InputStream} on a packed blob
+     *
+     * @param uri
+     *            the blob's id
+     * @return an {@link InputStream} or null if the blob is not packed
+     * @throws IOException
+     *             if the container could not be read
+     */
+    InputStream open(final URI uri) throws IOException {
+        return open(uri, 0, -1);
+    }
+
+    /**
+     * open an {@link InputStream} on a range of a packed blob. Only the
+     * requested bytes are read from the container.
+     *
+     * @param uri
+     *            the blob's id
+     * @param offset
+     *            the position of the first byte
+     * @param length
+     *            the maximum number of bytes or -1 to read to the end
+     * @return an {@link InputStream} or null if the blob is not packed
+     * @throws IOException
+     *             if the container could not be read
+     */
+    InputStream open(final URI uri, final long offset, final long length) throws IOException {
+        Entry e = index.get(uri.toASCIIString());
+        if (e == null) {
+            return null;
+        }
+        try {
+            return new ByteArrayInputStream(read(e, offset, length));
+        } catch (FileNotFoundException fnf) {
+            // the container has been compacted in the meantime
+            e = index.get(uri.toASCIIString());
+            return e == null ? null : new ByteArrayInputStream(read(e, offset, length));
+        }
+    }
+
+    private byte[] read(final Entry e) throws IOException {
+        return read(e, 0, -1);
+    }
+
+    private byte[] read(final Entry e, final long offset, final long length) throws IOException {
+        int start = (int) Math.min(offset, e.length);
+        int count = (int) (length < 0 ? e.length - start : Math.min(length, e.length - start));
+        synchronized (this) {
+            if (active != null && e.container == active.id) {
+                byte[] record = activeData.get(e.offset);
+                if (start == 0 && count == record.length) {
+                    return record;
+                }
+                byte[] data = new byte[count];
+                System.arraycopy(record, start, data, 0, count);
+                return data;
+            }
+        }
+        byte[] data = new byte[count];
+        FSDataInputStream in = hdfs.open(containerPath(e.container));
+        try {
+            in.readFully(e.offset + start, data);
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return data;
+    }
+
+    /**
+     * store a blob in the active container, replacing any previous version
+     *
+     * @param uri
+     *            the blob's id
+     * @param data
+     *            the blob's content
+     * @throws IOException
+     *             if the record could not be written
+     */
+    void put(final URI uri, final byte[] data) throws IOException {
+        put(uri, data, false);
+    }
+
+    /**
+     * store a blob in the active container, replacing any previous version.
+     * The tag is kept in the index, so it is told by {@link #isTagged(URI)}
+     * without reading the record.
+     *
+     * @param uri
+     *            the blob's id
+     * @param data
+     *            the blob's content
+     * @param tagged
+     *            true to tag the record
+     * @throws IOException
+     *             if the record could not be written
+     */
+    void put(final URI uri, final byte[] data, final boolean tagged) throws IOException {
+        String key = uri.toASCIIString();
+        FSDataOutputStream out;
+        long end;
+        synchronized (this) {
+            add(key, append(tagged ? RECORD_TAGGED_PUT : RECORD_PUT, key, null, data));
+            out = activeOut;
+            end = appended;
+        }
+        durable(out, end);
+    }
+
+    /**
+     * delete a packed blob
+     *
+     * @param uri
+     *            the blob's id
+     * @return true if the blob was packed and has been deleted
+     * @throws IOException
+     *             if the record could not be written
+     */
+    boolean delete(final URI uri) throws IOException {
+        String key = uri.toASCIIString();
+        FSDataOutputStream out;
+        long end;
+        synchronized (this) {
+            Entry e = index.get(key);
+            if (e == null) {
+                return false;
+            }
+            append(RECORD_DELETE, key, null, null);
+            reference(active, e);
+            remove(key);
+            out = activeOut;
+            end = appended;
+        }
+        durable(out, end);
+        return true;
+    }
+
+    /**
+     * move a packed blob to a new id without copying its content
+     *
+     * @param from
+     *            the current id
+     * @param to
+     *            the new id
+     * @return true if the blob was packed and has been moved
+     * @throws IOException
+     *             if the record could not be written
+     */
+    boolean move(final URI from, final URI to) throws IOException {
+        String key = from.toASCIIString();
+        FSDataOutputStream out;
+        long end;
+        synchronized (this) {
+            Entry e = index.get(key);
+            if (e == null) {
+                return false;
+            }
+            String target = to.toASCIIString();
+            append(RECORD_MOVE, key, target, null);
+            reference(active, e);
+            remove(target);
+            index.put(target, index.remove(key));
+            out = activeOut;
+            end = appended;
+        }
+        durable(out, end);
+        return true;
+    }
+
+    /**
+     * get an {@link Iterator} over the ids of all packed blobs
+     *
+     * @return the ids of the packed blobs
+     */
+    Iterator<URI> ids() {
+        final Iterator<String> keys = index.keys();
+        return new Iterator<URI>() {
+            public boolean hasNext() {
+                return keys.hasNext();
+            }
+
+            public URI next() {
+                return URI.create(keys.next());
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("remove is not implemented");
+            }
+        };
+    }
+
+    /**
+     * reclaim the space of deleted records by copying the live records of
+     * sealed containers whose share of live data has dropped below the given
+     * ratio into the active container and removing the old container. Each
+     * container is read once from start to end without holding the lock, which
+     * is only taken to copy the records still live afterwards.
+     *
+     * @param liveRatio
+     *            containers with a smaller fraction of live bytes are compacted
+     * @return the number of containers removed
+     * @throws IOException
+     *             if a container could not be rewritten
+     */
+    int compact(final float liveRatio) throws IOException {
+        int removed = 0;
+        for (Container c : sealedContainers()) {
+            if (c.length > 0 && c.live >= c.length * liveRatio) {
+                continue;
+            }
+            Map<Long, byte[]> live = scan(c);
+            synchronized (this) {
+                if (containers.get(c.id) != c || !isCompactable(c)) {
+                    continue;
+                }
+                // the index decides which records are still live, entries
+                // changed while the container was read are not copied
+                for (String key : index.keys(c.id)) {
+                    Entry e = index.get(key);
+                    byte[] data = live.get(e.offset);
+                    add(key, append(e.tagged ? RECORD_TAGGED_PUT : RECORD_PUT, key, null, data == null ? read(e) : data));
+                }
+                // the copies have to be durable before the originals go
+                sync();
+                hdfs.delete(containerPath(c.id), false);
+                containers.remove(c.id);
+            }
+            removed++;
+            log.debug("compacted pack container " + c.id);
+        }
+        return removed;
+    }
+
+    /*
+     * read the content of the records of a sealed container which are live
+     * when it is read, by their offsets. A moved blob's entry points to the
+     * record written under its old key, so records are matched by offset.
+     */
+    private Map<Long, byte[]> scan(final Container c) throws IOException {
+        Map<Long, byte[]> live = new HashMap<Long, byte[]>();
+        for (String key : index.keys(c.id)) {
+            Entry e = index.get(key);
+            if (e != null && e.container == c.id) {
+                live.put(e.offset, null);
+            }
+        }
+        CountingInputStream counter;
+        try {
+            counter = new CountingInputStream(new BufferedInputStream(hdfs.open(containerPath(c.id))));
+        } catch (FileNotFoundException e) {
+            return live;
+        }
+        DataInputStream in = new DataInputStream(counter);
+        try {
+            while (counter.getByteCount() < c.length) {
+                if (in.readInt() != RECORD_MAGIC) {
+                    throw new IOException("corrupt record in " + containerPath(c.id) + " at " + (counter.getByteCount() - 4));
+                }
+                byte type = in.readByte();
+                in.readUTF();
+                if (type == RECORD_PUT || type == RECORD_TAGGED_PUT) {
+                    int length = in.readInt();
+                    long offset = counter.getByteCount();
+                    if (live.containsKey(offset)) {
+                        byte[] data = new byte[length];
+                        in.readFully(data);
+                        live.put(offset, data);
+                    } else {
+                        HDFSRangeInputStream.skipFully(in, length);
+                    }
+                } else if (type == RECORD_MOVE) {
+                    in.readUTF();
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        return live;
+    }
+
+    /**
+     * start a batch of the records written by the calling thread, which are
+     * synced together when its last open batch is finished, instead of one by
+     * one. Records written by other threads in the meantime are still synced
+     * before their write returns.
+     */
+    void startBatch() {
+        batches.set(batches.get() + 1);
+    }
+
+    /**
+     * finish a batch the calling thread started by {@link #startBatch()}
+     *
+     * @throws IOException
+     *             if the records could not be synced
+     */
+    void finishBatch() throws IOException {
+        int open = batches.get() - 1;
+        batches.set(open);
+        if (open == 0) {
+            synchronized (this) {
+                sync();
+            }
+        }
+    }
+
+    private void sync() throws IOException {
+        FSDataOutputStream out = activeOut;
+        if (out != null) {
+            awaitSync(out, appended);
+        }
+    }
+
+    /*
+     * make a record durable before its write returns, unless the calling
+     * thread batches its records
+     */
+    private void durable(final FSDataOutputStream out, final long end) throws IOException {
+        if (batches.get() == 0) {
+            awaitSync(out, end);
+        }
+    }
+
+    /*
+     * sync the active container up to at least the given position. One sync
+     * covers every record appended before it started, so writers arriving
+     * while a sync is running share the next one instead of syncing one by
+     * one. The container lock is not held while syncing.
+     */
+    private void awaitSync(final FSDataOutputStream out, final long end) throws IOException {
+        synchronized (syncLock) {
+            if (out == syncedOut && end <= syncedPos) {
+                return;
+            }
+            long pos = appended;
+            if (out != activeOut) {
+                // the container has been closed, which wrote out its records
+                return;
+            }
+            try {
+                out.sync();
+            } catch (IOException e) {
+                if (out == activeOut) {
+                    throw e;
+                }
+                return;
+            }
+            syncedOut = out;
+            syncedPos = pos;
+        }
+    }
+
+    private synchronized List<Container> sealedContainers() {
+        List<Container> sealed = new ArrayList<Container>();
+        for (Container c : containers.values()) {
+            if (c != active) {
+                sealed.add(c);
+            }
+        }
+        return sealed;
+    }
+
+    /*
+     * DELETE and MOVE records hide entries of older containers. A container
+     * holding such records may only be removed once all the containers its
+     * records refer to are gone, or the hidden entries would reappear on replay
+     */
+    private boolean isCompactable(final Container c) {
+        return c.oldestReference >= c.id || containers.subMap(c.oldestReference, c.id).isEmpty();
+    }
+
+    /**
+     * close the active container
+     *
+     * @throws IOException
+     *             if the container could not be closed
+     */
+    synchronized void close() throws IOException {
+        FSDataOutputStream out = activeOut;
+        if (out != null) {
+            activeOut = null;
+            active = null;
+            activeData.clear();
+            out.close();
+        }
+        if (!containers.isEmpty()) {
+            writeCheckpoint();
+        }
+    }
+
+    private Entry append(final byte type, final String key, final String target, final byte[] data) throws IOException {
+        if (active == null || active.length >= containerSize) {
+            roll();
+        }
+        activeOut.writeInt(RECORD_MAGIC);
+        activeOut.writeByte(type);
+        activeOut.writeUTF(key);
+        Entry e = null;
+        if (type == RECORD_PUT || type == RECORD_TAGGED_PUT) {
+            activeOut.writeInt(data.length);
+            e = new Entry(active.id, activeOut.getPos(), data.length, type == RECORD_TAGGED_PUT);
+            activeOut.write(data);
+            activeData.put(e.offset, data);
+        } else if (type == RECORD_MOVE) {
+            activeOut.writeUTF(target);
+        }
+        active.length = activeOut.getPos();
+        appended = active.length;
+        return e;
+    }
+
+    private void roll() throws IOException {
+        FSDataOutputStream out = activeOut;
+        if (out != null) {
+            // a writer still syncing the container sees it has been closed
+            activeOut = null;
+            out.close();
+            activeData.clear();
+        }
+        int id = ++lastId;
+        appended = 0;
+        activeOut = hdfs.create(containerPath(id), false);
+        active = new Container(id);
+        containers.put(id, active);
+        log.debug("started new pack container " + containerPath(id));
+    }
+
+    private void add(final String key, final Entry e) {
+        remove(key);
+        index.put(key, e);
+        Container c = containers.get(e.container);
+        if (c != null) {
+            c.live += e.length;
+        }
+    }
+
+    private void remove(final String key) {
+        Entry old = index.remove(key);
+        if (old != null) {
+            Container c = containers.get(old.container);
+            if (c != null) {
+                c.live -= old.length;
+            }
+        }
+    }
+
+    private void reference(final Container c, final Entry e) {
+        if (e != null) {
+            c.oldestReference = Math.min(c.oldestReference, e.container);
+        }
+    }
+
+    private Path containerPath(final int id) {
+        return new Path(dir, CONTAINER_PREFIX + id);
+    }
+
+    private static class Container {
+        private final int id;
+        private long length;
+        private long live;
+        private int oldestReference;
+
+        private Container(final int id) {
+            this.id = id;
+            this.oldestReference = id;
+        }
+    }
+}
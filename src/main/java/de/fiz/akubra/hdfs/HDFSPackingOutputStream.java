@@ -0,0 +1,150 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * An {@link OutputStream} which buffers a blob's content in memory as long as
+ * it is smaller than the pack threshold and stores it in the
+ * {@link HDFSPackStore} on close. Larger content is spilled to a Hadoop file
+ * of its own.
+ *
+ */
+class HDFSPackingOutputStream extends OutputStream {
+    private final HDFSPackStore packs;
+    private final FileSystem hdfs;
+    private final URI uri;
+    private final Path path;
+    private final long threshold;
+    private final boolean replaceFile;
+    private final HDFSCreatePolicy policy;
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private FSDataOutputStream file;
+    private boolean closed = false;
+
+    /**
+     * create a new {@link HDFSPackingOutputStream}
+     *
+     * @param packs
+     *            the {@link HDFSPackStore} small blobs are stored in
+     * @param hdfs
+     *            the {@link FileSystem} large blobs are written to
+     * @param uri
+     *            the blob's id
+     * @param threshold
+     *            the size in bytes up to which a blob is packed
+     * @param estimatedSize
+     *            the expected size of the blob, if it exceeds the threshold
+     *            the Hadoop file is created immediately
+     * @param replaceFile
+     *            true if the blob currently exists as a Hadoop file of its own,
+     *            which is replaced by the new content
+     * @param policy
+     *            the {@link HDFSCreatePolicy} of a spilled file or null for
+     *            the filesystem's defaults
+     */
+    HDFSPackingOutputStream(final HDFSPackStore packs, final FileSystem hdfs, final URI uri, final long threshold, final long estimatedSize,
+            final boolean replaceFile, final HDFSCreatePolicy policy) throws IOException {
+        this.packs = packs;
+        this.hdfs = hdfs;
+        this.uri = uri;
+        this.path = new Path(uri.toASCIIString());
+        this.threshold = threshold;
+        this.replaceFile = replaceFile;
+        this.policy = policy;
+        if (estimatedSize > threshold) {
+            spill();
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException {
+        ensureCapacity(1);
+        if (file != null) {
+            file.write(b);
+        } else {
+            buffer.write(b);
+        }
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len) throws IOException {
+        ensureCapacity(len);
+        if (file != null) {
+            file.write(b, off, len);
+        } else {
+            buffer.write(b, off, len);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (file != null) {
+            file.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (file != null) {
+            file.close();
+            packs.delete(uri);
+        } else {
+            packs.put(uri, buffer.toByteArray());
+            buffer = null;
+            if (replaceFile) {
+                hdfs.delete(path, false);
+            }
+        }
+    }
+
+    /**
+     * get the Hadoop file the content has been spilled to
+     *
+     * @return the stream of the file or null while the content is buffered
+     */
+    FSDataOutputStream getFile() {
+        return file;
+    }
+
+    private void ensureCapacity(final int len) throws IOException {
+        if (closed) {
+            throw new IOException("stream is closed");
+        }
+        if (file == null && buffer.size() + len > threshold) {
+            spill();
+        }
+    }
+
+    private void spill() throws IOException {
+        file = policy == null ? hdfs.create(path, replaceFile) : policy.create(hdfs, path, replaceFile);
+        buffer.writeTo(file);
+        buffer = null;
+    }
+}
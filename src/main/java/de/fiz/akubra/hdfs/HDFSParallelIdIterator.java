@@ -0,0 +1,273 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link Iterator} over the blobs of a {@link HDFSBlobStore} which lists
+ * several directories at once on a bounded pool of threads. The listed ids
+ * are handed to the consumer through a bounded queue, so the listing never
+ * runs further ahead of the consumer than the queue's capacity.
+ * <p>
+ * Errors during the listing are rethrown from {@link #hasNext()} and
+ * {@link #next()}. The threads are stopped when the listing is complete, when
+ * {@link #close()} is called, when the {@link HDFSBlobStoreConnection} is
+ * closed or when the iterator is garbage collected.
+ *
+ */
+public class HDFSParallelIdIterator implements Iterator<URI> {
+
+    private static final Logger log = LoggerFactory.getLogger(HDFSParallelIdIterator.class);
+    private static final AtomicInteger listings = new AtomicInteger();
+
+    /*
+     * the state shared with the listing threads. It must not refer back to
+     * the iterator, or an abandoned iterator would never be collected
+     */
+    private final Listing listing;
+    private final Iterator<URI> packed;
+    private final HDFSIdPrefixFilter filter;
+    private URI nextId;
+    private boolean listed = false;
+    private boolean done = false;
+
+    /**
+     * create a new {@link HDFSParallelIdIterator} and start listing
+     *
+     * @param hdfs
+     *            the {@link FileSystem} to list
+     * @param root
+     *            the root directory of the store
+     * @param prefix
+     *            the prefix of the ids to list, see
+     *            {@link HDFSIdPrefixFilter}
+     * @param layout
+     *            the {@link HDFSShardLayout} of the store
+     * @param packed
+     *            the ids of the blobs in the {@link HDFSPackStore} or null
+     * @param threads
+     *            the number of directories listed at once
+     * @param queueSize
+     *            the number of ids listed ahead of the consumer
+     */
+    HDFSParallelIdIterator(final FileSystem hdfs, final Path root, final String prefix, final HDFSShardLayout layout, final Iterator<URI> packed,
+            final int threads, final int queueSize) {
+        this.filter = new HDFSIdPrefixFilter(root, prefix, layout);
+        this.packed = packed;
+        this.listing = new Listing(hdfs, filter, threads, queueSize);
+        this.listing.submit(filter.getStart());
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (nextId == null && !done) {
+            nextId = fetch();
+            done = nextId == null;
+        }
+        return nextId != null;
+    }
+
+    @Override
+    public URI next() {
+        if (!hasNext()) {
+            return null;
+        }
+        URI id = nextId;
+        nextId = null;
+        return id;
+    }
+
+    @Override
+    public void remove() throws UnsupportedOperationException {
+        throw new UnsupportedOperationException("remove is not implemented");
+    }
+
+    /**
+     * stop listing and release the threads
+     */
+    public void close() {
+        done = true;
+        nextId = null;
+        listing.shutdown();
+    }
+
+    /**
+     * stop listing on behalf of the {@link HDFSBlobStoreConnection}. Unlike
+     * {@link #close()} the consumer is told that the listing is incomplete
+     * by an {@link IllegalStateException}.
+     */
+    void abort() {
+        listing.shutdown();
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        listing.shutdown();
+        super.finalize();
+    }
+
+    private URI fetch() {
+        while (!listed) {
+            Object item;
+            try {
+                item = listing.queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                listing.shutdown();
+                throw new RuntimeException("interrupted while waiting for the listing", e);
+            }
+            if (item instanceof URI) {
+                return (URI) item;
+            }
+            listed = true;
+            listing.release();
+            if (item instanceof RuntimeException) {
+                throw (RuntimeException) item;
+            }
+            if (item instanceof Throwable) {
+                log.error("Exception while listing blobs", (Throwable) item);
+                throw new RuntimeException((Throwable) item);
+            }
+        }
+        while (packed != null && packed.hasNext()) {
+            URI id = packed.next();
+            if (filter.acceptId(id)) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    private static class Listing {
+        private static final Object END = new Object();
+
+        private final FileSystem hdfs;
+        private final HDFSIdPrefixFilter filter;
+        private final ExecutorService pool;
+        private final BlockingQueue<Object> queue;
+        private final AtomicInteger pending = new AtomicInteger();
+        private volatile boolean closed = false;
+
+        private Listing(final FileSystem hdfs, final HDFSIdPrefixFilter filter, final int threads, final int queueSize) {
+            this.hdfs = hdfs;
+            this.filter = filter;
+            this.queue = new ArrayBlockingQueue<Object>(queueSize);
+            final int listingId = listings.incrementAndGet();
+            this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "akubra-hdfs-listing-" + listingId + "-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        private void submit(final Path dir) {
+            pending.incrementAndGet();
+            try {
+                pool.execute(new Runnable() {
+                    public void run() {
+                        list(dir);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the listing has been closed
+                pending.decrementAndGet();
+            }
+        }
+
+        private void list(final Path dir) {
+            try {
+                FileStatus[] stats = hdfs.listStatus(dir);
+                if (stats == null) {
+                    // the directory has been removed in the meantime
+                    return;
+                }
+                for (FileStatus stat : stats) {
+                    if (closed) {
+                        return;
+                    }
+                    if (stat.isDir()) {
+                        if (filter.acceptDirectory(dir, stat.getPath())) {
+                            submit(stat.getPath());
+                        }
+                    } else if (filter.acceptFile(dir, stat.getPath())) {
+                        queue.put(stat.getPath().toUri());
+                    }
+                }
+            } catch (InterruptedException e) {
+                // the listing has been closed
+                return;
+            } catch (IOException e) {
+                abort(e);
+                return;
+            } catch (RuntimeException e) {
+                abort(new IOException("unable to list " + dir, e));
+                return;
+            } finally {
+                if (pending.decrementAndGet() == 0 && !closed) {
+                    try {
+                        queue.put(END);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        }
+
+        /*
+         * stop the listing threads and replace everything the consumer has
+         * not yet taken by the given marker
+         */
+        private synchronized void abort(final Object marker) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pool.shutdownNow();
+            queue.clear();
+            queue.offer(marker);
+        }
+
+        private void shutdown() {
+            abort(new IllegalStateException("listing has been closed"));
+        }
+
+        private void release() {
+            closed = true;
+            pool.shutdownNow();
+        }
+    }
+}
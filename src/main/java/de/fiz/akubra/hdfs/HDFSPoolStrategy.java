@@ -0,0 +1,38 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+/**
+ * How a new connection of a {@link HDFSBlobStore} is assigned one of the
+ * pooled Hadoop filesystems.
+ *
+ */
+public enum HDFSPoolStrategy {
+    /**
+     * the filesystems are handed out in turn
+     */
+    ROUND_ROBIN,
+    /**
+     * the filesystem is chosen by the opening thread, so that the
+     * connections of a worker thread always share the same channel
+     */
+    THREAD,
+    /**
+     * the filesystem with the fewest open connections is chosen
+     */
+    LEAST_USED
+}
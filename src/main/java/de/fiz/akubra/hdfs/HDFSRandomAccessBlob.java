@@ -0,0 +1,69 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.akubraproject.Blob;
+import org.akubraproject.MissingBlobException;
+
+/**
+ * A {@link Blob} whose content can be read from any position, e.g. to serve
+ * HTTP range requests, without reading the content before it. Files are read
+ * by seeking and positional reads of the Hadoop filesystem.
+ *
+ */
+public interface HDFSRandomAccessBlob extends Blob {
+
+    /**
+     * open an {@link InputStream} on a range of the content
+     *
+     * @param offset
+     *            the position of the first byte read
+     * @param length
+     *            the maximum number of bytes read or -1 to read to the end of
+     *            the content
+     * @return an {@link InputStream} ending after the range. If the offset is
+     *         beyond the end of the content the stream is empty
+     * @throws IOException
+     *             if the content could not be read
+     * @throws MissingBlobException
+     *             if the blob does not exist
+     */
+    InputStream openInputStream(long offset, long length) throws IOException, MissingBlobException;
+
+    /**
+     * read content at a position into a buffer
+     *
+     * @param position
+     *            the position of the first byte read
+     * @param buffer
+     *            the buffer the content is read into
+     * @param offset
+     *            the position in the buffer the first byte is stored at
+     * @param length
+     *            the maximum number of bytes read
+     * @return the number of bytes read, which is less than length only at the
+     *         end of the content, or -1 if the position is beyond the end
+     * @throws IOException
+     *             if the content could not be read
+     * @throws MissingBlobException
+     *             if the blob does not exist
+     */
+    int read(long position, byte[] buffer, int offset, int length) throws IOException, MissingBlobException;
+}
@@ -0,0 +1,146 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * The {@link InputStream} handed out by
+ * {@link HDFSRandomAccessBlob#openInputStream(long, long)}. It ends after a
+ * fixed number of bytes, so that nothing beyond the requested range is asked
+ * for.
+ *
+ */
+class HDFSRangeInputStream extends FilterInputStream {
+    private long remaining;
+
+    /**
+     * create a new {@link HDFSRangeInputStream}
+     *
+     * @param in
+     *            the stream positioned at the start of the range
+     * @param length
+     *            the length of the range or -1 for the rest of the stream
+     */
+    HDFSRangeInputStream(final InputStream in, final long length) {
+        super(in);
+        this.remaining = length < 0 ? Long.MAX_VALUE : length;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (remaining <= 0) {
+            return -1;
+        }
+        int b = in.read();
+        if (b != -1) {
+            remaining--;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (remaining <= 0) {
+            return -1;
+        }
+        int n = in.read(b, off, (int) Math.min(len, remaining));
+        if (n > 0) {
+            remaining -= n;
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        long skipped = in.skip(Math.min(n, remaining));
+        remaining -= skipped;
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * read until the buffer is full or the stream ends
+     *
+     * @param in
+     *            the stream to read from
+     * @param b
+     *            the buffer
+     * @param off
+     *            the position in the buffer the first byte is stored at
+     * @param len
+     *            the number of bytes to read
+     * @return the number of bytes read or -1 if the stream ended before the
+     *         first byte
+     * @throws IOException
+     *             if the stream could not be read
+     */
+    static int readFully(final InputStream in, final byte[] b, final int off, final int len) throws IOException {
+        int count = 0;
+        while (count < len) {
+            int n = in.read(b, off + count, len - count);
+            if (n < 0) {
+                break;
+            }
+            count += n;
+        }
+        return count == 0 && len > 0 ? -1 : count;
+    }
+
+    /**
+     * skip a number of bytes. {@link InputStream#skip(long)} may skip fewer
+     * bytes than asked for, so it is repeated, reading a byte whenever it
+     * skips none.
+     *
+     * @param in
+     *            the stream to skip
+     * @param n
+     *            the number of bytes to skip
+     * @throws EOFException
+     *             if the stream ended before
+     * @throws IOException
+     *             if the stream could not be read
+     */
+    static void skipFully(final InputStream in, final long n) throws IOException {
+        long remaining = n;
+        while (remaining > 0) {
+            long skipped = in.skip(remaining);
+            if (skipped <= 0) {
+                if (in.read() < 0) {
+                    throw new EOFException("stream ended " + remaining + " bytes before the position skipped to");
+                }
+                skipped = 1;
+            }
+            remaining -= skipped;
+        }
+    }
+}
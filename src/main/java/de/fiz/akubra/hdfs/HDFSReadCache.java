@@ -0,0 +1,357 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A size bounded LRU cache of blob content in files on a local disk, shared by
+ * all connections of a {@link HDFSBlobStore}. A blob is cached while it is
+ * read for the first time: the content is copied to a temporary file as the
+ * reader consumes it and the file is renamed into the cache once the whole
+ * blob has been read. Changes made through this store remove the cached copy;
+ * a copy being populated while its blob changes is discarded. The changes are
+ * counted in a fixed number of stripes of ids, so a change only discards the
+ * copies of the few other blobs sharing its stripe.
+ *
+ */
+class HDFSReadCache {
+    private static final Logger log = LoggerFactory.getLogger(HDFSReadCache.class);
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final File directory;
+    private final long maxSize;
+    private final long maxBlobSize;
+    private final Map<URI, File> entries = new LinkedHashMap<URI, File>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private long size = 0;
+    private final long[] generations = new long[GENERATION_STRIPES];
+
+    /**
+     * create a new {@link HDFSReadCache} in a fresh directory
+     *
+     * @param parent
+     *            the local directory the cache directory is created in
+     * @param maxSize
+     *            the maximum number of bytes cached
+     * @param maxBlobSize
+     *            the size of the largest blob cached
+     * @throws IOException
+     *             if the cache directory could not be created
+     */
+    HDFSReadCache(final File parent, final long maxSize, final long maxBlobSize) throws IOException {
+        this.maxSize = maxSize;
+        this.maxBlobSize = Math.min(maxSize, maxBlobSize);
+        File dir = File.createTempFile("akubra-hdfs-cache", "", parent);
+        if (!dir.delete() || !dir.mkdir()) {
+            throw new IOException("Unable to create cache directory " + dir);
+        }
+        this.directory = dir;
+    }
+
+    /**
+     * open a cached blob
+     *
+     * @param uri
+     *            the blob's id
+     * @return an {@link InputStream} reading the cached copy or null if the
+     *         blob is not cached
+     */
+    InputStream open(final URI uri) {
+        return open(uri, 0);
+    }
+
+    /**
+     * open a cached blob at an offset
+     *
+     * @param uri
+     *            the blob's id
+     * @param offset
+     *            the position of the first byte read
+     * @return an {@link InputStream} reading the cached copy or null if the
+     *         blob is not cached
+     */
+    InputStream open(final URI uri, final long offset) {
+        File file;
+        synchronized (this) {
+            file = entries.get(uri);
+        }
+        if (file != null) {
+            FileChannel channel = null;
+            try {
+                // the open channel keeps the content even if the entry is
+                // evicted meanwhile
+                channel = new FileInputStream(file).getChannel();
+                if (offset > 0) {
+                    channel.position(offset);
+                }
+                hits.incrementAndGet();
+                return Channels.newInputStream(channel);
+            } catch (FileNotFoundException e) {
+                log.warn("cached copy of " + uri + " has vanished");
+                invalidate(uri);
+            } catch (IOException e) {
+                log.warn("unable to read cached copy of " + uri + ": " + e.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                    // the position failed already
+                }
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * wrap the stream of a blob read from the Hadoop filesystem, so that its
+     * content is cached as it is read
+     *
+     * @param uri
+     *            the blob's id
+     * @param in
+     *            the {@link InputStream} reading the blob
+     * @return the {@link InputStream} to be handed out
+     */
+    InputStream populate(final URI uri, final InputStream in) {
+        long gen;
+        synchronized (this) {
+            gen = generations[stripe(uri)];
+        }
+        File tmp = new File(directory, sequence.incrementAndGet() + ".tmp");
+        try {
+            return new PopulatingInputStream(in, uri, tmp, gen);
+        } catch (IOException e) {
+            log.warn("unable to cache " + uri + ": " + e.getMessage());
+            tmp.delete();
+            return in;
+        }
+    }
+
+    /**
+     * remove the cached copy of a blob which has been changed through this
+     * store
+     *
+     * @param uri
+     *            the blob's id
+     */
+    void invalidate(final URI uri) {
+        File file;
+        synchronized (this) {
+            generations[stripe(uri)]++;
+            file = entries.remove(uri);
+            if (file != null) {
+                size -= file.length();
+            }
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /*
+     * publish a completely read copy unless the store has changed since it
+     * was started
+     */
+    private void put(final URI uri, final File tmp, final long gen) {
+        File file = new File(directory, sequence.incrementAndGet() + ".blob");
+        synchronized (this) {
+            if (gen != generations[stripe(uri)] || entries.containsKey(uri) || !tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+            entries.put(uri, file);
+            size += file.length();
+            Iterator<File> eldest = entries.values().iterator();
+            while (size > maxSize && eldest.hasNext()) {
+                File evicted = eldest.next();
+                eldest.remove();
+                size -= evicted.length();
+                evicted.delete();
+            }
+        }
+    }
+
+    /**
+     * get the number of bytes cached
+     *
+     * @return the size of all cached copies
+     */
+    synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * get the number of reads served from the cache
+     *
+     * @return the number of hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * get the number of reads which had to go to the Hadoop filesystem
+     *
+     * @return the number of misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * remove all cached copies and the cache directory
+     */
+    synchronized void close() {
+        entries.clear();
+        size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        directory.delete();
+    }
+
+    /*
+     * copies the content to a temporary file while it is read and publishes
+     * the file when the end of the blob is reached
+     */
+    private static int stripe(final URI uri) {
+        return (uri.toASCIIString().hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private class PopulatingInputStream extends FilterInputStream {
+        private final URI uri;
+        private final File tmp;
+        private final long gen;
+        private FileChannel copy;
+        private long count = 0;
+        private boolean complete = false;
+
+        private PopulatingInputStream(final InputStream in, final URI uri, final File tmp, final long gen) throws IOException {
+            super(in);
+            this.uri = uri;
+            this.tmp = tmp;
+            this.gen = gen;
+            this.copy = new FileOutputStream(tmp).getChannel();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b == -1) {
+                complete = true;
+            } else {
+                copy(new byte[] { (byte) b }, 0, 1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            int n = in.read(b, off, len);
+            if (n == -1) {
+                complete = true;
+            } else {
+                copy(b, off, n);
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(final long n) throws IOException {
+            // skipped content is not copied, so the copy is useless
+            abandon();
+            return in.skip(n);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        private void copy(final byte[] b, final int off, final int len) throws IOException {
+            if (copy == null) {
+                return;
+            }
+            count += len;
+            if (count > maxBlobSize) {
+                abandon();
+                return;
+            }
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+                while (buf.hasRemaining()) {
+                    copy.write(buf);
+                }
+            } catch (IOException e) {
+                log.warn("unable to cache " + uri + ": " + e.getMessage());
+                abandon();
+            }
+        }
+
+        private void abandon() {
+            if (copy != null) {
+                try {
+                    copy.close();
+                } catch (IOException e) {
+                    log.debug("unable to close cache file " + tmp);
+                }
+                copy = null;
+                tmp.delete();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                in.close();
+            } finally {
+                if (copy != null) {
+                    if (complete) {
+                        copy.close();
+                        copy = null;
+                        put(uri, tmp, gen);
+                    } else {
+                        abandon();
+                    }
+                }
+            }
+        }
+    }
+}
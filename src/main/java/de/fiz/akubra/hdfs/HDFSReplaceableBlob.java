@@ -0,0 +1,44 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.akubraproject.Blob;
+
+/**
+ * A {@link Blob} whose content can be replaced atomically: readers see either
+ * the old or the new content, never a partial one, and the blob never goes
+ * missing in between. On a Hadoop client with an overwriting rename this
+ * costs one create and one rename.
+ *
+ */
+public interface HDFSReplaceableBlob extends Blob {
+
+    /**
+     * open an {@link OutputStream} whose content replaces the blob's content
+     * when the stream is closed. The blob need not exist.
+     *
+     * @param estimatedSize
+     *            the expected size of the new content
+     * @return the {@link OutputStream} to write the new content to
+     * @throws IOException
+     *             if the stream could not be opened
+     */
+    OutputStream openReplacingOutputStream(long estimatedSize) throws IOException;
+}
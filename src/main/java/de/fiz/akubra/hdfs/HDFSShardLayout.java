@@ -0,0 +1,147 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+/**
+ * Spreads the files of a directory over a fixed number of levels of
+ * subdirectories, so that no single directory gets millions of children.
+ * <p>
+ * The names of the subdirectories are taken from the hexadecimal 64 bit FNV-1a
+ * hash of the file's name, e.g. a file <code>demo_1</code> in
+ * <code>fedora/</code> is stored as <code>fedora/.3f/.a2/demo_1</code> with
+ * two levels of width two. The shard directories are always the ones right in
+ * front of the file name, so they can be removed again without knowing the
+ * hash. Their names start with a dot, which keeps them apart from the
+ * directories of Fedora ids: neither datastream ids nor the components mapped
+ * from pids can have the form of a dot followed by hex digits only.
+ *
+ */
+class HDFSShardLayout {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private final int levels;
+    private final int width;
+
+    /**
+     * create a new {@link HDFSShardLayout}
+     *
+     * @param levels
+     *            the number of directory levels, 0 for a flat layout
+     * @param width
+     *            the number of hex digits in the name of a shard directory
+     * @throws IllegalArgumentException
+     *             if the layout needs more than the 16 hex digits of the hash
+     */
+    HDFSShardLayout(final int levels, final int width) {
+        if (levels < 0 || width < 1 || levels * width > 16) {
+            throw new IllegalArgumentException("invalid shard layout: " + levels + " levels of width " + width);
+        }
+        this.levels = levels;
+        this.width = width;
+    }
+
+    /**
+     * get the number of shard directory levels
+     *
+     * @return the number of levels, 0 for a flat layout
+     */
+    int getLevels() {
+        return levels;
+    }
+
+    /**
+     * get the shard directories for a file
+     *
+     * @param name
+     *            the name of the file
+     * @return the relative path of the shard directories ending with a slash,
+     *         or an empty string for a flat layout
+     */
+    String getShardPath(final String name) {
+        if (levels == 0) {
+            return "";
+        }
+        long hash = FNV_OFFSET;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        char[] path = new char[levels * (width + 2)];
+        int pos = 0;
+        int shift = 60;
+        for (int l = 0; l < levels; l++) {
+            path[pos++] = '.';
+            for (int w = 0; w < width; w++) {
+                path[pos++] = HEX[(int) (hash >>> shift) & 0xf];
+                shift -= 4;
+            }
+            path[pos++] = '/';
+        }
+        return new String(path);
+    }
+
+    /**
+     * check if a path component has the form of a shard directory
+     *
+     * @param component
+     *            the name of a directory
+     * @return true if the name consists of a dot and the right number of hex
+     *         digits
+     */
+    boolean isShardName(final String component) {
+        if (component.length() != width + 1 || component.charAt(0) != '.') {
+            return false;
+        }
+        for (int i = 1; i <= width; i++) {
+            char c = component.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * remove the shard directories in front of the last component of a path
+     *
+     * @param path
+     *            a path as returned by {@link #getShardPath(String)} plus
+     *            the file name, possibly preceded by other directories
+     * @return the path without the shard directories. Paths which are not
+     *         sharded are returned unchanged
+     */
+    String removeShards(final String path) {
+        if (levels == 0) {
+            return path;
+        }
+        int end = path.lastIndexOf('/');
+        int start = end;
+        for (int l = 0; l < levels; l++) {
+            if (start < 1) {
+                return path;
+            }
+            int previous = path.lastIndexOf('/', start - 1);
+            if (!isShardName(path.substring(previous + 1, start))) {
+                return path;
+            }
+            start = previous;
+        }
+        return path.substring(0, start + 1) + path.substring(end + 1);
+    }
+}
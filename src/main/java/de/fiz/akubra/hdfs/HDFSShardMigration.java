@@ -0,0 +1,265 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts an existing store with a flat layout to a {@link HDFSShardLayout}
+ * by moving every blob into its hash directories. Directories are listed and
+ * files are renamed on a pool of threads, since a flat store's directories
+ * may hold millions of files. Files which already are in the shard
+ * directories of the layout are left alone, so an interrupted migration can
+ * simply be run again.
+ * <p>
+ * The store must not be used while it is migrated. Usage:
+ *
+ * <pre>
+ * java de.fiz.akubra.hdfs.HDFSShardMigration &lt;store uri&gt; &lt;levels&gt; [&lt;width&gt; [&lt;threads&gt;]]
+ * </pre>
+ *
+ */
+public class HDFSShardMigration {
+    private static final Logger log = LoggerFactory.getLogger(HDFSShardMigration.class);
+    private static final int BATCH_SIZE = 1000;
+    private static final long PACK_CONTAINER_SIZE = 64L * 1024 * 1024;
+
+    private final FileSystem hdfs;
+    private final Path root;
+    private final HDFSShardLayout layout;
+    private final HDFSPackStore packs;
+    private final int threads;
+    private final Set<Path> createdDirs = Collections.newSetFromMap(new ConcurrentHashMap<Path, Boolean>());
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong moved = new AtomicLong();
+    private final AtomicReference<IOException> failure = new AtomicReference<IOException>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private ExecutorService pool;
+
+    /**
+     * create a new {@link HDFSShardMigration}
+     *
+     * @param hdfs
+     *            the {@link FileSystem} of the store
+     * @param root
+     *            the root directory of the store
+     * @param layout
+     *            the {@link HDFSShardLayout} to convert the store to
+     * @param packs
+     *            the {@link HDFSPackStore} of the store or null
+     * @param threads
+     *            the number of directories and batches of files handled at
+     *            once
+     */
+    HDFSShardMigration(final FileSystem hdfs, final Path root, final HDFSShardLayout layout, final HDFSPackStore packs, final int threads) {
+        this.hdfs = hdfs;
+        this.root = root;
+        this.layout = layout;
+        this.packs = packs;
+        this.threads = threads;
+    }
+
+    /**
+     * move all blobs of the store into their shard directories
+     *
+     * @return the number of moved blobs
+     * @throws IOException
+     *             if a directory could not be listed or a file could not be
+     *             moved
+     */
+    long run() throws IOException {
+        if (layout.getLevels() == 0) {
+            return 0;
+        }
+        pool = Executors.newFixedThreadPool(threads);
+        try {
+            submit(new Runnable() {
+                public void run() {
+                    list(root);
+                }
+            });
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while migrating " + root);
+        } finally {
+            pool.shutdownNow();
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        if (packs != null) {
+            movePacked();
+        }
+        return moved.get();
+    }
+
+    private void submit(final Runnable task) {
+        pending.incrementAndGet();
+        pool.execute(new Runnable() {
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        task.run();
+                    }
+                } finally {
+                    if (pending.decrementAndGet() == 0) {
+                        finished.countDown();
+                    }
+                }
+            }
+        });
+    }
+
+    private void fail(final IOException e) {
+        if (failure.compareAndSet(null, e)) {
+            log.error("migration failed", e);
+            finished.countDown();
+        }
+    }
+
+    private void list(final Path dir) {
+        FileStatus[] stats;
+        try {
+            stats = hdfs.listStatus(dir);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        if (stats == null) {
+            return;
+        }
+        List<Path> batch = new ArrayList<Path>(BATCH_SIZE);
+        for (FileStatus stat : stats) {
+            final Path path = stat.getPath();
+            String name = path.getName();
+            if (stat.isDir()) {
+                // shard directories only hold blobs which are already in place
+                if (!HDFSBlobStore.isReservedName(name) && !layout.isShardName(name)) {
+                    submit(new Runnable() {
+                        public void run() {
+                            list(path);
+                        }
+                    });
+                }
+            } else {
+                batch.add(path);
+                if (batch.size() == BATCH_SIZE) {
+                    submitMoves(batch);
+                    batch = new ArrayList<Path>(BATCH_SIZE);
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            submitMoves(batch);
+        }
+    }
+
+    private void submitMoves(final List<Path> files) {
+        submit(new Runnable() {
+            public void run() {
+                for (Path file : files) {
+                    try {
+                        move(file);
+                    } catch (IOException e) {
+                        fail(e);
+                        return;
+                    }
+                }
+            }
+        });
+    }
+
+    private void move(final Path file) throws IOException {
+        String name = file.getName();
+        Path target = new Path(file.getParent(), layout.getShardPath(name) + name);
+        Path targetDir = target.getParent();
+        if (!createdDirs.contains(targetDir)) {
+            hdfs.mkdirs(targetDir);
+            createdDirs.add(targetDir);
+        }
+        if (!hdfs.rename(file, target)) {
+            throw new IOException("unable to move " + file + " to " + target);
+        }
+        log.debug("moved " + file + " to " + target);
+        moved.incrementAndGet();
+    }
+
+    private void movePacked() throws IOException {
+        List<URI> ids = new ArrayList<URI>();
+        for (Iterator<URI> it = packs.ids(); it.hasNext();) {
+            URI id = it.next();
+            String path = id.toASCIIString();
+            if (layout.removeShards(path).equals(path)) {
+                ids.add(id);
+            }
+        }
+        for (URI id : ids) {
+            String path = id.toASCIIString();
+            int slash = path.lastIndexOf('/');
+            String name = path.substring(slash + 1);
+            packs.move(id, URI.create(path.substring(0, slash + 1) + layout.getShardPath(name) + name));
+            moved.incrementAndGet();
+        }
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 2 || args.length > 4) {
+            System.err.println("usage: java " + HDFSShardMigration.class.getName() + " <store uri> <levels> [<width> [<threads>]]");
+            System.exit(1);
+        }
+        URI storeId = URI.create(args[0]);
+        int levels = Integer.parseInt(args[1]);
+        int width = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 16;
+        FileSystem hdfs = FileSystem.get(storeId, new Configuration());
+        Path packDir = new Path(storeId.toASCIIString() + HDFSBlobStore.PACK_DIRECTORY);
+        HDFSPackStore packs = null;
+        if (hdfs.exists(packDir)) {
+            packs = new HDFSPackStore(hdfs, packDir, PACK_CONTAINER_SIZE);
+            packs.open();
+        }
+        try {
+            long count = new HDFSShardMigration(hdfs, new Path(storeId), new HDFSShardLayout(levels, width), packs, threads).run();
+            System.out.println("moved " + count + " blobs");
+        } finally {
+            if (packs != null) {
+                packs.close();
+            }
+        }
+    }
+}
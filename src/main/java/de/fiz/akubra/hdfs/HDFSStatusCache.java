@@ -0,0 +1,196 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileStatus;
+
+/**
+ * A bounded LRU cache of the {@link FileStatus} of blobs, shared by all
+ * connections of a {@link HDFSBlobStore}. Blobs known to be missing are cached
+ * as well. Entries expire after a fixed time to live, which bounds the
+ * staleness with respect to changes made by other processes. Changes made
+ * through this store update the cache directly.
+ * <p>
+ * Every change made through this store raises a generation of its id, and a
+ * status looked up on the filesystem is only cached if the generation
+ * recorded before the lookup is still current, so that a lookup overtaken by
+ * a change cannot cache a stale status. The generations are kept in a fixed
+ * number of stripes, so a change may also drop the lookup of another id.
+ *
+ */
+class HDFSStatusCache {
+    /**
+     * the value cached for blobs which do not exist
+     */
+    static final FileStatus MISSING = new FileStatus();
+
+    private static final int GENERATION_STRIPES = 1024;
+
+    private final long ttl;
+    private final Map<String, Entry> entries;
+    private final long[] generations = new long[GENERATION_STRIPES];
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * create a new {@link HDFSStatusCache}
+     *
+     * @param maxEntries
+     *            the maximum number of entries
+     * @param ttl
+     *            the time to live of an entry in milliseconds
+     */
+    HDFSStatusCache(final int maxEntries, final long ttl) {
+        this.ttl = ttl;
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * look up the status of a blob
+     *
+     * @param uri
+     *            the blob's id
+     * @return the cached {@link FileStatus}, {@link #MISSING} if the blob is
+     *         known not to exist or null if nothing is cached
+     */
+    FileStatus get(final URI uri) {
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(uri.toASCIIString());
+            if (e != null && e.expires < System.currentTimeMillis()) {
+                entries.remove(uri.toASCIIString());
+                e = null;
+            }
+        }
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e.status;
+    }
+
+    /**
+     * get the generation of a blob's id, to be recorded before its status is
+     * looked up on the filesystem
+     *
+     * @param uri
+     *            the blob's id
+     * @return the current generation
+     */
+    long getGeneration(final URI uri) {
+        synchronized (entries) {
+            return generations[stripe(uri)];
+        }
+    }
+
+    /**
+     * cache the status of a blob after it has been changed through this
+     * store
+     *
+     * @param uri
+     *            the blob's id
+     * @param status
+     *            the {@link FileStatus} or {@link #MISSING}
+     */
+    void put(final URI uri, final FileStatus status) {
+        synchronized (entries) {
+            generations[stripe(uri)]++;
+            entries.put(uri.toASCIIString(), new Entry(status, System.currentTimeMillis() + ttl));
+        }
+    }
+
+    /**
+     * cache the status of a blob looked up on the filesystem, unless the blob
+     * has been changed through this store since the lookup started
+     *
+     * @param uri
+     *            the blob's id
+     * @param status
+     *            the {@link FileStatus} or {@link #MISSING}
+     * @param generation
+     *            the generation recorded by {@link #getGeneration(URI)} before
+     *            the lookup
+     * @return true if the status has been cached
+     */
+    boolean fill(final URI uri, final FileStatus status, final long generation) {
+        synchronized (entries) {
+            if (generations[stripe(uri)] != generation) {
+                return false;
+            }
+            entries.put(uri.toASCIIString(), new Entry(status, System.currentTimeMillis() + ttl));
+            return true;
+        }
+    }
+
+    /**
+     * remove the cached status of a blob
+     *
+     * @param uri
+     *            the blob's id
+     */
+    void invalidate(final URI uri) {
+        synchronized (entries) {
+            generations[stripe(uri)]++;
+            entries.remove(uri.toASCIIString());
+        }
+    }
+
+    /**
+     * get the number of lookups answered from the cache
+     *
+     * @return the number of hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * get the number of lookups not answered from the cache
+     *
+     * @return the number of misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    private static int stripe(final URI uri) {
+        return (uri.toASCIIString().hashCode() & Integer.MAX_VALUE) % GENERATION_STRIPES;
+    }
+
+    private static class Entry {
+        private final FileStatus status;
+        private final long expires;
+
+        private Entry(final FileStatus status, final long expires) {
+            this.status = status;
+            this.expires = expires;
+        }
+    }
+}
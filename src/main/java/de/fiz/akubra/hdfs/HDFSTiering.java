@@ -0,0 +1,332 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.DataInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Adapts the replication of the blob files of a {@link HDFSBlobStore} to how
+ * often they are read. The files opened for reading are counted, and a
+ * periodic pass raises the replication of files read at least
+ * <code>hotReads</code> times since the previous pass, which spreads their
+ * reads over more datanodes. A hot file gets its replication back once a pass
+ * counts less than half as many reads. With a cold replication set, the pass
+ * also lists the store and lowers the replication of files which have not
+ * been read in the interval nor accessed for <code>coldAge</code>
+ * milliseconds, going by the access times kept by the namenode. The
+ * replication a file is lowered from is kept as a record of a
+ * {@link HDFSPackStore} below {@link HDFSBlobStore#TIERING_DIRECTORY}, and
+ * it is restored once the file is accessed again.
+ * <p>
+ * The pass runs on a single background thread of low priority. Its
+ * namenode calls, replication changes as well as listings, are limited to
+ * <code>rate</code> per second, which also bounds the re-replication traffic
+ * of the datanodes, so that the pass never competes with the store's
+ * clients.
+ *
+ */
+class HDFSTiering implements Runnable {
+    private static final Logger log = LoggerFactory.getLogger(HDFSTiering.class);
+
+    private final HDFSBlobStore store;
+    private final Path root;
+    private final int hotReads;
+    private final short hotReplication;
+    private final short coldReplication;
+    private final long coldAge;
+    private final long callInterval;
+    private final ConcurrentMap<String, Access> reads = new ConcurrentHashMap<String, Access>();
+    private final AtomicLong changes = new AtomicLong();
+    private long nextCall = System.nanoTime();
+    private ScheduledExecutorService executor;
+
+    /*
+     * the reads of a file since the last pass
+     */
+    private static class Access {
+        private final Path path;
+        private final AtomicInteger count = new AtomicInteger();
+        /** the replication a hot file is restored to, 0 if it is not hot */
+        private short restore = 0;
+
+        private Access(final Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * create a new {@link HDFSTiering}
+     *
+     * @param store
+     *            the {@link HDFSBlobStore} whose files are tiered
+     * @param hotReads
+     *            the number of reads in one pass interval making a file hot
+     * @param hotReplication
+     *            the replication of hot files
+     * @param coldReplication
+     *            the replication of cold files, 0 to leave them alone
+     * @param coldAge
+     *            the time in milliseconds after its last access a file is
+     *            cold
+     * @param rate
+     *            the maximum number of namenode calls per second
+     */
+    HDFSTiering(final HDFSBlobStore store, final int hotReads, final short hotReplication, final short coldReplication,
+            final long coldAge, final double rate) {
+        this.store = store;
+        this.root = new Path(store.getId().toASCIIString());
+        this.hotReads = hotReads;
+        this.hotReplication = hotReplication;
+        this.coldReplication = coldReplication;
+        this.coldAge = coldAge;
+        this.callInterval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    }
+
+    /**
+     * run a pass periodically on a background thread
+     *
+     * @param interval
+     *            the time in seconds between the end of a pass and the start
+     *            of the next one
+     */
+    synchronized void start(final long interval) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(final Runnable r) {
+                Thread t = new Thread(r, "akubra-hdfs-tiering");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        executor.scheduleWithFixedDelay(this, interval, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * stop the periodic passes
+     */
+    synchronized void close() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * count a read of a blob's file
+     *
+     * @param path
+     *            the {@link Path} of the file
+     */
+    void recordRead(final Path path) {
+        String key = path.toUri().getPath();
+        Access access = reads.get(key);
+        if (access == null) {
+            Access created = new Access(path);
+            access = reads.putIfAbsent(key, created);
+            if (access == null) {
+                access = created;
+            }
+        }
+        access.count.incrementAndGet();
+    }
+
+    /**
+     * get the number of replication changes made
+     *
+     * @return the number of changes
+     */
+    long getChanges() {
+        return changes.get();
+    }
+
+    public void run() {
+        try {
+            pass();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            log.error("unable to tier the files of " + root, e);
+        } catch (RuntimeException e) {
+            // a failed pass must not end the periodic passes
+            log.error("unable to tier the files of " + root, e);
+        }
+    }
+
+    /**
+     * adapt the replication of the hot files and, if a cold replication is
+     * set, of the cold ones
+     *
+     * @throws IOException
+     *             if the filesystem could not be opened or listed
+     * @throws InterruptedException
+     *             if the pass has been stopped
+     */
+    void pass() throws IOException, InterruptedException {
+        FileSystem hdfs = store.getFilesystem();
+        long before = changes.get();
+        Set<String> read = new HashSet<String>();
+        for (Iterator<Map.Entry<String, Access>> it = reads.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Access> entry = it.next();
+            Access access = entry.getValue();
+            int count = access.count.getAndSet(0);
+            if (count > 0) {
+                read.add(entry.getKey());
+            }
+            try {
+                if (access.restore == 0 && count >= hotReads) {
+                    raise(hdfs, access);
+                } else if (access.restore != 0 && count < (hotReads + 1) / 2) {
+                    throttle();
+                    setReplication(hdfs, access.path, access.restore);
+                    access.restore = 0;
+                }
+            } catch (FileNotFoundException e) {
+                access.restore = 0;
+            }
+            if (access.restore == 0) {
+                // the reads until the next pass are counted anew
+                it.remove();
+            }
+        }
+        if (coldReplication > 0) {
+            scan(hdfs, store.getTieringRecords(), root, System.currentTimeMillis() - coldAge, read);
+        }
+        log.debug("tiering pass over " + root + " made " + (changes.get() - before) + " replication changes");
+    }
+
+    private void raise(final FileSystem hdfs, final Access access) throws IOException, InterruptedException {
+        throttle();
+        short current = hdfs.getFileStatus(access.path).getReplication();
+        if (current >= hotReplication) {
+            return;
+        }
+        throttle();
+        if (setReplication(hdfs, access.path, hotReplication)) {
+            access.restore = current;
+        }
+    }
+
+    /*
+     * lower the replication of the files below a directory which have
+     * neither been read in the interval nor accessed since the given time,
+     * and restore it if they have
+     */
+    private void scan(final FileSystem hdfs, final HDFSPackStore lowered, final Path dir, final long coldBefore,
+            final Set<String> read) throws IOException, InterruptedException {
+        throttle();
+        FileStatus[] entries;
+        try {
+            entries = hdfs.listStatus(dir);
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        if (entries == null) {
+            return;
+        }
+        for (FileStatus status : entries) {
+            Path path = status.getPath();
+            if (status.isDir()) {
+                if (!dir.equals(root) || !HDFSBlobStore.isReservedName(path.getName())) {
+                    scan(hdfs, lowered, path, coldBefore, read);
+                }
+                continue;
+            }
+            String key = path.toUri().getPath();
+            if (reads.containsKey(key)) {
+                // a hot file
+                continue;
+            }
+            // the namenode updates access times only once per precision period
+            boolean used = read.contains(key)
+                    || Math.max(status.getAccessTime(), status.getModificationTime()) >= coldBefore;
+            URI record = URI.create(path.toUri().getRawPath());
+            short current = status.getReplication();
+            try {
+                if (!used && current > coldReplication) {
+                    // recorded first, a file must not stay cold if the pass fails
+                    lowered.put(record, new byte[] { (byte) (current >> 8), (byte) current });
+                    throttle();
+                    setReplication(hdfs, path, coldReplication);
+                } else if (used && lowered.contains(record)) {
+                    short restore = getLowered(lowered, record);
+                    if (current == coldReplication && restore != current) {
+                        throttle();
+                        setReplication(hdfs, path, restore);
+                    }
+                    lowered.delete(record);
+                }
+            } catch (FileNotFoundException e) {
+                // deleted in the meantime
+                lowered.delete(record);
+            }
+        }
+    }
+
+    /*
+     * the replication a file has been lowered from
+     */
+    private static short getLowered(final HDFSPackStore lowered, final URI record) throws IOException {
+        DataInputStream in = new DataInputStream(lowered.open(record));
+        try {
+            return in.readShort();
+        } finally {
+            in.close();
+        }
+    }
+
+    private boolean setReplication(final FileSystem hdfs, final Path path, final short replication) throws IOException {
+        log.debug("setting replication of " + path + " to " + replication);
+        boolean changed = hdfs.setReplication(path, replication);
+        if (changed) {
+            changes.incrementAndGet();
+        }
+        return changed;
+    }
+
+    /*
+     * wait until the next namenode call is within the rate
+     */
+    private void throttle() throws InterruptedException {
+        long now = System.nanoTime();
+        if (nextCall - now > 0) {
+            TimeUnit.NANOSECONDS.sleep(nextCall - now);
+            now = nextCall;
+        }
+        nextCall = now + callInterval;
+    }
+}
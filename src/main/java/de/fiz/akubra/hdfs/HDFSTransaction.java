@@ -0,0 +1,574 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.akubraproject.DuplicateBlobException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The changes made through a transactional {@link HDFSBlobStoreConnection}.
+ * New content is written to staging blobs below the store's
+ * {@link HDFSBlobStore#STAGING_DIRECTORY}; moves and deletes of committed
+ * blobs are only recorded. A blob changed by one transaction cannot be
+ * changed by another one until the first has completed. A rolled back
+ * transaction only deletes its staging blobs.
+ * <p>
+ * The changes are applied in {@link #beforeCompletion()} by the store's
+ * {@link HDFSGroupCommitter}, so that a failure marks the transaction for
+ * rollback. Since the Hadoop filesystem cannot rename several files
+ * atomically, they are applied in two phases, each of them a series of moves
+ * which can be undone: first the committed blobs which are replaced, deleted
+ * or moved are put aside to staging ids, then the new content is published
+ * with a single move per blob. The blobs put aside are deleted once the
+ * transaction has committed, and moved back if it is rolled back after all.
+ * <p>
+ * The moves are written to a journal below the staging directory before
+ * they are carried out. A journal left behind by a crash is resolved when
+ * the store opens its first transactional connection: a transaction which
+ * had not started publishing is undone, one which had is completed.
+ *
+ */
+class HDFSTransaction implements Synchronization, HDFSGroupCommitter.Commit {
+    private static final Logger log = LoggerFactory.getLogger(HDFSTransaction.class);
+
+    /**
+     * the suffix of a journal whose blobs are being put aside
+     */
+    static final String ASIDE_SUFFIX = ".aside";
+    /**
+     * the suffix of a journal whose blobs are being published
+     */
+    static final String PUBLISH_SUFFIX = ".publish";
+
+    private final HDFSBlobStore store;
+    private final Transaction tx;
+    private final HDFSBlobStoreConnection base;
+    private final Map<URI, Change> changes = new LinkedHashMap<URI, Change>();
+    private final Set<URI> claimed = new HashSet<URI>();
+    private final String name = UUID.randomUUID().toString();
+    /** the moves carried out so far, in order */
+    private final List<Step> applied = new ArrayList<Step>();
+    private Path journal;
+
+    /*
+     * the content of a blob changed in this transaction: either a committed
+     * blob moved here, a staging blob, or nothing if it has been deleted
+     */
+    private static class Change {
+        private final URI source;
+        private final boolean staged;
+        private final boolean fresh;
+
+        private Change(final URI source, final boolean staged, final boolean fresh) {
+            this.source = source;
+            this.staged = staged;
+            this.fresh = fresh;
+        }
+    }
+
+    private static final Change DELETED = new Change(null, false, false);
+
+    /*
+     * a move carried out when the changes are applied: a committed blob put
+     * aside, which is skipped if the blob does not exist, or a blob published
+     * to its id
+     */
+    private static class Step {
+        private final URI from;
+        private final URI to;
+        private final boolean aside;
+
+        private Step(final URI from, final URI to, final boolean aside) {
+            this.from = from;
+            this.to = to;
+            this.aside = aside;
+        }
+    }
+
+    /**
+     * create a new {@link HDFSTransaction}
+     *
+     * @param store
+     *            the {@link HDFSBlobStore} the changes are applied to
+     * @param tx
+     *            the {@link Transaction} marked for rollback if the changes
+     *            cannot be applied
+     * @throws IOException
+     *             if the store's filesystem could not be opened
+     */
+    HDFSTransaction(final HDFSBlobStore store, final Transaction tx) throws IOException {
+        this.store = store;
+        this.tx = tx;
+        this.base = new HDFSBlobStoreConnection(store);
+    }
+
+    /**
+     * get the blob currently holding the content of a blob as seen by this
+     * transaction
+     *
+     * @param uri
+     *            the blob's id
+     * @return the committed blob, a staging blob or null if the blob has
+     *         been deleted in this transaction
+     */
+    synchronized HDFSBlob resolve(final URI uri) {
+        Change c = changes.get(uri);
+        if (c == null) {
+            return new HDFSBlob(uri, base);
+        }
+        return c == DELETED ? null : new HDFSBlob(c.source, base);
+    }
+
+    /**
+     * replace the content of a blob by a new staging blob
+     *
+     * @param uri
+     *            the blob's id
+     * @param hints
+     *            the hints the staging blob is written with
+     * @param fresh
+     *            true if the id has just been generated, so that no
+     *            committed blob has to be put aside
+     * @return the staging blob to write the content to
+     * @throws IOException
+     *             if the blob is changed by another transaction or a
+     *             previously staged content could not be discarded
+     */
+    synchronized HDFSBlob stage(final URI uri, final Map<String, String> hints, final boolean fresh) throws IOException {
+        claim(uri);
+        URI staging = stagingId();
+        Change replaced = changes.put(uri, new Change(staging, true, fresh && !changes.containsKey(uri)));
+        discard(replaced);
+        return new HDFSBlob(staging, base, hints);
+    }
+
+    /**
+     * record the deletion of a blob
+     *
+     * @param uri
+     *            the blob's id
+     * @throws IOException
+     *             if the blob is changed by another transaction or a staged
+     *             content could not be discarded
+     */
+    synchronized void delete(final URI uri) throws IOException {
+        claim(uri);
+        discard(changes.put(uri, DELETED));
+    }
+
+    /**
+     * record a move of a blob, which has to exist in this transaction
+     *
+     * @param from
+     *            the current id
+     * @param to
+     *            the new id, which must not exist in this transaction
+     * @throws IOException
+     *             if one of the blobs is changed by another transaction
+     */
+    synchronized void move(final URI from, final URI to) throws IOException {
+        claim(from);
+        claim(to);
+        Change c = changes.get(from);
+        changes.put(to, c == null ? new Change(from, false, false) : c);
+        changes.put(from, DELETED);
+    }
+
+    private void claim(final URI uri) throws IOException {
+        if (!claimed.contains(uri)) {
+            store.claim(uri, this);
+            claimed.add(uri);
+        }
+    }
+    /**
+     * merge the ids of the committed blobs with the changes of this
+     * transaction
+     *
+     * @param committed
+     *            the ids of the committed blobs
+     * @param filter
+     *            the {@link HDFSIdPrefixFilter} of the listing
+     * @return the ids of the blobs existing in this transaction
+     */
+    synchronized Iterator<URI> ids(final Iterator<URI> committed, final HDFSIdPrefixFilter filter) {
+        final Set<URI> changed = new HashSet<URI>(changes.keySet());
+        final List<URI> added = new ArrayList<URI>();
+        for (Map.Entry<URI, Change> e : changes.entrySet()) {
+            if (e.getValue() != DELETED && filter.acceptId(e.getKey())) {
+                added.add(e.getKey());
+            }
+        }
+        return new Iterator<URI>() {
+            private URI next;
+            private int index = 0;
+
+            public boolean hasNext() {
+                while (next == null && committed.hasNext()) {
+                    URI id = committed.next();
+                    if (!changed.contains(id)) {
+                        next = id;
+                    }
+                }
+                if (next == null && index < added.size()) {
+                    next = added.get(index++);
+                }
+                return next != null;
+            }
+
+            public URI next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                URI id = next;
+                next = null;
+                return id;
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException("remove is not implemented");
+            }
+        };
+    }
+
+    /**
+     * apply all changes to the store, undoing the moves carried out so far
+     * if one of them fails. Moves of committed blobs whose old id receives
+     * new content take a detour over a staging id, so that no blob is
+     * published to an id before the committed blob has left it.
+     *
+     * @throws IOException
+     *             if a change could not be applied
+     */
+    public synchronized void apply() throws IOException {
+        List<Step> steps = plan();
+        if (steps.isEmpty()) {
+            return;
+        }
+        FileSystem hdfs = base.getFileSystem();
+        boolean aside = steps.get(0).aside;
+        journal = journalPath(name + (aside ? ASIDE_SUFFIX : PUBLISH_SUFFIX));
+        writeJournal(hdfs, journal, steps);
+        try {
+            for (Step step : steps) {
+                if (step.aside) {
+                    HDFSBlob blob = new HDFSBlob(step.from, base);
+                    if (blob.exists()) {
+                        blob.moveTo(step.to, null);
+                        applied.add(step);
+                    }
+                    continue;
+                }
+                if (aside) {
+                    // from here on the transaction is completed after a crash
+                    Path publishing = journalPath(name + PUBLISH_SUFFIX);
+                    if (!hdfs.rename(journal, publishing)) {
+                        throw new IOException("Unable to rename " + journal + " to " + publishing);
+                    }
+                    journal = publishing;
+                    aside = false;
+                }
+                new HDFSBlob(step.from, base).moveTo(step.to, null);
+                applied.add(step);
+            }
+        } catch (IOException e) {
+            try {
+                undo();
+            } catch (IOException ue) {
+                // the rollback tries again
+                log.error("unable to undo the changes applied so far", ue);
+            }
+            throw e;
+        }
+        log.debug("applied " + changes.size() + " changes with " + applied.size() + " moves");
+    }
+
+    /*
+     * the moves applying the changes, the blobs put aside first
+     */
+    private List<Step> plan() {
+        Set<URI> consumed = new HashSet<URI>();
+        for (Change c : changes.values()) {
+            if (c != DELETED && !c.staged) {
+                consumed.add(c.source);
+            }
+        }
+        List<Step> aside = new ArrayList<Step>();
+        List<Step> publish = new ArrayList<Step>();
+        for (Map.Entry<URI, Change> e : changes.entrySet()) {
+            URI id = e.getKey();
+            Change c = e.getValue();
+            // a consumed blob leaves its id by the move consuming it
+            if (!consumed.contains(id) && (c == DELETED || !c.fresh)) {
+                aside.add(new Step(id, stagingId(), true));
+            }
+            if (c == DELETED) {
+                continue;
+            }
+            URI source = c.source;
+            Change replaced = changes.get(source);
+            if (!c.staged && replaced != null && replaced != DELETED) {
+                URI detour = stagingId();
+                aside.add(new Step(source, detour, true));
+                source = detour;
+            }
+            publish.add(new Step(source, id, false));
+        }
+        aside.addAll(publish);
+        return aside;
+    }
+
+    /*
+     * move the blobs back in reverse order
+     */
+    private void undo() throws IOException {
+        for (int i = applied.size() - 1; i >= 0; i--) {
+            Step step = applied.get(i);
+            new HDFSBlob(step.to, base).moveTo(step.from, null);
+            applied.remove(i);
+        }
+    }
+
+    /**
+     * apply the changes together with other transactions. If they cannot be
+     * applied, the transaction is marked for rollback.
+     */
+    public void beforeCompletion() {
+        try {
+            store.getGroupCommitter().commit(this);
+        } catch (IOException e) {
+            log.error("unable to apply the changes, the transaction is rolled back", e);
+            try {
+                tx.setRollbackOnly();
+            } catch (SystemException se) {
+                log.error("unable to mark the transaction for rollback", se);
+            }
+        }
+    }
+
+    /**
+     * delete the blobs put aside if the transaction has been committed, or
+     * move them back and discard the staged content otherwise. A journal
+     * which could not be resolved is kept and resolved when the store is
+     * opened again.
+     *
+     * @param status
+     *            the {@link Status} of the completed transaction
+     */
+    public synchronized void afterCompletion(final int status) {
+        try {
+            if (status == Status.STATUS_COMMITTED) {
+                for (Step step : applied) {
+                    if (step.aside && !isPublished(step.to)) {
+                        new HDFSBlob(step.to, base).delete();
+                    }
+                }
+                applied.clear();
+                changes.clear();
+            } else {
+                undo();
+                rollback();
+            }
+            if (journal != null) {
+                base.getFileSystem().delete(journal, false);
+            }
+        } catch (IOException e) {
+            log.error("unable to complete the transaction, its journal is kept in " + journal, e);
+        } finally {
+            for (URI uri : claimed) {
+                store.release(uri, this);
+            }
+            claimed.clear();
+            base.close();
+        }
+    }
+
+    /*
+     * check if a blob put aside has been published again, as the detour of
+     * a move
+     */
+    private boolean isPublished(final URI uri) {
+        for (Step step : applied) {
+            if (!step.aside && step.from.equals(uri)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * discard all changes
+     *
+     * @throws IOException
+     *             if a staging blob could not be deleted
+     */
+    synchronized void rollback() throws IOException {
+        for (Change c : changes.values()) {
+            discard(c);
+        }
+        changes.clear();
+    }
+
+    private void discard(final Change c) throws IOException {
+        if (c != null && c.staged) {
+            new HDFSBlob(c.source, base).delete();
+        }
+    }
+
+    private URI stagingId() {
+        return URI.create(store.getId().toASCIIString() + HDFSBlobStore.STAGING_DIRECTORY + "/" + UUID.randomUUID());
+    }
+
+    private Path journalPath(final String file) {
+        return new Path(store.getId().toASCIIString() + HDFSBlobStore.STAGING_DIRECTORY + "/" + file);
+    }
+
+    private static void writeJournal(final FileSystem hdfs, final Path path, final List<Step> steps) throws IOException {
+        DataOutputStream out = hdfs.create(path, true);
+        try {
+            out.writeInt(steps.size());
+            for (Step step : steps) {
+                out.writeBoolean(step.aside);
+                out.writeUTF(step.from.toASCIIString());
+                out.writeUTF(step.to.toASCIIString());
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static List<Step> readJournal(final FileSystem hdfs, final Path path) throws IOException {
+        DataInputStream in = hdfs.open(path);
+        try {
+            int count = in.readInt();
+            List<Step> steps = new ArrayList<Step>(count);
+            for (int i = 0; i < count; i++) {
+                boolean aside = in.readBoolean();
+                steps.add(new Step(URI.create(in.readUTF()), URI.create(in.readUTF()), aside));
+            }
+            return steps;
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * resolve the journals left behind by transactions interrupted by a
+     * crash. The moves of a transaction which had not started publishing are
+     * undone and its staged content is deleted; the remaining moves of one
+     * which had are carried out and the blobs it put aside are deleted.
+     *
+     * @param store
+     *            the {@link HDFSBlobStore} to recover
+     * @throws IOException
+     *             if a journal could not be resolved
+     */
+    static void recover(final HDFSBlobStore store) throws IOException {
+        HDFSBlobStoreConnection conn = new HDFSBlobStoreConnection(store);
+        try {
+            FileSystem hdfs = conn.getFileSystem();
+            FileStatus[] files;
+            try {
+                files = hdfs.listStatus(new Path(store.getId().toASCIIString() + HDFSBlobStore.STAGING_DIRECTORY));
+            } catch (FileNotFoundException e) {
+                return;
+            }
+            if (files == null) {
+                return;
+            }
+            for (FileStatus f : files) {
+                String file = f.getPath().getName();
+                if (file.endsWith(ASIDE_SUFFIX)) {
+                    log.info("undoing the interrupted transaction " + file);
+                    undoJournal(conn, readJournal(hdfs, f.getPath()));
+                } else if (file.endsWith(PUBLISH_SUFFIX)) {
+                    log.info("completing the interrupted transaction " + file);
+                    completeJournal(conn, readJournal(hdfs, f.getPath()));
+                } else {
+                    continue;
+                }
+                hdfs.delete(f.getPath(), false);
+            }
+        } finally {
+            conn.close();
+        }
+    }
+
+    private static void undoJournal(final HDFSBlobStoreConnection conn, final List<Step> steps) throws IOException {
+        Set<URI> putAside = new HashSet<URI>();
+        for (int i = steps.size() - 1; i >= 0; i--) {
+            Step step = steps.get(i);
+            if (step.aside) {
+                putAside.add(step.to);
+                HDFSBlob blob = new HDFSBlob(step.to, conn);
+                if (blob.exists() && !new HDFSBlob(step.from, conn).exists()) {
+                    blob.moveTo(step.from, null);
+                }
+            }
+        }
+        for (Step step : steps) {
+            if (!step.aside && !putAside.contains(step.from)) {
+                new HDFSBlob(step.from, conn).delete();
+            }
+        }
+    }
+
+    private static void completeJournal(final HDFSBlobStoreConnection conn, final List<Step> steps) throws IOException {
+        Set<URI> published = new HashSet<URI>();
+        for (Step step : steps) {
+            if (!step.aside) {
+                published.add(step.from);
+                HDFSBlob blob = new HDFSBlob(step.from, conn);
+                if (blob.exists()) {
+                    try {
+                        blob.moveTo(step.to, null);
+                    } catch (DuplicateBlobException e) {
+                        log.error("unable to publish " + step.from + ", " + step.to + " has been written by someone else");
+                    }
+                }
+            }
+        }
+        for (Step step : steps) {
+            if (step.aside && !published.contains(step.to)) {
+                new HDFSBlob(step.to, conn).delete();
+            }
+        }
+    }
+}
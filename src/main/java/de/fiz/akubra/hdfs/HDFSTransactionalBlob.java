@@ -0,0 +1,199 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Map;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.DuplicateBlobException;
+import org.akubraproject.MissingBlobException;
+import org.akubraproject.UnsupportedIdException;
+
+/**
+ * A {@link Blob} of a transactional {@link HDFSBlobStoreConnection}. It shows
+ * the state of the blob within its {@link HDFSTransaction}: new content is
+ * written to a staging blob and moves and deletes are only recorded until the
+ * transaction commits.
+ *
+ */
+class HDFSTransactionalBlob implements HDFSDigestingBlob, HDFSRandomAccessBlob {
+    private final URI uri;
+    private final HDFSBlobStoreConnection conn;
+    private final HDFSTransaction tx;
+    private final Map<String, String> hints;
+
+    /**
+     * create a new {@link HDFSTransactionalBlob}
+     *
+     * @param uri
+     *            the identifier of the blob
+     * @param conn
+     *            the transactional {@link HDFSBlobStoreConnection}
+     * @param tx
+     *            the {@link HDFSTransaction} of the connection
+     * @param hints
+     *            the hints choosing the {@link HDFSCreatePolicy}, may be null
+     */
+    HDFSTransactionalBlob(final URI uri, final HDFSBlobStoreConnection conn, final HDFSTransaction tx, final Map<String, String> hints) {
+        this.uri = uri;
+        this.conn = conn;
+        this.tx = tx;
+        this.hints = hints;
+    }
+
+    private void checkOpen() {
+        if (conn.isClosed()) {
+            throw new IllegalStateException("Connection to hdfs is closed");
+        }
+    }
+
+    /*
+     * the blob holding this blob's content in the transaction
+     */
+    private HDFSBlob resolve() throws MissingBlobException {
+        HDFSBlob blob = tx.resolve(uri);
+        if (blob == null) {
+            throw new MissingBlobException(uri);
+        }
+        return blob;
+    }
+
+    public URI getId() {
+        return uri;
+    }
+
+    public URI getCanonicalId() {
+        return uri;
+    }
+
+    public BlobStoreConnection getConnection() {
+        return conn;
+    }
+
+    public boolean exists() throws IOException {
+        checkOpen();
+        HDFSBlob blob = tx.resolve(uri);
+        return blob != null && blob.exists();
+    }
+
+    public long getSize() throws IOException, MissingBlobException {
+        checkOpen();
+        try {
+            return resolve().getSize();
+        } catch (MissingBlobException e) {
+            throw new MissingBlobException(uri);
+        }
+    }
+
+    public InputStream openInputStream() throws IOException, MissingBlobException {
+        checkOpen();
+        try {
+            return resolve().openInputStream();
+        } catch (MissingBlobException e) {
+            throw new MissingBlobException(uri);
+        }
+    }
+
+    public InputStream openInputStream(final long offset, final long length) throws IOException, MissingBlobException {
+        checkOpen();
+        try {
+            return resolve().openInputStream(offset, length);
+        } catch (MissingBlobException e) {
+            throw new MissingBlobException(uri);
+        }
+    }
+
+    public int read(final long position, final byte[] buffer, final int offset, final int length) throws IOException,
+            MissingBlobException {
+        checkOpen();
+        try {
+            return resolve().read(position, buffer, offset, length);
+        } catch (MissingBlobException e) {
+            throw new MissingBlobException(uri);
+        }
+    }
+
+    public OutputStream openOutputStream(final long estimatedSize, final boolean overWrite) throws IOException, DuplicateBlobException {
+        return openOutputStream(estimatedSize, overWrite, false);
+    }
+
+    /**
+     * write new content to a staging blob which replaces this blob when the
+     * transaction commits
+     *
+     * @param estimatedSize
+     *            chooses the {@link HDFSCreatePolicy} of the file
+     * @param overWrite
+     *            if true existing blobs will be overwritten
+     * @param fresh
+     *            true if the id has just been generated, so that no blob can
+     *            exist and the existence check is skipped
+     * @throws IOException
+     *             if the staging blob could not be created
+     * @throws DuplicateBlobException
+     *             if overwrite == false and the blob already exists
+     */
+    OutputStream openOutputStream(final long estimatedSize, final boolean overWrite, final boolean fresh) throws IOException,
+            DuplicateBlobException {
+        checkOpen();
+        if (!overWrite && !fresh && exists()) {
+            throw new DuplicateBlobException(uri);
+        }
+        // the staging blob is opened through the transaction's base
+        // connection, but is synced through this one
+        return conn.track((HDFSBlobOutputStream) tx.stage(uri, hints, fresh).openOutputStream(estimatedSize, false, true));
+    }
+
+    public void delete() throws IOException {
+        checkOpen();
+        tx.delete(uri);
+    }
+
+    public Blob moveTo(URI toUri, final Map<String, String> hints) throws DuplicateBlobException, IOException, MissingBlobException {
+        checkOpen();
+        if (toUri == null) {
+            toUri = conn.createBlobId();
+        }
+        if (!toUri.toASCIIString().startsWith("hdfs://")) {
+            throw new UnsupportedIdException(toUri);
+        }
+        if (!exists()) {
+            throw new MissingBlobException(uri);
+        }
+        HDFSBlob target = tx.resolve(toUri);
+        if (target != null && target.exists()) {
+            throw new DuplicateBlobException(toUri);
+        }
+        tx.move(uri, toUri);
+        return new HDFSTransactionalBlob(toUri, conn, tx, hints);
+    }
+
+    public String getDigestAlgorithm() throws IOException {
+        HDFSBlob blob = tx.resolve(uri);
+        return blob == null ? null : blob.getDigestAlgorithm();
+    }
+
+    public String getDigest() throws IOException {
+        HDFSBlob blob = tx.resolve(uri);
+        return blob == null ? null : blob.getDigest();
+    }
+}
@@ -0,0 +1,254 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isNull;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.MissingBlobException;
+import org.easymock.IAnswer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSAsyncBlobStoreTest {
+
+    private static final URI ID = URI.create("hdfs://localhost:9000/test/blob");
+    private static final URI TARGET = URI.create("hdfs://localhost:9000/test/moved");
+
+    private HDFSBlobStore mockStore;
+    private BlobStoreConnection mockConnection;
+    private Blob mockBlob;
+    private HDFSAsyncBlobStore async;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() throws Exception {
+        mockStore = createMock(HDFSBlobStore.class);
+        mockConnection = createMock(BlobStoreConnection.class);
+        mockBlob = createMock(Blob.class);
+        expect(mockStore.openConnection(null, null)).andReturn(mockConnection).anyTimes();
+        expect(mockConnection.getBlob(eq(ID), (Map<String, String>) isNull())).andReturn(mockBlob).anyTimes();
+        mockConnection.close();
+        expectLastCall().anyTimes();
+        async = new HDFSAsyncBlobStore(mockStore);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        async.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testOperations() throws Exception {
+        byte[] data = new byte[] { 1, 2, 3 };
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        Blob moved = createMock(Blob.class);
+        expect(mockBlob.exists()).andReturn(true);
+        expect(mockBlob.getSize()).andReturn(3L);
+        expect(mockBlob.openInputStream()).andReturn(new ByteArrayInputStream(data));
+        expect(mockBlob.openOutputStream(3, true)).andReturn(written);
+        expect(mockBlob.getId()).andReturn(ID);
+        expect(mockBlob.moveTo(eq(TARGET), (Map<String, String>) isNull())).andReturn(moved);
+        expect(moved.getId()).andReturn(TARGET);
+        mockBlob.delete();
+        expect(mockConnection.listBlobIds("hdfs://localhost:9000/test")).andReturn(Arrays.asList(ID, TARGET).iterator());
+        replay(mockStore, mockConnection, mockBlob, moved);
+
+        assertTrue(async.exists(ID, null).get());
+        assertEquals(Long.valueOf(3), async.getSize(ID, null).get());
+        assertArrayEquals(data, async.get(ID, null).get());
+        assertEquals(ID, async.put(ID, new ByteArrayInputStream(data), 3, null, null).get());
+        assertArrayEquals(data, written.toByteArray());
+        assertEquals(TARGET, async.move(ID, TARGET, null).get());
+        assertNull(async.delete(ID, null).get());
+        List<URI> ids = async.list("hdfs://localhost:9000/test", null).get();
+        assertEquals(Arrays.asList(ID, TARGET), ids);
+        assertEquals(0, async.getPending());
+        verify(mockStore, mockConnection, mockBlob, moved);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testPutNewBlob() throws Exception {
+        expect(mockConnection.getBlob(anyObject(InputStream.class), anyLong(), (Map<String, String>) isNull())).andReturn(mockBlob);
+        expect(mockBlob.getId()).andReturn(ID);
+        replay(mockStore, mockConnection, mockBlob);
+        assertEquals(ID, async.put(null, new ByteArrayInputStream(new byte[1]), 1, null, null).get());
+        verify(mockStore, mockConnection, mockBlob);
+    }
+
+    @Test
+    public void testCallback() throws Exception {
+        expect(mockBlob.exists()).andReturn(false);
+        expect(mockBlob.openInputStream()).andThrow(new MissingBlobException(ID));
+        replay(mockStore, mockConnection, mockBlob);
+
+        final CountDownLatch done = new CountDownLatch(2);
+        final AtomicReference<Boolean> exists = new AtomicReference<Boolean>();
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        async.exists(ID, new HDFSCallback<Boolean>() {
+            public void completed(final Boolean result) {
+                exists.set(result);
+                done.countDown();
+            }
+
+            public void failed(final Exception cause) {
+                done.countDown();
+            }
+        });
+        Future<byte[]> content = async.get(ID, new HDFSCallback<byte[]>() {
+            public void completed(final byte[] result) {
+                done.countDown();
+            }
+
+            public void failed(final Exception cause) {
+                failure.set(cause);
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Boolean.FALSE, exists.get());
+        assertTrue(failure.get() instanceof MissingBlobException);
+        try {
+            content.get();
+            fail("content of a missing blob");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof MissingBlobException);
+        }
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        expect(mockBlob.exists()).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                release.await();
+                return false;
+            }
+        }).times(3);
+        replay(mockStore, mockConnection, mockBlob);
+        async.setExecutor(Executors.newCachedThreadPool());
+        async.setMaxPending(2);
+        Future<Boolean> first = async.exists(ID, null);
+        Future<Boolean> second = async.exists(ID, null);
+        assertEquals(2, async.getPending());
+
+        final CountDownLatch submitted = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    async.exists(ID, null);
+                    submitted.countDown();
+                } catch (InterruptedException e) {
+                    // the latch is not counted down
+                }
+            }
+        };
+        producer.start();
+        // the third operation has to wait for one of the others to finish
+        assertFalse(submitted.await(200, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(submitted.await(10, TimeUnit.SECONDS));
+        assertFalse(first.get());
+        assertFalse(second.get());
+        producer.join();
+    }
+
+    @Test
+    public void testCancelReleasesPermit() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        expect(mockBlob.exists()).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                release.await();
+                return true;
+            }
+        });
+        replay(mockStore, mockConnection, mockBlob);
+        async.setExecutor(Executors.newSingleThreadExecutor());
+        async.setMaxPending(2);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Future<Boolean> running = async.exists(ID, null);
+        Future<Boolean> queued = async.exists(ID, new HDFSCallback<Boolean>() {
+            public void completed(final Boolean result) {
+            }
+
+            public void failed(final Exception cause) {
+                failure.set(cause);
+            }
+        });
+        assertEquals(2, async.getPending());
+        assertTrue(queued.cancel(false));
+        assertEquals(1, async.getPending());
+        assertTrue(failure.get() instanceof CancellationException);
+        release.countDown();
+        assertTrue(running.get());
+        verify(mockStore, mockConnection, mockBlob);
+    }
+
+    @Test
+    public void testFailingCallback() throws Exception {
+        expect(mockBlob.exists()).andReturn(true);
+        replay(mockStore, mockConnection, mockBlob);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Future<Boolean> exists = async.exists(ID, new HDFSCallback<Boolean>() {
+            public void completed(final Boolean result) {
+                throw new IllegalStateException("callback");
+            }
+
+            public void failed(final Exception cause) {
+                failure.set(cause);
+            }
+        });
+        assertTrue(exists.get());
+        assertNull(failure.get());
+        assertEquals(0, async.getPending());
+        verify(mockStore, mockConnection, mockBlob);
+    }
+}
@@ -0,0 +1,278 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyShort;
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+
+import org.akubraproject.Blob;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.easymock.Capture;
+import org.junit.Test;
+
+/**
+ * Counts the namenode calls of Fedora's safe overwrite and of replacing a
+ * blob's content, with and without an overwriting rename
+ */
+public class HDFSAtomicReplaceTest {
+
+    private static final URI storeUri = URI.create("hdfs://localhost:9000/store/");
+    private static final URI blobUri = URI.create(storeUri + "fedora/demo_1");
+    private static final URI newUri = URI.create(storeUri + "fedora/demo_1" + HDFSIdMapper.NEW_SUFFIX);
+    private static final URI oldUri = URI.create(storeUri + "fedora/demo_1" + HDFSIdMapper.OLD_SUFFIX);
+    private static final Path blobPath = new Path(blobUri);
+    private static final Path newPath = new Path(newUri);
+    private static final Path oldPath = new Path(oldUri);
+
+    private HDFSCountingFileSystem fs;
+    private HDFSBlobStore store;
+
+    private void setUp(final FileSystem mockFs) throws Exception {
+        expect(mockFs.getConf()).andReturn(new Configuration()).anyTimes();
+        expect(
+                mockFs.create(anyObject(Path.class), anyObject(FsPermission.class), eq(false), anyInt(), anyShort(), anyLong(),
+                        anyObject(Progressable.class))).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(), null)).anyTimes();
+        expect(mockFs.mkdirs(anyObject(Path.class), anyObject(FsPermission.class))).andReturn(true).anyTimes();
+        fs = new HDFSCountingFileSystem(mockFs);
+        store = new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+
+            // no compressed blobs, so the marker is not looked up
+            @Override
+            synchronized HDFSMetadataStore getMetadataStore() throws IOException {
+                return null;
+            }
+        };
+        store.setAtomicReplace(true);
+    }
+
+    private HDFSBlobStoreConnection writeNewContent() throws IOException {
+        HDFSBlobStoreConnection connection = new HDFSBlobStoreConnection(store);
+        connection.getBlob(newUri, null).openOutputStream(16, false).close();
+        fs.reset();
+        return connection;
+    }
+
+    @Test
+    public void testSafeOverwrite() throws Exception {
+        OverwritingFileSystem mockFs = createNiceMock(OverwritingFileSystem.class);
+        setUp(mockFs);
+        expect(mockFs.getFileStatus(blobPath)).andReturn(new FileStatus(16, false, 0, 0, 0, blobPath));
+        mockFs.rename(eq(newPath), eq(blobPath), eq(OverwritingFileSystem.Rename.OVERWRITE));
+        expectLastCall().once();
+        replay(mockFs);
+        HDFSBlobStoreConnection connection = writeNewContent();
+        Blob old = connection.getBlob(blobUri, null).moveTo(oldUri, null);
+        assertEquals(oldUri, old.getId());
+        assertEquals(blobUri, connection.getBlob(newUri, null).moveTo(blobUri, null).getId());
+        old.delete();
+        connection.close();
+        verify(mockFs);
+        // the existence check and the rename
+        assertEquals(1, fs.getCount("getFileStatus"));
+        assertEquals(1, fs.getCount("rename"));
+        assertEquals(2, fs.getTotal());
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        OverwritingFileSystem mockFs = createNiceMock(OverwritingFileSystem.class);
+        setUp(mockFs);
+        expect(mockFs.getFileStatus(blobPath)).andReturn(new FileStatus(16, false, 0, 0, 0, blobPath));
+        mockFs.rename(eq(newPath), eq(blobPath), eq(OverwritingFileSystem.Rename.OVERWRITE));
+        expectLastCall().andThrow(new IOException("datanode unavailable"));
+        replay(mockFs);
+        HDFSBlobStoreConnection connection = writeNewContent();
+        Blob old = connection.getBlob(blobUri, null).moveTo(oldUri, null);
+        try {
+            connection.getBlob(newUri, null).moveTo(blobUri, null);
+            fail("the failed rename has not been reported");
+        } catch (IOException e) {
+            // Fedora moves the backup back
+        }
+        assertEquals(blobUri, old.moveTo(blobUri, null).getId());
+        connection.close();
+        verify(mockFs);
+        // nothing has been moved to the backup
+        assertEquals(1, fs.getCount("rename"));
+    }
+
+    @Test
+    public void testDeferredMoveIsCarriedOut() throws Exception {
+        OverwritingFileSystem mockFs = createNiceMock(OverwritingFileSystem.class);
+        setUp(mockFs);
+        expect(mockFs.getFileStatus(blobPath)).andReturn(new FileStatus(16, false, 0, 0, 0, blobPath));
+        expect(mockFs.rename(blobPath, oldPath)).andReturn(true).once();
+        expect(mockFs.getFileStatus(blobPath)).andThrow(new FileNotFoundException());
+        replay(mockFs);
+        HDFSBlobStoreConnection connection = writeNewContent();
+        connection.getBlob(blobUri, null).moveTo(oldUri, null);
+        // any other use of the blob moves it first
+        assertFalse(connection.getBlob(blobUri, null).exists());
+        connection.close();
+        verify(mockFs);
+    }
+
+    @Test
+    public void testCloseCarriesOutDeferredMove() throws Exception {
+        OverwritingFileSystem mockFs = createNiceMock(OverwritingFileSystem.class);
+        setUp(mockFs);
+        expect(mockFs.getFileStatus(blobPath)).andReturn(new FileStatus(16, false, 0, 0, 0, blobPath));
+        expect(mockFs.rename(blobPath, oldPath)).andReturn(true).once();
+        replay(mockFs);
+        HDFSBlobStoreConnection connection = writeNewContent();
+        connection.getBlob(blobUri, null).moveTo(oldUri, null);
+        assertEquals(1, fs.getCount("getFileStatus"));
+        connection.close();
+        verify(mockFs);
+    }
+
+    @Test
+    public void testSafeOverwriteWithoutOverwritingRename() throws Exception {
+        FileSystem mockFs = createNiceMock(FileSystem.class);
+        setUp(mockFs);
+        expect(mockFs.rename(blobPath, oldPath)).andReturn(true).once();
+        expect(mockFs.rename(newPath, blobPath)).andReturn(true).once();
+        expect(mockFs.delete(oldPath, false)).andReturn(true).once();
+        replay(mockFs);
+        HDFSBlobStoreConnection connection = writeNewContent();
+        Blob old = connection.getBlob(blobUri, null).moveTo(oldUri, null);
+        connection.getBlob(newUri, null).moveTo(blobUri, null);
+        old.delete();
+        connection.close();
+        verify(mockFs);
+    }
+
+    @Test
+    public void testDeferredBackupsAreIndexedByBlob() throws Exception {
+        OverwritingFileSystem mockFs = createNiceMock(OverwritingFileSystem.class);
+        setUp(mockFs);
+        replay(mockFs);
+        HDFSBlobStoreConnection connection = new HDFSBlobStoreConnection(store);
+        assertTrue(connection.isDeferringBackups());
+        URI[] blobs = new URI[100];
+        for (int i = 0; i < blobs.length; i++) {
+            blobs[i] = URI.create("hdfs:test" + i);
+            connection.deferBackup(blobs[i], URI.create("hdfs:test" + i + HDFSIdMapper.OLD_SUFFIX));
+        }
+        assertEquals(URI.create("hdfs:test42" + HDFSIdMapper.OLD_SUFFIX), connection.getDeferredBackup(blobs[42]));
+        // taken by the backup
+        URI[] deferred = connection.takeDeferredBackup(URI.create("hdfs:test42" + HDFSIdMapper.OLD_SUFFIX));
+        assertEquals(blobs[42], deferred[0]);
+        assertNull(connection.getDeferredBackup(blobs[42]));
+        // taken by the blob
+        deferred = connection.takeDeferredBackup(blobs[7]);
+        assertEquals(URI.create("hdfs:test7" + HDFSIdMapper.OLD_SUFFIX), deferred[1]);
+        assertNull(connection.takeDeferredBackup(blobs[7]));
+        // the backup taken of another blob
+        connection.deferBackup(blobs[8], URI.create("hdfs:test9" + HDFSIdMapper.OLD_SUFFIX));
+        assertNull(connection.getDeferredBackup(blobs[9]));
+        connection.backupReplaced(URI.create("hdfs:test9" + HDFSIdMapper.OLD_SUFFIX));
+        assertNull(connection.getDeferredBackup(blobs[8]));
+        assertTrue(connection.takeReplacedBackup(URI.create("hdfs:test9" + HDFSIdMapper.OLD_SUFFIX)));
+    }
+
+    @Test
+    public void testNoDeferralWithoutOverwritingRename() throws Exception {
+        FileSystem mockFs = createNiceMock(FileSystem.class);
+        setUp(mockFs);
+        replay(mockFs);
+        assertFalse(new HDFSBlobStoreConnection(store).isDeferringBackups());
+    }
+
+    @Test
+    public void testReplacingOutputStream() throws Exception {
+        OverwritingFileSystem mockFs = createNiceMock(OverwritingFileSystem.class);
+        setUp(mockFs);
+        Capture<Path> staged = new Capture<Path>();
+        mockFs.rename(capture(staged), eq(blobPath), eq(OverwritingFileSystem.Rename.OVERWRITE));
+        expectLastCall().once();
+        replay(mockFs);
+        HDFSBlobStoreConnection connection = new HDFSBlobStoreConnection(store);
+        OutputStream out = ((HDFSReplaceableBlob) connection.getBlob(blobUri, null)).openReplacingOutputStream(3);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        out.close();
+        verify(mockFs);
+        assertTrue(staged.getValue().toString().startsWith(storeUri + HDFSBlobStore.STAGING_DIRECTORY + "/"));
+        // one create plus one rename
+        assertEquals(1, fs.getCount("create"));
+        assertEquals(1, fs.getCount("rename"));
+        assertEquals(2, fs.getTotal());
+    }
+
+    @Test
+    public void testReplacingOutputStreamWithoutOverwritingRename() throws Exception {
+        FileSystem mockFs = createNiceMock(FileSystem.class);
+        setUp(mockFs);
+        Capture<Path> backup = new Capture<Path>();
+        expect(mockFs.rename(eq(blobPath), capture(backup))).andReturn(true).once();
+        expect(mockFs.rename(anyObject(Path.class), eq(blobPath))).andReturn(true).once();
+        expect(mockFs.delete(anyObject(Path.class), eq(false))).andReturn(true).once();
+        replay(mockFs);
+        HDFSBlobStoreConnection connection = new HDFSBlobStoreConnection(store);
+        OutputStream out = ((HDFSReplaceableBlob) connection.getBlob(blobUri, null)).openReplacingOutputStream(3);
+        out.write(new byte[] { 1, 2, 3 });
+        out.close();
+        verify(mockFs);
+        // the replaced file is kept in the staging directory until the new
+        // one is in place
+        assertTrue(backup.getValue().toString().startsWith(storeUri + HDFSBlobStore.STAGING_DIRECTORY + "/"));
+        assertEquals(2, fs.getCount("rename"));
+    }
+
+    /**
+     * a {@link FileSystem} with the overwriting rename of later Hadoop
+     * clients
+     */
+    public abstract static class OverwritingFileSystem extends FileSystem {
+        public enum Rename {
+            NONE, OVERWRITE
+        }
+
+        public abstract void rename(Path src, Path dst, Rename... options) throws IOException;
+    }
+}
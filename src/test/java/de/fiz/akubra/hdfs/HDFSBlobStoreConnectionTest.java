@@ -18,22 +18,35 @@ package de.fiz.akubra.hdfs;
 
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.lang.reflect.Field;
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.Syncable;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Test;
@@ -55,13 +68,18 @@ public class HDFSBlobStoreConnectionTest {
     public void setUp() throws Exception {
         mockStore = createMock(HDFSBlobStore.class);
         mockFs = createMock(FileSystem.class);
+        HDFSBlobTest.expectFeaturesDisabled(mockStore);
+        expect(mockStore.getBufferPool()).andReturn(new HDFSBufferPool(4096, 1)).anyTimes();
+        expect(mockStore.getListingThreads()).andReturn(0).anyTimes();
+        expect(mockStore.getShardLayout()).andReturn(new HDFSShardLayout(0, 2)).anyTimes();
     }
 
     @Test
     public void testClose() throws Exception {
-        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
         expect(mockStore.getId()).andReturn(mockId);
         mockFs.close();
+        mockStore.releaseFilesystem(mockFs);
         replay(mockStore, mockFs);
         HDFSBlobStoreConnection connection = createTestConnection();
         connection.close();
@@ -77,10 +95,9 @@ public class HDFSBlobStoreConnectionTest {
 
     @Test
     public void testCreateBlob1() throws Exception {
-        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
         expect(mockStore.getId()).andReturn(mockId).times(3);
-        expect(mockFs.exists((Path) anyObject())).andReturn(false);
-        expect(mockFs.create((Path) anyObject())).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(20), null));
+        expect(mockFs.create((Path) anyObject(), eq(false))).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(20), null));
         expect(mockFs.exists((Path) anyObject())).andReturn(true);
         replay(mockStore, mockFs);
         HDFSBlobStoreConnection connection = createTestConnection();
@@ -94,7 +111,7 @@ public class HDFSBlobStoreConnectionTest {
 
     @Test
     public void testGetBlob1() throws Exception {
-        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
         expect(mockStore.getId()).andReturn(mockId).times(3);
         replay(mockStore, mockFs);
         HDFSBlobStoreConnection connection = createTestConnection();
@@ -105,7 +122,7 @@ public class HDFSBlobStoreConnectionTest {
 
     @Test
     public void testGetBlobStore() throws Exception {
-        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
         expect(mockStore.getId()).andReturn(mockId);
         replay(mockStore, mockFs);
         HDFSBlobStoreConnection connection = createTestConnection();
@@ -116,7 +133,7 @@ public class HDFSBlobStoreConnectionTest {
 
     @Test
     public void testGetFileSystem() throws Exception {
-        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
         expect(mockStore.getId()).andReturn(mockId);
         replay(mockStore, mockFs);
         HDFSBlobStoreConnection connection = createTestConnection();
@@ -126,7 +143,7 @@ public class HDFSBlobStoreConnectionTest {
 
     @Test
     public void testHDFSBlobStoreConnection() throws Exception {
-        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
         expect(mockStore.getId()).andReturn(mockId);
         replay(mockStore, mockFs);
         HDFSBlobStoreConnection connection = createTestConnection();
@@ -135,7 +152,7 @@ public class HDFSBlobStoreConnectionTest {
 
     @Test
     public void testListBlobIds() throws Exception {
-        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
         expect(mockFs.listStatus((Path) anyObject())).andReturn(createTestFileStatus()).times(2);
         expect(mockStore.getId()).andReturn(URI.create("hdfs://localhost:9000/")).times(2);
         replay(mockStore, mockFs);
@@ -146,21 +163,113 @@ public class HDFSBlobStoreConnectionTest {
 
     @Test
     public void testReopen() throws Exception {
-        expect(mockStore.getFilesystem()).andReturn(mockFs);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
         expect(mockStore.getId()).andReturn(mockId);
         mockFs.close();
+        mockStore.releaseFilesystem(mockFs);
         replay(mockStore, mockFs);
         HDFSBlobStoreConnection connection = createTestConnection();
         assertFalse(connection.isClosed());
         connection.close();
     }
 
-    @Test(expected = UnsupportedOperationException.class)
+    @Test
     public void testSync() throws Exception {
-        expect(mockStore.getFilesystem()).andReturn(mockFs);
-        expect(mockStore.getId()).andReturn(mockId);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        SyncCountingStream[] files = new SyncCountingStream[3];
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
+        expect(mockStore.getSyncDurability()).andReturn(HDFSDurability.FLUSH).anyTimes();
+        expect(mockStore.getSyncExecutor()).andReturn(executor).anyTimes();
+        expect(mockStore.getId()).andReturn(mockId).anyTimes();
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new SyncCountingStream();
+            expect(mockFs.create(new Path(mockId + "blob" + i), true)).andReturn(new FSDataOutputStream(files[i], null));
+        }
         replay(mockStore, mockFs);
         HDFSBlobStoreConnection connection = createTestConnection();
+        OutputStream[] streams = new OutputStream[files.length];
+        for (int i = 0; i < files.length; i++) {
+            streams[i] = connection.getBlob(URI.create(mockId + "blob" + i), null).openOutputStream(10, true);
+            streams[i].write(i);
+        }
+        connection.sync();
+        for (SyncCountingStream file : files) {
+            assertEquals(1, file.syncs.get());
+        }
+        // closed streams are not synced again
+        streams[0].close();
         connection.sync();
+        assertEquals(1, files[0].syncs.get());
+        assertEquals(2, files[1].syncs.get());
+        assertEquals(2, files[2].syncs.get());
+        executor.shutdown();
+    }
+
+    @Test
+    public void testBulkLookup() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
+        expect(mockStore.getBulkExecutor()).andReturn(executor).anyTimes();
+        expect(mockStore.getId()).andReturn(mockId).anyTimes();
+        expect(mockStore.getBulkListThreshold()).andReturn(3).anyTimes();
+        List<URI> ids = new ArrayList<URI>();
+        // a directory holding enough of the blobs is listed once
+        for (int i = 0; i < 4; i++) {
+            ids.add(URI.create(mockId + "big/blob" + i));
+        }
+        expect(mockFs.listStatus(new Path(mockId + "big"))).andReturn(
+                new FileStatus[] { new FileStatus(10, false, 0, 0, 0, new Path(mockId + "big/blob0")),
+                        new FileStatus(20, false, 0, 0, 0, new Path(mockId + "big/blob2")),
+                        new FileStatus(30, false, 0, 0, 0, new Path(mockId + "big/other")) });
+        // the others are looked up one by one
+        ids.add(URI.create(mockId + "small/blob"));
+        ids.add(URI.create(mockId + "missing/blob"));
+        expect(mockFs.getFileStatus(new Path(mockId + "small/blob"))).andReturn(
+                new FileStatus(40, false, 0, 0, 0, new Path(mockId + "small/blob"))).times(2);
+        expect(mockFs.getFileStatus(new Path(mockId + "missing/blob"))).andThrow(new FileNotFoundException()).times(2);
+        expect(mockFs.listStatus(new Path(mockId + "big"))).andReturn(null);
+        replay(mockStore, mockFs);
+        HDFSBlobStoreConnection connection = createTestConnection();
+
+        Map<URI, Long> sizes = connection.getSizes(ids);
+        assertEquals(3, sizes.size());
+        assertEquals(Long.valueOf(10), sizes.get(ids.get(0)));
+        assertEquals(Long.valueOf(20), sizes.get(ids.get(2)));
+        assertEquals(Long.valueOf(40), sizes.get(ids.get(4)));
+
+        // the directory has vanished meanwhile
+        Map<URI, Boolean> exists = connection.exists(ids);
+        assertEquals(ids, new ArrayList<URI>(exists.keySet()));
+        assertFalse(exists.get(ids.get(0)));
+        assertTrue(exists.get(ids.get(4)));
+        assertFalse(exists.get(ids.get(5)));
+        verify(mockStore, mockFs);
+        executor.shutdown();
+    }
+
+    @Test
+    public void testBulkDelete() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
+        expect(mockStore.getBulkExecutor()).andReturn(executor).anyTimes();
+        expect(mockStore.getId()).andReturn(mockId).anyTimes();
+        List<URI> ids = new ArrayList<URI>();
+        for (int i = 0; i < 5; i++) {
+            ids.add(URI.create(mockId + "blob" + i));
+            expect(mockFs.delete(new Path(mockId + "blob" + i), false)).andReturn(i != 3);
+        }
+        replay(mockStore, mockFs);
+        HDFSBlobStoreConnection connection = createTestConnection();
+        connection.delete(ids);
+        verify(mockStore, mockFs);
+        executor.shutdown();
+    }
+
+    private static class SyncCountingStream extends ByteArrayOutputStream implements Syncable {
+        private final AtomicInteger syncs = new AtomicInteger();
+
+        public void sync() throws IOException {
+            syncs.incrementAndGet();
+        }
     }
 }
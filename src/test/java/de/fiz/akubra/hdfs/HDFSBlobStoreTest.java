@@ -19,8 +19,10 @@ package de.fiz.akubra.hdfs;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 
 import java.net.URI;
+import java.util.concurrent.CountDownLatch;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
@@ -53,4 +55,37 @@ public class HDFSBlobStoreTest {
         assertNotNull(store);
     }
 
+    @Test(timeout = 10000)
+    public void testGettersDoNotTakeTheStoreLock() throws Exception {
+        store.setMemoryCacheSize(1024 * 1024);
+        final HDFSMemoryCache cache = store.getMemoryCache();
+        final HDFSGroupCommitter committer = store.getGroupCommitter();
+        final CountDownLatch locked = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread holder = new Thread() {
+            @Override
+            public void run() {
+                synchronized (store) {
+                    locked.countDown();
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+        };
+        holder.start();
+        locked.await();
+        try {
+            // components opened before are returned while the lock is held
+            assertSame(cache, store.getMemoryCache());
+            assertSame(committer, store.getGroupCommitter());
+            assertNotNull(store.getShardLayout());
+        } finally {
+            done.countDown();
+        }
+        holder.join();
+    }
+
 }
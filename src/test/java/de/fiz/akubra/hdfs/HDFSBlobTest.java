@@ -17,10 +17,14 @@
 package de.fiz.akubra.hdfs;
 
 import static org.easymock.EasyMock.anyBoolean;
+import static org.easymock.EasyMock.anyLong;
 import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.getCurrentArguments;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
@@ -35,11 +39,14 @@ import org.akubraproject.DuplicateBlobException;
 import org.apache.commons.io.output.ByteArrayOutputStream;
 import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
 import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.fs.PositionedReadable;
 import org.apache.hadoop.fs.Seekable;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -101,10 +108,51 @@ public class HDFSBlobTest {
     }
 
     @Before
-    public void setup() {
+    public void setup() throws Exception {
         mockFs = createMock(FileSystem.class);
         mockStore = createMock(HDFSBlobStore.class);
         mockConnection = createMock(HDFSBlobStoreConnection.class);
+        expectFeaturesDisabled(mockStore);
+        expectConnection(mockConnection);
+    }
+
+    /*
+     * stub the optional features of a mocked store as disabled
+     */
+    static void expectFeaturesDisabled(final HDFSBlobStore store) throws IOException {
+        expectFeatures(store, null, null);
+    }
+
+    /*
+     * stub the optional features of a mocked store as disabled but for the
+     * given caches
+     */
+    static void expectFeatures(final HDFSBlobStore store, final HDFSStatusCache statusCache, final HDFSDirectoryCache directoryCache)
+            throws IOException {
+        expect(store.getPackStore()).andReturn(null).anyTimes();
+        expect(store.getStatusCache()).andReturn(statusCache).anyTimes();
+        expect(store.getMetadataStore()).andReturn(null).anyTimes();
+        expect(store.getContentStore()).andReturn(null).anyTimes();
+        expect(store.getReadCache()).andReturn(null).anyTimes();
+        expect(store.getMemoryCache()).andReturn(null).anyTimes();
+        expect(store.getMetricsRegistry()).andReturn(null).anyTimes();
+        expect(store.getCompression()).andReturn(null).anyTimes();
+        expect(store.getTiering()).andReturn(null).anyTimes();
+        expect(store.isAtomicReplace()).andReturn(false).anyTimes();
+        expect(store.getCreatePolicy(anyLong(), EasyMock.<Map<String, String>> anyObject())).andReturn(null).anyTimes();
+        expect(store.getDirectoryCache()).andReturn(directoryCache).anyTimes();
+    }
+
+    /*
+     * stub the bookkeeping of a mocked connection
+     */
+    static void expectConnection(final HDFSBlobStoreConnection connection) {
+        expect(connection.isDeferringBackups()).andReturn(false).anyTimes();
+        expect(connection.track(anyObject(HDFSBlobOutputStream.class))).andAnswer(new IAnswer<HDFSBlobOutputStream>() {
+            public HDFSBlobOutputStream answer() {
+                return (HDFSBlobOutputStream) getCurrentArguments()[0];
+            }
+        }).anyTimes();
     }
 
     @Test
@@ -181,23 +229,68 @@ public class HDFSBlobTest {
     }
 
     @Test
-    @SuppressWarnings("unchecked")
     public void testMoveTo() throws Exception {
         expect(mockConnection.getBlobStore()).andReturn(mockStore);
         expect(mockStore.getId()).andReturn(blobStoreUri);
         expect(mockConnection.isClosed()).andReturn(false).times(2);
-        expect(mockConnection.getFileSystem()).andReturn(mockFs).times(9);
-        expect(mockFs.mkdirs(anyObject(Path.class))).andReturn(true).times(1);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(false);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(false);
-        expect(mockConnection.getBlob(anyObject(URI.class), anyObject(Map.class))).andReturn(null);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs);
+        expect(mockFs.exists(new Path("hdfs://localhost:9000/7f/kjahdsjahd/it-is-a-dir/moveTest"))).andReturn(false);
+        expect(mockFs.mkdirs(new Path("hdfs://localhost:9000/7f/kjahdsjahd/it-is-a-dir"))).andReturn(true).times(1);
+        expect(mockConnection.getBlob(anyObject(URI.class), EasyMock.<Map<String, String>> anyObject())).andReturn(null);
         expect(mockFs.rename(anyObject(Path.class), anyObject(Path.class))).andReturn(true);
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
         URI newURI = URI.create("hdfs://localhost:9000/7f/kjahdsjahd/it-is-a-dir/moveTest");
         b.moveTo(newURI, null);
+        verify(mockFs);
+    }
+
+    @Test
+    public void testMoveToKnownDirectory() throws Exception {
+        HDFSDirectoryCache dirs = new HDFSDirectoryCache(10);
+        dirs.add(new Path("hdfs://localhost:9000/7f/kjahdsjahd"));
+        FileSystem fs = createMock(FileSystem.class);
+        HDFSBlobStore store = createMock(HDFSBlobStore.class);
+        expectFeatures(store, null, dirs);
+        expect(store.getId()).andReturn(blobStoreUri).anyTimes();
+        expect(mockConnection.getBlobStore()).andReturn(store);
+        expect(mockConnection.isClosed()).andReturn(false).anyTimes();
+        expect(mockConnection.getFileSystem()).andReturn(fs).anyTimes();
+        expect(mockConnection.getBlob(anyObject(URI.class), EasyMock.<Map<String, String>> anyObject())).andReturn(null).anyTimes();
+        expect(fs.exists(new Path("hdfs://localhost:9000/7f/kjahdsjahd/moveTest"))).andReturn(false);
+        expect(fs.rename(anyObject(Path.class), anyObject(Path.class))).andReturn(true);
+        replay(mockConnection, fs, store);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        b.moveTo(URI.create("hdfs://localhost:9000/7f/kjahdsjahd/moveTest"), null);
+        // no mkdirs for a directory known to exist
+        verify(fs);
+        assertTrue(dirs.contains(new Path("hdfs://localhost:9000/7f")));
+    }
+
+    @Test
+    public void testMoveToRemovedDirectory() throws Exception {
+        HDFSDirectoryCache dirs = new HDFSDirectoryCache(10);
+        Path dir = new Path("hdfs://localhost:9000/7f/kjahdsjahd");
+        dirs.add(dir);
+        FileSystem fs = createMock(FileSystem.class);
+        HDFSBlobStore store = createMock(HDFSBlobStore.class);
+        expectFeatures(store, null, dirs);
+        expect(store.getId()).andReturn(blobStoreUri).anyTimes();
+        expect(mockConnection.getBlobStore()).andReturn(store);
+        expect(mockConnection.isClosed()).andReturn(false).anyTimes();
+        expect(mockConnection.getFileSystem()).andReturn(fs).anyTimes();
+        expect(mockConnection.getBlob(anyObject(URI.class), EasyMock.<Map<String, String>> anyObject())).andReturn(null).anyTimes();
+        expect(fs.exists(anyObject(Path.class))).andReturn(false);
+        // the directory has been deleted by another process
+        expect(fs.rename(anyObject(Path.class), anyObject(Path.class))).andReturn(false);
+        expect(fs.exists(anyObject(Path.class))).andReturn(false);
+        expect(fs.exists(anyObject(Path.class))).andReturn(true);
+        expect(fs.mkdirs(dir)).andReturn(true);
+        expect(fs.rename(anyObject(Path.class), anyObject(Path.class))).andReturn(true);
+        replay(mockConnection, fs, store);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        b.moveTo(URI.create("hdfs://localhost:9000/7f/kjahdsjahd/moveTest"), null);
+        verify(fs);
     }
 
     @Test(expected = DuplicateBlobException.class)
@@ -205,9 +298,9 @@ public class HDFSBlobTest {
         expect(mockConnection.getBlobStore()).andReturn(mockStore);
         expect(mockStore.getId()).andReturn(blobStoreUri);
         expect(mockConnection.isClosed()).andReturn(false).times(2);
-        expect(mockConnection.getFileSystem()).andReturn(mockFs).times(9);
-        expect(mockFs.mkdirs(anyObject(Path.class))).andReturn(true).times(3);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs);
+        // neither the directory is created nor the file renamed
+        expect(mockFs.exists(new Path("hdfs://localhost:9000/7f/kjahdsjahd/it-is-a-dir/moveTest"))).andReturn(true);
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
         URI newURI = URI.create("hdfs://localhost:9000/7f/kjahdsjahd/it-is-a-dir/moveTest");
@@ -234,8 +327,7 @@ public class HDFSBlobTest {
         expect(mockConnection.isClosed()).andReturn(false).times(2);
         expect(mockStore.getId()).andReturn(blobStoreUri).times(2);
         expect(mockConnection.getFileSystem()).andReturn(mockFs).times(2);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
-        expect(mockFs.create(anyObject(Path.class), anyBoolean())).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(8)));
+        expect(mockFs.create(anyObject(Path.class), eq(true))).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(8), null));
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
         assertNotNull(b.openOutputStream(0, true));
@@ -247,22 +339,46 @@ public class HDFSBlobTest {
         expect(mockConnection.isClosed()).andReturn(false).times(2);
         expect(mockStore.getId()).andReturn(blobStoreUri).times(2);
         expect(mockConnection.getFileSystem()).andReturn(mockFs).times(2);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
+        expect(mockFs.create(anyObject(Path.class), eq(false))).andThrow(new FileAlreadyExistsException());
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
         assertNotNull(b.openOutputStream(0, false));
     }
 
+    @Test(expected = DuplicateBlobException.class)
+    public void testOpenOutputStreamExistingLocalFile() throws Exception {
+        expect(mockConnection.getBlobStore()).andReturn(mockStore);
+        expect(mockConnection.isClosed()).andReturn(false);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs);
+        // the local filesystem does not throw a FileAlreadyExistsException
+        expect(mockFs.create(anyObject(Path.class), eq(false))).andThrow(new IOException("File already exists"));
+        expect(mockFs.exists(anyObject(Path.class))).andReturn(true);
+        replay(mockConnection, mockFs, mockStore);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        b.openOutputStream(0, false);
+    }
+
     @Test
     public void testOpenOutputStreamNew() throws Exception {
         expect(mockConnection.getBlobStore()).andReturn(mockStore).times(3);
         expect(mockConnection.isClosed()).andReturn(false).times(2);
         expect(mockStore.getId()).andReturn(blobStoreUri).times(2);
         expect(mockConnection.getFileSystem()).andReturn(mockFs).times(2);
-        expect(mockFs.exists(anyObject(Path.class))).andReturn(false);
-        expect(mockFs.create(anyObject(Path.class))).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(8)));
+        expect(mockFs.create(anyObject(Path.class), eq(true))).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(8), null));
         replay(mockConnection, mockFs, mockStore);
         HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
         assertNotNull(b.openOutputStream(0, true));
     }
+
+    @Test
+    public void testOpenOutputStreamNewWithoutOverwrite() throws Exception {
+        expect(mockConnection.getBlobStore()).andReturn(mockStore).times(3);
+        expect(mockConnection.isClosed()).andReturn(false).times(2);
+        expect(mockStore.getId()).andReturn(blobStoreUri).times(2);
+        expect(mockConnection.getFileSystem()).andReturn(mockFs).times(2);
+        expect(mockFs.create(anyObject(Path.class), eq(false))).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(8), null));
+        replay(mockConnection, mockFs, mockStore);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        assertNotNull(b.openOutputStream(0, false));
+    }
 }
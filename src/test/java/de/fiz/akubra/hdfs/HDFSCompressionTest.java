@@ -0,0 +1,288 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSCompressionTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileSystem fs;
+    private URI storeUri;
+    private HDFSBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        fs = FileSystem.getLocal(new Configuration());
+        storeUri = URI.create(fs.makeQualified(new Path(tmp.getRoot().getAbsolutePath())).toUri() + "/");
+        store = new HDFSBlobStore(storeUri);
+        store.setCompression(HDFSCompression.DEFLATE_FAST);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    private static byte[] text(final int size) {
+        StringBuilder sb = new StringBuilder(size + 64);
+        Random random = new Random(1);
+        while (sb.length() < size) {
+            sb.append("<foxml:datastream ID=\"DS").append(random.nextInt(100)).append("\" STATE=\"A\"/>\n");
+        }
+        return sb.substring(0, size).getBytes();
+    }
+
+    private static byte[] random(final int size) {
+        byte[] data = new byte[size];
+        new Random(2).nextBytes(data);
+        return data;
+    }
+
+    private static Blob create(final BlobStoreConnection connection, final byte[] data, final Map<String, String> hints)
+            throws Exception {
+        return connection.getBlob(new ByteArrayInputStream(data), data.length, hints);
+    }
+
+    private long storedLength(final URI id) throws Exception {
+        return fs.getFileStatus(new Path(id)).getLen();
+    }
+
+    @Test
+    public void testCompressedBlob() throws Exception {
+        byte[] data = text(300 * 1024);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        Blob blob = create(connection, data, null);
+        URI id = blob.getId();
+        assertTrue(storedLength(id) < data.length / 3);
+        assertEquals(data.length, blob.getSize());
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        assertEquals(HDFSCompression.DEFLATE_FAST.name(),
+                store.getMetadataStore().get(id).get(HDFSMetadataStore.COMPRESSION));
+
+        // ranges are read from the uncompressed content
+        HDFSRandomAccessBlob random = (HDFSRandomAccessBlob) blob;
+        InputStream range = random.openInputStream(100000, 10);
+        assertArrayEquals(Arrays.copyOfRange(data, 100000, 100010), IOUtils.toByteArray(range));
+        byte[] buf = new byte[10];
+        assertEquals(10, random.read(200000, buf, 0, 10));
+        assertArrayEquals(Arrays.copyOfRange(data, 200000, 200010), buf);
+        assertEquals(-1, random.read(data.length, buf, 0, 10));
+
+        blob.delete();
+        assertNull(store.getMetadataStore().get(id));
+        connection.close();
+    }
+
+    @Test
+    public void testIncompressibleBlob() throws Exception {
+        byte[] data = random(100 * 1024);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        Blob blob = create(connection, data, null);
+        URI id = blob.getId();
+        assertEquals(data.length, storedLength(id));
+        assertNull(store.getMetadataStore().getCompressed(id));
+        assertEquals(data.length, blob.getSize());
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        connection.close();
+    }
+
+    @Test
+    public void testOverwriteWithIncompressibleContent() throws Exception {
+        BlobStoreConnection connection = store.openConnection(null, null);
+        Blob blob = create(connection, text(10000), null);
+        assertTrue(store.getMetadataStore().getRecords().contains(blob.getId()));
+        byte[] data = random(10000);
+        OutputStream out = blob.openOutputStream(data.length, true);
+        out.write(data);
+        out.close();
+        assertFalse(store.getMetadataStore().getRecords().contains(blob.getId()));
+        assertEquals(data.length, blob.getSize());
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        connection.close();
+    }
+
+    @Test
+    public void testMissingRecord() throws Exception {
+        byte[] data = text(100000);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        Blob blob = create(connection, data, null);
+        // a writer which failed before its record was written
+        store.getMetadataStore().delete(blob.getId());
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        connection.close();
+    }
+
+    @Test
+    public void testStaleRecord() throws Exception {
+        BlobStoreConnection connection = store.openConnection(null, null);
+        Blob blob = create(connection, text(10000), null);
+        URI id = blob.getId();
+        Map<String, String> stale = store.getMetadataStore().get(id);
+        assertEquals(Long.toString(storedLength(id)), stale.get(HDFSMetadataStore.STORED_SIZE));
+
+        // compressed content found with the record of the content it replaced
+        byte[] data = text(30000);
+        OutputStream out = blob.openOutputStream(data.length, true);
+        out.write(data);
+        out.close();
+        store.getMetadataStore().put(id, stale);
+        assertEquals(data.length, blob.getSize());
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        assertArrayEquals(Arrays.copyOfRange(data, 20000, 20010),
+                IOUtils.toByteArray(((HDFSRandomAccessBlob) blob).openInputStream(20000, 10)));
+
+        // content stored as written found with the record of compressed content
+        data = random(10000);
+        out = blob.openOutputStream(data.length, true);
+        out.write(data);
+        out.close();
+        store.getMetadataStore().put(id, stale);
+        assertEquals(data.length, blob.getSize());
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        assertArrayEquals(Arrays.copyOfRange(data, 5000, 5010),
+                IOUtils.toByteArray(((HDFSRandomAccessBlob) blob).openInputStream(5000, 10)));
+        connection.close();
+    }
+
+    @Test
+    public void testCompressionSwitchedOff() throws Exception {
+        byte[] data = text(100000);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        Blob blob = create(connection, data, null);
+        URI id = blob.getId();
+        connection.close();
+        store.close();
+
+        store = new HDFSBlobStore(storeUri);
+        connection = store.openConnection(null, null);
+        blob = new HDFSBlob(id, (HDFSBlobStoreConnection) connection);
+        // still read through the codec
+        assertEquals(data.length, blob.getSize());
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+
+        // new content is stored as written and loses the record
+        byte[] other = text(50000);
+        OutputStream out = blob.openOutputStream(other.length, true);
+        out.write(other);
+        out.close();
+        assertEquals(other.length, storedLength(id));
+        assertNull(store.getMetadataStore().getCompressed(id));
+        assertArrayEquals(other, IOUtils.toByteArray(blob.openInputStream()));
+        connection.close();
+    }
+
+    @Test
+    public void testPolicyChoosesCodec() throws Exception {
+        HDFSCreatePolicy cold = new HDFSCreatePolicy();
+        cold.setName("cold");
+        cold.setMinSize(Long.MAX_VALUE);
+        cold.setCompression(HDFSCompression.BZIP2);
+        HDFSCreatePolicy tiny = new HDFSCreatePolicy();
+        tiny.setMaxSize(512);
+        tiny.setCompression(HDFSCompression.NONE);
+        store.setCreatePolicies(Arrays.asList(cold, tiny));
+        BlobStoreConnection connection = store.openConnection(null, null);
+
+        byte[] data = text(50000);
+        Map<String, String> hints = new HashMap<String, String>();
+        hints.put(HDFSCreatePolicy.STORAGE_CLASS_HINT, "cold");
+        Blob archived = create(connection, data, hints);
+        assertEquals(HDFSCompression.BZIP2.name(), store.getMetadataStore().get(archived.getId()).get(HDFSMetadataStore.COMPRESSION));
+        assertArrayEquals(data, IOUtils.toByteArray(archived.openInputStream()));
+
+        byte[] small = text(500);
+        Blob tinyBlob = create(connection, small, null);
+        assertEquals(small.length, storedLength(tinyBlob.getId()));
+
+        Blob hot = create(connection, data, null);
+        assertEquals(HDFSCompression.DEFLATE_FAST.name(), store.getMetadataStore().get(hot.getId()).get(HDFSMetadataStore.COMPRESSION));
+        connection.close();
+    }
+
+    @Test
+    public void testPackedBlob() throws Exception {
+        store.setPackThreshold(64 * 1024);
+        byte[] data = text(20000);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        Blob blob = create(connection, data, null);
+        URI id = blob.getId();
+        assertTrue(store.getPackStore().getSize(id) < data.length / 3);
+        assertEquals(data.length, blob.getSize());
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        byte[] buf = new byte[100];
+        assertEquals(100, ((HDFSRandomAccessBlob) blob).read(5000, buf, 0, 100));
+        assertArrayEquals(Arrays.copyOfRange(data, 5000, 5100), buf);
+        connection.close();
+    }
+
+    @Test
+    public void testCodecs() throws Exception {
+        byte[] data = text(100000);
+        for (HDFSCompression compression : HDFSCompression.values()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            OutputStream out = compression.compress(bytes);
+            out.write(data);
+            out.close();
+            InputStream in = compression.decompress(new ByteArrayInputStream(bytes.toByteArray()));
+            assertArrayEquals(compression.name(), data, IOUtils.toByteArray(in));
+            in.close();
+        }
+        for (HDFSCompression compression : HDFSCompression.values()) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            HDFSCompressingOutputStream out = new HDFSCompressingOutputStream(bytes, compression, data.length);
+            out.write(data);
+            out.close();
+            InputStream in = HDFSCompression.open(new ByteArrayInputStream(bytes.toByteArray()));
+            assertArrayEquals(compression.name(), data, IOUtils.toByteArray(in));
+            in.close();
+            byte[] stored = bytes.toByteArray();
+            assertEquals(compression == HDFSCompression.NONE ? -1 : data.length,
+                    HDFSCompression.fromTrailer(Arrays.copyOfRange(stored, stored.length - HDFSCompression.TRAILER_LENGTH, stored.length)));
+        }
+        assertTrue(HDFSCompressingOutputStream.compressible(data, data.length));
+        assertFalse(HDFSCompressingOutputStream.compressible(random(1000), 1000));
+    }
+}
@@ -0,0 +1,267 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.DuplicateBlobException;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSContentStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private HDFSCountingFileSystem fs;
+    private URI storeUri;
+    private HDFSBlobStore store;
+    private BlobStoreConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        fs = new HDFSCountingFileSystem(FileSystem.getLocal(new Configuration()));
+        storeUri = URI.create(fs.makeQualified(new Path(tmp.newFolder("store").getAbsolutePath())).toUri() + "/");
+        store = openStore();
+        connection = store.openConnection(null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        store.close();
+    }
+
+    private HDFSBlobStore openStore() {
+        HDFSBlobStore s = new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+        };
+        s.setDeduplicate(true);
+        s.setSpoolDirectory(tmp.getRoot().getAbsolutePath());
+        return s;
+    }
+
+    private static byte[] randomData(final int size) {
+        byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    private static String sha256(final byte[] data) throws Exception {
+        return String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(data)));
+    }
+
+    private int countContentFiles() throws IOException {
+        Path root = new Path(storeUri.resolve(HDFSBlobStore.CONTENT_DIRECTORY));
+        if (!fs.exists(root)) {
+            return 0;
+        }
+        return listFiles(root).size();
+    }
+
+    private Set<Path> listFiles(final Path dir) throws IOException {
+        Set<Path> files = new HashSet<Path>();
+        for (FileStatus stat : fs.listStatus(dir)) {
+            if (stat.isDir()) {
+                files.addAll(listFiles(stat.getPath()));
+            } else if (!stat.getPath().getName().endsWith(".crc")) {
+                files.add(stat.getPath());
+            }
+        }
+        return files;
+    }
+
+    @Test
+    public void testDuplicateContentIsStoredOnce() throws Exception {
+        // larger than the memory threshold, so the content is spooled
+        byte[] data = randomData(HDFSDedupOutputStream.MEMORY_THRESHOLD + 17);
+        Blob first = connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        fs.reset();
+        Blob second = connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        // the duplicate is not written to the filesystem again
+        assertEquals(0, fs.getCount("create"));
+        assertEquals(1, countContentFiles());
+        assertEquals(2, store.getContentStore().getCount("SHA-256", sha256(data)));
+
+        assertArrayEquals(data, IOUtils.toByteArray(first.openInputStream()));
+        assertArrayEquals(data, IOUtils.toByteArray(second.openInputStream()));
+        assertEquals(data.length, second.getSize());
+        assertEquals(sha256(data), ((HDFSDigestingBlob) second).getDigest());
+
+        first.delete();
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+        assertEquals(1, countContentFiles());
+        second.delete();
+        assertEquals(0, countContentFiles());
+        assertEquals(0, store.getContentStore().getCount("SHA-256", sha256(data)));
+        // there are no spool files left behind
+        assertEquals(1, tmp.getRoot().list().length);
+    }
+
+    @Test
+    public void testOverwrite() throws Exception {
+        byte[] data = randomData(1024);
+        byte[] other = randomData(2048);
+        Blob blob = getBlob(URI.create(storeUri + "dir/blob"));
+        write(blob, data, false);
+        try {
+            write(blob, other, false);
+            fail("existing blob has been overwritten");
+        } catch (DuplicateBlobException e) {
+            // expected
+        }
+        write(blob, other, true);
+        assertArrayEquals(other, IOUtils.toByteArray(blob.openInputStream()));
+        assertEquals(1, countContentFiles());
+        assertEquals(0, store.getContentStore().getCount("SHA-256", sha256(data)));
+    }
+
+    @Test
+    public void testOverwriteShadowedBlob() throws Exception {
+        byte[] data = randomData(1024);
+        byte[] other = randomData(2048);
+        URI id = URI.create(storeUri + "dir/blob");
+        // written before deduplication was enabled
+        OutputStream file = fs.create(new Path(id));
+        file.write(data);
+        file.close();
+        Blob blob = getBlob(id);
+        OutputStream out = blob.openOutputStream(other.length, true);
+        out.write(other);
+        // the old content stays readable until the new one is stored
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        out.close();
+        assertFalse(fs.exists(new Path(id)));
+        assertArrayEquals(other, IOUtils.toByteArray(blob.openInputStream()));
+        assertEquals(1, countContentFiles());
+    }
+
+    @Test
+    public void testConcurrentOverwrites() throws Exception {
+        final byte[] data = randomData(100);
+        final String digest = sha256(data);
+        final URI id = URI.create(storeUri + "dir/blob");
+        final HDFSContentStore content = store.getContentStore();
+        List<Thread> writers = new ArrayList<Thread>();
+        final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 50; j++) {
+                            content.add(id, digest, data.length, new ByteArrayInputStream(data), null);
+                        }
+                    } catch (Exception e) {
+                        failures.add(e);
+                    }
+                }
+            };
+            writers.add(t);
+            t.start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        assertTrue(failures.toString(), failures.isEmpty());
+        // every overwrite released exactly the reference it replaced
+        assertEquals(1, content.getCount("SHA-256", digest));
+        assertTrue(content.delete(id));
+        assertEquals(0, countContentFiles());
+    }
+
+    @Test
+    public void testMoveAndList() throws Exception {
+        byte[] data = randomData(1024);
+        Blob blob = getBlob(URI.create(storeUri + "dir/blob"));
+        write(blob, data, false);
+        fs.reset();
+        assertTrue(store.getContentStore().move(blob.getId(), URI.create(storeUri + "other/blob")));
+        // the content is not touched
+        assertEquals(0, fs.getTotal());
+        assertFalse(blob.exists());
+        Blob moved = getBlob(URI.create(storeUri + "other/blob"));
+        assertArrayEquals(data, IOUtils.toByteArray(moved.openInputStream()));
+
+        Set<URI> ids = new HashSet<URI>();
+        for (Iterator<URI> it = connection.listBlobIds(null); it.hasNext();) {
+            ids.add(it.next());
+        }
+        assertEquals(1, ids.size());
+        assertTrue(ids.contains(moved.getId()));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        byte[] data = randomData(1024);
+        Blob blob = connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        connection.close();
+        store.close();
+
+        store = openStore();
+        connection = store.openConnection(null, null);
+        Blob reopened = getBlob(blob.getId());
+        assertArrayEquals(data, IOUtils.toByteArray(reopened.openInputStream()));
+        connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        assertEquals(2, store.getContentStore().getCount("SHA-256", sha256(data)));
+    }
+
+    /*
+     * the connection only hands out blobs with hdfs: ids
+     */
+    private Blob getBlob(final URI id) {
+        return new HDFSBlob(id, (HDFSBlobStoreConnection) connection);
+    }
+
+    private static void write(final Blob blob, final byte[] data, final boolean overwrite) throws IOException {
+        OutputStream out = blob.openOutputStream(data.length, overwrite);
+        out.write(data);
+        out.close();
+    }
+}
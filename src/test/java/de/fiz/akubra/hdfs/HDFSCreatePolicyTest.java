@@ -0,0 +1,133 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSCreatePolicyTest {
+
+    private HDFSCreatePolicy small;
+    private HDFSCreatePolicy video;
+    private HDFSBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        small = new HDFSCreatePolicy();
+        small.setName("object");
+        small.setMaxSize(64 * 1024);
+        small.setBufferSize(4096);
+        small.setReplication((short) 5);
+        video = new HDFSCreatePolicy();
+        video.setName("video");
+        video.setMinSize(1024L * 1024 * 1024);
+        video.setBufferSize(1024 * 1024);
+        video.setBlockSize(512L * 1024 * 1024);
+        store = new HDFSBlobStore(URI.create("hdfs://localhost:9000/")) {
+            // no compressed blobs, so the marker is not looked up
+            @Override
+            synchronized HDFSMetadataStore getMetadataStore() throws IOException {
+                return null;
+            }
+        };
+        store.setCreatePolicies(Arrays.asList(small, video));
+    }
+
+    @Test
+    public void testPolicyBySize() throws Exception {
+        assertSame(small, store.getCreatePolicy(1024, null));
+        assertSame(video, store.getCreatePolicy(4L * 1024 * 1024 * 1024, null));
+        assertNull(store.getCreatePolicy(1024 * 1024, null));
+        // blobs of unknown size get the policy starting at 0
+        assertSame(small, store.getCreatePolicy(-1, null));
+    }
+
+    @Test
+    public void testPolicyByHint() throws Exception {
+        Map<String, String> hints = Collections.singletonMap(HDFSCreatePolicy.STORAGE_CLASS_HINT, "video");
+        assertSame(video, store.getCreatePolicy(1024, hints));
+        hints = Collections.singletonMap(HDFSCreatePolicy.STORAGE_CLASS_HINT, "unknown");
+        assertNull(store.getCreatePolicy(1024, hints));
+    }
+
+    @Test
+    public void testCreate() throws Exception {
+        FileSystem mockFs = createMock(FileSystem.class);
+        Path path = new Path("hdfs://localhost:9000/test");
+        FSDataOutputStream out = new FSDataOutputStream(new ByteArrayOutputStream(), null);
+        expect(mockFs.getConf()).andReturn(new Configuration()).anyTimes();
+        expect(mockFs.getDefaultBlockSize()).andReturn(64L * 1024 * 1024).anyTimes();
+        expect(mockFs.getDefaultReplication()).andReturn((short) 3).anyTimes();
+        expect(mockFs.create(eq(path), eq(false), eq(4096), eq((short) 5), eq(64L * 1024 * 1024))).andReturn(out);
+        expect(mockFs.create(eq(path), eq(true), eq(1024 * 1024), eq((short) 3), eq(512L * 1024 * 1024))).andReturn(out);
+        replay(mockFs);
+        assertSame(out, small.create(mockFs, path, false));
+        assertSame(out, video.create(mockFs, path, true));
+        verify(mockFs);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBlockSizeNotMultipleOfChecksum() throws Exception {
+        FileSystem mockFs = createMock(FileSystem.class);
+        Configuration conf = new Configuration();
+        conf.setInt("io.bytes.per.checksum", 1024);
+        expect(mockFs.getConf()).andReturn(conf).anyTimes();
+        expect(mockFs.getDefaultReplication()).andReturn((short) 3).anyTimes();
+        replay(mockFs);
+        HDFSCreatePolicy odd = new HDFSCreatePolicy();
+        odd.setBlockSize(64L * 1024 * 1024 + 512);
+        odd.create(mockFs, new Path("hdfs://localhost:9000/test"), false);
+    }
+
+    @Test
+    public void testBlobUsesPolicy() throws Exception {
+        FileSystem mockFs = createMock(FileSystem.class);
+        HDFSBlobStoreConnection mockConnection = createMock(HDFSBlobStoreConnection.class);
+        expect(mockConnection.getBlobStore()).andReturn(store);
+        expect(mockConnection.isClosed()).andReturn(false).anyTimes();
+        expect(mockConnection.getFileSystem()).andReturn(mockFs).anyTimes();
+        HDFSBlobTest.expectConnection(mockConnection);
+        expect(mockFs.getConf()).andReturn(new Configuration()).anyTimes();
+        expect(mockFs.getDefaultBlockSize()).andReturn(64L * 1024 * 1024).anyTimes();
+        expect(mockFs.create(anyObject(Path.class), eq(false), eq(4096), eq((short) 5), eq(64L * 1024 * 1024))).andReturn(
+                new FSDataOutputStream(new ByteArrayOutputStream(), null));
+        replay(mockConnection, mockFs);
+        HDFSBlob b = new HDFSBlob(URI.create("hdfs://localhost:9000/test"), mockConnection, null);
+        b.openOutputStream(1024, false).close();
+        verify(mockFs);
+    }
+}
@@ -0,0 +1,85 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.net.URI;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.junit.Test;
+
+public class HDFSFileSystemPoolTest {
+
+    private static HDFSFileSystemPool createPool(final int size, final HDFSPoolStrategy strategy) {
+        return new HDFSFileSystemPool(URI.create("file:///"), new Configuration(), size, strategy) {
+            @Override
+            FileSystem open(int index) throws IOException {
+                return new LocalFileSystem();
+            }
+        };
+    }
+
+    @Test
+    public void testRoundRobin() throws Exception {
+        HDFSFileSystemPool pool = createPool(3, HDFSPoolStrategy.ROUND_ROBIN);
+        FileSystem first = pool.acquire();
+        FileSystem second = pool.acquire();
+        assertNotSame(first, second);
+        assertNotSame(first, pool.acquire());
+        assertSame(first, pool.acquire());
+        assertEquals(2, pool.getUsers(0));
+    }
+
+    @Test
+    public void testThread() throws Exception {
+        HDFSFileSystemPool pool = createPool(3, HDFSPoolStrategy.THREAD);
+        FileSystem fs = pool.acquire();
+        assertSame(fs, pool.acquire());
+        assertSame(fs, pool.acquire());
+    }
+
+    @Test
+    public void testLeastUsed() throws Exception {
+        HDFSFileSystemPool pool = createPool(2, HDFSPoolStrategy.LEAST_USED);
+        FileSystem first = pool.acquire();
+        FileSystem second = pool.acquire();
+        assertNotSame(first, second);
+        pool.release(first);
+        assertSame(first, pool.acquire());
+        assertEquals(1, pool.getUsers(0));
+        assertEquals(1, pool.getUsers(1));
+    }
+
+    @Test
+    public void testIndependentMembers() throws Exception {
+        HDFSFileSystemPool pool = new HDFSFileSystemPool(URI.create("file:///"), new Configuration(), 2,
+                HDFSPoolStrategy.ROUND_ROBIN);
+        FileSystem first = pool.acquire();
+        FileSystem second = pool.acquire();
+        assertNotSame(first, second);
+        assertNotSame(FileSystem.get(URI.create("file:///"), new Configuration()), first);
+        assertEquals(first.getConf().getInt("ipc.client.connection.maxidletime", 0) + 1,
+                second.getConf().getInt("ipc.client.connection.maxidletime", 0));
+        pool.close();
+    }
+}
@@ -0,0 +1,185 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Compares {@link HDFSIdCodec} with the URLEncoder based encoding it replaced
+ * on random names.
+ *
+ */
+public class HDFSIdCodecTest {
+
+    private static final int RUNS = 20000;
+
+    /** characters which are likely to differ between the implementations */
+    private static final String POOL = "aZ09.-*_:%+ /?#&=~!'()@$,;\u00e9\u20ac\u4e2d\u0663\ufffd\u007f\u0000";
+
+    @Test
+    public void testEncode() throws Exception {
+        assertEquals("demo_1", HDFSIdCodec.encode("demo:1"));
+        assertEquals("DS%201.0", HDFSIdCodec.encode("DS 1.0"));
+        assertEquals("a%2Bb%25c", HDFSIdCodec.encode("a+b%c"));
+        assertEquals("%C3%A9%F0%9D%84%9E", HDFSIdCodec.encode("\u00e9\ud834\udd1e"));
+        assertEquals("%3Fx", HDFSIdCodec.encode("\ud834x"));
+        String plain = "DC.0";
+        assertSame(plain, HDFSIdCodec.encode(plain));
+    }
+
+    @Test
+    public void testDecode() throws Exception {
+        assertEquals("/demo_1 x", HDFSIdCodec.decode("/demo:1+x", 0));
+        assertEquals("DS 1.0", HDFSIdCodec.decode("/DS%201.0", 1));
+        assertEquals("\u00e9\ud834\udd1e", HDFSIdCodec.decode("%c3%A9%F0%9D%84%9E", 0));
+        String plain = "/DC.0";
+        assertSame(plain, HDFSIdCodec.decode(plain, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeIncomplete() throws Exception {
+        HDFSIdCodec.decode("/DS%2", 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecodeIllegalHex() throws Exception {
+        HDFSIdCodec.decode("/DS%-1", 0);
+    }
+
+    @Test
+    public void testEncodeMatchesURLEncoder() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < RUNS; i++) {
+            String name = randomName(random);
+            assertEquals("encoding " + escape(name), legacyEncode(name), HDFSIdCodec.encode(name));
+        }
+    }
+
+    @Test
+    public void testDecodeMatchesURLDecoder() throws Exception {
+        Random random = new Random(2);
+        for (int i = 0; i < RUNS; i++) {
+            String name = randomEncodedName(random);
+            int from = random.nextInt(name.length() + 1);
+            String expected;
+            try {
+                expected = legacyDecode(name.substring(from));
+            } catch (IllegalArgumentException e) {
+                try {
+                    HDFSIdCodec.decode(name, from);
+                    fail("decoding " + escape(name) + " did not fail");
+                } catch (IllegalArgumentException expectedException) {
+                    assertEquals(e.getMessage(), expectedException.getMessage());
+                }
+                continue;
+            }
+            assertEquals("decoding " + escape(name), expected, HDFSIdCodec.decode(name, from));
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        Random random = new Random(3);
+        for (int i = 0; i < RUNS; i++) {
+            String name = randomName(random);
+            if (name.indexOf('?') == -1 && !legacyEncode(name).contains("%3F")) {
+                assertEquals(escape(name), name.replace(':', '_'), HDFSIdCodec.decode(HDFSIdCodec.encode(name), 0));
+            }
+        }
+    }
+
+    private static String randomName(final Random random) {
+        int length = random.nextInt(12);
+        StringBuilder sb = new StringBuilder(length * 2);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+            case 0:
+                sb.append((char) (32 + random.nextInt(95)));
+                break;
+            case 1:
+                sb.append(POOL.charAt(random.nextInt(POOL.length())));
+                break;
+            case 2:
+                // surrogate pairs as well as lone surrogates
+                sb.append((char) (0xd800 + random.nextInt(0x800)));
+                break;
+            default:
+                sb.append((char) random.nextInt(0x3000));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String randomEncodedName(final Random random) {
+        int length = random.nextInt(8);
+        StringBuilder sb = new StringBuilder(length * 3);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(4)) {
+            case 0:
+                sb.append('%').append(Integer.toHexString(random.nextInt(256) | 0x100).substring(1));
+                break;
+            case 1:
+                sb.append('%').append(Integer.toHexString(random.nextInt(256) | 0x100).substring(1).toUpperCase());
+                break;
+            case 2:
+                sb.append(POOL.charAt(random.nextInt(POOL.length())));
+                break;
+            default:
+                sb.append(legacyEncode(randomName(random)));
+            }
+        }
+        return sb.toString();
+    }
+
+    private static String legacyEncode(final String s) {
+        try {
+            return URLEncoder.encode(s.replaceAll(":", "_"), "UTF-8").replaceAll("\\+", "%20");
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String legacyDecode(final String s) throws IllegalArgumentException {
+        try {
+            return URLDecoder.decode(s.replaceAll(":", "_"), "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String escape(final String s) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 32 || c > 126) {
+                sb.append(String.format("\\u%04x", (int) c));
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+}
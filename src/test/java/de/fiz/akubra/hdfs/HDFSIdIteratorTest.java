@@ -20,6 +20,9 @@ import static org.easymock.EasyMock.anyObject;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
@@ -88,6 +91,47 @@ public class HDFSIdIteratorTest {
         assertTrue(count == (rootStats.length - 1) * 2);
     }
 
+    private static FileStatus dir(String path) {
+        return new FileStatus(0, true, 1, 67108864l, 0l, new Path(path));
+    }
+
+    private static FileStatus file(String path) {
+        return new FileStatus(12, false, 1, 67108864l, 0l, new Path(path));
+    }
+
+    @Test
+    public void testPrefixPruning() throws Exception {
+        String base = storeURI.toASCIIString() + "fedora/";
+        expect(mockFs.listStatus(new Path(base))).andReturn(
+                new FileStatus[] { dir(base + "demo_1"), dir(base + "demo_2"), dir(base + "other_1"), file(base + "demo_x"), file(base + "zzz") });
+        expect(mockFs.listStatus(new Path(base + "demo_1"))).andReturn(new FileStatus[] { dir(base + "demo_1/DC"), file(base + "demo_1/a") });
+        expect(mockFs.listStatus(new Path(base + "demo_1/DC"))).andReturn(new FileStatus[] { file(base + "demo_1/DC/DC.0") });
+        expect(mockFs.listStatus(new Path(base + "demo_2"))).andReturn(new FileStatus[0]);
+        replay(mockFs);
+        HDFSIdIterator it = new HDFSIdIterator(mockFs, new Path(storeURI), base + "demo_", null, null);
+        List<URI> ids = new ArrayList<URI>();
+        while (it.hasNext()) {
+            ids.add(it.next());
+        }
+        verify(mockFs);
+        assertEquals(3, ids.size());
+        assertTrue(ids.contains(URI.create(base + "demo_x")));
+        assertTrue(ids.contains(URI.create(base + "demo_1/a")));
+        assertTrue(ids.contains(URI.create(base + "demo_1/DC/DC.0")));
+    }
+
+    @Test
+    public void testStartsAtStoreRoot() throws Exception {
+        Path root = new Path(storeURI.toASCIIString() + "fedora/objects/");
+        expect(mockFs.listStatus(root)).andReturn(new FileStatus[] { file(root + "/test1") });
+        replay(mockFs);
+        HDFSIdIterator it = new HDFSIdIterator(mockFs, root, null, null, null);
+        assertTrue(it.hasNext());
+        assertEquals(URI.create(root + "/test1"), it.next());
+        assertFalse(it.hasNext());
+        verify(mockFs);
+    }
+
     @Test(expected = UnsupportedOperationException.class)
     public void testRemove() {
         HDFSIdIterator it = new HDFSIdIterator(mockFs, "test");
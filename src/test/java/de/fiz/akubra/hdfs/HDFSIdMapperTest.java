@@ -0,0 +1,96 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSIdMapperTest {
+
+    private static final URI storeUri = URI.create("hdfs://localhost:9000/fedora/objects/");
+
+    private HDFSIdMapper mapper;
+
+    @Before
+    public void setUp() throws Exception {
+        mapper = new HDFSIdMapper(new HDFSBlobStore(storeUri));
+    }
+
+    @Test
+    public void testGetInternalPrefix() throws Exception {
+        assertEquals(storeUri + "fedora/demo_", mapper.getInternalPrefix("info:fedora/demo:"));
+        assertEquals(storeUri + "fedora/demo_1/DC/DC", mapper.getInternalPrefix("info:fedora/demo:1/DC/DC"));
+        assertEquals(storeUri.toASCIIString(), mapper.getInternalPrefix("info:"));
+    }
+
+    @Test
+    public void testGetInternalPrefixWithinScheme() throws Exception {
+        assertNull(mapper.getInternalPrefix("inf"));
+        assertNull(mapper.getInternalPrefix("info:fedora/demo:with%2"));
+    }
+
+    @Test
+    public void testGetInternalPrefixOfNewAndOldIds() throws Exception {
+        // new and old ids are mapped to files next to the directory
+        assertNull(mapper.getInternalPrefix("info:fedora/demo:1/"));
+        assertNull(mapper.getInternalPrefix("info:fedora/demo:1/n"));
+        assertNull(mapper.getInternalPrefix("info:fedora/demo:1/ol"));
+        assertEquals(storeUri + "fedora/demo_1/newer", mapper.getInternalPrefix("info:fedora/demo:1/newer"));
+    }
+
+    @Test
+    public void testInternalPrefixMatchesInternalId() throws Exception {
+        String[] ids = { "info:fedora/demo:1/DC/DC.0", "info:fedora/demo:1", "info:fedora/demo:with%20space/RELS-EXT/RELS-EXT.0", "info:fedora/demo:1/DS%201/DS%201.0",
+                "info:fedora/demo:1/new", "info:fedora/demo:1/old" };
+        for (String id : ids) {
+            for (int i = id.indexOf(':') + 1; i <= id.length(); i++) {
+                String internalPrefix = mapper.getInternalPrefix(id.substring(0, i));
+                String internalId = mapper.getInternalId(URI.create(id)).toASCIIString();
+                if (internalPrefix != null) {
+                    assertTrue(internalId + " does not start with " + internalPrefix, internalId.startsWith(internalPrefix));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testShardedIds() throws Exception {
+        HDFSBlobStore store = new HDFSBlobStore(storeUri);
+        store.setShardLevels(2);
+        HDFSIdMapper sharded = new HDFSIdMapper(store);
+        HDFSShardLayout layout = store.getShardLayout();
+        String[] ids = { "info:fedora/demo:1/DC/DC.0", "info:fedora/demo:1", "info:fedora/demo:with%20space/RELS-EXT/RELS-EXT.0" };
+        for (String id : ids) {
+            URI internalId = sharded.getInternalId(URI.create(id));
+            assertEquals(mapper.getInternalId(URI.create(id)).toASCIIString(), layout.removeShards(internalId.toASCIIString()));
+            assertEquals(mapper.getExternalId(mapper.getInternalId(URI.create(id))), sharded.getExternalId(internalId));
+        }
+        String newId = sharded.getInternalId(URI.create("info:fedora/demo:1/DC/new")).toASCIIString();
+        assertEquals(storeUri + "fedora/demo_1/" + layout.getShardPath("DC_NEW_") + "DC_NEW_", newId);
+    }
+
+    @Test
+    public void testIdWithoutPath() throws Exception {
+        assertEquals(storeUri + "uuid", mapper.getInternalId(URI.create("hdfs:uuid")).toASCIIString());
+    }
+}
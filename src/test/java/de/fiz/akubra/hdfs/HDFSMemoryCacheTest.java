@@ -0,0 +1,178 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Random;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSMemoryCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static final URI FIRST = URI.create("hdfs://localhost:9000/first");
+    private static final URI SECOND = URI.create("hdfs://localhost:9000/second");
+    private static final URI THIRD = URI.create("hdfs://localhost:9000/third");
+
+    private static byte[] randomData(final int size) {
+        byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        if (in == null) {
+            return null;
+        }
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void populate(final HDFSMemoryCache cache, final URI uri, final byte[] data) throws IOException {
+        read(cache.populate(uri, new ByteArrayInputStream(data)));
+    }
+
+    @Test
+    public void testSpanningBlocks() throws Exception {
+        HDFSMemoryCache cache = new HDFSMemoryCache(8 * HDFSMemoryCache.BLOCK_SIZE, 4096);
+        byte[] data = randomData(2 * HDFSMemoryCache.BLOCK_SIZE + 17);
+        populate(cache, FIRST, data);
+        assertEquals(3 * HDFSMemoryCache.BLOCK_SIZE, cache.getSize());
+        assertArrayEquals(data, read(cache.open(FIRST)));
+
+        InputStream in = cache.open(FIRST);
+        assertEquals(data[0] & 0xff, in.read());
+        assertEquals(HDFSMemoryCache.BLOCK_SIZE, in.skip(HDFSMemoryCache.BLOCK_SIZE));
+        assertEquals(data[HDFSMemoryCache.BLOCK_SIZE + 1] & 0xff, in.read());
+        in.close();
+
+        populate(cache, SECOND, new byte[0]);
+        assertArrayEquals(new byte[0], read(cache.open(SECOND)));
+        assertEquals(3, cache.getHits());
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        HDFSMemoryCache cache = new HDFSMemoryCache(4 * HDFSMemoryCache.BLOCK_SIZE, 4096);
+        byte[] data = randomData(HDFSMemoryCache.BLOCK_SIZE + 1);
+        populate(cache, FIRST, data);
+        populate(cache, SECOND, data);
+        // reading the first blob makes the second the least recently used
+        read(cache.open(FIRST));
+        populate(cache, THIRD, data);
+        assertNull(cache.open(SECOND));
+        assertArrayEquals(data, read(cache.open(FIRST)));
+        assertArrayEquals(data, read(cache.open(THIRD)));
+    }
+
+    @Test
+    public void testOpenStreamKeepsBlocks() throws Exception {
+        HDFSMemoryCache cache = new HDFSMemoryCache(2 * HDFSMemoryCache.BLOCK_SIZE, 4096);
+        byte[] data = randomData(2 * HDFSMemoryCache.BLOCK_SIZE);
+        populate(cache, FIRST, data);
+        InputStream in = cache.open(FIRST);
+        cache.invalidate(FIRST);
+        // the blocks are still being read, so there is no room for another
+        // blob
+        populate(cache, SECOND, randomData(HDFSMemoryCache.BLOCK_SIZE));
+        assertNull(cache.open(SECOND));
+        assertArrayEquals(data, read(in));
+        assertEquals(0, cache.getSize());
+        populate(cache, SECOND, data);
+        assertArrayEquals(data, read(cache.open(SECOND)));
+    }
+
+    @Test
+    public void testLargeBlobIsNotCached() throws Exception {
+        HDFSMemoryCache cache = new HDFSMemoryCache(8 * HDFSMemoryCache.BLOCK_SIZE, 100);
+        populate(cache, FIRST, randomData(101));
+        assertNull(cache.open(FIRST));
+        assertEquals(0, cache.getSize());
+    }
+
+    @Test
+    public void testStalePopulationIsDiscarded() throws Exception {
+        HDFSMemoryCache cache = new HDFSMemoryCache(8 * HDFSMemoryCache.BLOCK_SIZE, 4096);
+        InputStream in = cache.populate(FIRST, new ByteArrayInputStream(randomData(100)));
+        IOUtils.toByteArray(in);
+        cache.invalidate(FIRST);
+        in.close();
+        assertNull(cache.open(FIRST));
+    }
+
+    @Test
+    public void testPopulationSurvivesOtherChanges() throws Exception {
+        HDFSMemoryCache cache = new HDFSMemoryCache(8 * HDFSMemoryCache.BLOCK_SIZE, 4096);
+        byte[] data = randomData(100);
+        InputStream in = cache.populate(FIRST, new ByteArrayInputStream(data));
+        IOUtils.toByteArray(in);
+        cache.invalidate(SECOND);
+        in.close();
+        assertArrayEquals(data, read(cache.open(FIRST)));
+    }
+
+    @Test
+    public void testStoreReadPath() throws Exception {
+        final HDFSCountingFileSystem fs = new HDFSCountingFileSystem(FileSystem.getLocal(new Configuration()));
+        URI storeUri = URI.create(fs.makeQualified(new Path(tmp.newFolder("store").getAbsolutePath())).toUri() + "/");
+        HDFSBlobStore store = new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+        };
+        store.setMemoryCacheSize(64 * 1024);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        byte[] data = randomData(1000);
+        Blob blob = connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        assertArrayEquals(data, read(blob.openInputStream()));
+        fs.reset();
+        assertArrayEquals(data, read(blob.openInputStream()));
+        assertEquals(0, fs.getCount("open"));
+        assertEquals(1, store.getMemoryCacheHits());
+
+        byte[] update = randomData(10);
+        OutputStream out = blob.openOutputStream(update.length, true);
+        out.write(update);
+        out.close();
+        assertArrayEquals(update, read(blob.openInputStream()));
+        assertEquals(1, store.getMemoryCacheHits());
+        connection.close();
+        store.close();
+    }
+}
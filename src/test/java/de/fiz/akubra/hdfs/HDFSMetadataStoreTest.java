@@ -0,0 +1,170 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.akubraproject.BlobStoreConnection;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSMetadataStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileSystem fs;
+    private URI storeUri;
+
+    @Before
+    public void setUp() throws Exception {
+        fs = FileSystem.getLocal(new Configuration());
+        storeUri = URI.create(fs.makeQualified(new Path(tmp.getRoot().getAbsolutePath())).toUri() + "/");
+    }
+
+    @Test
+    public void testRecords() throws Exception {
+        HDFSMetadataStore metadata = new HDFSMetadataStore(new HDFSPackStore(fs, new Path(storeUri.resolve(".meta")), 1024));
+        metadata.getRecords().open();
+        URI id = storeUri.resolve("test");
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put(HDFSMetadataStore.DIGEST, "abc");
+        metadata.put(id, properties);
+        assertEquals(properties, metadata.get(id));
+        metadata.move(id, storeUri.resolve("moved"));
+        assertNull(metadata.get(id));
+        assertEquals(properties, metadata.get(storeUri.resolve("moved")));
+        metadata.delete(storeUri.resolve("moved"));
+        assertNull(metadata.get(storeUri.resolve("moved")));
+        metadata.close();
+    }
+
+    @Test
+    public void testCompressedRecords() throws Exception {
+        final AtomicInteger opened = new AtomicInteger();
+        FileSystem counting = new FilterFileSystem(fs) {
+            @Override
+            public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+                if (f.getName().startsWith(HDFSPackStore.CONTAINER_PREFIX)) {
+                    opened.incrementAndGet();
+                }
+                return super.open(f, bufferSize);
+            }
+        };
+        Path dir = new Path(storeUri.resolve(".meta"));
+        HDFSMetadataStore metadata = new HDFSMetadataStore(new HDFSPackStore(counting, dir, 1024));
+        metadata.getRecords().open();
+        URI plain = storeUri.resolve("plain");
+        URI compressed = storeUri.resolve("compressed");
+        Map<String, String> digest = new HashMap<String, String>();
+        digest.put(HDFSMetadataStore.DIGEST, "abc");
+        metadata.put(plain, digest);
+        Map<String, String> deflated = new HashMap<String, String>();
+        deflated.put(HDFSMetadataStore.COMPRESSION, HDFSCompression.DEFLATE_FAST.name());
+        deflated.put(HDFSMetadataStore.SIZE, "1000");
+        deflated.put(HDFSMetadataStore.STORED_SIZE, "100");
+        metadata.put(compressed, deflated);
+        metadata.close();
+
+        // the tags survive the checkpoint as well as a replay
+        for (int i = 0; i < 2; i++) {
+            if (i == 1) {
+                fs.delete(new Path(dir, HDFSPackStore.CHECKPOINT), false);
+            }
+            metadata = new HDFSMetadataStore(new HDFSPackStore(counting, dir, 1024));
+            metadata.getRecords().open();
+            opened.set(0);
+            assertNull(metadata.getCompressed(plain));
+            assertEquals(0, opened.get());
+            assertEquals(deflated, metadata.getCompressed(compressed));
+            assertEquals(deflated, metadata.getCompressed(compressed));
+            assertEquals(1, opened.get());
+            metadata.close();
+        }
+
+        // a changed record is not answered from the cache
+        metadata = new HDFSMetadataStore(new HDFSPackStore(counting, dir, 1024));
+        metadata.getRecords().open();
+        assertEquals(deflated, metadata.getCompressed(compressed));
+        deflated.put(HDFSMetadataStore.SIZE, "2000");
+        metadata.put(compressed, deflated);
+        assertEquals(deflated, metadata.getCompressed(compressed));
+        URI moved = storeUri.resolve("moved");
+        metadata.move(compressed, moved);
+        assertNull(metadata.getCompressed(compressed));
+        assertEquals(deflated, metadata.getCompressed(moved));
+        metadata.put(moved, digest);
+        assertNull(metadata.getCompressed(moved));
+        metadata.close();
+    }
+
+    @Test
+    public void testIngestDigest() throws Exception {
+        byte[] data = new byte[1024 * 1024 + 17];
+        new Random().nextBytes(data);
+        String expected = String.format("%064x", new BigInteger(1, MessageDigest.getInstance("SHA-256").digest(data)));
+
+        HDFSBlobStore store = new HDFSBlobStore(storeUri);
+        store.setDigestAlgorithm("SHA-256");
+        store.setIngestBufferSize(64 * 1024);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        HDFSDigestingBlob blob = (HDFSDigestingBlob) connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        assertEquals("SHA-256", blob.getDigestAlgorithm());
+        assertEquals(expected, blob.getDigest());
+        assertEquals(Long.toString(data.length), store.getMetadataStore().get(blob.getId()).get(HDFSMetadataStore.SIZE));
+        connection.close();
+        store.close();
+
+        // the digest survives reopening the store
+        HDFSBlobStore reopened = new HDFSBlobStore(storeUri);
+        reopened.setDigestAlgorithm("SHA-256");
+        connection = reopened.openConnection(null, null);
+        HDFSBlob b = new HDFSBlob(blob.getId(), (HDFSBlobStoreConnection) connection);
+        assertEquals(expected, b.getDigest());
+        b.delete();
+        assertNull(b.getDigest());
+        reopened.close();
+    }
+
+    @Test
+    public void testBufferPool() throws Exception {
+        HDFSBufferPool pool = new HDFSBufferPool(16, 1);
+        byte[] buf = pool.acquire();
+        assertEquals(16, buf.length);
+        pool.release(buf);
+        assertSame(buf, pool.acquire());
+    }
+}
@@ -0,0 +1,178 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.util.Iterator;
+import java.util.Random;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSMetricsTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final byte[] data = new byte[5000];
+    private FileSystem fs;
+    private URI storeUri;
+    private HDFSBlobStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random().nextBytes(data);
+        fs = FileSystem.getLocal(new Configuration());
+        storeUri = URI.create(fs.makeQualified(new Path(tmp.newFolder("store").getAbsolutePath())).toUri() + "/");
+        store = new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void testHistogram() {
+        HDFSLatencyHistogram histogram = new HDFSLatencyHistogram();
+        assertEquals(0, histogram.getPercentileMicros(0.99));
+        for (int i = 0; i < 98; i++) {
+            histogram.record(100 * 1000, 1);
+        }
+        histogram.record(5000 * 1000, 2);
+        histogram.record(9000 * 1000, 2);
+        assertEquals(100, histogram.getCount());
+        assertEquals(102, histogram.getFileSystemCalls());
+        assertEquals(9000, histogram.getMaxMicros());
+        assertEquals(238, histogram.getMeanMicros());
+        // 100us lies in the bucket up to 127us, 5000us in the one up to 8191us
+        assertEquals(127, histogram.getPercentileMicros(0.5));
+        assertEquals(8191, histogram.getPercentileMicros(0.99));
+        assertEquals(9000, histogram.getPercentileMicros(1.0));
+    }
+
+    @Test
+    public void testOperations() throws Exception {
+        store.setMetricsEnabled(true);
+        HDFSMetrics metrics = (HDFSMetrics) store.getMetricsRegistry();
+        BlobStoreConnection connection = store.openConnection(null, null);
+        try {
+            Blob blob = connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+            assertEquals(1, metrics.getCount(HDFSMetricsRegistry.CREATE_BLOB));
+            // opening the output stream is part of creating the blob
+            assertEquals(0, metrics.getCount(HDFSMetricsRegistry.OPEN_OUTPUT_STREAM));
+            assertTrue(metrics.getFileSystemCalls(HDFSMetricsRegistry.CREATE_BLOB) > 0);
+            assertEquals(data.length, metrics.getBytesWritten());
+
+            assertTrue(blob.exists());
+            assertEquals(data.length, blob.getSize());
+            assertEquals(1, metrics.getCount(HDFSMetricsRegistry.EXISTS));
+            assertEquals(1, metrics.getFileSystemCalls(HDFSMetricsRegistry.EXISTS));
+            assertEquals(1, metrics.getFileSystemCalls(HDFSMetricsRegistry.GET_SIZE));
+
+            InputStream in = blob.openInputStream();
+            assertEquals(1, metrics.getOpenStreams());
+            assertArrayEquals(data, IOUtils.toByteArray(in));
+            in.close();
+            in.close();
+            assertEquals(0, metrics.getOpenStreams());
+            byte[] buf = new byte[100];
+            assertEquals(100, ((HDFSRandomAccessBlob) blob).read(10, buf, 0, 100));
+            assertEquals(data.length + 100, metrics.getBytesRead());
+
+            Iterator<URI> ids = connection.listBlobIds(null);
+            assertEquals(blob.getId(), ids.next());
+            assertEquals(1, metrics.getCount(HDFSMetricsRegistry.LIST_BLOB_IDS));
+
+            blob.delete();
+            assertFalse(blob.exists());
+            assertEquals(1, metrics.getCount(HDFSMetricsRegistry.DELETE));
+            assertEquals(2, metrics.getCount(HDFSMetricsRegistry.EXISTS));
+            assertEquals(2, metrics.getFileSystemCalls(HDFSMetricsRegistry.EXISTS));
+            assertTrue(metrics.getPercentileLatency(HDFSMetricsRegistry.EXISTS, 0.99) >= 0);
+
+            metrics.reset();
+            assertEquals(0, metrics.getCount(HDFSMetricsRegistry.EXISTS));
+            assertEquals(0, metrics.getBytesRead());
+        } finally {
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("de.fiz.akubra.hdfs:type=HDFSBlobStore,name=" + ObjectName.quote(storeUri.toString()));
+        store.setMetricsEnabled(true);
+        assertTrue(server.isRegistered(name));
+        BlobStoreConnection connection = store.openConnection(null, null);
+        try {
+            connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        } finally {
+            connection.close();
+        }
+        assertEquals(Long.valueOf(data.length), server.getAttribute(name, "BytesWritten"));
+        assertEquals(Long.valueOf(0), server.getAttribute(name, "OpenStreams"));
+        store.close();
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        assertNull(store.getMetricsRegistry());
+        store.setMetricsEnabled(true);
+        store.setMetricsEnabled(false);
+        assertNull(store.getMetricsRegistry());
+        BlobStoreConnection connection = store.openConnection(null, null);
+        try {
+            Blob blob = connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+            InputStream in = blob.openInputStream();
+            assertFalse(in instanceof HDFSMeteredInputStream);
+            in.close();
+            assertFalse(((HDFSBlobStoreConnection) connection).getFileSystem() instanceof HDFSMeteredFileSystem);
+        } finally {
+            connection.close();
+        }
+    }
+}
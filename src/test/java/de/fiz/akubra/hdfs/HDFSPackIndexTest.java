@@ -0,0 +1,91 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import de.fiz.akubra.hdfs.HDFSPackIndex.Entry;
+
+public class HDFSPackIndexTest {
+
+    private static void assertIndexed(final Map<String, Long> expected, final HDFSPackIndex index) {
+        assertEquals(expected.size(), index.size());
+        for (Map.Entry<String, Long> e : expected.entrySet()) {
+            Entry found = index.get(e.getKey());
+            assertEquals(e.getKey(), e.getValue().longValue(), found.offset);
+            assertEquals(e.getValue() % 7, found.container);
+            assertEquals(e.getValue() % 1000, found.length);
+        }
+        Set<String> keys = new HashSet<String>();
+        for (Iterator<String> it = index.keys(); it.hasNext();) {
+            keys.add(it.next());
+        }
+        assertEquals(expected.keySet(), keys);
+    }
+
+    @Test
+    public void testPutAndRemove() throws Exception {
+        Random random = new Random(42);
+        Map<String, Long> expected = new HashMap<String, Long>();
+        HDFSPackIndex index = new HDFSPackIndex();
+        for (int i = 0; i < 20000; i++) {
+            String key = "hdfs://localhost:9000/blob" + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                Entry removed = index.remove(key);
+                Long old = expected.remove(key);
+                assertEquals(old == null ? null : Long.valueOf(removed.offset), old);
+            } else {
+                long offset = random.nextInt(Integer.MAX_VALUE) * 100L;
+                index.put(key, new Entry((int) (offset % 7), offset, (int) (offset % 1000)));
+                expected.put(key, offset);
+            }
+        }
+        assertIndexed(expected, index);
+        assertNull(index.get("hdfs://localhost:9000/missing"));
+    }
+
+    @Test
+    public void testWriteAndRead() throws Exception {
+        Map<String, Long> expected = new HashMap<String, Long>();
+        HDFSPackIndex index = new HDFSPackIndex();
+        for (long i = 0; i < 1000; i++) {
+            String key = "hdfs://localhost:9000/blobä" + i;
+            index.put(key, new Entry((int) (i % 7), i, (int) (i % 1000)));
+            expected.put(key, i);
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        index.write(new DataOutputStream(bytes));
+        HDFSPackIndex read = new HDFSPackIndex();
+        read.put("hdfs://localhost:9000/replaced", new Entry(0, 0, 0));
+        read.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+        assertIndexed(expected, read);
+    }
+}
@@ -0,0 +1,404 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.Syncable;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSPackStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileSystem fs;
+    private Path dir;
+    private HDFSPackStore packs;
+
+    private static byte[] createTestData(int size) {
+        byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        fs = FileSystem.getLocal(new Configuration());
+        dir = new Path(tmp.getRoot().getAbsolutePath(), HDFSBlobStore.PACK_DIRECTORY);
+        packs = new HDFSPackStore(fs, dir, 4096);
+        packs.open();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        packs.close();
+    }
+
+    @Test
+    public void testPutAndOpen() throws Exception {
+        URI id = URI.create("hdfs://localhost:9000/test1");
+        byte[] data = createTestData(1024);
+        packs.put(id, data);
+        assertTrue(packs.contains(id));
+        assertEquals(1024, packs.getSize(id));
+        assertArrayEquals(data, IOUtils.toByteArray(packs.open(id)));
+    }
+
+    @Test
+    public void testDeleteAndMove() throws Exception {
+        URI id = URI.create("hdfs://localhost:9000/test1");
+        URI target = URI.create("hdfs://localhost:9000/test2");
+        byte[] data = createTestData(100);
+        packs.put(id, data);
+        assertTrue(packs.move(id, target));
+        assertFalse(packs.contains(id));
+        assertArrayEquals(data, IOUtils.toByteArray(packs.open(target)));
+        assertTrue(packs.delete(target));
+        assertFalse(packs.delete(target));
+        assertNull(packs.open(target));
+        assertEquals(-1, packs.getSize(target));
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        URI kept = URI.create("hdfs://localhost:9000/kept");
+        URI moved = URI.create("hdfs://localhost:9000/moved");
+        URI deleted = URI.create("hdfs://localhost:9000/deleted");
+        byte[] data = createTestData(3000);
+        packs.put(kept, data);
+        packs.put(deleted, createTestData(3000));
+        packs.put(moved, createTestData(10));
+        packs.delete(deleted);
+        packs.move(moved, URI.create("hdfs://localhost:9000/target"));
+        packs.close();
+
+        HDFSPackStore reopened = new HDFSPackStore(fs, dir, 4096);
+        reopened.open();
+        assertArrayEquals(data, IOUtils.toByteArray(reopened.open(kept)));
+        assertFalse(reopened.contains(deleted));
+        assertFalse(reopened.contains(moved));
+        assertEquals(10, reopened.getSize(URI.create("hdfs://localhost:9000/target")));
+        reopened.close();
+    }
+
+    @Test
+    public void testReplayWithoutCheckpoint() throws Exception {
+        URI kept = URI.create("hdfs://localhost:9000/kept");
+        byte[] data = createTestData(3000);
+        packs.put(kept, data);
+        packs.put(URI.create("hdfs://localhost:9000/other"), createTestData(3000));
+        packs.close();
+        assertTrue(fs.delete(new Path(dir, HDFSPackStore.CHECKPOINT), false));
+
+        HDFSPackStore reopened = new HDFSPackStore(fs, dir, 4096);
+        reopened.open();
+        assertArrayEquals(data, IOUtils.toByteArray(reopened.open(kept)));
+        assertEquals(2, countIds(reopened));
+        reopened.close();
+    }
+
+    @Test
+    public void testCheckpoint() throws Exception {
+        URI first = URI.create("hdfs://localhost:9000/first");
+        URI second = URI.create("hdfs://localhost:9000/second");
+        URI third = URI.create("hdfs://localhost:9000/third");
+        byte[] data = createTestData(3000);
+        packs.put(first, data);
+        packs.put(second, createTestData(3000));
+        packs.close();
+
+        // the checkpoint covers both containers. The checksummed local
+        // filesystem does not write out partial chunks on a sync, so the raw
+        // one is used to see the records of an unclosed container.
+        final AtomicInteger opened = new AtomicInteger();
+        final AtomicInteger syncs = new AtomicInteger();
+        FileSystem counting = new FilterFileSystem(((LocalFileSystem) fs).getRawFileSystem()) {
+            @Override
+            public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+                    short replication, long blockSize, Progressable progress) throws IOException {
+                return new FSDataOutputStream(new SyncCountingStream(super.create(f, permission, overwrite,
+                        bufferSize, replication, blockSize, progress), syncs, 0), null);
+            }
+
+            @Override
+            public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+                if (f.getName().startsWith(HDFSPackStore.CONTAINER_PREFIX)) {
+                    opened.incrementAndGet();
+                }
+                return super.open(f, bufferSize);
+            }
+        };
+        HDFSPackStore reopened = new HDFSPackStore(counting, dir, 4096);
+        reopened.open();
+        assertEquals(0, opened.get());
+        assertEquals(2, countIds(reopened));
+
+        // changes after the checkpoint, then the store is not closed
+        reopened.put(third, createTestData(10));
+        reopened.delete(second);
+        HDFSPackStore crashed = new HDFSPackStore(counting, dir, 4096);
+        crashed.open();
+        assertEquals(1, opened.get());
+        assertArrayEquals(data, IOUtils.toByteArray(crashed.open(first)));
+        assertFalse(crashed.contains(second));
+        assertEquals(10, crashed.getSize(third));
+
+        // the checkpointed containers are compacted away
+        assertEquals(2, crashed.compact(1.1f));
+        HDFSPackStore compacted = new HDFSPackStore(fs, dir, 4096);
+        compacted.open();
+        assertArrayEquals(data, IOUtils.toByteArray(compacted.open(first)));
+        assertEquals(2, countIds(compacted));
+        compacted.close();
+        crashed.close();
+        reopened.close();
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        URI kept = URI.create("hdfs://localhost:9000/kept");
+        byte[] data = createTestData(500);
+        packs.put(kept, data);
+        for (int i = 0; i < 10; i++) {
+            URI id = URI.create("hdfs://localhost:9000/garbage" + i);
+            packs.put(id, createTestData(1000));
+            packs.delete(id);
+        }
+        int containers = fs.listStatus(dir).length;
+        assertTrue(containers > 1);
+        assertTrue(packs.compact(0.5f) > 0);
+        assertTrue(fs.listStatus(dir).length < containers);
+        assertArrayEquals(data, IOUtils.toByteArray(packs.open(kept)));
+        packs.close();
+
+        HDFSPackStore reopened = new HDFSPackStore(fs, dir, 4096);
+        reopened.open();
+        assertArrayEquals(data, IOUtils.toByteArray(reopened.open(kept)));
+        for (int i = 0; i < 10; i++) {
+            assertFalse(reopened.contains(URI.create("hdfs://localhost:9000/garbage" + i)));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void testCompactReadsEachContainerOnce() throws Exception {
+        final AtomicInteger opened = new AtomicInteger();
+        FileSystem counting = new FilterFileSystem(fs) {
+            @Override
+            public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+                if (f.getName().startsWith(HDFSPackStore.CONTAINER_PREFIX)) {
+                    opened.incrementAndGet();
+                }
+                return super.open(f, bufferSize);
+            }
+        };
+        packs.close();
+        packs = new HDFSPackStore(counting, dir, 4096);
+        packs.open();
+        Map<URI, byte[]> kept = new HashMap<URI, byte[]>();
+        for (int i = 0; i < 40; i++) {
+            URI id = URI.create("hdfs://localhost:9000/blob" + i);
+            byte[] data = createTestData(100 + i);
+            packs.put(id, data);
+            if (i % 3 == 0) {
+                packs.delete(id);
+            } else if (i % 7 == 0) {
+                URI target = URI.create("hdfs://localhost:9000/moved" + i);
+                packs.move(id, target);
+                kept.put(target, data);
+            } else {
+                kept.put(id, data);
+            }
+        }
+        int compacted = packs.compact(1.1f);
+        assertTrue(compacted > 0);
+        assertEquals(compacted, opened.get());
+        for (Map.Entry<URI, byte[]> e : kept.entrySet()) {
+            assertArrayEquals(e.getValue(), IOUtils.toByteArray(packs.open(e.getKey())));
+        }
+        assertEquals(kept.size(), countIds(packs));
+    }
+
+    @Test
+    public void testPackingOutputStream() throws Exception {
+        URI small = URI.create("file://" + tmp.getRoot().getAbsolutePath() + "/small");
+        URI large = URI.create("file://" + tmp.getRoot().getAbsolutePath() + "/large");
+        byte[] smallData = createTestData(100);
+        byte[] largeData = createTestData(5000);
+
+        OutputStream out = new HDFSPackingOutputStream(packs, fs, small, 1024, 0, false, null);
+        out.write(smallData);
+        out.close();
+        assertTrue(packs.contains(small));
+        assertFalse(fs.exists(new Path(small)));
+
+        out = new HDFSPackingOutputStream(packs, fs, large, 1024, 0, false, null);
+        out.write(largeData, 0, 600);
+        out.write(largeData, 600, 4400);
+        out.close();
+        assertFalse(packs.contains(large));
+        assertArrayEquals(largeData, IOUtils.toByteArray(fs.open(new Path(large))));
+
+        // overwriting a packed blob with large content moves it into a file
+        out = new HDFSPackingOutputStream(packs, fs, small, 1024, largeData.length, false, null);
+        out.write(largeData);
+        out.close();
+        assertFalse(packs.contains(small));
+        assertEquals(largeData.length, fs.getFileStatus(new Path(small)).getLen());
+    }
+
+    @Test
+    public void testBatchIsPerThread() throws Exception {
+        final AtomicInteger syncs = new AtomicInteger();
+        final HDFSPackStore batched = new HDFSPackStore(countSyncs(syncs, 0), new Path(dir, "batched"), 1024 * 1024);
+        batched.open();
+        batched.startBatch();
+        batched.put(URI.create("hdfs://localhost:9000/test1"), createTestData(10));
+        batched.put(URI.create("hdfs://localhost:9000/test2"), createTestData(10));
+        assertEquals(0, syncs.get());
+        // a writer outside the batch still syncs its record
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    batched.put(URI.create("hdfs://localhost:9000/test3"), createTestData(10));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        other.start();
+        other.join();
+        assertEquals(1, syncs.get());
+        batched.finishBatch();
+        assertEquals(1, syncs.get());
+        batched.put(URI.create("hdfs://localhost:9000/test4"), createTestData(10));
+        assertEquals(2, syncs.get());
+        batched.close();
+    }
+
+    @Test
+    public void testConcurrentWritersShareSyncs() throws Exception {
+        final AtomicInteger syncs = new AtomicInteger();
+        final HDFSPackStore shared = new HDFSPackStore(countSyncs(syncs, 20), new Path(dir, "shared"), 1024 * 1024);
+        shared.open();
+        List<Thread> writers = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final int writer = i;
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < 5; j++) {
+                            shared.put(URI.create("hdfs://localhost:9000/test" + writer + "-" + j), createTestData(10));
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writers.add(t);
+            t.start();
+        }
+        for (Thread t : writers) {
+            t.join();
+        }
+        assertEquals(40, countIds(shared));
+        assertTrue("synced " + syncs.get() + " times", syncs.get() < 40);
+        shared.close();
+    }
+
+    private static int countIds(final HDFSPackStore store) {
+        int count = 0;
+        for (Iterator<URI> it = store.ids(); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    /*
+     * a filesystem counting the syncs of the streams it creates, each of
+     * which takes the given time
+     */
+    private FileSystem countSyncs(final AtomicInteger syncs, final long millis) {
+        return new FilterFileSystem(fs) {
+            @Override
+            public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+                    short replication, long blockSize, Progressable progress) throws IOException {
+                return new FSDataOutputStream(new SyncCountingStream(super.create(f, permission, overwrite,
+                        bufferSize, replication, blockSize, progress), syncs, millis), null);
+            }
+        };
+    }
+
+    private static class SyncCountingStream extends FilterOutputStream implements Syncable {
+        private final AtomicInteger syncs;
+        private final long millis;
+
+        private SyncCountingStream(final OutputStream out, final AtomicInteger syncs, final long millis) {
+            super(out);
+            this.syncs = syncs;
+            this.millis = millis;
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        public void sync() throws IOException {
+            out.flush();
+            syncs.incrementAndGet();
+            try {
+                Thread.sleep(millis);
+            } catch (InterruptedException e) {
+                throw new IOException("interrupted");
+            }
+        }
+    }
+}
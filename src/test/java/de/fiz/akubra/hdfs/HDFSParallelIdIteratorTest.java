@@ -0,0 +1,126 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSParallelIdIteratorTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileSystem fs;
+    private Path root;
+
+    @Before
+    public void setUp() throws Exception {
+        fs = FileSystem.getLocal(new Configuration());
+        root = new Path(tmp.getRoot().getAbsolutePath());
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 10; j++) {
+                fs.create(new Path(root, "dir" + i + "/sub" + j + "/test" + i + j)).close();
+            }
+            fs.create(new Path(root, "dir" + i + "/other" + i)).close();
+        }
+        fs.create(new Path(root, HDFSBlobStore.PACK_DIRECTORY + "/test-in-pack")).close();
+    }
+
+    @Test
+    public void testIterator() throws Exception {
+        HDFSParallelIdIterator it = new HDFSParallelIdIterator(fs, root, "test", null, null, 4, 5);
+        Set<URI> ids = new HashSet<URI>();
+        while (it.hasNext()) {
+            URI id = it.next();
+            assertTrue(id.getPath().contains("/test"));
+            assertFalse(id.getPath().contains(HDFSBlobStore.PACK_DIRECTORY));
+            ids.add(id);
+        }
+        assertEquals(100, ids.size());
+    }
+
+    @Test
+    public void testListingFailure() throws Exception {
+        FileSystem mockFs = createMock(FileSystem.class);
+        expect(mockFs.listStatus(anyObject(Path.class))).andThrow(new IOException("namenode unavailable"));
+        replay(mockFs);
+        HDFSParallelIdIterator it = new HDFSParallelIdIterator(mockFs, root, "test", null, null, 2, 5);
+        try {
+            it.hasNext();
+            fail("listing failure was swallowed");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        HDFSParallelIdIterator it = new HDFSParallelIdIterator(fs, root, "test", null, null, 4, 1);
+        assertTrue(it.hasNext());
+        it.next();
+        it.close();
+        assertFalse(it.hasNext());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testConnectionClose() throws Exception {
+        // an endless tree of directories, each holding a single blob
+        FileSystem mockFs = createMock(FileSystem.class);
+        expect(mockFs.listStatus(anyObject(Path.class))).andReturn(
+                new FileStatus[] { new FileStatus(0, true, 0, 0, 0, new Path("hdfs://localhost:9000/dir")),
+                        new FileStatus(1024, false, 0, 0, 0, new Path("hdfs://localhost:9000/dir/test1")) }).anyTimes();
+        HDFSBlobStore mockStore = createMock(HDFSBlobStore.class);
+        expect(mockStore.acquireFilesystem()).andReturn(mockFs);
+        expect(mockStore.getId()).andReturn(URI.create("hdfs://localhost:9000/")).anyTimes();
+        expect(mockStore.getListingThreads()).andReturn(4).anyTimes();
+        expect(mockStore.getListingQueueSize()).andReturn(1);
+        expect(mockStore.getShardLayout()).andReturn(new HDFSShardLayout(0, 2));
+        HDFSBlobTest.expectFeaturesDisabled(mockStore);
+        mockStore.releaseFilesystem(mockFs);
+        replay(mockFs, mockStore);
+        HDFSBlobStoreConnection connection = new HDFSBlobStoreConnection(mockStore);
+        Iterator<URI> it = connection.listBlobIds("test");
+        assertTrue(it instanceof HDFSParallelIdIterator);
+        assertTrue(it.hasNext());
+        it.next();
+        connection.close();
+        while (it.hasNext()) {
+            it.next();
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.akubraproject.BlobStoreConnection;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSRandomAccessBlobTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final byte[] data = new byte[10000];
+    private FileSystem fs;
+    private HDFSBlobStore store;
+    private BlobStoreConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        new Random().nextBytes(data);
+        fs = FileSystem.getLocal(new Configuration());
+        URI storeUri = URI.create(fs.makeQualified(new Path(tmp.newFolder("store").getAbsolutePath())).toUri() + "/");
+        store = new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (connection != null) {
+            connection.close();
+        }
+        store.close();
+    }
+
+    private HDFSRandomAccessBlob createBlob() throws Exception {
+        connection = store.openConnection(null, null);
+        return (HDFSRandomAccessBlob) connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+    }
+
+    private static byte[] read(final InputStream in) throws IOException {
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void assertRanges(final HDFSRandomAccessBlob blob) throws Exception {
+        assertArrayEquals(Arrays.copyOfRange(data, 4000, 4100), read(blob.openInputStream(4000, 100)));
+        assertArrayEquals(Arrays.copyOfRange(data, 9990, 10000), read(blob.openInputStream(9990, -1)));
+        assertArrayEquals(Arrays.copyOfRange(data, 9990, 10000), read(blob.openInputStream(9990, 100)));
+        assertArrayEquals(data, read(blob.openInputStream(0, -1)));
+        assertEquals(-1, blob.openInputStream(data.length + 10, 100).read());
+
+        byte[] buf = new byte[120];
+        assertEquals(100, blob.read(5000, buf, 20, 100));
+        assertArrayEquals(Arrays.copyOfRange(data, 5000, 5100), Arrays.copyOfRange(buf, 20, 120));
+        assertEquals(10, blob.read(9990, buf, 0, 100));
+        assertArrayEquals(Arrays.copyOfRange(data, 9990, 10000), Arrays.copyOfRange(buf, 0, 10));
+        assertEquals(-1, blob.read(data.length, buf, 0, 100));
+    }
+
+    @Test
+    public void testFile() throws Exception {
+        assertRanges(createBlob());
+    }
+
+    @Test
+    public void testPacked() throws Exception {
+        store.setPackThreshold(data.length * 2);
+        HDFSRandomAccessBlob blob = createBlob();
+        assertEquals(data.length, store.getPackStore().getSize(blob.getId()));
+        assertRanges(blob);
+    }
+
+    @Test
+    public void testDeduplicated() throws Exception {
+        store.setDeduplicate(true);
+        store.setSpoolDirectory(tmp.getRoot().getAbsolutePath());
+        HDFSRandomAccessBlob blob = createBlob();
+        assertTrue(store.getContentStore().contains(blob.getId()));
+        assertRanges(blob);
+    }
+
+    @Test
+    public void testCached() throws Exception {
+        store.setReadCacheDirectory(tmp.newFolder("cache").getAbsolutePath());
+        store.setReadCacheSize(1024 * 1024);
+        store.setReadCacheMaxBlobSize(1024 * 1024);
+        HDFSRandomAccessBlob blob = createBlob();
+        read(blob.openInputStream());
+        assertRanges(blob);
+        assertEquals(8, store.getReadCacheHits());
+    }
+
+    @Test
+    public void testMemoryCached() throws Exception {
+        store.setMemoryCacheSize(1024 * 1024);
+        store.setMemoryCacheMaxBlobSize(data.length);
+        HDFSRandomAccessBlob blob = createBlob();
+        read(blob.openInputStream());
+        assertRanges(blob);
+        assertEquals(8, store.getMemoryCacheHits());
+        // ranges are not cached
+        assertEquals(1, store.getMemoryCacheMisses());
+    }
+
+    @Test
+    public void testSkipFully() throws Exception {
+        // skips at most three bytes at a time and none every other call
+        InputStream in = new FilterInputStream(new ByteArrayInputStream(data)) {
+            private boolean none;
+
+            @Override
+            public long skip(final long n) throws IOException {
+                none = !none;
+                return none ? 0 : super.skip(Math.min(n, 3));
+            }
+        };
+        HDFSRangeInputStream.skipFully(in, 50);
+        assertEquals(data[50] & 0xff, in.read());
+        try {
+            HDFSRangeInputStream.skipFully(in, data.length);
+            fail("skipping beyond the end has not been reported");
+        } catch (EOFException e) {
+            // the stream ended before
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.util.Random;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.MissingBlobException;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSReadCacheTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private HDFSCountingFileSystem fs;
+    private HDFSBlobStore store;
+    private BlobStoreConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        fs = new HDFSCountingFileSystem(FileSystem.getLocal(new Configuration()));
+        URI storeUri = URI.create(fs.makeQualified(new Path(tmp.newFolder("store").getAbsolutePath())).toUri() + "/");
+        store = new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+        };
+        store.setReadCacheDirectory(tmp.newFolder("cache").getAbsolutePath());
+        store.setReadCacheSize(1024 * 1024);
+        connection = store.openConnection(null, null);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        connection.close();
+        store.close();
+    }
+
+    private static byte[] randomData(final int size) {
+        byte[] data = new byte[size];
+        new Random().nextBytes(data);
+        return data;
+    }
+
+    private static byte[] read(final HDFSReadCache cache, final URI uri) throws IOException {
+        InputStream in = cache.open(uri);
+        if (in == null) {
+            return null;
+        }
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] read(final Blob blob) throws IOException {
+        InputStream in = blob.openInputStream();
+        try {
+            return IOUtils.toByteArray(in);
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void populate(final HDFSReadCache cache, final URI uri, final byte[] data) throws IOException {
+        InputStream in = cache.populate(uri, new ByteArrayInputStream(data));
+        IOUtils.toByteArray(in);
+        in.close();
+    }
+
+    @Test
+    public void testReadThrough() throws Exception {
+        byte[] data = randomData(4096);
+        Blob blob = connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        assertArrayEquals(data, read(blob));
+        assertEquals(1, store.getReadCacheMisses());
+        fs.reset();
+        assertArrayEquals(data, read(blob));
+        // the second read is served from the local copy
+        assertEquals(0, fs.getCount("open"));
+        assertEquals(1, store.getReadCacheHits());
+        assertEquals(data.length, store.getReadCache().getSize());
+    }
+
+    @Test
+    public void testInvalidation() throws Exception {
+        byte[] data = randomData(1024);
+        Blob blob = connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        read(blob);
+
+        byte[] update = randomData(512);
+        OutputStream out = blob.openOutputStream(update.length, true);
+        out.write(update);
+        out.close();
+        assertArrayEquals(update, read(blob));
+        assertEquals(0, store.getReadCacheHits());
+
+        blob.delete();
+        assertEquals(0, store.getReadCache().getSize());
+        try {
+            blob.openInputStream();
+            fail("deleted blob was read from the cache");
+        } catch (MissingBlobException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testPartialReadIsNotCached() throws Exception {
+        HDFSReadCache cache = new HDFSReadCache(tmp.getRoot(), 1024, 1024);
+        URI uri = URI.create("hdfs://localhost:9000/test");
+        InputStream in = cache.populate(uri, new ByteArrayInputStream(randomData(100)));
+        in.read(new byte[10]);
+        in.close();
+        assertNull(read(cache, uri));
+        cache.close();
+    }
+
+    @Test
+    public void testLargeBlobIsNotCached() throws Exception {
+        HDFSReadCache cache = new HDFSReadCache(tmp.getRoot(), 1024, 100);
+        URI uri = URI.create("hdfs://localhost:9000/test");
+        populate(cache, uri, randomData(101));
+        assertNull(read(cache, uri));
+        assertEquals(0, cache.getSize());
+        cache.close();
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        HDFSReadCache cache = new HDFSReadCache(tmp.getRoot(), 100, 100);
+        URI first = URI.create("hdfs://localhost:9000/first");
+        URI second = URI.create("hdfs://localhost:9000/second");
+        URI third = URI.create("hdfs://localhost:9000/third");
+        byte[] data = randomData(40);
+        populate(cache, first, data);
+        populate(cache, second, data);
+        // reading the first blob makes the second the least recently used
+        assertArrayEquals(data, read(cache, first));
+        populate(cache, third, data);
+        assertEquals(80, cache.getSize());
+        assertNull(read(cache, second));
+        assertArrayEquals(data, read(cache, first));
+        assertArrayEquals(data, read(cache, third));
+        cache.close();
+    }
+
+    @Test
+    public void testStalePopulationIsDiscarded() throws Exception {
+        HDFSReadCache cache = new HDFSReadCache(tmp.getRoot(), 1024, 1024);
+        URI uri = URI.create("hdfs://localhost:9000/test");
+        InputStream in = cache.populate(uri, new ByteArrayInputStream(randomData(100)));
+        IOUtils.toByteArray(in);
+        // the blob is changed while the old content is being read
+        cache.invalidate(uri);
+        in.close();
+        assertNull(read(cache, uri));
+        cache.close();
+    }
+
+    @Test
+    public void testPopulationSurvivesOtherChanges() throws Exception {
+        HDFSReadCache cache = new HDFSReadCache(tmp.getRoot(), 1024, 1024);
+        URI uri = URI.create("hdfs://localhost:9000/test");
+        byte[] data = randomData(100);
+        InputStream in = cache.populate(uri, new ByteArrayInputStream(data));
+        IOUtils.toByteArray(in);
+        // another blob is changed while this one is being read
+        cache.invalidate(URI.create("hdfs://localhost:9000/other"));
+        in.close();
+        assertArrayEquals(data, read(cache, uri));
+        cache.close();
+    }
+}
@@ -0,0 +1,206 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyShort;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+
+import org.akubraproject.Blob;
+import org.akubraproject.DuplicateBlobException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileAlreadyExistsException;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PositionedReadable;
+import org.apache.hadoop.fs.Seekable;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Asserts the number of namenode calls each blob operation may make, so that
+ * redundant calls are noticed
+ */
+public class HDFSRpcBudgetTest {
+
+    private static final URI storeUri = URI.create("hdfs://localhost:9000/store/");
+    private static final URI blobUri = URI.create("hdfs://localhost:9000/store/dir/blob");
+    private static final Path blobPath = new Path(blobUri);
+
+    private FileSystem mockFs;
+    private HDFSCountingFileSystem fs;
+    private HDFSBlobStoreConnection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        mockFs = createNiceMock(FileSystem.class);
+        expect(mockFs.getConf()).andReturn(new Configuration()).anyTimes();
+        fs = new HDFSCountingFileSystem(mockFs);
+        HDFSBlobStore store = new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+
+            // no compressed blobs, so the marker is not looked up
+            @Override
+            synchronized HDFSMetadataStore getMetadataStore() throws IOException {
+                return null;
+            }
+        };
+        connection = new HDFSBlobStoreConnection(store);
+    }
+
+    private void expectCreate(final boolean overwrite) throws IOException {
+        expect(
+                mockFs.create(anyObject(Path.class), anyObject(FsPermission.class), eq(overwrite), anyInt(), anyShort(), anyLong(),
+                        anyObject(Progressable.class))).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(), null)).anyTimes();
+    }
+
+    private void assertBudget(final long budget) {
+        assertTrue("expected at most " + budget + " calls but got " + fs.getCounts(), fs.getTotal() <= budget);
+        fs.reset();
+    }
+
+    @Test
+    public void testCreate() throws Exception {
+        expectCreate(false);
+        replay(mockFs);
+        connection.getBlob(new ByteArrayInputStream(new byte[1024]), 1024, null);
+        assertBudget(1);
+    }
+
+    @Test
+    public void testOpenOutputStream() throws Exception {
+        expectCreate(false);
+        expectCreate(true);
+        replay(mockFs);
+        Blob b = connection.getBlob(blobUri, null);
+        b.openOutputStream(1024, false).close();
+        assertBudget(1);
+        b.openOutputStream(1024, true).close();
+        assertBudget(1);
+    }
+
+    @Test
+    public void testOpenOutputStreamDuplicate() throws Exception {
+        expect(
+                mockFs.create(anyObject(Path.class), anyObject(FsPermission.class), eq(false), anyInt(), anyShort(), anyLong(),
+                        anyObject(Progressable.class))).andThrow(new FileAlreadyExistsException());
+        replay(mockFs);
+        try {
+            connection.getBlob(blobUri, null).openOutputStream(1024, false);
+            fail("existing blob has been overwritten");
+        } catch (DuplicateBlobException e) {
+            assertBudget(1);
+        }
+    }
+
+    @Test
+    public void testRead() throws Exception {
+        expect(mockFs.getFileStatus(blobPath)).andReturn(new FileStatus(1024, false, 0, 0, 0, blobPath)).anyTimes();
+        expect(mockFs.open(eq(blobPath), anyInt())).andReturn(new FSDataInputStream(new SeekableInputStream(new byte[1024]))).anyTimes();
+        replay(mockFs);
+        Blob b = connection.getBlob(blobUri, null);
+        b.exists();
+        assertBudget(1);
+        b.getSize();
+        assertBudget(1);
+        b.openInputStream().close();
+        assertBudget(1);
+    }
+
+    @Test
+    public void testDelete() throws Exception {
+        expect(mockFs.delete(blobPath, false)).andReturn(true);
+        replay(mockFs);
+        connection.getBlob(blobUri, null).delete();
+        assertBudget(1);
+    }
+
+    @Test
+    public void testMoveTo() throws Exception {
+        expect(mockFs.mkdirs(anyObject(Path.class), anyObject(FsPermission.class))).andReturn(true).anyTimes();
+        expect(mockFs.rename(anyObject(Path.class), anyObject(Path.class))).andReturn(true).anyTimes();
+        replay(mockFs);
+        connection.getBlob(blobUri, null).moveTo(URI.create(storeUri + "other/blob1"), null);
+        // the target is checked, and its directory has to be created once
+        assertBudget(3);
+        connection.getBlob(blobUri, null).moveTo(URI.create(storeUri + "other/blob2"), null);
+        assertBudget(2);
+    }
+
+    @Test
+    public void testMoveToMissing() throws Exception {
+        expect(mockFs.mkdirs(anyObject(Path.class), anyObject(FsPermission.class))).andReturn(true).anyTimes();
+        expect(mockFs.rename(anyObject(Path.class), anyObject(Path.class))).andReturn(false).anyTimes();
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andThrow(new FileNotFoundException()).anyTimes();
+        replay(mockFs);
+        try {
+            connection.getBlob(blobUri, null).moveTo(URI.create(storeUri + "other/blob1"), null);
+            fail("missing blob has been moved");
+        } catch (IOException e) {
+            // the failure is diagnosed after the rename
+            assertBudget(5);
+        }
+    }
+
+    public static class SeekableInputStream extends ByteArrayInputStream implements PositionedReadable, Seekable {
+        public SeekableInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        public long getPos() throws IOException {
+            return 0;
+        }
+
+        public int read(long position, byte[] buffer, int offset, int length) throws IOException {
+            return 0;
+        }
+
+        public void readFully(long position, byte[] buffer) throws IOException {
+        }
+
+        public void readFully(long position, byte[] buffer, int offset, int length) throws IOException {
+        }
+
+        public void seek(long pos) throws IOException {
+        }
+
+        public boolean seekToNewSource(long targetPos) throws IOException {
+            return false;
+        }
+    }
+}
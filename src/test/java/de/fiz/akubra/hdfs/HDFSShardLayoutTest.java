@@ -0,0 +1,60 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HDFSShardLayoutTest {
+
+    @Test
+    public void testShardPath() throws Exception {
+        HDFSShardLayout layout = new HDFSShardLayout(2, 2);
+        String shards = layout.getShardPath("demo_1");
+        assertTrue(shards.matches("\\.[0-9a-f]{2}/\\.[0-9a-f]{2}/"));
+        assertEquals(shards, layout.getShardPath("demo_1"));
+        assertEquals("", new HDFSShardLayout(0, 2).getShardPath("demo_1"));
+    }
+
+    @Test
+    public void testShardName() throws Exception {
+        HDFSShardLayout layout = new HDFSShardLayout(2, 2);
+        assertTrue(layout.isShardName(".3f"));
+        assertFalse(layout.isShardName("3f"));
+        assertFalse(layout.isShardName(".3F"));
+        assertFalse(layout.isShardName(".3f0"));
+        assertFalse(layout.isShardName(HDFSBlobStore.PACK_DIRECTORY));
+    }
+
+    @Test
+    public void testRemoveShards() throws Exception {
+        HDFSShardLayout layout = new HDFSShardLayout(2, 2);
+        String path = "fedora/demo_1/" + layout.getShardPath("DC.0") + "DC.0";
+        assertEquals("fedora/demo_1/DC.0", layout.removeShards(path));
+        assertEquals("fedora/demo_1/DC.0", layout.removeShards("fedora/demo_1/DC.0"));
+        assertEquals("fedora/.3f/DC.0", layout.removeShards("fedora/.3f/DC.0"));
+        assertEquals("DC.0", layout.removeShards(layout.getShardPath("DC.0") + "DC.0"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTooManyLevels() throws Exception {
+        new HDFSShardLayout(9, 2);
+    }
+}
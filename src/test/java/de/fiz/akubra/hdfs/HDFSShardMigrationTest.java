@@ -0,0 +1,90 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSShardMigrationTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private FileSystem fs;
+    private Path root;
+    private HDFSShardLayout layout;
+
+    @Before
+    public void setUp() throws Exception {
+        fs = FileSystem.getLocal(new Configuration());
+        root = fs.makeQualified(new Path(tmp.getRoot().getAbsolutePath()));
+        layout = new HDFSShardLayout(2, 1);
+        for (int i = 0; i < 20; i++) {
+            fs.create(new Path(root, "fedora/demo_" + i)).close();
+            fs.create(new Path(root, "datastreams/demo_" + i + "/DC/DC.0")).close();
+        }
+        fs.create(new Path(root, "other_1")).close();
+    }
+
+    @Test
+    public void testMigration() throws Exception {
+        assertEquals(41, new HDFSShardMigration(fs, root, layout, null, 4).run());
+        assertFalse(fs.exists(new Path(root, "fedora/demo_1")));
+        assertTrue(fs.exists(new Path(root, "fedora/" + layout.getShardPath("demo_1") + "demo_1")));
+        assertTrue(fs.exists(new Path(root, "datastreams/demo_1/DC/" + layout.getShardPath("DC.0") + "DC.0")));
+        assertTrue(fs.exists(new Path(root, layout.getShardPath("other_1") + "other_1")));
+        // running again leaves the blobs in place
+        assertEquals(0, new HDFSShardMigration(fs, root, layout, null, 4).run());
+    }
+
+    @Test
+    public void testPrefixListingAfterMigration() throws Exception {
+        new HDFSShardMigration(fs, root, layout, null, 4).run();
+        String base = root.toUri().toASCIIString() + "/";
+        Set<String> ids = list(base + "fedora/demo_1");
+        // demo_1 and demo_10 to demo_19
+        assertEquals(11, ids.size());
+        assertTrue(ids.contains(root.toUri().getPath() + "/fedora/demo_1"));
+        ids = list(base + "datastreams/demo_1");
+        assertEquals(11, ids.size());
+        assertTrue(ids.contains(root.toUri().getPath() + "/datastreams/demo_1/DC/DC.0"));
+    }
+
+    private Set<String> list(final String prefix) {
+        HDFSIdIterator it = new HDFSIdIterator(fs, root, prefix, layout, null);
+        Set<String> ids = new HashSet<String>();
+        while (it.hasNext()) {
+            URI id = it.next();
+            assertTrue(id.getPath().contains("/" + layout.getShardPath(id.getPath().substring(id.getPath().lastIndexOf('/') + 1))));
+            ids.add(layout.removeShards(id.getPath()));
+        }
+        return ids;
+    }
+}
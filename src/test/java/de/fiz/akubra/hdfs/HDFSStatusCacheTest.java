@@ -0,0 +1,156 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyBoolean;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.net.URI;
+
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSStatusCacheTest {
+
+    private static final URI blobUri = URI.create("hdfs://localhost:9000/test1");
+    private static final URI storeUri = URI.create("hdfs://localhost:9000/");
+
+    private HDFSBlobStore mockStore;
+    private HDFSBlobStoreConnection mockConnection;
+    private FileSystem mockFs;
+    private HDFSStatusCache cache;
+
+    @Before
+    public void setUp() throws Exception {
+        mockStore = createMock(HDFSBlobStore.class);
+        mockConnection = createMock(HDFSBlobStoreConnection.class);
+        mockFs = createMock(FileSystem.class);
+        cache = new HDFSStatusCache(2, 60000);
+        expect(mockConnection.getBlobStore()).andReturn(mockStore).anyTimes();
+        expect(mockConnection.getFileSystem()).andReturn(mockFs).anyTimes();
+        expect(mockConnection.isClosed()).andReturn(false).anyTimes();
+        expect(mockStore.getId()).andReturn(storeUri).anyTimes();
+        HDFSBlobTest.expectFeatures(mockStore, cache, null);
+        HDFSBlobTest.expectConnection(mockConnection);
+    }
+
+    @Test
+    public void testLookup() throws Exception {
+        FileStatus status = new FileStatus(1024, false, 0, 0, 0, new Path(blobUri));
+        assertNull(cache.get(blobUri));
+        cache.put(blobUri, status);
+        assertSame(status, cache.get(blobUri));
+        cache.invalidate(blobUri);
+        assertNull(cache.get(blobUri));
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+    @Test
+    public void testFillAfterChange() throws Exception {
+        FileStatus status = new FileStatus(1024, false, 0, 0, 0, new Path(blobUri));
+        long generation = cache.getGeneration(blobUri);
+        assertTrue(cache.fill(blobUri, status, generation));
+        assertSame(status, cache.get(blobUri));
+        generation = cache.getGeneration(blobUri);
+        cache.invalidate(blobUri);
+        // the lookup has been overtaken by a change
+        assertFalse(cache.fill(blobUri, status, generation));
+        assertNull(cache.get(blobUri));
+    }
+
+    @Test
+    public void testBlobLookupOvertakenByDelete() throws Exception {
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andAnswer(new IAnswer<FileStatus>() {
+            public FileStatus answer() throws Throwable {
+                // the blob is deleted while its status is looked up
+                cache.put(blobUri, HDFSStatusCache.MISSING);
+                return new FileStatus(1024, false, 0, 0, 0, new Path(blobUri));
+            }
+        }).once();
+        replay(mockStore, mockConnection, mockFs);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        assertTrue(b.exists());
+        assertSame(HDFSStatusCache.MISSING, cache.get(blobUri));
+        assertFalse(b.exists());
+        verify(mockFs);
+    }
+
+    @Test
+    public void testEviction() throws Exception {
+        cache.put(URI.create("hdfs://localhost:9000/1"), HDFSStatusCache.MISSING);
+        cache.put(URI.create("hdfs://localhost:9000/2"), HDFSStatusCache.MISSING);
+        cache.get(URI.create("hdfs://localhost:9000/1"));
+        cache.put(URI.create("hdfs://localhost:9000/3"), HDFSStatusCache.MISSING);
+        assertSame(HDFSStatusCache.MISSING, cache.get(URI.create("hdfs://localhost:9000/1")));
+        assertNull(cache.get(URI.create("hdfs://localhost:9000/2")));
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        HDFSStatusCache expiring = new HDFSStatusCache(10, -1);
+        expiring.put(blobUri, HDFSStatusCache.MISSING);
+        assertNull(expiring.get(blobUri));
+    }
+
+    @Test
+    public void testBlobUsesCache() throws Exception {
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andReturn(new FileStatus(1024, false, 0, 0, 0, new Path(blobUri))).once();
+        replay(mockStore, mockConnection, mockFs);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        assertTrue(b.exists());
+        assertEquals(1024, b.getSize());
+        assertTrue(b.exists());
+        verify(mockFs);
+    }
+
+    @Test
+    public void testBlobCachesMissing() throws Exception {
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andThrow(new FileNotFoundException()).once();
+        replay(mockStore, mockConnection, mockFs);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        assertFalse(b.exists());
+        assertFalse(b.exists());
+        verify(mockFs);
+    }
+
+    @Test
+    public void testDeleteUpdatesCache() throws Exception {
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andReturn(new FileStatus(1024, false, 0, 0, 0, new Path(blobUri))).once();
+        expect(mockFs.delete(anyObject(Path.class), anyBoolean())).andReturn(true);
+        replay(mockStore, mockConnection, mockFs);
+        HDFSBlob b = new HDFSBlob(blobUri, mockConnection);
+        assertTrue(b.exists());
+        b.delete();
+        assertFalse(b.exists());
+        verify(mockFs);
+    }
+}
@@ -0,0 +1,202 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyShort;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.reset;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class HDFSTieringTest {
+
+    private static final URI storeUri = URI.create("hdfs://localhost:9000/store/");
+    private static final Path root = new Path(storeUri.toASCIIString());
+    private static final long DAY = 24L * 3600 * 1000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static HDFSBlobStore createStore(final FileSystem fs) {
+        return new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+        };
+    }
+
+    private static FileStatus file(final Path path, final int replication, final long accessed) {
+        return new FileStatus(1024, false, replication, 64 * 1024 * 1024, accessed, accessed, null, null, null, path);
+    }
+
+    private static FileStatus dir(final Path path) {
+        return new FileStatus(0, true, 0, 0, 0, path);
+    }
+
+    @Test
+    public void testHotBlob() throws Exception {
+        Path hot = new Path(storeUri + "hot");
+        Path warm = new Path(storeUri + "warm");
+        FileSystem fs = createMock(FileSystem.class);
+        expect(fs.getFileStatus(hot)).andReturn(file(hot, 2, 0));
+        expect(fs.setReplication(hot, (short) 5)).andReturn(true);
+        // restored to the replication it had before
+        expect(fs.setReplication(hot, (short) 2)).andReturn(true);
+        replay(fs);
+        HDFSTiering tiering = new HDFSTiering(createStore(fs), 3, (short) 5, (short) 0, DAY, 1000);
+        for (int i = 0; i < 3; i++) {
+            tiering.recordRead(hot);
+        }
+        tiering.recordRead(warm);
+        tiering.pass();
+        tiering.recordRead(hot);
+        tiering.pass();
+        // no longer tracked
+        tiering.pass();
+        verify(fs);
+        assertEquals(2, tiering.getChanges());
+    }
+
+    /*
+     * a store keeping the tiering records on the local filesystem
+     */
+    private HDFSBlobStore createStore(final FileSystem fs, final HDFSPackStore records) {
+        return new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+
+            @Override
+            synchronized HDFSPackStore getTieringRecords() throws IOException {
+                return records;
+            }
+        };
+    }
+
+    private HDFSPackStore createRecords() throws IOException {
+        FileSystem local = FileSystem.getLocal(new Configuration());
+        HDFSPackStore records = new HDFSPackStore(local, new Path(tmp.getRoot().getAbsolutePath(), "tiering"), 1024 * 1024);
+        records.open();
+        return records;
+    }
+
+    @Test
+    public void testColdBlobs() throws Exception {
+        long now = System.currentTimeMillis();
+        Path packs = new Path(storeUri + HDFSBlobStore.PACK_DIRECTORY);
+        Path shard = new Path(storeUri + "ab");
+        Path old = new Path(storeUri + "old");
+        Path lowered = new Path(storeUri + "lowered");
+        Path recent = new Path(storeUri + "recent");
+        Path read = new Path(storeUri + "read");
+        Path oldInShard = new Path(shard, "old");
+        Path loweredInShard = new Path(shard, "lowered");
+        Path foreign = new Path(storeUri + "foreign");
+        HDFSPackStore records = createRecords();
+        // lowered from 4 by an earlier pass
+        records.put(URI.create(lowered.toUri().getPath()), new byte[] { 0, 4 });
+        FileSystem fs = createMock(FileSystem.class);
+        expect(fs.listStatus(root)).andReturn(
+                new FileStatus[] { dir(packs), dir(shard), file(old, 3, now - 2 * DAY), file(lowered, 2, now - 1000),
+                        file(recent, 3, now - 1000), file(read, 3, now - 2 * DAY), file(foreign, 2, now - 1000) });
+        expect(fs.listStatus(shard)).andReturn(
+                new FileStatus[] { file(oldInShard, 4, now - 3 * DAY), file(loweredInShard, 2, now - 3 * DAY) });
+        expect(fs.setReplication(oldInShard, (short) 2)).andReturn(true);
+        expect(fs.setReplication(old, (short) 2)).andReturn(true);
+        // accessed again since it has been lowered
+        expect(fs.setReplication(lowered, (short) 4)).andReturn(true);
+        replay(fs);
+        HDFSTiering tiering = new HDFSTiering(createStore(fs, records), 100, (short) 5, (short) 2, DAY, 1000);
+        // read in the interval, but the namenode has not updated its access time yet
+        tiering.recordRead(read);
+        tiering.pass();
+        verify(fs);
+        assertEquals(3, tiering.getChanges());
+
+        // both lowered files are read again
+        reset(fs);
+        expect(fs.listStatus(root)).andReturn(new FileStatus[] { file(old, 2, now), dir(shard) });
+        expect(fs.listStatus(shard)).andReturn(new FileStatus[] { file(oldInShard, 2, now) });
+        expect(fs.setReplication(old, (short) 3)).andReturn(true);
+        expect(fs.setReplication(oldInShard, (short) 4)).andReturn(true);
+        replay(fs);
+        tiering.pass();
+        verify(fs);
+        assertEquals(5, tiering.getChanges());
+        assertFalse(records.ids().hasNext());
+        records.close();
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        FileSystem fs = createMock(FileSystem.class);
+        expect(fs.getFileStatus(anyObject(Path.class))).andReturn(file(root, 3, 0)).times(10);
+        expect(fs.setReplication(anyObject(Path.class), anyShort())).andReturn(true).times(10);
+        replay(fs);
+        HDFSTiering tiering = new HDFSTiering(createStore(fs), 1, (short) 5, (short) 0, DAY, 100);
+        for (int i = 0; i < 10; i++) {
+            tiering.recordRead(new Path(storeUri + "blob" + i));
+        }
+        long start = System.nanoTime();
+        tiering.pass();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        verify(fs);
+        // 20 calls at 100 per second
+        assertTrue("pass took " + elapsed + " ms", elapsed >= 180);
+    }
+
+    @Test
+    public void testReadsAreCounted() throws Exception {
+        FileSystem local = FileSystem.getLocal(new Configuration());
+        URI localUri = URI.create(local.makeQualified(new Path(tmp.getRoot().getAbsolutePath())).toUri() + "/");
+        HDFSBlobStore store = new HDFSBlobStore(localUri);
+        store.setTieringInterval(3600);
+        store.setTieringHotReads(2);
+        BlobStoreConnection connection = store.openConnection(null, null);
+        byte[] data = new byte[] { 1, 2, 3 };
+        Blob blob = connection.getBlob(new ByteArrayInputStream(data), data.length, null);
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        assertArrayEquals(data, IOUtils.toByteArray(blob.openInputStream()));
+        store.getTiering().pass();
+        assertEquals(1, store.getTieringChanges());
+        connection.close();
+        store.close();
+    }
+}
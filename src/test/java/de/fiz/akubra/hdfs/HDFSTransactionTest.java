@@ -0,0 +1,386 @@
+/*
+   Copyright 2011 FIZ Karlsruhe
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+
+ */
+package de.fiz.akubra.hdfs;
+
+import static org.easymock.EasyMock.anyBoolean;
+import static org.easymock.EasyMock.anyInt;
+import static org.easymock.EasyMock.anyLong;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.anyShort;
+import static org.easymock.EasyMock.capture;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createNiceMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+
+import org.akubraproject.Blob;
+import org.akubraproject.BlobStoreConnection;
+import org.akubraproject.DuplicateBlobException;
+import org.akubraproject.MissingBlobException;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.permission.FsPermission;
+import org.apache.hadoop.util.Progressable;
+import org.easymock.Capture;
+import org.easymock.IAnswer;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HDFSTransactionTest {
+
+    private static final URI storeUri = URI.create("hdfs://localhost:9000/store/");
+
+    private FileSystem mockFs;
+    private HDFSCountingFileSystem fs;
+    private HDFSBlobStore store;
+    private Capture<Synchronization> sync;
+    private Transaction tx;
+    /** the files deleted or renamed by the store */
+    private final Set<Path> removed = Collections.synchronizedSet(new HashSet<Path>());
+    /** the files renamed to by the store */
+    private final Set<Path> renamed = Collections.synchronizedSet(new HashSet<Path>());
+    private final AtomicInteger renames = new AtomicInteger();
+    /** the number of the rename which fails, 0 if none does */
+    private volatile int failingRename = 0;
+
+    @Before
+    public void setUp() throws Exception {
+        mockFs = createNiceMock(FileSystem.class);
+        expect(mockFs.getConf()).andReturn(new Configuration()).anyTimes();
+        expect(
+                mockFs.create(anyObject(Path.class), anyObject(FsPermission.class), anyBoolean(), anyInt(), anyShort(), anyLong(),
+                        anyObject(Progressable.class))).andReturn(new FSDataOutputStream(new ByteArrayOutputStream(), null)).anyTimes();
+        expect(mockFs.mkdirs(anyObject(Path.class), anyObject(FsPermission.class))).andReturn(true).anyTimes();
+        expect(mockFs.rename(anyObject(Path.class), anyObject(Path.class))).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                if (renames.incrementAndGet() == failingRename) {
+                    throw new IOException("namenode is gone");
+                }
+                removed.add((Path) getCurrentArguments()[0]);
+                removed.remove(getCurrentArguments()[1]);
+                renamed.add((Path) getCurrentArguments()[1]);
+                return true;
+            }
+        }).anyTimes();
+        expect(mockFs.delete(anyObject(Path.class), anyBoolean())).andAnswer(new IAnswer<Boolean>() {
+            public Boolean answer() throws Throwable {
+                removed.add((Path) getCurrentArguments()[0]);
+                return true;
+            }
+        }).anyTimes();
+        fs = new HDFSCountingFileSystem(mockFs);
+        store = new HDFSBlobStore(storeUri) {
+            @Override
+            synchronized FileSystem getFilesystem() throws IOException {
+                return fs;
+            }
+
+            // no compressed blobs, so the marker is not looked up
+            @Override
+            synchronized HDFSMetadataStore getMetadataStore() throws IOException {
+                return null;
+            }
+        };
+        sync = new Capture<Synchronization>();
+        tx = createMock(Transaction.class);
+        tx.registerSynchronization(capture(sync));
+        expectLastCall();
+        replay(tx);
+    }
+
+    @Test
+    public void testIngestIsOneCommit() throws Exception {
+        replay(mockFs);
+        BlobStoreConnection connection = store.openConnection(tx, null);
+        for (int i = 0; i < 50; i++) {
+            connection.getBlob(new ByteArrayInputStream(new byte[128]), 128, null);
+        }
+        // nothing is published before the commit
+        assertEquals(50, fs.getCount("create"));
+        assertEquals(0, fs.getCount("rename"));
+        fs.reset();
+
+        sync.getValue().beforeCompletion();
+        assertEquals(1, store.getGroupCommitter().getRounds());
+        assertEquals(50, fs.getCount("rename"));
+        // fresh blobs have nothing to put aside, so the journal is written once
+        assertEquals(1, fs.getCount("create"));
+        // all blobs go to the store's root, which is created once
+        assertEquals(1, fs.getCount("mkdirs"));
+        assertEquals(0, fs.getCount("delete"));
+        sync.getValue().afterCompletion(Status.STATUS_COMMITTED);
+        // only the journal is deleted
+        assertEquals(1, fs.getCount("delete"));
+    }
+
+    @Test
+    public void testRollback() throws Exception {
+        replay(mockFs);
+        BlobStoreConnection connection = store.openConnection(tx, null);
+        connection.getBlob(new ByteArrayInputStream(new byte[128]), 128, null);
+        connection.getBlob(new ByteArrayInputStream(new byte[128]), 128, null);
+        fs.reset();
+        sync.getValue().afterCompletion(Status.STATUS_ROLLEDBACK);
+        // only the staging files are removed
+        assertEquals(2, fs.getCount("delete"));
+        assertEquals(0, fs.getCount("rename"));
+    }
+
+    @Test
+    public void testRollbackAfterPrepare() throws Exception {
+        replay(mockFs);
+        BlobStoreConnection connection = store.openConnection(tx, null);
+        connection.getBlob(new ByteArrayInputStream(new byte[128]), 128, null);
+        fs.reset();
+        // another resource fails to prepare
+        sync.getValue().beforeCompletion();
+        assertEquals(1, fs.getCount("rename"));
+        sync.getValue().afterCompletion(Status.STATUS_ROLLEDBACK);
+        // the published blob is moved back and deleted along with the journal
+        assertEquals(2, fs.getCount("rename"));
+        assertEquals(2, fs.getCount("delete"));
+        assertEquals(1, store.getGroupCommitter().getRounds());
+    }
+
+    @Test
+    public void testTransactionView() throws Exception {
+        // every committed blob exists until it is removed
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andAnswer(new IAnswer<FileStatus>() {
+            public FileStatus answer() throws Throwable {
+                Path p = (Path) getCurrentArguments()[0];
+                boolean staging = p.getParent().getName().equals(HDFSBlobStore.STAGING_DIRECTORY);
+                if (removed.contains(p) || (staging && !renamed.contains(p))) {
+                    throw new FileNotFoundException(p.toString());
+                }
+                return new FileStatus(10, false, 0, 0, 0, p);
+            }
+        }).anyTimes();
+        replay(mockFs);
+        BlobStoreConnection connection = store.openConnection(tx, null);
+        Blob a = connection.getBlob(URI.create(storeUri + "a"), null);
+        Blob b = connection.getBlob(URI.create(storeUri + "b"), null);
+        Blob c = connection.getBlob(URI.create(storeUri + "c"), null);
+        try {
+            a.openOutputStream(10, false);
+            fail("existing blob has been overwritten");
+        } catch (DuplicateBlobException e) {
+            // expected
+        }
+        a.delete();
+        assertFalse(a.exists());
+        try {
+            a.moveTo(URI.create(storeUri + "d"), null);
+            fail("deleted blob has been moved");
+        } catch (MissingBlobException e) {
+            // expected
+        }
+        try {
+            b.moveTo(c.getId(), null);
+            fail("existing blob has been replaced");
+        } catch (DuplicateBlobException e) {
+            // expected
+        }
+        c.delete();
+        b.moveTo(c.getId(), null);
+        assertFalse(b.exists());
+        assertTrue(c.exists());
+        assertEquals(10, c.getSize());
+        fs.reset();
+
+        sync.getValue().beforeCompletion();
+        sync.getValue().afterCompletion(Status.STATUS_COMMITTED);
+        // a and c are put aside, the journal is renamed for publishing and b
+        // replaces c, then the blobs put aside and the journal are deleted
+        assertEquals(4, fs.getCount("rename"));
+        assertEquals(3, fs.getCount("delete"));
+    }
+
+    @Test
+    public void testFailedCommitIsRolledBack() throws Exception {
+        replay(mockFs);
+        Transaction failing = createMock(Transaction.class);
+        failing.registerSynchronization(capture(sync));
+        expectLastCall();
+        failing.setRollbackOnly();
+        expectLastCall();
+        replay(failing);
+        BlobStoreConnection connection = store.openConnection(failing, null);
+        connection.getBlob(new ByteArrayInputStream(new byte[128]), 128, null);
+        connection.getBlob(new ByteArrayInputStream(new byte[128]), 128, null);
+        fs.reset();
+        // the second blob is not published
+        failingRename = 2;
+        sync.getValue().beforeCompletion();
+        verify(failing);
+        // the first blob has been published and is moved back
+        assertEquals(3, fs.getCount("rename"));
+        sync.getValue().afterCompletion(Status.STATUS_ROLLEDBACK);
+        assertEquals(3, fs.getCount("rename"));
+        // the staged blobs and the journal
+        assertEquals(3, fs.getCount("delete"));
+    }
+
+    @Test
+    public void testConflictingTransactions() throws Exception {
+        replay(mockFs);
+        URI id = URI.create(storeUri + "a");
+        BlobStoreConnection first = store.openConnection(tx, null);
+        first.getBlob(id, null).delete();
+        Synchronization firstSync = sync.getValue();
+
+        Transaction other = createMock(Transaction.class);
+        other.registerSynchronization(capture(sync));
+        expectLastCall();
+        replay(other);
+        BlobStoreConnection second = store.openConnection(other, null);
+        try {
+            second.getBlob(id, null).openOutputStream(10, true);
+            fail("blob has been changed by two transactions");
+        } catch (IOException e) {
+            // expected
+        }
+        firstSync.afterCompletion(Status.STATUS_ROLLEDBACK);
+        second.getBlob(id, null).openOutputStream(10, true).close();
+    }
+
+    @Test
+    public void testInterruptedTransactionIsCompleted() throws Exception {
+        final Path journal = new Path(storeUri + HDFSBlobStore.STAGING_DIRECTORY + "/tx" + HDFSTransaction.PUBLISH_SUFFIX);
+        final URI staged = URI.create(storeUri + HDFSBlobStore.STAGING_DIRECTORY + "/staged");
+        final URI backup = URI.create(storeUri + HDFSBlobStore.STAGING_DIRECTORY + "/backup");
+        // a was put aside and the staged content had not been published yet
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(2);
+        out.writeBoolean(true);
+        out.writeUTF(storeUri + "a");
+        out.writeUTF(backup.toASCIIString());
+        out.writeBoolean(false);
+        out.writeUTF(staged.toASCIIString());
+        out.writeUTF(storeUri + "a");
+        out.close();
+        expect(mockFs.listStatus(new Path(storeUri + HDFSBlobStore.STAGING_DIRECTORY))).andReturn(
+                new FileStatus[] { new FileStatus(bytes.size(), false, 0, 0, 0, journal),
+                        new FileStatus(10, false, 0, 0, 0, new Path(staged)) });
+        expect(mockFs.open(eq(journal), anyInt())).andReturn(
+                new FSDataInputStream(new HDFSRpcBudgetTest.SeekableInputStream(bytes.toByteArray())));
+        expect(mockFs.getFileStatus(anyObject(Path.class))).andAnswer(new IAnswer<FileStatus>() {
+            public FileStatus answer() throws Throwable {
+                Path p = (Path) getCurrentArguments()[0];
+                if (!p.equals(new Path(staged)) || removed.contains(p)) {
+                    throw new FileNotFoundException(p.toString());
+                }
+                return new FileStatus(10, false, 0, 0, 0, p);
+            }
+        }).anyTimes();
+        replay(mockFs);
+        store.openConnection(tx, null);
+        // the staged content is published, then the journal is deleted
+        assertEquals(1, fs.getCount("rename"));
+        assertTrue(removed.contains(new Path(staged)));
+        assertTrue(removed.contains(journal));
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        replay(mockFs);
+        final HDFSGroupCommitter committer = new HDFSGroupCommitter(store);
+        final CountDownLatch blocking = new CountDownLatch(1);
+        final AtomicInteger applied = new AtomicInteger();
+        Thread first = commitInBackground(committer, new HDFSGroupCommitter.Commit() {
+            public void apply() throws IOException {
+                try {
+                    blocking.await();
+                } catch (InterruptedException e) {
+                    throw new IOException("interrupted");
+                }
+                applied.incrementAndGet();
+            }
+        });
+        // wait until the first commit is being applied
+        while (first.getState() != Thread.State.WAITING) {
+            Thread.sleep(10);
+        }
+        List<Thread> queued = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            queued.add(commitInBackground(committer, new HDFSGroupCommitter.Commit() {
+                public void apply() throws IOException {
+                    applied.incrementAndGet();
+                }
+            }));
+        }
+        for (Thread t : queued) {
+            while (t.getState() != Thread.State.WAITING) {
+                Thread.sleep(10);
+            }
+        }
+        blocking.countDown();
+        first.join();
+        for (Thread t : queued) {
+            t.join();
+        }
+        assertEquals(3, applied.get());
+        // the queued commits are applied together in the second round
+        assertEquals(2, committer.getRounds());
+        assertEquals(3, committer.getCommits());
+    }
+
+    private static Thread commitInBackground(final HDFSGroupCommitter committer, final HDFSGroupCommitter.Commit commit) {
+        Thread t = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    committer.commit(commit);
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+        t.start();
+        return t;
+    }
+}